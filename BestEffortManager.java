@@ -8,12 +8,22 @@ import org.saamnet.saam.gui.MAGMAAdminGui;
 import org.saamnet.saam.net.*;
 import org.saamnet.saam.message.EdgeNotification;
 import org.saamnet.saam.message.CongestionAdvisory;
+import org.saamnet.saam.message.CongestionAdvisoryBatch;
+import org.saamnet.saam.message.BestEffortTableBatch;
 import org.saamnet.saam.message.FlowRoutingTableEntry;
 import org.saamnet.saam.agent.router.FlowRoutingTable;
+import org.saamnet.saam.util.Counter;
+import org.saamnet.saam.util.LatencyHistogram;
+import org.saamnet.saam.util.MetricsRegistry;
+import org.saamnet.saam.util.Stopwatch;
 
 import java.util.Enumeration;
+import java.util.Hashtable;
 import java.util.Vector;
 import java.net.*;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
 
 /**
  * BestEffortManager (BEM) is the intelligence within the SAAM server that manages
@@ -31,131 +41,1196 @@ public class BestEffortManager
   private BasePIB myBasePIB;
   private Server myServer;
   
-  private MAGMAAdminGui gui;
+  private MAGMAAdminGui gui;//null when headless
+
+  //BEM's commentary, recorded as events and formatted off the decision
+  //threads for the gui and the log file, if any (see EventJournal)
+  private EventJournal journal = new EventJournal(EventJournal.DEFAULT_CAPACITY);
+
+  //system properties: "true" runs BEM without a gui; the journal's
+  //verbosity, "off", "summary", "decisions" or "detail" (the default); and
+  //a file the journal is appended to
+  public final static String HEADLESS_PROPERTY = "saam.bem.headless";
+  public final static String VERBOSITY_PROPERTY = "saam.bem.journal";
+  public final static String JOURNAL_LOG_PROPERTY = "saam.bem.journal.log";
+
+  //records BEM's inputs and outputs for TraceReplay; null unless the
+  //system property names a file to write the trace to
+  private volatile TraceRecorder trace;
+  public final static String TRACE_PROPERTY = "saam.bem.trace";
   
-  private boolean globalCongestion;//is it occurring?
+  /*
+   * Threads.  Loss samples are evaluated on the MonitoringPipeline's thread,
+   * which hands each shard's samples to a worker (see processLossSamples()),
+   * or on a server thread that calls reactiveMonitor() or proactiveMonitor()
+   * itself.  Edge notifications and path failures arrive on the server's
+   * threads.
+   *
+   * Node pair state (a NodePair and the BE state of its paths) is sharded
+   * by source node.  Whatever reads or changes a node pair holds its shard's
+   * lock, and holds no other shard's lock at the same time, so pairs in
+   * different shards are handled in parallel and a path failure only waits
+   * for work on its own shard.
+   *
+   * Global fairness state (globalCongestion, the timers and statistics
+   * below, lossRates) has a single writer: the thread holding this object's
+   * lock, which is the monitor thread in processLossSamples() or a server
+   * thread in proactiveMonitor() or resolveRequestedGlobalCongestion().
+   * Other threads only read globalCongestion, ask for global congestion
+   * resolution through globalCongestionRequested, and post loss rate changes
+   * to lossRateChanges, which the writer applies before it uses lossRates.
+   *
+   * Locks are taken in this order: this, topologyLock, a shard, a path,
+   * htDestPrefixes, edges.  pathCache, topology, lossRateChanges,
+   * switchbackLock and fairnessSummaries are only held briefly and take no
+   * other lock.
+   */
+
+  private volatile boolean globalCongestion;//is it occurring?
+  private volatile boolean globalCongestionRequested;//set when local resolution fails
   
-  private long localResolutionTimeout;//allow local resolution to take place
+  private volatile long localResolutionTimeout;//allow local resolution to take place
   private boolean lrtInitialized;//tracks initialization of localResolutionTimeout
   private long timeLastActionTaken;//the last time an active measure was taken
   private long timeLastCongestion;//the last time congestion was noted
 	private long timeLastSwitchback;//the last time a switchback was performed
+	private Object switchbackLock = new Object();//guards timeLastSwitchback
   
   //statistics used for fairness measures
   private double meanLossRate;
   private double stdLossRateDev;
+
+  //loss rate of every node pair, updated as each changes; pairs below
+  //richLossRate may be robbed and pairs above poorLossRate given to
+  private LossRateStatistics lossRates = new LossRateStatistics();
+  private LossRateChanges lossRateChanges = new LossRateChanges();
+  private int richLossRate;
+  private int poorLossRate;
+
+  //percentiles a pair must rank at or under to be rich, or above to be
+  //poor; one standard deviation either side of the mean if loss rates
+  //were normal
+  private static final double RICH_PERCENTILE = 0.16;
+  private static final double POOR_PERCENTILE = 0.84;
+
+  //results of routingAlgorithm.findPath() for the current topology
+  private PathCache pathCache;
+
+  //whether edge discovery only deploys paths for the node pairs it affects,
+  //rather than resetting every pair through updateBEtopology()
+  private boolean incrementalTopologyUpdates = true;
+
+  //threads that evaluate a cycle's loss samples, one shard at a time; 1
+  //evaluates them on the monitor thread.  The others are kept in monitorPool
+  //from cycle to cycle
+  private int monitorThreads = Runtime.getRuntime().availableProcessors();
+  private WorkerPool monitorPool = new WorkerPool("BEM shard monitor");
+
+  //the PIB's routing algorithm and path setup aren't thread safe, so calls
+  //into them from shard monitors and server threads are made one at a time
+  private Object routingLock = new Object();
+
+  //serializes edge notifications
+  private Object topologyLock = new Object();
   
-  //Vectors that store routerID's and interface addresses that
-  //are registered for best effort traffic BY THEIR STRING REPRESENTATION.
-  Vector vBestEffortRouters = new Vector();
-  Vector vBestEffortDestAdds = new Vector();
+  //routers and interface addresses that are registered for best effort
+  //traffic, with their node IDs
+  EdgeRegistry edges = new EdgeRegistry();
+
+  //NodePair objects, sharded by source node (see shardOf()); this is the
+  //authoritative record of which BE paths each node pair is using
+  private final static int PAIR_SHARDS = 64;
+  private PairShard[] shards = new PairShard[PAIR_SHARDS];
+
+  //router IDs and paths from myBasePIB, by node and path ID
+  private TopologySnapshot topology;
+
+  //Vectors of IPv6Prefix keyed by destination node ID (Integer); the
+  //prefixes BETEs are sent for, cleared whenever a new interface is added
+  private Hashtable htDestPrefixes = new Hashtable();
+
+  //a node's interfaces are never aggregated into a prefix shorter than this,
+  //so one BETE can't claim a whole site's address space
+  private final static int MIN_AGGREGATE_LENGTH = 64;
+
+  //table entries and advisories not yet sent, an Outbox per thread
+  private ThreadLocal outboxes = new ThreadLocal()
+  {
+    protected Object initialValue()
+    {
+      return new Outbox();
+    }
+  };
+
+  //batches loss samples for processLossSamples() once per AC cycle
+  private MonitoringPipeline monitoringPipeline;
+
+  //whether start() has been called
+  private volatile boolean started;
+
+  //where every timer reads the time; the system clock except in simulations
+  private Clock clock = Clock.SYSTEM;
+
+  //counts of BEM's decisions and messages, and how long they take, for the
+  //MetricsRegistry's exporters; the names are the registry's
+  private MetricsRegistry metrics = MetricsRegistry.getDefault();
+  private Counter[] advisoriesSent = {metrics.counter("bem.advisories.green"),//by condition
+                                      metrics.counter("bem.advisories.yellow"),
+                                      metrics.counter("bem.advisories.red")};
+  private Counter routesSent = metrics.counter("bem.bete.sent");
+  private Counter switchbacks = metrics.counter("bem.switchbacks");
+  private Counter robs = metrics.counter("bem.fairness.robs");
+  private Counter gives = metrics.counter("bem.fairness.gives");
+  private Counter findPathCalls = metrics.counter("bem.findpath.calls");
+  private Counter pathsSetUp = metrics.counter("bem.paths.setup");
+  private LatencyHistogram findPathLatency = metrics.histogram("bem.findpath.latency");//cache misses
+  private LatencyHistogram cycleDuration = metrics.histogram("bem.cycle.duration");
+  //from a node pair's primary path going YELLOW until it is GREEN again
+  private LatencyHistogram congestionDuration = metrics.histogram("bem.congestion.duration");
+
+  //this BEM manages the node pairs whose source node is in partition
+  //partition of partitions (see ownsNode()); the others are managed by
+  //other BEMs, which exchange FairnessSummaries so fairness measures
+  //compare every pair
+  private int partition = 0;
+  private int partitions = 1;
+  private FairnessExchange fairnessExchange;
+  private FairnessSummary[] fairnessSummaries;//latest of each partition
+  private int summarySequence;
+
+  //summaries older than this many AC cycles are left out of fairness
+  //measures, as their partition has stopped reporting
+  private final static int SUMMARY_LIFETIME = 3;
 	
 	//used in bePathAdmin()
-	private static final byte UNEXPIRE_PATHS = 0;
-  private static final byte GET_PATHS = 1;
 	private static final byte UPDATE_LOSS_RATE = 2;
-	private static final byte RECLAIM_PATHS = 7;
 	
 	//used in beNodePairAdmin()
 	private static final byte DEPLOY_INITIAL_PATHS = 3;
-	private static final byte GET_LOSS_RATES = 4;
 	private static final byte ROB_IF_RICH = 5;
 	private static final byte GIVE_IF_POOR = 6;	
 
   /**
-   * CONSTRUCTOR
-   * @param   basepib  required reference
-   * @param   server   required reference
+   * CONSTRUCTOR
+   * @param   basepib  required reference
+   * @param   server   required reference
+   */
+  BestEffortManager(BasePIB basepib, Server server)
+  {
+    this(basepib, server, 0, 1, null);
+  }
+
+  /**
+   * CONSTRUCTOR for one of several BEMs that divide the node pairs between
+   * them by source node.  Every BEM is given every EdgeNotification and
+   * loss sample; each keeps to its own partition.
+   * @param   basepib     required reference
+   * @param   server      required reference
+   * @param   partition   this BEM's partition, 0 to partitions - 1
+   * @param   partitions  number of BEMs
+   * @param   exchange    carries FairnessSummaries between the BEMs; may be
+   *                      null if partitions is 1
+   */
+  BestEffortManager(BasePIB basepib, Server server, int partition, int partitions, FairnessExchange exchange)
+  {
+    myBasePIB = basepib;
+    myServer = server;
+    this.partition = partition;
+    this.partitions = partitions;
+    fairnessExchange = exchange;
+    fairnessSummaries = new FairnessSummary[partitions];
+    topology = new TopologySnapshot(basepib);
+    pathCache = new PathCache(PathCache.DEFAULT_CAPACITY, basepib);
+    for (int i = 0; i < shards.length; i++)
+    {
+      shards[i] = new PairShard();
+    }
+    
+    openJournal();
+    String traceFile = System.getProperty(TRACE_PROPERTY);
+    if (traceFile != null)
+    {
+      try
+      {
+        startTrace(new TraceRecorder(new FileOutputStream(traceFile)));
+      }
+      catch (IOException ioe)
+      {
+        System.out.println("IOE thrown by BestEffortManager() opening trace " + traceFile + ".");
+      }
+    }
+    // Create Gui for PIB display during generation.
+    if (!Boolean.getBoolean(HEADLESS_PROPERTY))
+    {
+      gui = new MAGMAAdminGui("Best Effort Manager", server);
+      server.getControlExec().addMagmaGui(gui);
+      journal.addSink(new EventJournal.GuiSink(gui));
+    }
+		
+		journal.record(EventJournal.INITIALIZING);
+    
+    globalCongestion = false;
+    lrtInitialized = false;
+		timeLastSwitchback = 0;
+
+		monitoringPipeline = new MonitoringPipeline(this, server);
+		if (fairnessExchange != null)
+		{
+			journal.record(EventJournal.MANAGING_PARTITION, partition, partitions);
+		}
+
+		journal.record(EventJournal.INITIALIZED);
+
+  }
+
+  /**
+   * Starts BEM's threads: the journal's, the FairnessExchange's and the
+   * MonitoringPipeline's.  The constructor starts none, so no thread can
+   * reach a BEM that isn't fully built.  If start() hasn't been called by
+   * the first edge notification or loss sample, that starts them.
+   */
+  void start()
+  {
+    start(true);
+  }
+
+  /**
+   * @param   runCycles  whether the MonitoringPipeline's thread runs the AC
+   *                     cycles; a simulation passes false and runs each
+   *                     cycle itself
+   */
+  synchronized void start(boolean runCycles)
+  {
+    if (started)
+    {
+      return;
+    }
+    started = true;
+    journal.start();
+    if (fairnessExchange != null)
+    {
+      fairnessExchange.start(this);
+    }
+    if (runCycles)
+    {
+      monitoringPipeline.start();
+    }
+  }
+
+  /**
+   * Stops BEM's threads.  Samples not yet processed are dropped.
+   */
+  void stop()
+  {
+    monitoringPipeline.stop();
+    if (fairnessExchange != null)
+    {
+      fairnessExchange.stop();
+    }
+    monitorPool.stop();
+  }
+
+  /**
+   * Sets the journal's verbosity and opens its log file from the system
+   * properties.
+   */
+  private void openJournal()
+  {
+    String verbosity = System.getProperty(VERBOSITY_PROPERTY);
+    if (verbosity != null)
+    {
+      int level = EventJournal.parseVerbosity(verbosity);
+      if (level < 0)
+      {
+        System.out.println("BestEffortManager Error: bad " + VERBOSITY_PROPERTY + " " + verbosity);
+      }
+      else
+      {
+        journal.setVerbosity(level);
+      }
+    }
+    String log = System.getProperty(JOURNAL_LOG_PROPERTY);
+    if (log != null)
+    {
+      try
+      {
+        journal.addSink(new EventJournal.PrintStreamSink(new PrintStream(new FileOutputStream(log, true), true)));
+      }
+      catch (IOException ioe)
+      {
+        System.out.println("IOE thrown by openJournal() in BestEffortManager.");
+      }
+    }
+  }
+
+  /**
+   * Starts recording BEM's inputs and outputs, replacing any recorder.
+   * The trace's header takes the time from BEM's clock, so a replay sets
+   * its clock first.
+   * @param   recorder  the recorder
+   */
+  void startTrace(TraceRecorder recorder)
+  {
+    recorder.header(clock.currentTimeMillis(), myServer.getAC_cyclePeriod(), myBasePIB.timeScale,
+                    myBasePIB.thresholdLossRate);
+    trace = recorder;
+  }
+
+  /**
+   * @return  the journal, whose verbosity and sinks can be changed while
+   *          BEM runs
+   */
+  public EventJournal getEventJournal()
+  {
+    return journal;
+  }
+
+  /**
+   * Replaces the clock timers read, for simulations.  Set it before any
+   * edge notification or loss sample is given to BEM.
+   * @param   clock  the clock
+   */
+  void setClock(Clock clock)
+  {
+    this.clock = clock;
+    journal.setClock(clock);
+  }
+
+  /**
+   * @return  the pipeline loss samples are batched in; a simulation that
+   *          called start(false) runs each cycle through it
+   */
+  MonitoringPipeline getMonitoringPipeline()
+  {
+    return monitoringPipeline;
+  }
+
+  /**
+   * A NodePair holds the best effort state of one (source, destination) edge
+   * node pair: the primary path, the alternate path and any paths that have
+   * been expired for this pair.  The primary and alternate are tracked
+   * explicitly rather than inferred from deployment time.  When no redundant
+   * path could be found, the alternate is the same path as the primary.
+   */
+  static class NodePair
+  {
+    int srcNodeID;
+    int destNodeID;
+    BasePIB.Path primaryPath;
+    BasePIB.Path alternatePath;
+    Vector expiredPaths = new Vector();
+    short sampledLossRate;//this pair's loss rate as counted in lossRates
+    long timeFirstYellow;//when the primary path went YELLOW, 0 if it isn't
+
+    NodePair(int srcNodeID, int destNodeID)
+    {
+      this.srcNodeID = srcNodeID;
+      this.destNodeID = destNodeID;
+    }
+
+    /**
+     * Records a newly sent primary/alternate complement.
+     * @param   primary    the primary path
+     * @param   alternate  the alternate path (may be the primary)
+     */
+    void deploy(BasePIB.Path primary, BasePIB.Path alternate)
+    {
+      expiredPaths.remove(primary);
+      expiredPaths.remove(alternate);
+      primaryPath = primary;
+      alternatePath = alternate;
+    }
+
+    /**
+     * Moves an active path to the expired list.  If the primary is expired,
+     * the alternate becomes the primary.
+     * @param   path  the path being expired
+     */
+    void expire(BasePIB.Path path)
+    {
+      if (path == primaryPath)
+      {
+        primaryPath = (alternatePath == path) ? null : alternatePath;
+        alternatePath = primaryPath;
+      }
+      else if (path == alternatePath)
+      {
+        alternatePath = primaryPath;
+      }
+      if (!expiredPaths.contains(path))
+      {
+        expiredPaths.add(path);
+      }
+    }
+
+    /**
+     * Returns an expired path to service, filling whichever slot is free.
+     * The caller checks that one is (see twoRoutesActive()).
+     * @param   path  the path that was unexpired
+     */
+    void unexpire(BasePIB.Path path)
+    {
+      expiredPaths.remove(path);
+      if (primaryPath == null)
+      {
+        primaryPath = path;
+        alternatePath = path;
+      }
+      else if (alternatePath == primaryPath)
+      {
+        alternatePath = path;
+      }
+    }
+
+    /**
+     * Forgets the active paths (used when BE traffic is terminated on them).
+     */
+    void terminate()
+    {
+      primaryPath = null;
+      alternatePath = null;
+    }
+
+    boolean twoRoutesActive()
+    {
+      return (primaryPath != null) && (alternatePath != null) && (primaryPath != alternatePath);
+    }
+
+    Vector getBEpaths()
+    {
+      Vector bepaths = new Vector(2);
+      if (primaryPath != null)
+      {
+        bepaths.add(primaryPath);
+        if (alternatePath != primaryPath)
+        {
+          bepaths.add(alternatePath);
+        }
+      }
+      return bepaths;
+    }
+  }
+
+  /**
+   * A PairShard holds the NodePairs of the source nodes that map to it.  Its
+   * lock guards those pairs and the BE state of their paths.
+   */
+  static class PairShard
+  {
+    LongMap pairs = new LongMap();//NodePair keyed by pairKey()
+  }
+
+  /**
+   * @param   srcNodeID  a source node
+   * @return  the index of the shard holding its node pairs
+   */
+  private static int shardIndex(int srcNodeID)
+  {
+    return (srcNodeID & 0x7FFFFFFF) % PAIR_SHARDS;
+  }
+
+  /**
+   * @param   srcNodeID  a source node
+   * @return  the shard holding its node pairs
+   */
+  private PairShard shardOf(int srcNodeID)
+  {
+    return shards[shardIndex(srcNodeID)];
+  }
+
+  /**
+   * Determines whether this BEM manages the node pairs from a source node.
+   * Node IDs are mixed before being divided among partitions so that each
+   * partition's nodes still spread over every shard.
+   * @param   srcNodeID  a source node
+   * @return  whether its node pairs are in this BEM's partition
+   */
+  boolean ownsNode(int srcNodeID)
+  {
+    return (((srcNodeID * 0x9E3779B1) >>> 8) % partitions) == partition;
+  }
+
+  /**
+   * @return  this BEM's partition
+   */
+  int getPartition()
+  {
+    return partition;
+  }
+
+  /**
+   * Builds the PairShard key for a node pair.
+   * @param   srcNodeID
+   * @param   destNodeID
+   * @return  the key
+   */
+  private static long pairKey(int srcNodeID, int destNodeID)
+  {
+    return ((long) srcNodeID << 32) | (destNodeID & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Retrieves the registry entry for a node pair.  The caller holds the
+   * source node's shard lock.
+   * @param   srcNodeID
+   * @param   destNodeID
+   * @param   create  whether to create the entry if there is none
+   * @return  the NodePair or null
+   */
+  private NodePair getNodePair(int srcNodeID, int destNodeID, boolean create)
+  {
+    LongMap pairs = shardOf(srcNodeID).pairs;
+    long key = pairKey(srcNodeID, destNodeID);
+    NodePair pair = (NodePair) pairs.get(key);
+    if ((pair == null) && create)
+    {
+      pair = new NodePair(srcNodeID, destNodeID);
+      pairs.put(key, pair);
+      if (srcNodeID != destNodeID)
+      {
+        lossRateChanges.add(pair.sampledLossRate);
+      }
+    }
+    return pair;
+  }
+
+  /**
+   * Brings a node pair's sample in lossRates up to date.  Called whenever
+   * the pair's alternate path or that path's loss rate may have changed.
+   * @param   pair  the node pair
+   */
+  private void resample(NodePair pair)
+  {
+    if (pair.srcNodeID == pair.destNodeID)
+    {
+      return;
+    }
+    short lossRate = lossRateFromThisNodePair(pair.srcNodeID, pair.destNodeID);
+    if (lossRate != pair.sampledLossRate)
+    {
+      lossRateChanges.update(pair.sampledLossRate, lossRate);
+      pair.sampledLossRate = lossRate;
+    }
+  }
+
+  /**
+   * LossRateChanges collects the changes to node pairs' loss rates made on
+   * any thread until the fairness writer applies them to lossRates.
+   */
+  static class LossRateChanges
+  {
+    private final static short ADDED = -1;//oldLossRates entry of a new pair
+
+    private short[] oldLossRates = new short[64];
+    private short[] newLossRates = new short[64];
+    private int count;
+
+    /**
+     * @param   lossRate  the loss rate of a new node pair
+     */
+    synchronized void add(short lossRate)
+    {
+      update(ADDED, lossRate);
+    }
+
+    /**
+     * @param   oldLossRate  a node pair's loss rate as last recorded
+     * @param   newLossRate  its loss rate now
+     */
+    synchronized void update(short oldLossRate, short newLossRate)
+    {
+      if (count == oldLossRates.length)
+      {
+        short[] newOld = new short[2 * count];
+        short[] newNew = new short[2 * count];
+        System.arraycopy(oldLossRates, 0, newOld, 0, count);
+        System.arraycopy(newLossRates, 0, newNew, 0, count);
+        oldLossRates = newOld;
+        newLossRates = newNew;
+      }
+      oldLossRates[count] = oldLossRate;
+      newLossRates[count] = newLossRate;
+      count++;
+    }
+
+    /**
+     * Applies the changes collected so far, in order, and forgets them.
+     * @param   stats  the statistics to update
+     */
+    synchronized void applyTo(LossRateStatistics stats)
+    {
+      for (int i = 0; i < count; i++)
+      {
+        if (oldLossRates[i] == ADDED)
+        {
+          stats.add(newLossRates[i]);
+        }
+        else
+        {
+          stats.update(oldLossRates[i], newLossRates[i]);
+        }
+      }
+      count = 0;
+    }
+  }
+
+  /**
+   * Records a new loss rate sample for a path.
+   * @param   path      the path
+   * @param   lossRate  its best effort loss rate
+   */
+  private void recordLossRate(BasePIB.Path path, short lossRate)
+  {
+    path.bestEffortLossRate = lossRate;
+    NodePair pair = getNodePair(path.getSrcNodeID(), path.getDestNodeID(), false);
+    if (pair != null)
+    {
+      resample(pair);
+    }
+  }
+
+
+  /**
+   * A PathDeployment is the initial deployment of one node pair, listed
+   * while the edge routers are scanned and deployed afterwards.
+   */
+  static class PathDeployment
+  {
+    IPv6Address srcRouterID;
+    IPv6Address destRouterID;
+    Integer srcNodeID;
+    Integer destNodeID;
+
+    PathDeployment(IPv6Address srcRouterID, IPv6Address destRouterID, Integer srcNodeID, Integer destNodeID)
+    {
+      this.srcRouterID = srcRouterID;
+      this.destRouterID = destRouterID;
+      this.srcNodeID = srcNodeID;
+      this.destNodeID = destNodeID;
+    }
+  }
+
+  /**
+   * Deploys initial paths for node pairs, one node pair at a time in the
+   * order given.  A pair's primary path is set up before its alternate is
+   * searched for, as the routing algorithm sees the PIB's paths.
+   * @param   deployments  Vector of PathDeployment
+   */
+  private void deployPaths(Vector deployments)
+  {
+    Enumeration e = deployments.elements();
+    while (e.hasMoreElements())
+    {
+      PathDeployment deployment = (PathDeployment) e.nextElement();
+      synchronized (shardOf(deployment.srcNodeID.intValue()))
+      {
+        //SHORTEST WIDEST PATH is used for the primary path
+        BasePIB.Path bePath1 = findPath(deployment.srcRouterID,
+                                        deployment.destRouterID,
+                                        null,
+                                        myBasePIB.routingAlgorithm.SHORTEST_WIDEST_PATH);
+        if (bePath1 == null)
+        {
+          continue;
+        }
+        Integer bePathID1 = bePath1.getPathID();
+        setupBEpath(bePath1);
+        //SHORTEST WIDEST MOST DISJOINT PATH  is used for the alternate path
+        BasePIB.Path bePath2 = findPath(deployment.srcRouterID,
+                                        deployment.destRouterID,
+                                        bePath1,
+                                        myBasePIB.routingAlgorithm.SHORTEST_WIDEST_MOST_DISJOINT_PATH);
+        if (bePath2 != null)
+        {
+          setupBEpath(bePath2);
+        }
+        else
+        { 
+          bePath2 = bePath1;
+        }
+        journal.record(EventJournal.PAIR_DEPLOYED, bePathID1.intValue(), deployment.srcNodeID.intValue(),
+                       deployment.destNodeID.intValue(), bePath2.getPathID().intValue(), null);
+        sendTableEntries(deployment.srcNodeID.intValue(), deployment.destNodeID.intValue(), bePath1.getPathID().intValue(), bePath2.getPathID().intValue());             
+      }
+    }
+  }
+
+  /**
+   * Finds a path through the pathCache, calling the routing algorithm only
+   * if the result is not cached for the current topology.
+   * @param   srcRouterID   the source router
+   * @param   destRouterID  the destination router
+   * @param   excludedPath  path to be disjoint from, or null
+   * @param   metric        the routing algorithm's path metric
+   * @return  the path or null if there is none
+   */
+  private BasePIB.Path findPath(IPv6Address srcRouterID, IPv6Address destRouterID,
+                                BasePIB.Path excludedPath, int metric)
+  {
+    PathCache.PathQuery query = new PathCache.PathQuery(srcRouterID.toString(), destRouterID.toString(),
+                                                        (excludedPath == null) ? -1 : excludedPath.getPathID().intValue(),
+                                                        metric);
+    findPathCalls.increment();
+    PathCache.CachedPath cached = pathCache.get(query);
+    if (cached != null)
+    {
+      return cached.path;
+    }
+    BasePIB.Path path;
+    synchronized (routingLock)
+    {
+      long start = Stopwatch.nanoTime();
+      path = myBasePIB.routingAlgorithm.findPath(srcRouterID, destRouterID, excludedPath, metric);
+      findPathLatency.record(Stopwatch.nanoTime() - start);
+    }
+    if (trace != null)
+    {
+      trace.findPath(clock.currentTimeMillis(), srcRouterID, destRouterID, excludedPath, metric, path);
+    }
+    pathCache.put(query, path, excludedPath);
+    return path;
+  }
+
+  /**
+   * Sets up a path for best effort traffic unless it already is.  A path
+   * can be found for more than one node pair, so this locks the path, and
+   * the PIB is changed under routingLock.
+   * @param   path  the path
+   */
+  private void setupBEpath(BasePIB.Path path)
+  {
+    synchronized (path)
+    {
+      if (!path.bCreated)
+      {
+        synchronized (routingLock)
+        {
+          myBasePIB.setupPath(path, path.getPathID().intValue(), FlowRoutingTableEntry.INSTALLED_FOR_BE);
+        }
+        path.bCreated = true;
+        pathsSetUp.increment();
+      }
+    }
+  }
+
+  /**
+   * Tells BEM that the topology learned from LSAs has changed, so no path
+   * found before can be trusted.  The pathCache notices nodes joining or
+   * leaving the PIB by itself; this is for a caller that knows sooner.
+   */
+  protected void topologyChanged()
+  {
+    if (trace != null)
+    {
+      trace.topologyChanged(clock.currentTimeMillis());
+    }
+    resetTopology();
+  }
+
+  /**
+   * Forgets every path found and rereads the topology.  Called for BEM's
+   * own topology updates, which are not inputs to be traced.
+   */
+  private void resetTopology()
+  {
+    pathCache.topologyChanged();
+    topology.rebuild();
+  }
+
+  /**
+   * Tells BEM that the state of a node's links has changed enough to affect
+   * path selection.  Only paths through that node are searched for again.
+   * The pathCache notices by itself when a cached path's own bandwidth
+   * changes; this also drops results that only excluded a path through the
+   * node.
+   * @param   nodeID  the node
+   */
+  protected void linkStateChanged(int nodeID)
+  {
+    if (trace != null)
+    {
+      trace.linkStateChanged(clock.currentTimeMillis(), nodeID);
+    }
+    pathCache.invalidateNode(nodeID);
+  }
+
+  /**
+   * Drops the cached paths a path's change in congestion may affect: those
+   * found for, or excluding, a path through any of its nodes, least
+   * congested paths included.  Least congested results for node pairs
+   * elsewhere are kept.
+   * @param   path  the path whose congestion changed
+   */
+  private void congestionChanged(BasePIB.Path path)
+  {
+    pathCache.invalidatePath(path);
+  }
+
+  /**
+   * Processes EdgeNotification messages, one at a time.  Loss samples and
+   * path failures are handled while the topology is updated; each node pair
+   * is deployed under its shard's lock.
+   * @param   edgeNotif  the message
+   */
+  protected void processEdgeNotification (EdgeNotification edgeNotif)
+  {
+    if (!started)
+    {
+      start();
+    }
+    synchronized (topologyLock)
+    {
+      //initialize localResolutionTimeout variable
+      if (!lrtInitialized)
+      {
+        localResolutionTimeout = 10 * myServer.getAC_cyclePeriod();
+        lrtInitialized = true;
+			  journal.record(EventJournal.LOCAL_RESOLUTION_TIMEOUT, (int) localResolutionTimeout);
+      }
+  
+      int count = 0;//used below to figure out how much information is new
+  
+      journal.record(EventJournal.EDGE_NOTIFICATION);
+  
+      IPv6Address interfaceAddress = edgeNotif.getEdgeInterfaceAddress();
+    
+      //Xie-darpa
+      BasePIB.InterfaceInfo edgeInterfaceInfo = (BasePIB.InterfaceInfo) myBasePIB.htInterfaces.get(interfaceAddress.toString());
+      if (edgeInterfaceInfo == null)
+      {
+        if (trace != null)
+        {
+          trace.edgeNotification(clock.currentTimeMillis(), interfaceAddress, -1, null);
+        }
+        journal.record(EventJournal.PIB_NOT_READY);
+        return;
+      }
+    
+      int nodeID = edgeInterfaceInfo.getNodeID().intValue();
+      IPv6Address routerID = topology.routerOf(nodeID);
+      if (trace != null)
+      {
+        trace.edgeNotification(clock.currentTimeMillis(), interfaceAddress, nodeID, routerID);
+      }
+
+      Hashtable addedPrefixes = new Hashtable();
+      Hashtable superseded = new Hashtable();
+    
+      //is this a newly discovered edge router?
+      EdgeRegistry.EdgeRouter newRouter = edges.addRouter(routerID, nodeID);
+      if (newRouter != null)
+      {
+        journal.record(EventJournal.EDGE_ROUTER_ADDED, routerID);
+        count++;
+      }
+      //is this a newly discovered destinaton interface?
+      if (edges.addInterface(interfaceAddress, nodeID))
+      {
+        journal.record(EventJournal.EDGE_INTERFACE_ADDED, interfaceAddress);
+        addedPrefixes = updateDestinationPrefixes(nodeID, superseded);
+        count++;
+      }
+		
+		  if (count > 0)
+		  {
+	      journal.record(EventJournal.TOPOLOGY_UPDATING);
+	      holdTableEntries();//so withdrawals go out with the new prefixes' routes
+	      withdrawPrefixes(superseded);
+	      if (incrementalTopologyUpdates)
+	      {
+	        updateBEtopology(newRouter, addedPrefixes);
+	      }
+	      else
+	      {
+	        updateBEtopology();
+	      }
+	      releaseTableEntries();
+	      flushAdvisories();//conditions re-advised for the new prefixes
+	      journal.record(EventJournal.TOPOLOGY_UPDATED);
+		  }
+		  else
+		  {
+			  journal.record(EventJournal.TOPOLOGY_UNCHANGED);
+		  }     
+    }
+  }//end processEdgeNotification()
+  
+
+  /**
+   * Accepts a best effort loss sample for a path and returns at once.  The
+   * sample is evaluated with the rest of its AC cycle's samples by
+   * processLossSamples(), on the MonitoringPipeline's thread.  Samples for
+   * another partition's paths are dropped.
+   * @param   path      the path being observed
+   * @param   lossRate  the best effort loss rate on that path
+   */
+  protected void monitor(BasePIB.Path path, short lossRate)
+  {
+    if (!started)
+    {
+      start();
+    }
+    if (ownsNode(path.getSrcNodeID()))
+    {
+      monitoringPipeline.submit(path, lossRate);
+    }
+  }
+
+  /**
+   * Evaluates one AC cycle's loss samples, one per path.  During global
+   * congestion they are evaluated in order by proactive monitoring, on this
+   * thread, since fairness measures touch every node pair.  Otherwise they
+   * are grouped by shard and evaluated by reactive monitoring, on up to
+   * monitorThreads threads, and global congestion resolution is initiated
+   * afterwards if any node pair, or another partition, asked for it.  The
+   * table entries and advisories are sent together at the end: one batch of
+   * each per router.  Called every cycle, with or without samples, so this
+   * partition's FairnessSummary is published each cycle.
+   * @param   samples  the cycle's samples, possibly none
    */
-  BestEffortManager(BasePIB basepib, Server server)
+  synchronized void processLossSamples(MonitoringPipeline.LossSample[] samples)
   {
-    myBasePIB = basepib;
-    myServer = server;
-    
-    // Create Gui for PIB display during generation.
-    gui = new MAGMAAdminGui("Best Effort Manager", server);
-    server.getControlExec().addMagmaGui(gui);
-		
-		gui.sendText("Initializing...");
-    
-    globalCongestion = false;
-    lrtInitialized = false;
-		timeLastSwitchback = 0;
+    long start = Stopwatch.nanoTime();
+    TraceRecorder cycleTrace = trace;
+    if (cycleTrace != null)
+    {
+      cycleTrace.cycle(clock.currentTimeMillis(), samples);
+    }
+    if (globalCongestion)
+    {
+      holdTableEntries();
+      try
+      {
+        for (int i = 0; i < samples.length; i++)
+        {
+          proactiveMonitorSample(samples[i].path, samples[i].lossRate);
+        }
+      }
+      finally
+      {
+        releaseTableEntries();
+        flushAdvisories();
+      }
+    }
+    else if (samples.length > 0)
+    {
+      monitorShards(samples);
+    }
+    resolveRequestedGlobalCongestion();
 
-		gui.sendText("initialized.");
-		
+    publishFairnessSummary();
+    if (cycleTrace != null)
+    {
+      cycleTrace.flush();
+    }
+    cycleDuration.record(Stopwatch.nanoTime() - start);
   }
-  
 
   /**
-   * Processes EdgeNotification messages.
-   * @param   edgeNotif  the message
+   * Evaluates a cycle's loss samples by reactive monitoring, grouped by
+   * shard, on up to monitorThreads threads.
+   * @param   samples  the cycle's samples
    */
-  protected void processEdgeNotification (EdgeNotification edgeNotif)
+  private void monitorShards(MonitoringPipeline.LossSample[] samples)
   {
-    //initialize localResolutionTimeout variable
-    if (!lrtInitialized)
+    Vector[] shardSamples = new Vector[shards.length];
+    int busyShards = 0;
+    for (int i = 0; i < samples.length; i++)
     {
-      localResolutionTimeout = 10 * myServer.getAC_cyclePeriod();
-      lrtInitialized = true;
-			gui.sendText("\nLocal resolution timeout is " + localResolutionTimeout + "ms.");
+      int shard = shardIndex(samples[i].path.getSrcNodeID());
+      if (shardSamples[shard] == null)
+      {
+        shardSamples[shard] = new Vector();
+        busyShards++;
+      }
+      shardSamples[shard].add(samples[i]);
     }
-  
-    int count = 0;//used below to figure out how much information is new
-  
-    gui.sendText("\nProcessing edge notification.");
-  
-    IPv6Address interfaceAddress = edgeNotif.getEdgeInterfaceAddress();
-    
-    //Xie-darpa
-    BasePIB.InterfaceInfo edgeInterfaceInfo = (BasePIB.InterfaceInfo) myBasePIB.htInterfaces.get(interfaceAddress.toString());
-    if (edgeInterfaceInfo == null)
+
+    int threads = Math.min(monitorThreads, busyShards);
+    ShardMonitor monitor = new ShardMonitor(shardSamples);
+    if (threads > 1)
+    {
+      monitorPool.execute(monitor, threads);
+    }
+    else
+    {
+      monitor.run();
+    }
+  }
+
+  /**
+   * Sends this partition's FairnessSummary to the other partitions.
+   */
+  private void publishFairnessSummary()
+  {
+    if (fairnessExchange == null)
     {
-      gui.sendText("\n  PIB is not ready; quit processing the edge notification message.");
       return;
     }
-    
-    int nodeID = edgeInterfaceInfo.getNodeID().intValue();
-    IPv6Address routerID = (IPv6Address) myBasePIB.htNodeIDtoRouterID.get(new Integer (nodeID));
+    lossRateChanges.applyTo(lossRates);
+    fairnessExchange.publish(new FairnessSummary(partition, ++summarySequence, globalCongestion, lossRates));
+  }
 
-    //is this a newly discovered edge router?
-    if (!(vBestEffortRouters.contains(routerID.toString())))
+  /**
+   * Accepts another partition's FairnessSummary.  A summary older than the
+   * latest already received from its partition is ignored, unless that one
+   * has expired: a restarted BEM numbers its summaries from 1 again.  If
+   * the other partition is resolving global congestion, this one starts to
+   * as well at the end of its cycle.
+   * @param   summary  the summary
+   */
+  void receiveFairnessSummary(FairnessSummary summary)
+  {
+    if ((summary.partition < 0) || (summary.partition >= partitions) || (summary.partition == partition))
     {
-      gui.sendText("Adding " + routerID.toString() + " to edge routers vector.");
-      vBestEffortRouters.add(routerID.toString());
-      count++;
+      return;
     }
-    //is this a newly discovered destinaton interface?
-    if (!(vBestEffortDestAdds.contains(interfaceAddress.toString())))
+    summary.timeReceived = clock.currentTimeMillis();
+    synchronized (fairnessSummaries)
     {
-      gui.sendText("Adding " + interfaceAddress.toString() + " to edge interfaces vector.");
-      vBestEffortDestAdds.add(interfaceAddress.toString());
-      count++;
+      FairnessSummary latest = fairnessSummaries[summary.partition];
+      if ((latest != null) && (summary.sequence - latest.sequence <= 0) &&
+          (summary.timeReceived - latest.timeReceived < SUMMARY_LIFETIME * myServer.getAC_cyclePeriod()))
+      {
+        return;
+      }
+      fairnessSummaries[summary.partition] = summary;
     }
-		
-		if (count > 0)
-		{
-	    gui.sendText("Updating best effort topology...");
-	    updateBEtopology();    
-	    gui.sendText("Completed updating best effort topology.");
-		}
-		else
-		{
-			gui.sendText("No new information; best effort topology still accurate.");
-		}     
-  }//end processEdgeNotification()
-  
+    if (summary.globalCongestion && !globalCongestion)
+    {
+      globalCongestionRequested = true;
+    }
+  }
+
+  /**
+   * @return  this partition's summary and the current summaries of the
+   *          others, with null for any not heard from lately
+   */
+  private FairnessSummary[] currentFairnessSummaries()
+  {
+    FairnessSummary[] current = new FairnessSummary[partitions];
+    long oldest = clock.currentTimeMillis() - (SUMMARY_LIFETIME * myServer.getAC_cyclePeriod());
+    synchronized (fairnessSummaries)
+    {
+      for (int i = 0; i < partitions; i++)
+      {
+        FairnessSummary summary = fairnessSummaries[i];
+        if ((summary != null) && (summary.timeReceived >= oldest))
+        {
+          current[i] = summary;
+        }
+      }
+    }
+    current[partition] = new FairnessSummary(partition, summarySequence, globalCongestion, lossRates);
+    return current;
+  }
+
+  /**
+   * A ShardMonitor evaluates a cycle's loss samples by reactive monitoring
+   * on each of the threads monitorPool runs it on.  The threads share the
+   * shards and each takes the next shard not yet taken, then sends what its
+   * samples caused.
+   */
+  private class ShardMonitor implements Runnable
+  {
+    private Vector[] shardSamples;//LossSamples by shard; null if none
+    private int[] next = new int[1];//index of the next shard to take
+
+    ShardMonitor(Vector[] shardSamples)
+    {
+      this.shardSamples = shardSamples;
+    }
+
+    public void run()
+    {
+      holdTableEntries();
+      try
+      {
+        while (true)
+        {
+          int shard;
+          synchronized (next)
+          {
+            shard = next[0]++;
+          }
+          if (shard >= shardSamples.length)
+          {
+            return;
+          }
+          if (shardSamples[shard] == null)
+          {
+            continue;
+          }
+          Enumeration e = shardSamples[shard].elements();
+          while (e.hasMoreElements())
+          {
+            MonitoringPipeline.LossSample sample = (MonitoringPipeline.LossSample) e.nextElement();
+            try
+            {
+              reactiveMonitorSample(sample.path, sample.lossRate);
+            }
+            catch (RuntimeException re)
+            {
+              //the shard's other samples are still evaluated
+              System.out.println(re + " thrown by ShardMonitor in BestEffortManager.");
+            }
+          }
+        }
+      }
+      finally
+      {
+        releaseTableEntries();
+        flushAdvisories();
+      }
+    }
+  }
 
   /**
-   * When global congestion is absent, reactive monitoring takes place.
+   * When global congestion is absent, reactive monitoring takes place.  This
+   * evaluates a single loss sample for a server thread that passes LSAs to
+   * BEM itself instead of through monitor(): the table entries and
+   * advisories it causes are sent, and global congestion resolution is
+   * initiated if it was asked for, before it returns.
    * @param   path      the path being observed
    * @param   lossRate  the best effort loss rate on that path
    */
   protected void reactiveMonitor(BasePIB.Path path, short lossRate)
+  {
+    holdTableEntries();
+    try
+    {
+      reactiveMonitorSample(path, lossRate);
+    }
+    finally
+    {
+      releaseTableEntries();
+      flushAdvisories();
+    }
+    resolveRequestedGlobalCongestion();
+  }
+
+  /**
+   * Reactive monitoring of one sample, queueing what it causes in the
+   * calling thread's Outbox.  Only the path's shard is locked, so paths from
+   * different source nodes can be monitored at the same time.
+   */
+  private void reactiveMonitorSample(BasePIB.Path path, short lossRate)
+  {
+    PairShard shard = shardOf(path.getSrcNodeID());
+    synchronized (shard)
+    {
+      reactiveMonitor(shard, path, lossRate);
+    }
+  }
+
+  /**
+   * The body of reactiveMonitorSample(), called with the shard locked.
+   */
+  private void reactiveMonitor(PairShard shard, BasePIB.Path path, short lossRate)
   {
     if (lossRate > myBasePIB.thresholdLossRate)
     {    
-      unexpireBEpaths();//see if any expired paths are due for reuse
+      unexpireBEpaths(shard);//see if any expired paths are due for reuse
     
       switch (path.bestEffortTrafficCondition)
       {
@@ -171,81 +1246,73 @@ public class BestEffortManager
 					BasePIB.Path primaryPath = primaryPathForThisNodePair(firstNodeID, lastNodeID);
 					if (primaryPath.bestEffortTrafficCondition == BasePIB.Path.GREEN)
 					{
-						gui.sendText("\nNew congestion on an alternate path while primary path lossless.");
+						journal.record(EventJournal.ALTERNATE_CONGESTED);
 						switchback(firstNodeID, lastNodeID);
 					}
 					else
 					{
 						path.newCongestion();
+						congestionChanged(path);
 					}
 				}
 				else
 				{
-	        IPv6Address routerID = (IPv6Address) myBasePIB.htNodeIDtoRouterID.get(new Integer(firstNodeID));
-	        myServer.sendCongestionAdvisory(routerID, path.getPathID().intValue(), CongestionAdvisory.YELLOW);
+	        queueAdvisory(firstNodeID, path.getPathID().intValue(), CongestionAdvisory.YELLOW);
 	        path.newCongestion();
-					gui.sendText("\nNew congestion on primary path " + path.getPathID().intValue() + ".");
-					gui.sendText("Congestion Advisory YELLOW sent to node " + firstNodeID + ".");
+	        congestionChanged(path);
+	        congestionBegun(firstNodeID, lastNodeID);
+					journal.record(EventJournal.PRIMARY_CONGESTED, path.getPathID().intValue());
+					journal.record(EventJournal.ADVISORY_SENT, CongestionAdvisory.YELLOW, firstNodeID);
 				}
         break;
       
       //if local resolution has failed, deploy new paths or initiate global congestion procedures
       case BasePIB.Path.YELLOW:
         boolean noLocalResolutionPossible = false;
-        if ((System.currentTimeMillis() - path.timeLastAdvisorySent) > (localResolutionTimeout * myBasePIB.timeScale))
+        if ((clock.currentTimeMillis() - path.timeLastAdvisorySent) > (localResolutionTimeout * myBasePIB.timeScale))
         {  
           noLocalResolutionPossible = true;
           firstNodeID = path.getSrcNodeID();      
-          IPv6Address srcRouterID = (IPv6Address) myBasePIB.htNodeIDtoRouterID.get(new Integer(firstNodeID));
+          IPv6Address srcRouterID = topology.routerOf(firstNodeID);
           lastNodeID = ((Integer) (path.getNodeSequence().firstElement())).intValue();
-          IPv6Address destRouterID = (IPv6Address) myBasePIB.htNodeIDtoRouterID.get(new Integer(lastNodeID));
-          BasePIB.Path bePath1 = myBasePIB.routingAlgorithm.findPath(srcRouterID,
-                                                                     destRouterID,
-                                                                     null,
-                                                                     myBasePIB.routingAlgorithm.SHORTEST_WIDEST_LEAST_CONGESTED_PATH);                                            
+          IPv6Address destRouterID = topology.routerOf(lastNodeID);
+          BasePIB.Path bePath1 = findPath(srcRouterID,
+                                          destRouterID,
+                                          null,
+                                          myBasePIB.routingAlgorithm.SHORTEST_WIDEST_LEAST_CONGESTED_PATH);
           if (bePath1 != null)
           {
-						gui.sendText("\nCongestion bypass initiated for nodes " + firstNodeID + " to " + lastNodeID + ".");
             noLocalResolutionPossible = false;
             Integer bePathID1 = bePath1.getPathID();
 						Integer bePathID2 = null;
-						gui.sendText("Deploying path " + bePathID1 + " as the new primary path.");
-            if (!bePath1.bCreated)
-            {
-              myBasePIB.setupPath(bePath1, bePathID1.intValue(), FlowRoutingTableEntry.INSTALLED_FOR_BE);
-              bePath1.bCreated = true;
-            }
+						journal.record(EventJournal.BYPASS, firstNodeID, lastNodeID, bePathID1.intValue());
+            setupBEpath(bePath1);
 
             expireBEpaths(firstNodeID, lastNodeID);
-            myServer.sendCongestionAdvisory(srcRouterID, path.getPathID().intValue(), CongestionAdvisory.GREEN);
-						gui.sendText("Congestion Advisory GREEN sent to node " + firstNodeID + ".");
-            BasePIB.Path bePath2 = myBasePIB.routingAlgorithm.findPath(srcRouterID,
-                                                                       destRouterID,
-                                                                       bePath1,
-                                                                       myBasePIB.routingAlgorithm.SHORTEST_WIDEST_MOST_DISJOINT_PATH);
+            queueAdvisory(firstNodeID, path.getPathID().intValue(), CongestionAdvisory.GREEN);
+            congestionResolved(firstNodeID, lastNodeID);
+						journal.record(EventJournal.ADVISORY_SENT, CongestionAdvisory.GREEN, firstNodeID);
+            BasePIB.Path bePath2 = findPath(srcRouterID,
+                                            destRouterID,
+                                            bePath1,
+                                            myBasePIB.routingAlgorithm.SHORTEST_WIDEST_MOST_DISJOINT_PATH);
             if (bePath2 != null)
             {
 							bePathID2 = bePath2.getPathID();
-							gui.sendText("Deploying path " + bePathID2 + " as the new alternate path.");
-              if (!bePath2.bCreated)
-              {
-                myBasePIB.setupPath(bePath2, bePathID2.intValue(), FlowRoutingTableEntry.INSTALLED_FOR_BE);
-                bePath2.bCreated = true;
-              }
+							journal.record(EventJournal.BYPASS_ALTERNATE, bePathID2.intValue());
+              setupBEpath(bePath2);
             }
             else
             {
 							bePathID2 = bePathID1;
             }//end if
-						sendTableEntries(srcRouterID, destRouterID, bePathID1.intValue(), bePathID2.intValue());                            
+						sendTableEntries(firstNodeID, lastNodeID, bePathID1.intValue(), bePathID2.intValue());                            
           }//end if
         }//end if
         if ((noLocalResolutionPossible) && (!globalCongestion))
         {
-					gui.sendText("\nWARNING!\nWARNING!\nWARNING!");
-					gui.sendText("G L O B A L   C O N G E S T I O N");
-					gui.sendText("Initiating global congestion resolution procedures.");
-					initiateGlobalCongestionResolution();
+					journal.record(EventJournal.GLOBAL_CONGESTION);
+					globalCongestionRequested = true;//see resolveRequestedGlobalCongestion()
         }
         break;
       
@@ -268,38 +1335,64 @@ public class BestEffortManager
 			{
 				if (alternatePath.bestEffortTrafficCondition == BasePIB.Path.GREEN)
 				{
-		      IPv6Address routerID = (IPv6Address) myBasePIB.htNodeIDtoRouterID.get(new Integer(firstNodeID));
-		      myServer.sendCongestionAdvisory(routerID, path.getPathID().intValue(), CongestionAdvisory.GREEN);
+		      queueAdvisory(firstNodeID, path.getPathID().intValue(), CongestionAdvisory.GREEN);
 		      path.congestionCleared();
-					gui.sendText("\nCongestion cleared on path " + path.getPathID().intValue() + ".");
-					gui.sendText("No more congestion for node pair (" + firstNodeID + "," + lastNodeID + ").");
-					gui.sendText("Congestion Advisory GREEN sent to node " + firstNodeID + ".");
+		      congestionChanged(path);
+		      congestionResolved(firstNodeID, lastNodeID);
+					journal.record(EventJournal.CONGESTION_CLEARED, path.getPathID().intValue(), firstNodeID, lastNodeID);
+					journal.record(EventJournal.ADVISORY_SENT, CongestionAdvisory.GREEN, firstNodeID);
 				}
 				else
 				{
-					gui.sendText("Congestion has cleared on a primary path " + path.getPathID() + " while alternate path lossy.");
+					journal.record(EventJournal.PRIMARY_CLEARED, path.getPathID().intValue());
 					path.congestionCleared();
+					congestionChanged(path);
 					switchback(firstNodeID, lastNodeID);
 				}
 			}
 			else
 			{
 				path.congestionCleared();
+				congestionChanged(path);
 			}
     }
   }//end reactiveMonitor()
 
 
   /**
-   * Proactive monitoring takes place during global congestion.
+   * Proactive monitoring takes place during global congestion.  Like
+   * reactiveMonitor(), this evaluates a single loss sample for a server
+   * thread and sends what it causes before it returns.
    * @param   path      the path being observed
    * @param   lossRate  the best effort loss rate on that path
    */
-  protected void proactiveMonitor(BasePIB.Path path, short lossRate)
+  protected synchronized void proactiveMonitor(BasePIB.Path path, short lossRate)
+  {
+    holdTableEntries();
+    try
+    {
+      proactiveMonitorSample(path, lossRate);
+    }
+    finally
+    {
+      releaseTableEntries();
+      flushAdvisories();
+    }
+    resolveRequestedGlobalCongestion();
+  }
+
+  /**
+   * Proactive monitoring of one sample, queueing what it causes in the
+   * calling thread's Outbox.
+   */
+  private synchronized void proactiveMonitorSample(BasePIB.Path path, short lossRate)
   {
-    path.bestEffortLossRate = lossRate;//only recorded during active monitoring
+    synchronized (shardOf(path.getSrcNodeID()))
+    {
+      recordLossRate(path, lossRate);//only recorded during active monitoring
+    }
 		
-    long currentTime = System.currentTimeMillis();
+    long currentTime = clock.currentTimeMillis();
     if (lossRate > myBasePIB.thresholdLossRate)
     {
       timeLastCongestion = currentTime;
@@ -307,16 +1400,15 @@ public class BestEffortManager
     else if ((currentTime - timeLastCongestion) > (localResolutionTimeout * myBasePIB.timeScale))
     {
       terminateGlobalCongestionResolution();
-      reactiveMonitor(path, lossRate);
-			gui.sendText("\nGlobal congestion resolved!");
-			gui.sendText("Terminating global coneston resolution procedures.");
+      reactiveMonitorSample(path, lossRate);
+			journal.record(EventJournal.GLOBAL_CONGESTION_RESOLVED);
       return;
     }
   
     if ((currentTime - timeLastActionTaken) > (localResolutionTimeout * myBasePIB.timeScale))
     {
-			gui.sendText("\nAttempting to rob from the rich and give to the poor.");
-			gui.sendText("Calculating fairness variables...");
+			journal.record(EventJournal.FAIRNESS_ATTEMPT);
+			journal.record(EventJournal.FAIRNESS_CALCULATING);
 			calculateFairnessVariables();
 			boolean robbed = robFromTheRich();
 			boolean gave = giveToThePoor();
@@ -327,12 +1419,12 @@ public class BestEffortManager
 			else
 			{
 				timeLastActionTaken = currentTime + (10 * localResolutionTimeout * myBasePIB.timeScale);
-				gui.sendText("No action taken.");
+				journal.record(EventJournal.NO_ACTION);
 			}
     }
     else
     {
-      reactiveMonitor(path, lossRate);
+      reactiveMonitorSample(path, lossRate);
     }
   }
   //end proactiveMonitor()
@@ -345,36 +1437,249 @@ public class BestEffortManager
   {
 	
     //first, reset the topology
-		gui.sendText("Resetting old paths...");
+		journal.record(EventJournal.RESETTING_PATHS);
+		resetTopology();
     Enumeration allpaths = myBasePIB.htPaths.elements();
     while (allpaths.hasMoreElements())
     {
       BasePIB.Path thispath = (BasePIB.Path) (allpaths.nextElement());
-      if (thispath.bBestEffortTraffic)
+      if (!ownsNode(thispath.getSrcNodeID()))
+      {
+        continue;//another partition's path
+      }
+      synchronized (shardOf(thispath.getSrcNodeID()))
+      {
+        if (thispath.bBestEffortTraffic)
+        {
+          thispath.terminateBestEffortTraffic();
+        }
+      }
+    }
+    for (int i = 0; i < shards.length; i++)
+    {
+      synchronized (shards[i])
       {
-        thispath.terminateBestEffortTraffic();
+        LongMap pairs = shards[i].pairs;
+        for (int slot = 0; slot < pairs.capacity(); slot++)
+        {
+          NodePair pair = (NodePair) pairs.valueAt(slot);
+          if (pair == null)
+          {
+            continue;
+          }
+          pair.terminate();
+          resample(pair);
+        }
       }
     }
-		gui.sendText("reset.");
+		journal.record(EventJournal.PATHS_RESET);
   
+		holdTableEntries();
 		beNodePairAdmin(DEPLOY_INITIAL_PATHS);
+		releaseTableEntries();
 		
   }//end updateBEtopology()
 
+  /**
+   * Updates the best effort topology for a newly discovered edge router or
+   * interface without disturbing the node pairs it does not affect.  Paths
+   * are deployed for every pair to or from a new router.  Pairs to a node
+   * whose destination prefixes changed have their current paths sent for
+   * the added prefixes only, so the BETs' existing destinations keep their
+   * splits, or are deployed if they have none.  A path that is YELLOW is
+   * re-advised so the added destinations redirect too.  Every other pair
+   * keeps its paths and congestion state.
+   * @param   newRouter      the new edge router, or null if none
+   * @param   addedPrefixes  Vectors of the IPv6Prefixes added, keyed by the
+   *                         node ID (Integer) whose prefixes changed
+   */
+  protected void updateBEtopology(EdgeRegistry.EdgeRouter newRouter, Hashtable addedPrefixes)
+  {
+		Vector deployments = new Vector();
+		holdTableEntries();
+		Integer newNodeID = (newRouter == null) ? null : newRouter.nodeID;
+		EdgeRegistry.EdgeRouter[] routers = edges.getRouters();
+		for (int i = 0; i < routers.length; i++)
+		{
+			IPv6Address thisRouterID = routers[i].routerID;
+			Integer thisNodeID = routers[i].nodeID;
+			if (newRouter != null)
+			{
+				if (ownsNode(newNodeID.intValue()))
+				{
+					deployments.add(new PathDeployment(newRouter.routerID, thisRouterID, newNodeID, thisNodeID));
+				}
+				if (!thisNodeID.equals(newNodeID) && ownsNode(thisNodeID.intValue()))
+				{
+					deployments.add(new PathDeployment(thisRouterID, newRouter.routerID, thisNodeID, newNodeID));
+				}
+			}
+			if (!ownsNode(thisNodeID.intValue()))
+			{
+				continue;//another partition's pairs
+			}
+			Enumeration destNodes = addedPrefixes.keys();
+			while (destNodes.hasMoreElements())
+			{
+				Integer destNodeID = (Integer) destNodes.nextElement();
+				EdgeRegistry.EdgeRouter destRouter = edges.getRouter(destNodeID.intValue());
+				if ((destRouter == null) || destNodeID.equals(newNodeID) || thisNodeID.equals(newNodeID))
+				{
+					continue;//not an edge router yet, or deployed above
+				}
+				synchronized (shardOf(thisNodeID.intValue()))
+				{
+					NodePair pair = getNodePair(thisNodeID.intValue(), destNodeID.intValue(), false);
+					if ((pair != null) && (pair.primaryPath != null))
+					{
+						sendTableEntries(thisNodeID.intValue(), destNodeID.intValue(), pair.primaryPath.getPathID().intValue(),
+						                 pair.alternatePath.getPathID().intValue(),
+						                 (Vector) addedPrefixes.get(destNodeID));
+						Enumeration bepaths = pair.getBEpaths().elements();
+						while (bepaths.hasMoreElements())
+						{
+							BasePIB.Path bepath = (BasePIB.Path) bepaths.nextElement();
+							if (bepath.bestEffortTrafficCondition == BasePIB.Path.YELLOW)
+							{
+								queueAdvisory(thisNodeID.intValue(), bepath.getPathID().intValue(), CongestionAdvisory.YELLOW);
+							}
+						}
+						continue;
+					}
+				}
+				deployments.add(new PathDeployment(thisRouterID, destRouter.routerID, thisNodeID, destNodeID));
+			}
+		}
+		deployPaths(deployments);
+		releaseTableEntries();
+  }//end updateBEtopology()
+
+  /**
+   * Recomputes destination prefixes after an interface is added to a node.
+   * A new interface can also stop another node's interfaces from being
+   * aggregated, so every node BETEs have been sent for is checked.
+   * @param   nodeID      the node the interface was added to
+   * @param   superseded  filled with the prefixes BETEs were sent for that
+   *                      are no longer used, Vectors of IPv6Prefix keyed by
+   *                      node ID (Integer)
+   * @return  Vectors of the IPv6Prefixes added, keyed by the node ID
+   *          (Integer) whose prefixes changed
+   */
+  private Hashtable updateDestinationPrefixes(int nodeID, Hashtable superseded)
+  {
+    Hashtable addedPrefixes = new Hashtable();
+    synchronized (htDestPrefixes)
+    {
+      Hashtable oldPrefixes = (Hashtable) htDestPrefixes.clone();
+      htDestPrefixes.clear();
+      Integer key = new Integer(nodeID);
+      if (!oldPrefixes.containsKey(key))
+      {
+        addedPrefixes.put(key, getDestinationPrefixes(nodeID));
+      }
+      Enumeration nodes = oldPrefixes.keys();
+      while (nodes.hasMoreElements())
+      {
+        Integer thisNodeID = (Integer) nodes.nextElement();
+        Vector prefixes = getDestinationPrefixes(thisNodeID.intValue());
+        Vector old = (Vector) oldPrefixes.get(thisNodeID);
+        if (prefixes.equals(old))
+        {
+          continue;
+        }
+        addedPrefixes.put(thisNodeID, difference(prefixes, old));
+        Vector gone = difference(old, prefixes);
+        if (!gone.isEmpty())
+        {
+          superseded.put(thisNodeID, gone);
+        }
+      }
+    }
+    return addedPrefixes;
+  }
+
+  /**
+   * @return  the elements of a that are not in b
+   */
+  private static Vector difference(Vector a, Vector b)
+  {
+    Vector difference = new Vector();
+    for (int i = 0; i < a.size(); i++)
+    {
+      if (!b.contains(a.elementAt(i)))
+      {
+        difference.add(a.elementAt(i));
+      }
+    }
+    return difference;
+  }
+
+  /**
+   * Queues the withdrawal of superseded destination prefixes at every
+   * source router with paths deployed to their node, so a BET doesn't keep
+   * matching a /128 or aggregate that BEM no longer updates.
+   * @param   superseded  Vectors of IPv6Prefix keyed by node ID (Integer),
+   *                      as filled by updateDestinationPrefixes()
+   */
+  private void withdrawPrefixes(Hashtable superseded)
+  {
+    if (superseded.isEmpty())
+    {
+      return;
+    }
+    Outbox box = outbox();
+    EdgeRegistry.EdgeRouter[] routers = edges.getRouters();
+    Enumeration destNodes = superseded.keys();
+    while (destNodes.hasMoreElements())
+    {
+      Integer destNodeID = (Integer) destNodes.nextElement();
+      Vector prefixes = (Vector) superseded.get(destNodeID);
+      for (int i = 0; i < routers.length; i++)
+      {
+        int srcNodeID = routers[i].nodeID.intValue();
+        if (!ownsNode(srcNodeID))
+        {
+          continue;//another partition's pairs
+        }
+        synchronized (shardOf(srcNodeID))
+        {
+          NodePair pair = getNodePair(srcNodeID, destNodeID.intValue(), false);
+          if ((pair == null) || (pair.primaryPath == null))
+          {
+            continue;//no BETEs were sent
+          }
+        }
+        try
+        {
+          for (int j = 0; j < prefixes.size(); j++)
+          {
+            IPv6Prefix prefix = (IPv6Prefix) prefixes.elementAt(j);
+            queueRoute(box, srcNodeID,
+                       new BestEffortTableBatch.Route(prefix.getNetworkAddress(), prefix.getLength()));
+          }
+        }
+        catch (UnknownHostException uhe)
+        {
+          System.out.println("UHE thrown by withdrawPrefixes() in BestEffortManager.");
+        }
+      }
+    }
+  }
+
   /**
    * When one of a BET agent's path fails, the BEM restores redundancy by
-   * deploying a new path.
+   * deploying a new path.  The caller holds the node pair's shard lock.
    * @param   pathID  the remaining path 
    */
   private void restoreRedundancy(int pathID)
   {
-    BasePIB.Path deadPath = (BasePIB.Path) (myBasePIB.htPaths.get(new Integer(pathID)));
+    BasePIB.Path deadPath = topology.pathOf(pathID);
     BasePIB.Path livePath = null;
-    int srcNodeID = ((BasePIB.Path) (myBasePIB.htPaths.get(new Integer(pathID)))).getSrcNodeID();
-    int destNodeID = ((BasePIB.Path) (myBasePIB.htPaths.get(new Integer(pathID)))).getDestNodeID();
-		gui.sendText("Affected node pair is (" + srcNodeID + "," + destNodeID + ").");
-    IPv6Address srcRouterID = (IPv6Address) (myBasePIB.htNodeIDtoRouterID.get(new Integer(srcNodeID)));
-    IPv6Address destRouterID = (IPv6Address) (myBasePIB.htNodeIDtoRouterID.get(new Integer(destNodeID)));
+    int srcNodeID = deadPath.getSrcNodeID();
+    int destNodeID = deadPath.getDestNodeID();
+		journal.record(EventJournal.FAILURE_PAIR, srcNodeID, destNodeID);
+    IPv6Address srcRouterID = topology.routerOf(srcNodeID);
+    IPv6Address destRouterID = topology.routerOf(destNodeID);
     
     //first, determine the identity of the live path
     Vector bePaths = getThisNodePairsBEpaths(srcNodeID, destNodeID);
@@ -391,35 +1696,30 @@ public class BestEffortManager
     //if this was the only path, then nothing can be done
     if (livePath == null)
     {
-			gui.sendText("NO SURVIVING PATH!!!");
+			journal.record(EventJournal.NO_SURVIVING_PATH);
       return;
     }
 
-		gui.sendText("Resent surviving path " + livePath.getPathID() + " to reset the destination.");
+		journal.record(EventJournal.SURVIVING_PATH_RESENT, livePath.getPathID().intValue());
 
-    BasePIB.Path newRedundantPath = myBasePIB.routingAlgorithm.findPath(srcRouterID,
-                                                                        destRouterID,
-                                                                        livePath,    
-                                                                        myBasePIB.routingAlgorithm.SHORTEST_WIDEST_MOST_DISJOINT_PATH);
+    BasePIB.Path newRedundantPath = findPath(srcRouterID,
+                                             destRouterID,
+                                             livePath,
+                                             myBasePIB.routingAlgorithm.SHORTEST_WIDEST_MOST_DISJOINT_PATH);
     //now, attempt to find and send a new alternate path
     if (newRedundantPath != null)
     {
       Integer newRedundantPathID = newRedundantPath.getPathID();
-      if (!newRedundantPath.bCreated)
-      {
-        myBasePIB.setupPath(newRedundantPath, newRedundantPathID.intValue(), FlowRoutingTableEntry.INSTALLED_FOR_BE);
-        newRedundantPath.bCreated = true;
-      }
-			gui.sendText("Sending path " + newRedundantPathID + " as the new alternate path.");
-			gui.sendText("Redundancy restored!");
+      setupBEpath(newRedundantPath);
+			journal.record(EventJournal.REDUNDANCY_RESTORED, newRedundantPathID.intValue());
     }
 		else//resend the same path as alternate
 		{
 			newRedundantPath = livePath;
-			gui.sendText("Unable to find a redundant path.  Resending the primary path as alternate.");
+			journal.record(EventJournal.NO_REDUNDANT_PATH);
 		}//end if else
 		
-		sendTableEntries(srcRouterID, destRouterID, livePath.getPathID().intValue(), newRedundantPath.getPathID().intValue());
+		sendTableEntries(srcNodeID, destNodeID, livePath.getPathID().intValue(), newRedundantPath.getPathID().intValue());
 		
   }//end restoreRedundancy()
 
@@ -431,14 +1731,8 @@ public class BestEffortManager
    */
   private boolean twoBEroutesActive(int srcNodeID, int destNodeID)
   {
-    if (getThisNodePairsBEpaths(srcNodeID, destNodeID).size() == 2)  
-    {
-      return true;
-    }
-    else
-    {
-      return false;
-    }
+    NodePair pair = getNodePair(srcNodeID, destNodeID, false);
+    return (pair != null) && pair.twoRoutesActive();
   }
 
   /**
@@ -448,26 +1742,62 @@ public class BestEffortManager
    */
   private void expireBEpaths(int srcNodeID, int destNodeID)
   {
-    BasePIB.Path thisPath;
-    
     Enumeration thesePaths = getThisNodePairsBEpaths(srcNodeID, destNodeID).elements();
     while (thesePaths.hasMoreElements())  
     {
-      thisPath = (BasePIB.Path) (thesePaths.nextElement());
-      if ((thisPath.getSrcNodeID() == srcNodeID) && (thisPath.getDestNodeID() == destNodeID))  
-      {
-        thisPath.expireBEpath();
-      }
+      expireBEpath((BasePIB.Path) (thesePaths.nextElement()));
+    }
+  }
+
+  /**
+   * Expires a single best effort path and records it in its node pair.
+   * @param   path  the path to expire
+   */
+  private void expireBEpath(BasePIB.Path path)
+  {
+    if (trace != null)
+    {
+      trace.expiration(clock.currentTimeMillis(), path.getPathID().intValue());
     }
+    path.expireBEpath();
+    NodePair pair = getNodePair(path.getSrcNodeID(), path.getDestNodeID(), true);
+    pair.expire(path);
+    resample(pair);
   }
   
   /**
-   * Unexpire those BE paths that have been expired
-   * past the required time.
+   * Unexpire those BE paths of a shard's node pairs that have been expired
+   * past the required time.  The caller holds the shard lock.
+   * @param   shard  the shard
    */
-  private void unexpireBEpaths()
+  private void unexpireBEpaths(PairShard shard)
   {
-    bePathAdmin(0, 0, UNEXPIRE_PATHS);
+    LongMap pairs = shard.pairs;
+    for (int slot = 0; slot < pairs.capacity(); slot++)
+    {
+      NodePair pair = (NodePair) pairs.valueAt(slot);
+      if (pair == null)
+      {
+        continue;
+      }
+      //a pair with both slots in use leaves its expired paths expired, as
+      //an unexpired path would be carrying BE traffic no slot tracks
+      for (int i = pair.expiredPaths.size() - 1; (i >= 0) && !pair.twoRoutesActive(); i--)
+      {
+        BasePIB.Path thisPath = (BasePIB.Path) pair.expiredPaths.elementAt(i);
+        if ((thisPath.bestEffortTrafficCondition == BasePIB.Path.RED) &&
+            ((clock.currentTimeMillis() - thisPath.timeConditionRed) >
+             (PATH_EXPIRATION_TIME * myBasePIB.timeScale)))
+        {
+          if (thisPath.unexpireBEpath())
+          {
+            pair.unexpire(thisPath);
+            resample(pair);
+            journal.record(EventJournal.PATH_UNEXPIRED, thisPath.getPathID().intValue());
+          }
+        }
+      }
+    }
   }
 
   /**
@@ -478,7 +1808,12 @@ public class BestEffortManager
    */
   private Vector getThisNodePairsBEpaths(int srcNodeID, int destNodeID)
   {
-    return bePathAdmin(srcNodeID, destNodeID, GET_PATHS);
+    NodePair pair = getNodePair(srcNodeID, destNodeID, false);
+    if (pair == null)
+    {
+      return new Vector(0);
+    }
+    return pair.getBEpaths();
   }
   
   /**
@@ -503,34 +1838,60 @@ public class BestEffortManager
 		//update loss rate parameters for all BE paths
     bePathAdmin(0, 0, UPDATE_LOSS_RATE);
     
-		gui.sendText("Calculating fairness variables...");
+		journal.record(EventJournal.FAIRNESS_CALCULATING);
     calculateFairnessVariables();
     
-    timeLastActionTaken = System.currentTimeMillis();
-		timeLastCongestion = System.currentTimeMillis();
+    timeLastActionTaken = clock.currentTimeMillis();
+		timeLastCongestion = clock.currentTimeMillis();
   }
 
   /**
    * Calculates fairness variables to base later
-   * actions upon.
-   */
-  private void calculateFairnessVariables()
-  {
-    Vector bepaths = new Vector();
-    Vector samples = new Vector();
-    IPv6Address thisRouterID;
-    int srcNodeID;
-    int destNodeID;
-    BasePIB.Path thisbepath;
-    BasePIB.Path thisPath;
-    int count = 0;
-    
-		samples = (Vector) (beNodePairAdmin(GET_LOSS_RATES));
-    
-    meanLossRate = computeMean(samples);
-		gui.sendText("Mean loss rate is " + (meanLossRate/100) + "%.");
-    stdLossRateDev = computeStdDev(samples);
-		gui.sendText("Loss rate SD is " + (stdLossRateDev/100) + "%.");    
+   * actions upon.  The loss rates are already summarized in lossRates, once
+   * the changes posted since the last calculation are applied.  Pairs are
+   * classified by percentile: richLossRate and poorLossRate are the loss
+   * rates that bound the RICH_PERCENTILE and POOR_PERCENTILE buckets of the
+   * loss rate histogram, so classifying a pair is one comparison.
+   */
+  private void calculateFairnessVariables()
+  {
+    lossRateChanges.applyTo(lossRates);
+    long count;
+    int richBucket;
+    int poorBucket;
+    if (partitions > 1)
+    {
+      //every partition's pairs, exactly
+      FairnessSummary[] summaries = currentFairnessSummaries();
+      meanLossRate = FairnessSummary.mean(summaries);
+      stdLossRateDev = FairnessSummary.stdDev(summaries);
+      count = FairnessSummary.count(summaries);
+      int[] buckets = FairnessSummary.buckets(summaries);
+      richBucket = LossRateStatistics.percentileBucket(buckets, count, RICH_PERCENTILE);
+      poorBucket = LossRateStatistics.percentileBucket(buckets, count, POOR_PERCENTILE);
+    }
+    else
+    {
+      meanLossRate = lossRates.getMean();
+      stdLossRateDev = lossRates.getStdDev();
+      count = lossRates.getCount();
+      richBucket = lossRates.percentileBucket(RICH_PERCENTILE);
+      poorBucket = lossRates.percentileBucket(POOR_PERCENTILE);
+    }
+    if (count == 0)
+    {
+      //no pair has been sampled; none is rich or poor
+      richLossRate = 0;
+      poorLossRate = Short.MAX_VALUE;
+    }
+    else
+    {
+      //rich: in a bucket before richBucket; poor: in poorBucket or after
+      richLossRate = LossRateStatistics.lowestLossRate(richBucket);
+      poorLossRate = LossRateStatistics.lowestLossRate(poorBucket) - 1;
+    }
+		journal.record(EventJournal.FAIRNESS_VARIABLES, (int) Math.round(meanLossRate), (int) Math.round(stdLossRateDev),
+		               richLossRate, poorLossRate, null);
   }
 
   /**
@@ -541,27 +1902,17 @@ public class BestEffortManager
    */
   private short lossRateFromThisNodePair(int srcNodeID, int destNodeID)
   {
-    long timeDeployed = 0;
-    short lossRate = 0;
-    BasePIB.Path thisPath;
-    Vector bepaths = getThisNodePairsBEpaths(srcNodeID, destNodeID);
-		
 		if (srcNodeID == destNodeID)
 		{
 			return 0;
 		}
-    
-    Enumeration thesepaths = bepaths.elements();
-    while (thesepaths.hasMoreElements())
+
+    NodePair pair = getNodePair(srcNodeID, destNodeID, false);
+    if ((pair == null) || (pair.alternatePath == null))
     {
-      thisPath = (BasePIB.Path) thesepaths.nextElement();
-      if (thisPath.bBestEffortTraffic && (thisPath.timeBEinitiated > timeDeployed))    
-      {
-        timeDeployed = thisPath.timeBEinitiated;
-        lossRate = thisPath.bestEffortLossRate;
-      }
+      return 0;
     }
-    return lossRate;
+    return pair.alternatePath.bestEffortLossRate;
   }          
   
   /**
@@ -595,7 +1946,10 @@ public class BestEffortManager
 	   
     reclaimExpiredPaths();
     
-		return ((Boolean) (beNodePairAdmin(GIVE_IF_POOR))).booleanValue();
+		holdTableEntries();
+		boolean gave = ((Boolean) (beNodePairAdmin(GIVE_IF_POOR))).booleanValue();
+		releaseTableEntries();
+		return gave;
 		       
   }//end giveToThePoor()
 
@@ -604,181 +1958,161 @@ public class BestEffortManager
    */
   private void reclaimExpiredPaths()
   {
-    BasePIB.Path thisPath = null;
-    BasePIB.PathQoS thisPathQoS;
-    
-    Enumeration allPaths = myBasePIB.htPaths.elements();
-    while (allPaths.hasMoreElements())
+    for (int shard = 0; shard < shards.length; shard++)
     {
-      thisPath = (BasePIB.Path) (allPaths.nextElement());
-      if (thisPath.bestEffortTrafficCondition == BasePIB.Path.RED)
+      synchronized (shards[shard])
       {
-        if (thisPath.bestEffortLossRate < myBasePIB.thresholdLossRate)
+        LongMap pairs = shards[shard].pairs;
+        for (int slot = 0; slot < pairs.capacity(); slot++)
         {
-          thisPath.unexpireBEpath();
+          NodePair pair = (NodePair) pairs.valueAt(slot);
+          if (pair == null)
+          {
+            continue;
+          }
+          for (int i = pair.expiredPaths.size() - 1; i >= 0; i--)
+          {
+            BasePIB.Path thisPath = (BasePIB.Path) pair.expiredPaths.elementAt(i);
+            if ((thisPath.bestEffortTrafficCondition == BasePIB.Path.RED) &&
+                (thisPath.bestEffortLossRate < myBasePIB.thresholdLossRate))
+            {
+              if (thisPath.unexpireBEpath())
+              {
+                pair.unexpire(thisPath);
+                resample(pair);
+              }
+            }
+          }
         }
       }
     }
   }
 
   /**
-   * Resets traffic for a node pair back to the primary path.
+   * Resets traffic for a node pair back to the primary path.  Switchbacks
+   * are limited to one per AC cycle across all shards.  The caller holds the
+   * node pair's shard lock.
    * @param   srcNodeID  
    * @param   destNodeID  
    */
   private boolean switchback(int srcNodeID, int destNodeID)
   {
-		if ((System.currentTimeMillis() - timeLastSwitchback) < (myServer.getAC_cyclePeriod()))
+		synchronized (switchbackLock)
 		{
-			return false;
+			if ((clock.currentTimeMillis() - timeLastSwitchback) < (myServer.getAC_cyclePeriod()))
+			{
+				return false;
+			}
+			timeLastSwitchback = clock.currentTimeMillis();
 		}
+		switchbacks.increment();
 	
     BasePIB.Path primaryPath = primaryPathForThisNodePair(srcNodeID, destNodeID);
-    BasePIB.Path alternatePath = primaryPathForThisNodePair(srcNodeID, destNodeID);
+    BasePIB.Path alternatePath = getNodePair(srcNodeID, destNodeID, true).alternatePath;
     
-    IPv6Address srcRouterID = (IPv6Address) (myBasePIB.htNodeIDtoRouterID.get(new Integer(srcNodeID)));
-    IPv6Address destRouterID = (IPv6Address) (myBasePIB.htNodeIDtoRouterID.get(new Integer(destNodeID)));
+    IPv6Address srcRouterID = topology.routerOf(srcNodeID);
+    IPv6Address destRouterID = topology.routerOf(destNodeID);
 		
-		sendTableEntries(srcRouterID, destRouterID, primaryPath.getPathID().intValue(), alternatePath.getPathID().intValue());
+		sendTableEntries(srcNodeID, destNodeID, primaryPath.getPathID().intValue(), alternatePath.getPathID().intValue());
     
-    myServer.sendCongestionAdvisory(srcRouterID, primaryPath.getPathID().intValue(), CongestionAdvisory.GREEN);
-		gui.sendText("Reset traffic split to 100/0 for node pair (" + srcNodeID + "," + destNodeID + ").");
-		gui.sendText("Congestion Advisory GREEN sent to node " + srcNodeID + ".");
+    queueAdvisory(srcNodeID, primaryPath.getPathID().intValue(), CongestionAdvisory.GREEN);
+    congestionResolved(srcNodeID, destNodeID);
+		journal.record(EventJournal.SWITCHBACK, srcNodeID, destNodeID);
+		journal.record(EventJournal.ADVISORY_SENT, CongestionAdvisory.GREEN, srcNodeID);
 		
-		timeLastSwitchback = System.currentTimeMillis();
 		return true;
   }
 
   /**
-   * Determines the primary path for this node pair based on deployment time.
+   * Notes when a node pair's primary path went YELLOW, unless it already
+   * had.  The caller holds the node pair's shard lock.
    * @param   srcNodeID  
    * @param   destNodeID  
-   * @return  primary path
    */
-  private BasePIB.Path primaryPathForThisNodePair(int srcNodeID, int destNodeID)
+  private void congestionBegun(int srcNodeID, int destNodeID)
   {
-    BasePIB.Path thisPath;
-    BasePIB.Path primaryPath = null;
-    long leastRecentTime = System.currentTimeMillis();
-    
-    Vector bepaths = getThisNodePairsBEpaths(srcNodeID, destNodeID);
-    
-    Enumeration enum = bepaths.elements();
-    while (enum.hasMoreElements())
+    NodePair pair = getNodePair(srcNodeID, destNodeID, false);
+    if ((pair != null) && (pair.timeFirstYellow == 0))
     {
-      thisPath = (BasePIB.Path) (enum.nextElement());
-      if (thisPath.timeBEinitiated < leastRecentTime)
-      {
-        leastRecentTime = thisPath.timeBEinitiated;
-        primaryPath = thisPath;
-      }
+      pair.timeFirstYellow = clock.currentTimeMillis();
     }
-    
-    return primaryPath;
   }
 
   /**
-   * Determines the alternate path for this node pair based on deployment time.
+   * Records how long a node pair was congested, if it was, now that its
+   * primary path is GREEN again.  The caller holds the node pair's shard
+   * lock.
    * @param   srcNodeID  
    * @param   destNodeID  
-   * @return  alternate path     
    */
-  private BasePIB.Path alternatePathForThisNodePair(int srcNodeID, int destNodeID)
+  private void congestionResolved(int srcNodeID, int destNodeID)
   {
-    BasePIB.Path thisPath;
-    BasePIB.Path alternatePath = null;
-    long mostRecentTime = 0;
-    
-    if (!twoBEroutesActive(srcNodeID, destNodeID))
-    {
-      return null;
-    }
-    
-    Vector bepaths = getThisNodePairsBEpaths(srcNodeID, destNodeID);
-    
-    Enumeration enum = bepaths.elements();
-    while (enum.hasMoreElements())
+    NodePair pair = getNodePair(srcNodeID, destNodeID, false);
+    if ((pair != null) && (pair.timeFirstYellow != 0))
     {
-      thisPath = (BasePIB.Path) (enum.nextElement());
-      if (thisPath.timeBEinitiated > mostRecentTime)
-      {
-        mostRecentTime = thisPath.timeBEinitiated;
-        alternatePath = thisPath;
-      }
+      congestionDuration.record((clock.currentTimeMillis() - pair.timeFirstYellow) * 1000000L);
+      pair.timeFirstYellow = 0;
     }
-    
-    return alternatePath;
   }
-  
+
   /**
-   * Computes the mean of a set of values.
-   * @param   samples  the set of values (must cast to Integer)  
-   * @return  mean     
+   * Determines the primary path for this node pair.
+   * @param   srcNodeID  
+   * @param   destNodeID  
+   * @return  primary path
    */
-  private double computeMean(Vector samples)
+  private BasePIB.Path primaryPathForThisNodePair(int srcNodeID, int destNodeID)
   {
-    int sum = 0;
-    int count = 0;
-    
-    Enumeration enum = samples.elements();
-    while (enum.hasMoreElements())
-    {
-      sum += ((Integer) (enum.nextElement())).intValue();
-      count ++;
-    }
-    if (count == 0)
-    {
-      return 0;
-    }
-    else
-    {
-      return sum / count;
-    }
+    NodePair pair = getNodePair(srcNodeID, destNodeID, false);
+    return (pair == null) ? null : pair.primaryPath;
   }
 
   /**
-   * Computes the standard deviation of a set of values.
-   * @param   samples  the set of values (must cast to Integer)  
-   * @return  standard deviation     
+   * Determines the alternate path for this node pair.
+   * @param   srcNodeID  
+   * @param   destNodeID  
+   * @return  alternate path or null if only one route is active
    */
-  private double computeStdDev(Vector samples)
+  private BasePIB.Path alternatePathForThisNodePair(int srcNodeID, int destNodeID)
   {
-    int sum = 0;
-    int thisElement = 0;
-    int count = 0;
-    double mean = computeMean(samples);
-    
-    Enumeration enum = samples.elements();
-    while (enum.hasMoreElements())
-    {
-      thisElement = ((Integer) (enum.nextElement())).intValue();
-      sum += (thisElement - mean) * (thisElement - mean);
-      count++;
-    }
-    if (count == 0)
-    {
-      return 0;
-    }
-    else
+    NodePair pair = getNodePair(srcNodeID, destNodeID, false);
+    if ((pair == null) || !pair.twoRoutesActive())
     {
-      return java.lang.Math.sqrt((double) (sum / count));
+      return null;
     }
+    return pair.alternatePath;
   }
-
+  
   /**
-   * Method through which a BE path failure notification is made.
+   * Method through which a BE path failure notification is made.  Failures
+   * of another partition's paths are left to that partition.  Only the
+   * failed path's shard is locked, so the failure is handled without
+   * waiting for monitoring of other node pairs or for a fairness pass to
+   * finish.
    * @param   failedPathID  ID of the failed path
    */
   protected void handleBEpathFailure(int failedPathID)
   {
-		gui.sendText("\nHandling failure of path " + failedPathID + ".");
-		BasePIB.Path thisPath = (BasePIB.Path) (myBasePIB.htPaths.get(new Integer(failedPathID)));
+		BasePIB.Path thisPath = topology.pathOf(failedPathID);
+		if (!ownsNode(thisPath.getSrcNodeID()))
+		{
+			return;//another partition's path
+		}
+		if (trace != null)
+		{
+			trace.pathFailure(clock.currentTimeMillis(), thisPath);
+		}
+		journal.record(EventJournal.PATH_FAILED, failedPathID);
+		congestionChanged(thisPath);//cached paths through the failure are gone
 		int srcNodeID = thisPath.getSrcNodeID();
-		IPv6Address srcRouterID = (IPv6Address) (myBasePIB.htNodeIDtoRouterID.get(new Integer(srcNodeID)));
-		myServer.sendCongestionAdvisory(srcRouterID, thisPath.getPathID().intValue(), CongestionAdvisory.RED);
-		gui.sendText("Congestion Advisory RED sent to node " + srcNodeID + ".");
-		gui.sendText("Attempting to restore redundancy...");
-    restoreRedundancy(failedPathID);
+		synchronized (shardOf(srcNodeID))
+		{
+			queueAdvisory(srcNodeID, thisPath.getPathID().intValue(), CongestionAdvisory.RED);
+			flushAdvisories();//a failure can't wait for the end of the cycle
+			journal.record(EventJournal.ADVISORY_SENT, CongestionAdvisory.RED, srcNodeID);
+			journal.record(EventJournal.RESTORING_REDUNDANCY);
+	    restoreRedundancy(failedPathID);
+		}
   }
 
 
@@ -786,43 +2120,395 @@ public class BestEffortManager
 	 * Whenever BEM generates new paths for a BE node pair, this method is called
 	 * to send the table entries and perform the bookkeeping.  Note that entries
 	 * are always sent in pairs.  This is to force a 100/0 reset on the BET agent
-	 * end and acceptance of these new entries as active.
-	 * @param   srcRouterID			the source router ID  
-	 * @param   destRouterID  	the destination router ID
+	 * end and acceptance of these new entries as active.  One route (a primary
+	 * and alternate pair) is queued per destination prefix (see
+	 * getDestinationPrefixes()) and sent in a BestEffortTableBatch.  The
+	 * caller holds the source node's shard lock.
+	 * @param   srcNodeID				the source node
+	 * @param   destNodeID  		the destination node
 	 * @param   primaryPathID  	the primary path ID
 	 * @param   alternatePathID	the alternate path ID
 	 */
-	private void sendTableEntries(IPv6Address srcRouterID, IPv6Address destRouterID, int primaryPathID, int alternatePathID)
+	private void sendTableEntries(int srcNodeID, int destNodeID, int primaryPathID, int alternatePathID)
+	{
+		sendTableEntries(srcNodeID, destNodeID, primaryPathID, alternatePathID, getDestinationPrefixes(destNodeID));
+	}
+
+	/**
+	 * Sends table entries for some of the destination node's prefixes only.
+	 * @param   destPrefixes  Vector of IPv6Prefix
+	 * @see     #sendTableEntries(int, int, int, int)
+	 */
+	private void sendTableEntries(int srcNodeID, int destNodeID, int primaryPathID, int alternatePathID,
+	                              Vector destPrefixes)
 	{
-		int destNodeID = ((Integer) (myBasePIB.htRouterIDtoNodeID.get(destRouterID.toString()))).intValue();
+		boolean sent = false;
+		Outbox box = outbox();
 
 		try
 		{
-	    Enumeration interfaces = vBestEffortDestAdds.elements();
-	    while (interfaces.hasMoreElements())    
+	    Enumeration prefixes = destPrefixes.elements();
+	    while (prefixes.hasMoreElements())    
 	    {
-	      IPv6Address thisInterfaceAdd = IPv6Address.getByName((String) interfaces.nextElement());
-	      if (destNodeID == ((BasePIB.InterfaceInfo)  myBasePIB.htInterfaces.get(thisInterfaceAdd.toString())).getNodeID().intValue())
-	      {
-	        myServer.sendBETUpdate(srcRouterID, thisInterfaceAdd, primaryPathID, 0, 0);
-					BasePIB.Path primaryPath = (BasePIB.Path) myBasePIB.htPaths.get(new Integer(primaryPathID));
-					primaryPath.initiateBestEffortTraffic();
-					primaryPath.timeBEinitiated -= 1;//other parts of code require primary path to be older
-	        myServer.sendBETUpdate(srcRouterID, thisInterfaceAdd, alternatePathID, 0, 0);
-	      	BasePIB.Path alternatePath = (BasePIB.Path) myBasePIB.htPaths.get(new Integer(alternatePathID));
-					alternatePath.initiateBestEffortTraffic();
-	        
-				}
+	      IPv6Prefix thisPrefix = (IPv6Prefix) prefixes.nextElement();
+	      queueRoute(box, srcNodeID, new BestEffortTableBatch.Route(thisPrefix.getNetworkAddress(),
+	                                                                thisPrefix.getLength(),
+	                                                                primaryPathID, alternatePathID));
+	      routesSent.increment();
+				sent = true;
 	    }
 		}
 		catch (UnknownHostException uhe)
 		{
 			System.out.println("UHE thrown by sendTableEntries() in BestEffortManager.");
 		}
+
+		if (sent)
+		{
+			if (trace != null)
+			{
+				trace.route(clock.currentTimeMillis(), srcNodeID, destNodeID, primaryPathID, alternatePathID);
+			}
+			BasePIB.Path primaryPath = topology.pathOf(primaryPathID);
+			BasePIB.Path alternatePath = topology.pathOf(alternatePathID);
+			primaryPath.initiateBestEffortTraffic();
+			if (alternatePath != primaryPath)
+			{
+				alternatePath.initiateBestEffortTraffic();
+			}
+			NodePair pair = getNodePair(srcNodeID, destNodeID, true);
+			pair.deploy(primaryPath, alternatePath);
+			resample(pair);
+		}
+
+		if (box.tableEntryHolds == 0)
+		{
+			flushTableEntries();
+		}
 	}	
 
 	/**
-	 * All code requiring an all paths iterator is consolidate here.
+	 * Queues a route for a source router in an Outbox, sending the router's
+	 * queued routes early if they fill a BestEffortTableBatch.
+	 * @param   box        the calling thread's Outbox
+	 * @param   srcNodeID  the source router's node
+	 * @param   route      the route
+	 */
+	private void queueRoute(Outbox box, int srcNodeID, BestEffortTableBatch.Route route)
+	{
+		PendingRoutes pending = (PendingRoutes) box.pendingRoutes.get(srcNodeID);
+		if (pending == null)
+		{
+			pending = new PendingRoutes(topology.routerOf(srcNodeID));
+			box.pendingRoutes.put(srcNodeID, pending);
+		}
+		else if (pending.routes.isEmpty())
+		{
+			pending.routerID = topology.routerOf(srcNodeID);//in case the node's router changed
+		}
+		Vector routes = pending.routes;
+		routes.add(route);
+		if (routes.size() == BestEffortTableBatch.MAX_ROUTES)
+		{
+			myServer.sendBETBatch(pending.routerID, new BestEffortTableBatch(routes));
+			routes.clear();
+		}
+	}
+
+	/**
+	 * An Outbox holds one thread's table entries and advisories until they are
+	 * sent, so threads working on different shards batch their own messages.
+	 * Since node pairs are sharded by source node, and table entries and
+	 * advisories go to source routers, each router's messages for a cycle
+	 * still come from one Outbox.
+	 */
+	static class Outbox
+	{
+		//BestEffortTableBatch.Routes not yet sent, PendingRoutes keyed by source
+		//node ID; sendTableEntries() only queues them while holdTableEntries()
+		//is in effect, so a pass over all node pairs sends one batch per source
+		//router.  Holds nest; this counts them.  A router's PendingRoutes is
+		//kept, empty, once its routes are sent.
+		LongMap pendingRoutes = new LongMap();
+		int tableEntryHolds;
+
+		//advisories not yet sent, PendingAdvisories keyed by node ID; sent
+		//together at the end of each monitoring cycle.  A router's
+		//PendingAdvisories is kept, empty, once its advisories are sent, so a
+		//cycle's advisories allocate nothing once each router has had one
+		LongMap pendingAdvisories = new LongMap();
+	}
+
+	/**
+	 * @return  the calling thread's Outbox
+	 */
+	private Outbox outbox()
+	{
+		return (Outbox) outboxes.get();
+	}
+
+	/**
+	 * PendingRoutes holds the BestEffortTableBatch.Routes queued for one router.
+	 */
+	static class PendingRoutes
+	{
+		IPv6Address routerID;
+		Vector routes = new Vector();
+
+		PendingRoutes(IPv6Address routerID)
+		{
+			this.routerID = routerID;
+		}
+	}
+
+	/**
+	 * Queues the table entries sendTableEntries() sends until the matching
+	 * releaseTableEntries().
+	 */
+	private void holdTableEntries()
+	{
+		outbox().tableEntryHolds++;
+	}
+
+	/**
+	 * Ends a holdTableEntries(), sending the queued table entries if no other
+	 * hold is in effect.
+	 */
+	private void releaseTableEntries()
+	{
+		Outbox box = outbox();
+		box.tableEntryHolds--;
+		if (box.tableEntryHolds == 0)
+		{
+			flushTableEntries();
+		}
+	}
+
+	/**
+	 * Sends the calling thread's queued table entries, one
+	 * BestEffortTableBatch per source router.
+	 */
+	private void flushTableEntries()
+	{
+		LongMap pendingRoutes = outbox().pendingRoutes;
+		for (int slot = 0; slot < pendingRoutes.capacity(); slot++)
+		{
+			PendingRoutes pending = (PendingRoutes) pendingRoutes.valueAt(slot);
+			if ((pending != null) && !pending.routes.isEmpty())
+			{
+				myServer.sendBETBatch(pending.routerID, new BestEffortTableBatch(pending.routes));
+				pending.routes.clear();
+			}
+		}
+	}
+
+	/**
+	 * PendingAdvisories holds the advisories queued for one router.
+	 */
+	static class PendingAdvisories
+	{
+		IPv6Address routerID;
+		int[] pathIDs = new int[8];
+		byte[] pathConditions = new byte[8];
+		int count;
+
+		PendingAdvisories(IPv6Address routerID)
+		{
+			this.routerID = routerID;
+		}
+
+		void add(int pathID, byte pathCondition)
+		{
+			if (count == pathIDs.length)
+			{
+				int[] newPathIDs = new int[2 * count];
+				byte[] newPathConditions = new byte[2 * count];
+				System.arraycopy(pathIDs, 0, newPathIDs, 0, count);
+				System.arraycopy(pathConditions, 0, newPathConditions, 0, count);
+				pathIDs = newPathIDs;
+				pathConditions = newPathConditions;
+			}
+			pathIDs[count] = pathID;
+			pathConditions[count] = pathCondition;
+			count++;
+		}
+	}
+
+	/**
+	 * Queues a CongestionAdvisory for a router.  Advisories are sent at the
+	 * end of the monitoring cycle, or of a direct reactiveMonitor() or
+	 * proactiveMonitor() call, in the order queued, as one
+	 * CongestionAdvisoryBatch per router.
+	 * @param   nodeID         the node whose router to advise
+	 * @param   pathID         the path
+	 * @param   pathCondition  GREEN, YELLOW or RED
+	 */
+	private void queueAdvisory(int nodeID, int pathID, byte pathCondition)
+	{
+		Outbox box = outbox();
+		PendingAdvisories pending = (PendingAdvisories) box.pendingAdvisories.get(nodeID);
+		if (pending == null)
+		{
+			pending = new PendingAdvisories(topology.routerOf(nodeID));
+			box.pendingAdvisories.put(nodeID, pending);
+		}
+		else if (pending.count == 0)
+		{
+			pending.routerID = topology.routerOf(nodeID);//in case the node's router changed
+		}
+		pending.add(pathID, pathCondition);
+	}
+
+	/**
+	 * Initiates global congestion resolution if a node pair, or another
+	 * partition, has asked for it, and sends what that causes.
+	 */
+	private synchronized void resolveRequestedGlobalCongestion()
+	{
+		if (!globalCongestionRequested)
+		{
+			return;
+		}
+		globalCongestionRequested = false;
+		if (!globalCongestion)
+		{
+			holdTableEntries();
+			try
+			{
+				initiateGlobalCongestionResolution();
+			}
+			finally
+			{
+				releaseTableEntries();
+				flushAdvisories();
+			}
+		}
+	}
+
+	/**
+	 * Sends the calling thread's queued advisories.  A router with a single
+	 * advisory gets a plain CongestionAdvisory.
+	 */
+	private void flushAdvisories()
+	{
+		LongMap pendingAdvisories = outbox().pendingAdvisories;
+		for (int slot = 0; slot < pendingAdvisories.capacity(); slot++)
+		{
+			PendingAdvisories pending = (PendingAdvisories) pendingAdvisories.valueAt(slot);
+			if ((pending == null) || (pending.count == 0))
+			{
+				continue;
+			}
+			for (int i = 0; i < pending.count; i++)
+			{
+				advisoriesSent[pending.pathConditions[i]].increment();
+				if (trace != null)
+				{
+					trace.advisory(clock.currentTimeMillis(), pending.routerID, pending.pathIDs[i], pending.pathConditions[i]);
+				}
+			}
+			if (pending.count == 1)
+			{
+				myServer.sendCongestionAdvisory(pending.routerID, pending.pathIDs[0], pending.pathConditions[0]);
+				pending.count = 0;
+				continue;
+			}
+			for (int sent = 0; sent < pending.count; sent += CongestionAdvisoryBatch.MAX_ADVISORIES)
+			{
+				int count = Math.min(pending.count - sent, CongestionAdvisoryBatch.MAX_ADVISORIES);
+				int[] pathIDs = pending.pathIDs;
+				byte[] pathConditions = pending.pathConditions;
+				if (sent > 0)
+				{
+					pathIDs = new int[count];
+					pathConditions = new byte[count];
+					System.arraycopy(pending.pathIDs, sent, pathIDs, 0, count);
+					System.arraycopy(pending.pathConditions, sent, pathConditions, 0, count);
+				}
+				myServer.sendCongestionAdvisoryBatch(pending.routerID,
+				                                     new CongestionAdvisoryBatch(pathIDs, pathConditions, count));
+			}
+			pending.count = 0;
+		}
+	}
+
+	/**
+	 * Determines the destination prefixes BETEs are sent for to reach a node.
+	 * The node's interfaces are aggregated into their longest common prefix
+	 * unless that prefix would also cover another node's interface, or is
+	 * shorter than MIN_AGGREGATE_LENGTH, in which case each interface gets its
+	 * own /128.
+	 * @param   destNodeID  the destination node
+	 * @return  Vector of IPv6Prefix
+	 */
+	private Vector getDestinationPrefixes(int destNodeID)
+	{
+		Integer key = new Integer(destNodeID);
+		Vector prefixes = (Vector) htDestPrefixes.get(key);
+		if (prefixes != null)
+		{
+			return prefixes;
+		}
+		synchronized (htDestPrefixes)//so updateDestinationPrefixes() can't interleave
+		{
+			prefixes = (Vector) htDestPrefixes.get(key);
+			if (prefixes != null)
+			{
+				return prefixes;
+			}
+
+			Vector localAdds = new Vector();
+			Vector foreignAdds = new Vector();
+	    Enumeration interfaces = edges.getInterfaces().elements();
+	    while (interfaces.hasMoreElements())    
+	    {
+	      EdgeRegistry.EdgeInterface thisInterface = (EdgeRegistry.EdgeInterface) interfaces.nextElement();
+	      if (destNodeID == thisInterface.nodeID)
+	      {
+					localAdds.add(thisInterface.addressBytes);
+				}
+				else
+				{
+					foreignAdds.add(thisInterface.addressBytes);
+				}
+	    }
+
+			prefixes = new Vector();
+			if (localAdds.size() > 1)
+			{
+				byte[] first = (byte[]) localAdds.firstElement();
+				int length = IPv6Prefix.MAX_PREFIX_LENGTH;
+				for (int i = 1; i < localAdds.size(); i++)
+				{
+					length = Math.min(length, IPv6Prefix.commonPrefixLength(first, (byte[]) localAdds.elementAt(i)));
+				}
+				IPv6Prefix aggregate = new IPv6Prefix(first, length);
+				boolean aggregatable = (length >= MIN_AGGREGATE_LENGTH);
+				for (int i = 0; aggregatable && (i < foreignAdds.size()); i++)
+				{
+					aggregatable = !aggregate.contains((byte[]) foreignAdds.elementAt(i));
+				}
+				if (aggregatable)
+				{
+					prefixes.add(aggregate);
+				}
+			}
+			if (prefixes.isEmpty())
+			{
+				for (int i = 0; i < localAdds.size(); i++)
+				{
+					prefixes.add(new IPv6Prefix((byte[]) localAdds.elementAt(i), IPv6Prefix.MAX_PREFIX_LENGTH));
+				}
+			}
+
+			htDestPrefixes.put(key, prefixes);
+			return prefixes;
+		}
+	}
+
+	/**
+	 * All code requiring an all paths iterator is consolidate here.  Per node
+	 * pair queries go through the PairShards instead.
 	 * @param   srcNodeID  source node ID
 	 * @param   destNodeID destination node ID
 	 * @param   action  	 byte code defined at beginning of class
@@ -839,47 +2525,22 @@ public class BestEffortManager
 		while (allPaths.hasMoreElements())
 		{
 			BasePIB.Path thisPath = (BasePIB.Path) allPaths.nextElement();
+			if (!ownsNode(thisPath.getSrcNodeID()))
+			{
+				continue;//another partition's path
+			}
 			
 			switch (action)
 			{
-				case UNEXPIRE_PATHS:
-					if (thisPath.bestEffortTrafficCondition == BasePIB.Path.RED)
-		      {
-		        if ((System.currentTimeMillis() - thisPath.timeConditionRed) >
-		            (PATH_EXPIRATION_TIME * myBasePIB.timeScale))
-		        {
-		          if (thisPath.unexpireBEpath())
-				  		{
-								gui.sendText("\nPath " + thisPath.getPathID() + " has been unexpired.");
-				  		}
-		        }
-		      }
-					break;
-				
-				case GET_PATHS:
-					if ((thisPath.bBestEffortTraffic) && (thisPath.getSrcNodeID() == srcNodeID)
-		          && (thisPath.getDestNodeID() == destNodeID))
-		      {
-		        bepaths.add(thisPath);
-		      }
-					break;
-				
 				case UPDATE_LOSS_RATE:
-					if (thisPath.bBestEffortTraffic)
-		      {
-		        BasePIB.PathQoS thisqos = thisPath.getPathQoSArray()[BasePIB.BEST_EFFORT];
-		        thisPath.bestEffortLossRate = thisqos.getPacketLossRate();
-		      }
-					break;
-					
-				case RECLAIM_PATHS:
-		      if (thisPath.bestEffortTrafficCondition == BasePIB.Path.RED)
-		      {
-		        if (thisPath.bestEffortLossRate < myBasePIB.thresholdLossRate)
-		        {
-		          thisPath.unexpireBEpath();
-		        }
-		      }
+					synchronized (shardOf(thisPath.getSrcNodeID()))
+					{
+						if (thisPath.bBestEffortTraffic)
+			      {
+			        BasePIB.PathQoS thisqos = thisPath.getPathQoSArray()[BasePIB.BEST_EFFORT];
+			        recordLossRate(thisPath, thisqos.getPacketLossRate());
+			      }
+					}
 					break;
 				
 				default:
@@ -900,194 +2561,153 @@ public class BestEffortManager
 	private Object beNodePairAdmin(byte action)
 	{
 		boolean bResult = false;
-		Vector vResult = new Vector();
+		Vector vDeployments = new Vector();
 		
 		BasePIB.Path thisPath = null;
 		BasePIB.Path pathToExpire, primaryPath, alternatePath, reclaimPath;
 		BasePIB.PathQoS thisPathQoS;
 		
-		try
-		{
-	    Enumeration eSources = vBestEffortRouters.elements();    
-	    while (eSources.hasMoreElements())
+		EdgeRegistry.EdgeRouter[] routers = edges.getRouters();
+	    for (int src = 0; src < routers.length; src++)
 	    {
-				IPv6Address srcRouterID = IPv6Address.getByName((String) eSources.nextElement());
-				Integer srcNodeID = ((BasePIB.InterfaceInfo) myBasePIB.htInterfaces.get(srcRouterID.toString())).getNodeID();
-				Enumeration eDestinations = vBestEffortRouters.elements();
-	      while (eDestinations.hasMoreElements())
+				IPv6Address srcRouterID = routers[src].routerID;
+				Integer srcNodeID = routers[src].nodeID;
+				if (!ownsNode(srcNodeID.intValue()))
+				{
+					continue;//another partition's pairs
+				}
+	      for (int dest = 0; dest < routers.length; dest++)
 	      {
-	        IPv6Address interfaceAddress = IPv6Address.getByName((String) eDestinations.nextElement());
-	        Integer destNodeID = ((BasePIB.InterfaceInfo) myBasePIB.htInterfaces.get(interfaceAddress.toString())).getNodeID();
-	        IPv6Address destRouterID = (IPv6Address) myBasePIB.htNodeIDtoRouterID.get(destNodeID);
+	        Integer destNodeID = routers[dest].nodeID;
+	        IPv6Address destRouterID = routers[dest].routerID;
 					
-					switch (action)
+					synchronized (shardOf(srcNodeID.intValue()))//one node pair at a time
 					{
-						case DEPLOY_INITIAL_PATHS:
-			        //SHORTEST WIDEST PATH is used for the primary path
-			        BasePIB.Path bePath1 = myBasePIB.routingAlgorithm.findPath(srcRouterID,
-			                                                                   destRouterID,
-			                                                                   null,
-			                                                                   myBasePIB.routingAlgorithm.SHORTEST_WIDEST_PATH);                  
-			        if (bePath1 != null)
-			        {
-			          Integer bePathID1 = bePath1.getPathID();
-			          if (!bePath1.bCreated)
-			          {
-			            myBasePIB.setupPath(bePath1, bePathID1.intValue(), FlowRoutingTableEntry.INSTALLED_FOR_BE);
-			            bePath1.bCreated = true;
-			          }
-								gui.sendText("Path " + bePathID1.intValue() + " deployed as primary for (" + srcNodeID.intValue() + "," + destNodeID.intValue() + ").");
-			          //SHORTEST WIDEST MOST DISJOINT PATH  is used for the alternate path
-			          BasePIB.Path bePath2 = myBasePIB.routingAlgorithm.findPath(srcRouterID,
-			                                                                     destRouterID,
-			                                                                     bePath1,
-			                                                                     myBasePIB.routingAlgorithm.SHORTEST_WIDEST_MOST_DISJOINT_PATH);
-			          if (bePath2 != null)
-			          {
-			            Integer bePathID2 = bePath2.getPathID();
-			            if (!bePath2.bCreated)
-			            {
-			              myBasePIB.setupPath(bePath2, bePathID2.intValue(), FlowRoutingTableEntry.INSTALLED_FOR_BE);
-			              bePath2.bCreated = true;
-			            }
-									gui.sendText("Path " + bePathID2.intValue() + " deployed as alternate.");
-			          }
-			          else
-			          { 
-			            bePath2 = bePath1;
-									gui.sendText("No alternate path available.");
-			          }
-								sendTableEntries(srcRouterID, destRouterID, bePath1.getPathID().intValue(), bePath2.getPathID().intValue());             
-			        }//end if
-							break;
+						switch (action)
+						{
+							case DEPLOY_INITIAL_PATHS:
+								//deployed once every pair is listed
+								vDeployments.add(new PathDeployment(srcRouterID, destRouterID, srcNodeID, destNodeID));
+								break;
 							
-						case GET_LOSS_RATES:
-							if (srcNodeID != destNodeID)
-							{
-								vResult.add(new Integer((int) (lossRateFromThisNodePair(srcNodeID.intValue(), destNodeID.intValue()))));
-							}
-							break;
-						
-						case ROB_IF_RICH:
-							int leastBandwidth, thisBandwidth;
-							if ((lossRateFromThisNodePair(srcNodeID.intValue(), destNodeID.intValue()) < (meanLossRate - stdLossRateDev)) &&
-			            twoBEroutesActive(srcNodeID.intValue(), destNodeID.intValue()))			        
-							{
-			          leastBandwidth = 2000000000;//a large number
-			          Vector bepaths = getThisNodePairsBEpaths(srcNodeID.intValue(), destNodeID.intValue());
-			          Enumeration enum = bepaths.elements();
-			          while (enum.hasMoreElements())
-			          {
-			            thisPath = (BasePIB.Path) (enum.nextElement());
-			            thisPathQoS = thisPath.getPathQoSArray()[BasePIB.BEST_EFFORT];
-			            thisBandwidth = thisPathQoS.getAvailableBandwidth();
-			            if (thisBandwidth < leastBandwidth)
-			            {
-			              leastBandwidth = thisBandwidth;
-			              pathToExpire = thisPath;
-			            }
-			          }
-			          srcRouterID = (IPv6Address) (myBasePIB.htNodeIDtoRouterID.get(srcNodeID));
-			          myServer.sendCongestionAdvisory(srcRouterID, thisPath.getPathID().intValue(), CongestionAdvisory.RED);
-								thisPath.expireBEpath();
-			          bResult = true;
-								gui.sendText("Deactivated path " + thisPath.getPathID() + " for node pair (" + srcNodeID + "," + destNodeID + ").");
-								gui.sendText("Robbed from the rich.");
-			        }//end if
-							break;
+							case ROB_IF_RICH:
+								int leastBandwidth, thisBandwidth;
+								if ((lossRateFromThisNodePair(srcNodeID.intValue(), destNodeID.intValue()) < richLossRate) &&
+				            twoBEroutesActive(srcNodeID.intValue(), destNodeID.intValue()))			        
+								{
+				          //expire whichever of the two active paths is thinner
+				          NodePair richPair = getNodePair(srcNodeID.intValue(), destNodeID.intValue(), false);
+				          pathToExpire = richPair.primaryPath;
+				          thisPathQoS = pathToExpire.getPathQoSArray()[BasePIB.BEST_EFFORT];
+				          leastBandwidth = thisPathQoS.getAvailableBandwidth();
+				          thisPathQoS = richPair.alternatePath.getPathQoSArray()[BasePIB.BEST_EFFORT];
+				          thisBandwidth = thisPathQoS.getAvailableBandwidth();
+				          if (thisBandwidth < leastBandwidth)
+				          {
+				            leastBandwidth = thisBandwidth;
+				            pathToExpire = richPair.alternatePath;
+				          }
+				          queueAdvisory(srcNodeID.intValue(), pathToExpire.getPathID().intValue(), CongestionAdvisory.RED);
+									expireBEpath(pathToExpire);
+				          bResult = true;
+				          robs.increment();
+									journal.record(EventJournal.ROBBED, pathToExpire.getPathID().intValue(), srcNodeID.intValue(), destNodeID.intValue());
+				        }//end if
+								break;
 						
-						case GIVE_IF_POOR:
-							int currentBandwidth, switchbackBandwidth, reclaimableBandwidth;
-							if ((lossRateFromThisNodePair(srcNodeID.intValue(), destNodeID.intValue()) > (meanLossRate + stdLossRateDev)) &&
-			            twoBEroutesActive(srcNodeID.intValue(), destNodeID.intValue()))
-							{
-			          primaryPath = primaryPathForThisNodePair(srcNodeID.intValue(), destNodeID.intValue());
-			          alternatePath = alternatePathForThisNodePair(srcNodeID.intValue(), destNodeID.intValue());
-			          srcRouterID = (IPv6Address) (myBasePIB.htNodeIDtoRouterID.get(srcNodeID));
-			          destRouterID = (IPv6Address) (myBasePIB.htNodeIDtoRouterID.get(destNodeID));
-			          reclaimPath = myBasePIB.routingAlgorithm.findPath(srcRouterID,
-			                                                            destRouterID,
-			                                                            null,
-			                                                            myBasePIB.routingAlgorithm.SHORTEST_WIDEST_PATH);
-			          if (twoBEroutesActive(srcNodeID.intValue(), destNodeID.intValue()))
-			          {
-			            thisPathQoS = primaryPath.getPathQoSArray()[BasePIB.BEST_EFFORT];
-			            switchbackBandwidth = thisPathQoS.getAvailableBandwidth();
-			            thisPathQoS = alternatePath.getPathQoSArray()[BasePIB.BEST_EFFORT];
-			            currentBandwidth = thisPathQoS.getAvailableBandwidth();
-			          }
-			          else
-			          {
-			            thisPathQoS = primaryPath.getPathQoSArray()[BasePIB.BEST_EFFORT];
-			            currentBandwidth = thisPathQoS.getAvailableBandwidth();
-			            switchbackBandwidth = 0;
-			          }
-			          if (reclaimPath != null)
-			          {
-			            thisPathQoS = reclaimPath.getPathQoSArray()[BasePIB.BEST_EFFORT];
-			            reclaimableBandwidth = thisPathQoS.getAvailableBandwidth();
-			          }
-			          else
-			          {
-			            reclaimableBandwidth = 0;			
-			          }
-			          if ((switchbackBandwidth > currentBandwidth) && (switchbackBandwidth >= reclaimableBandwidth))
-			          {
-			            bResult = switchback(srcNodeID.intValue(), destNodeID.intValue());
-									gui.sendText("Gave to the poor.");
-			          }
-			          else if (reclaimableBandwidth > currentBandwidth)
-			          {
-			            Vector bepaths = getThisNodePairsBEpaths(srcNodeID.intValue(), destNodeID.intValue());
-			            Enumeration enum = bepaths.elements();
-			            while (enum.hasMoreElements())
-			            {
-			              thisPath = (BasePIB.Path) (enum.nextElement());
-			              thisPath.terminateBestEffortTraffic();
-			            }
+							case GIVE_IF_POOR:
+								int currentBandwidth, switchbackBandwidth, reclaimableBandwidth;
+								if ((lossRateFromThisNodePair(srcNodeID.intValue(), destNodeID.intValue()) > poorLossRate) &&
+				            twoBEroutesActive(srcNodeID.intValue(), destNodeID.intValue()))
+								{
+				          primaryPath = primaryPathForThisNodePair(srcNodeID.intValue(), destNodeID.intValue());
+				          alternatePath = alternatePathForThisNodePair(srcNodeID.intValue(), destNodeID.intValue());
+				          srcRouterID = topology.routerOf(srcNodeID.intValue());
+				          destRouterID = topology.routerOf(destNodeID.intValue());
+				          reclaimPath = findPath(srcRouterID,
+				                                 destRouterID,
+				                                 null,
+				                                 myBasePIB.routingAlgorithm.SHORTEST_WIDEST_PATH);
+				          if (twoBEroutesActive(srcNodeID.intValue(), destNodeID.intValue()))
+				          {
+				            thisPathQoS = primaryPath.getPathQoSArray()[BasePIB.BEST_EFFORT];
+				            switchbackBandwidth = thisPathQoS.getAvailableBandwidth();
+				            thisPathQoS = alternatePath.getPathQoSArray()[BasePIB.BEST_EFFORT];
+				            currentBandwidth = thisPathQoS.getAvailableBandwidth();
+				          }
+				          else
+				          {
+				            thisPathQoS = primaryPath.getPathQoSArray()[BasePIB.BEST_EFFORT];
+				            currentBandwidth = thisPathQoS.getAvailableBandwidth();
+				            switchbackBandwidth = 0;
+				          }
+				          if (reclaimPath != null)
+				          {
+				            thisPathQoS = reclaimPath.getPathQoSArray()[BasePIB.BEST_EFFORT];
+				            reclaimableBandwidth = thisPathQoS.getAvailableBandwidth();
+				          }
+				          else
+				          {
+				            reclaimableBandwidth = 0;			
+				          }
+				          if ((switchbackBandwidth > currentBandwidth) && (switchbackBandwidth >= reclaimableBandwidth))
+				          {
+				            bResult = switchback(srcNodeID.intValue(), destNodeID.intValue());
+				            if (bResult)
+				            {
+				              gives.increment();
+				            }
+										journal.record(EventJournal.GAVE);
+				          }
+				          else if (reclaimableBandwidth > currentBandwidth)
+				          {
+				            Vector bepaths = getThisNodePairsBEpaths(srcNodeID.intValue(), destNodeID.intValue());
+				            Enumeration enum = bepaths.elements();
+				            while (enum.hasMoreElements())
+				            {
+				              thisPath = (BasePIB.Path) (enum.nextElement());
+				              thisPath.terminateBestEffortTraffic();
+				            }
+				            NodePair pair = getNodePair(srcNodeID.intValue(), destNodeID.intValue(), true);
+				            pair.terminate();
+				            resample(pair);
 									
-			            myServer.sendCongestionAdvisory(srcRouterID, reclaimPath.getPathID().intValue(), CongestionAdvisory.GREEN);
-									gui.sendText("Deployed fatter path " + reclaimPath + " for node pair (" + srcNodeID + "," + destNodeID + ").");
-			            BasePIB.Path bePath2 = myBasePIB.routingAlgorithm.findPath(srcRouterID,
-			                                                                       destRouterID,
-			                                                                       reclaimPath,
-			                                                                       myBasePIB.routingAlgorithm.SHORTEST_WIDEST_MOST_DISJOINT_PATH);
-			            if (bePath2 != null)
-			            {
-			              Integer bePathID2 = bePath2.getPathID();
-			              if (!bePath2.bCreated)
-			              {
-			                myBasePIB.setupPath(bePath2, bePathID2.intValue(), FlowRoutingTableEntry.INSTALLED_FOR_BE);
-			                bePath2.bCreated = true;
-			              }
-										gui.sendText("Deployed new alternate path " + bePathID2 + " for node pair (" + srcNodeID + "," + destNodeID + ").");
-			            }
-			            else
-			            {
-										bePath2 = reclaimPath;
-			            }//end if
-									sendTableEntries(srcRouterID, destRouterID, reclaimPath.getPathID().intValue(), bePath2.getPathID().intValue());
-			            bResult = true;
-									gui.sendText("Gave to the poor.");
-			          }//end if
-			        }//end if
-							break;
+				            queueAdvisory(srcNodeID.intValue(), reclaimPath.getPathID().intValue(), CongestionAdvisory.GREEN);
+										journal.record(EventJournal.FATTER_PATH, reclaimPath.getPathID().intValue(), srcNodeID.intValue(), destNodeID.intValue());
+				            BasePIB.Path bePath2 = findPath(srcRouterID,
+				                                            destRouterID,
+				                                            reclaimPath,
+				                                            myBasePIB.routingAlgorithm.SHORTEST_WIDEST_MOST_DISJOINT_PATH);
+				            if (bePath2 != null)
+				            {
+				              Integer bePathID2 = bePath2.getPathID();
+				              setupBEpath(bePath2);
+											journal.record(EventJournal.NEW_ALTERNATE, bePathID2.intValue(), srcNodeID.intValue(), destNodeID.intValue());
+				            }
+				            else
+				            {
+											bePath2 = reclaimPath;
+				            }//end if
+										sendTableEntries(srcNodeID.intValue(), destNodeID.intValue(), reclaimPath.getPathID().intValue(), bePath2.getPathID().intValue());
+				            bResult = true;
+				            gives.increment();
+										journal.record(EventJournal.GAVE);
+				          }//end if
+				        }//end if
+								break;
 						
-		        default:
-							break;
-					}//end switch
-	      }//end while
-	    }//end while
-		}
-		catch (UnknownHostException uhe)
-		{
-			System.out.println("UHE thrown by beNodePairAdmin() in BestEffortManager.");
-		}
+			        default:
+								break;
+						}//end switch
+					}
+	      }//end for
+	    }//end for
 		
 		switch (action)
 		{
-		case GET_LOSS_RATES:
-			return vResult;
+		case DEPLOY_INITIAL_PATHS:
+			deployPaths(vDeployments);
+			return null;
 			
 		case ROB_IF_RICH:
 			return new Boolean(bResult);
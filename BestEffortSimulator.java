@@ -0,0 +1,324 @@
+package org.saamnet.saam.server;
+
+import java.util.*;
+import java.net.UnknownHostException;
+
+import org.saamnet.saam.message.CongestionAdvisory;
+import org.saamnet.saam.message.EdgeNotification;
+
+/**
+ * BestEffortSimulator runs a BestEffortManager against synthetic topologies
+ * of growing size, to see how its reactive monitoring, node pair
+ * deployment and fairness measures scale before it meets a real network.
+ * The BEM is given a SimulatedPIB, whose SimulatedRoutingAlgorithm finds
+ * its paths, and a SimulatedServer, which plays the part of the edge
+ * routers' BETs.  Time is kept by a VirtualClock that moves one AC cycle
+ * per step, so BEM's timers, scaled by timeScale, run as fast as the
+ * simulation can go.
+ * <p>
+ * For each size every edge router is discovered, deploying a primary and
+ * alternate path for every node pair.  Each edge router then sends
+ * traffic to a few others, loading the links to a fraction of their
+ * capacity, and each cycle BEM is given a loss sample for every path
+ * carrying best effort traffic, through its MonitoringPipeline.  Part way
+ * through, the capacity of one core node's links is cut, congesting the
+ * paths through it.  Reported for each size:
+ * <pre>
+ *   deploy ms     real time to discover every router and deploy its pairs
+ *   findPath      calls BEM made to the routing algorithm while deploying
+ *   converge ms   virtual time from the cut until no path is congested and
+ *                 BEM has been quiet for QUIET_CYCLES cycles
+ *   decisions     advisories, routes and path setups per cycle after the cut
+ *   messages      messages sent to routers per cycle after the cut
+ *   ms/cycle      real time BEM takes over a cycle's samples
+ * </pre>
+ * Java 1.4 can't measure a thread's CPU time, so ms/cycle is elapsed time,
+ * which includes BEM's monitor threads.  Run it with, for example:
+ * <pre>
+ *   java -Xmx1g org.saamnet.saam.server.BestEffortSimulator routers=50,100,250,500
+ * </pre>
+ */
+public class BestEffortSimulator
+{
+  //cycles with nothing congested and nothing sent that count as converged
+  private final static int QUIET_CYCLES = 5;
+
+  private static int[] routerCounts = {50, 100, 250, 500};
+  private static int cores = 8;
+  private static int fanout = 32;//destinations each edge router sends to
+  private static int cycles = 200;
+  private static int cutAt = 20;//cycle the core node's capacity is cut at
+  private static double cut = 0.25;//capacity left on its links
+  private static double load = 0.4;//of each edge router's uplink capacity
+  private static long period = 200;//AC cycle (ms)
+  private static long timeScale = 1;
+  private static short threshold = 100;//loss rate, hundredths of a percent
+  private static long seed = 1;
+
+  //capacity of every link; only its ratio to the load matters
+  private final static double CAPACITY = 1000;
+
+  /**
+   * One edge router's traffic to another.
+   */
+  static class Demand
+  {
+    int src;
+    int dest;
+    double amount;
+
+    Demand(int src, int dest, double amount)
+    {
+      this.src = src;
+      this.dest = dest;
+      this.amount = amount;
+    }
+  }
+
+  /**
+   * Runs the simulations.
+   * @param   args  "routers=N,N,...", "cores=N", "fanout=N", "cycles=N",
+   *                "cutat=N", "cut=F", "load=F", "period=N",
+   *                "timescale=N", "threshold=N" and "seed=N" override the
+   *                defaults
+   */
+  public static void main(String[] args) throws UnknownHostException
+  {
+    //no gui unless asked for, so the journal records nothing it needn't
+    if (System.getProperty(BestEffortManager.HEADLESS_PROPERTY) == null)
+    {
+      System.setProperty(BestEffortManager.HEADLESS_PROPERTY, "true");
+    }
+    for (int i = 0; i < args.length; i++)
+    {
+      int equals = args[i].indexOf('=');
+      String name = (equals < 0) ? args[i] : args[i].substring(0, equals);
+      String value = (equals < 0) ? "" : args[i].substring(equals + 1);
+      if (name.equals("routers"))
+      {
+        StringTokenizer tokens = new StringTokenizer(value, ",");
+        routerCounts = new int[tokens.countTokens()];
+        for (int r = 0; r < routerCounts.length; r++)
+        {
+          routerCounts[r] = Integer.parseInt(tokens.nextToken().trim());
+        }
+      }
+      else if (name.equals("cores"))
+      {
+        cores = Integer.parseInt(value);
+      }
+      else if (name.equals("fanout"))
+      {
+        fanout = Integer.parseInt(value);
+      }
+      else if (name.equals("cycles"))
+      {
+        cycles = Integer.parseInt(value);
+      }
+      else if (name.equals("cutat"))
+      {
+        cutAt = Integer.parseInt(value);
+      }
+      else if (name.equals("cut"))
+      {
+        cut = Double.parseDouble(value);
+      }
+      else if (name.equals("load"))
+      {
+        load = Double.parseDouble(value);
+      }
+      else if (name.equals("period"))
+      {
+        period = Long.parseLong(value);
+      }
+      else if (name.equals("timescale"))
+      {
+        timeScale = Long.parseLong(value);
+      }
+      else if (name.equals("threshold"))
+      {
+        threshold = Short.parseShort(value);
+      }
+      else if (name.equals("seed"))
+      {
+        seed = Long.parseLong(value);
+      }
+      else
+      {
+        System.out.println("BestEffortSimulator Error: bad argument " + args[i]);
+        return;
+      }
+    }
+
+    System.out.println(pad("routers", 7) + pad("pairs", 9) + pad("paths", 9) + pad("deploy ms", 11) +
+                       pad("findPath", 10) + pad("converge ms", 13) + pad("decisions/cycle", 16) +
+                       pad("messages/cycle", 16) + pad("ms/cycle", 13));
+    System.out.println(pad("", 59) + pad("mean", 9) + pad("max", 7) + pad("mean", 9) + pad("max", 7) +
+                       pad("mean", 7) + pad("max", 6));
+    for (int r = 0; r < routerCounts.length; r++)
+    {
+      simulate(routerCounts[r]);
+    }
+  }
+
+  /**
+   * Simulates one topology and prints the results.
+   * @param   routers  number of edge routers
+   */
+  private static void simulate(int routers) throws UnknownHostException
+  {
+    VirtualClock clock = new VirtualClock(System.currentTimeMillis());
+    SimulatedPIB pib = new SimulatedPIB(routers, cores, CAPACITY, clock);
+    pib.thresholdLossRate = threshold;
+    pib.timeScale = timeScale;
+    SimulatedServer server = new SimulatedServer(pib, clock, period);
+    SimulatedRoutingAlgorithm routing = (SimulatedRoutingAlgorithm) pib.routingAlgorithm;
+
+    BestEffortManager bem = new BestEffortManager(pib, server);
+    bem.setClock(clock);
+    bem.start(false);//cycles are run below, on the virtual clock
+    MonitoringPipeline pipeline = bem.getMonitoringPipeline();
+
+    //discover every edge router
+    long start = System.currentTimeMillis();
+    bem.topologyChanged();
+    for (int e = 0; e < routers; e++)
+    {
+      bem.processEdgeNotification(new EdgeNotification(pib.getInterfaceAddress(e)));
+    }
+    long deployMillis = System.currentTimeMillis() - start;
+    int findPathCalls = routing.getCalls();
+
+    Demand[] demands = generateDemands(routers);
+
+    int convergedAt = -1;//first of the quiet cycles after the cut
+    int quiet = 0;
+    long decisions = 0;
+    long maxDecisions = 0;
+    long messages = 0;
+    long maxMessages = 0;
+    long cycleMillis = 0;
+    long maxCycleMillis = 0;
+    for (int cycle = 0; cycle < cycles; cycle++)
+    {
+      if (cycle == cutAt)
+      {
+        pib.scaleCoreCapacity(0, cut);
+      }
+      clock.advance(period);
+      server.adjustSplits();
+      pib.clearLoad();
+      for (int i = 0; i < demands.length; i++)
+      {
+        server.offer(demands[i].src, demands[i].dest, demands[i].amount);
+      }
+      pib.updateLossRates();
+
+      int congested = 0;//paths losing traffic
+      SimulatedPIB.SimulatedPath[] paths = pib.getPaths();
+      for (int i = 0; i < paths.length; i++)
+      {
+        if (paths[i].bBestEffortTraffic)
+        {
+          bem.monitor(paths[i], paths[i].bestEffortLossRate);
+          if ((paths[i].load > 0) && (paths[i].bestEffortLossRate > threshold))
+          {
+            congested++;
+          }
+        }
+      }
+
+      long decisionsBefore = decisions(server, pib);
+      long messagesBefore = server.getMessagesSent();
+      long cycleStart = System.currentTimeMillis();
+      pipeline.runCycle();
+      long thisCycleMillis = System.currentTimeMillis() - cycleStart;
+      long thisDecisions = decisions(server, pib) - decisionsBefore;
+      long thisMessages = server.getMessagesSent() - messagesBefore;
+
+      if (cycle < cutAt)
+      {
+        continue;
+      }
+      decisions += thisDecisions;
+      maxDecisions = Math.max(maxDecisions, thisDecisions);
+      messages += thisMessages;
+      maxMessages = Math.max(maxMessages, thisMessages);
+      cycleMillis += thisCycleMillis;
+      maxCycleMillis = Math.max(maxCycleMillis, thisCycleMillis);
+      if ((congested == 0) && (thisDecisions == 0) && (thisMessages == 0))
+      {
+        quiet++;
+        if ((quiet == QUIET_CYCLES) && (convergedAt < 0))
+        {
+          convergedAt = cycle - QUIET_CYCLES + 1;
+        }
+      }
+      else
+      {
+        quiet = 0;
+      }
+    }
+
+    int measured = Math.max(1, cycles - cutAt);
+    System.out.println(pad(Integer.toString(routers), 7) +
+                       pad(Integer.toString(routers * (routers - 1)), 9) +
+                       pad(Integer.toString(pib.getPaths().length), 9) +
+                       pad(Long.toString(deployMillis), 11) +
+                       pad(Integer.toString(findPathCalls), 10) +
+                       pad((convergedAt < 0) ? "none" : Long.toString((convergedAt - cutAt) * period), 13) +
+                       pad(Long.toString(decisions / measured), 9) +
+                       pad(Long.toString(maxDecisions), 7) +
+                       pad(Long.toString(messages / measured), 9) +
+                       pad(Long.toString(maxMessages), 7) +
+                       pad(Long.toString(cycleMillis / measured), 7) +
+                       pad(Long.toString(maxCycleMillis), 6));
+  }
+
+  /**
+   * Has each edge router send to fanout others chosen at random, loading
+   * its links to the core to load of their capacity in all.
+   */
+  private static Demand[] generateDemands(int routers)
+  {
+    Random random = new Random(seed + routers);
+    int perRouter = Math.min(fanout, routers - 1);
+    double amount = (load * cores * CAPACITY) / Math.max(perRouter, 1);
+    Demand[] demands = new Demand[routers * perRouter];
+    int next = 0;
+    for (int src = 0; src < routers; src++)
+    {
+      HashSet chosen = new HashSet();
+      while (chosen.size() < perRouter)
+      {
+        int dest = random.nextInt(routers);
+        if ((dest != src) && chosen.add(new Integer(dest)))
+        {
+          demands[next++] = new Demand(src, dest, amount);
+        }
+      }
+    }
+    return demands;
+  }
+
+  /**
+   * @return  advisories, routes and path setups so far
+   */
+  private static long decisions(SimulatedServer server, SimulatedPIB pib)
+  {
+    return server.getAdvisoriesSent(CongestionAdvisory.GREEN) +
+           server.getAdvisoriesSent(CongestionAdvisory.YELLOW) +
+           server.getAdvisoriesSent(CongestionAdvisory.RED) +
+           server.getRoutesSent() + pib.getPathsSetUp();
+  }
+
+  private static String pad(String value, int width)
+  {
+    StringBuffer padded = new StringBuffer();
+    for (int i = value.length(); i < width; i++)
+    {
+      padded.append(' ');
+    }
+    return padded.append(value).toString();
+  }
+}
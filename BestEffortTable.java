@@ -17,6 +17,10 @@ import org.saamnet.saam.net.*;
 import org.saamnet.saam.event.*;
 import org.saamnet.saam.message.*;
 import org.saamnet.saam.gui.*;
+import org.saamnet.saam.util.Counter;
+import org.saamnet.saam.util.LatencyHistogram;
+import org.saamnet.saam.util.MetricsRegistry;
+import org.saamnet.saam.util.Stopwatch;
 //import com.objectspace.jgl.HashMap;//[cw]may be overkill for this class
 
 /**
@@ -25,15 +29,47 @@ import org.saamnet.saam.gui.*;
  * that is installed in the FlowRoutingTable.  It is "smarter" than a
  * FlowRoutingTable, though, in that it will actually make decisions
  * independent of examining a single entry.
+ * <p>
+ * Lookups from the forwarding path do not lock.  All changes are made while
+ * holding this table's monitor and are made visible to lookups by replacing
+ * immutable objects: the destinationList map is copied when a destination is
+ * added or withdrawn, and each TrafficDestination publishes a new RouteVersion whenever
+ * its routes or split change.
  */
 public class BestEffortTable extends Hashtable implements TableResidentAgent,
 		MessageProcessor
 {
 
-  //the maximum number of routes to split to a single destination 
+  //the default number of routes to split to a single destination; the
+  //"routes=N" install parameter overrides it
   public final static int MAX_ROUTES = 2;
+
+  //defaults for the "buckets=N", "weight=N" and "step=N" install parameters:
+  //buckets a lookup's bucketMap selects among (deciles), the total weight
+  //split over a destination's routes, and the weight moved per redirect or
+  //revert; by default a step is 10% of the traffic
+  public final static int DEFAULT_BUCKETS = 10;
+  public final static int DEFAULT_WEIGHT = 100;
+  public final static int DEFAULT_STEP = 10;
+
+  private int routes = MAX_ROUTES;
+  private int buckets = DEFAULT_BUCKETS;
+  private int totalWeight = DEFAULT_WEIGHT;
+  private int step = DEFAULT_STEP;
+
+  //defaults for the "flows=N" and "flowidle=N" install parameters: the most
+  //flows whose route is remembered, and how long an unused flow keeps its
+  //route (ms)
+  public final static int DEFAULT_FLOWS = 4096;
+  public final static int DEFAULT_FLOW_IDLE = 30000;
+
+  //routes of flows looked up by getBestEffortTableEntry(src, dest, label)
+  private FlowAffinityCache flows = new FlowAffinityCache(DEFAULT_FLOWS, DEFAULT_FLOW_IDLE);
 	
   private TableGui gui;
+
+  //repaints the gui from changed rows off the data path; null when headless
+  private BestEffortTableView view;
   
   private Vector columnLabels = new Vector();
 
@@ -42,11 +78,46 @@ public class BestEffortTable extends Hashtable implements TableResidentAgent,
   private byte[] myMessages = //-crcp generic message registration
   {
     Message.BEST_EFFORT_TBL_ENTRY,
-    Message.CONGESTION_ADVISORY
+    Message.BEST_EFFORT_TBL_BATCH,
+    Message.CONGESTION_ADVISORY,
+    Message.CONGESTION_ADVISORY_BATCH
   };
 
-	//hashtable of TrafficDestination objects keyed by destination IP address
-  private Hashtable destinationList = new Hashtable();
+	//map of TrafficDestination objects keyed by destination IPv6Prefix; never
+	//modified once assigned (copied and replaced when a destination is added
+	//or withdrawn)
+  private volatile HashMap destinationList = new HashMap();
+
+  //prefix lengths that have at least one TrafficDestination, longest first;
+  //lookups probe destinationList once per length
+  private volatile int[] prefixLengths = new int[0];
+
+  //HashSets of the TrafficDestinations with an entry mapped to a path, keyed
+  //by pathID (Integer); lets a CongestionAdvisory touch only its destinations
+  private HashMap pathIndex = new HashMap();
+
+  //changes made by receiveEntry() and withdrawDestination() that
+  //commitEntries() has yet to publish: a copy of destinationList if
+  //destinations were added or withdrawn, the TrafficDestinations whose
+  //RouteVersion is out of date, and whether prefixLengths must be rebuilt
+  private HashMap pendingDestinations;
+  private HashSet pendingVersions = new HashSet();
+  private boolean pendingWithdrawals;
+
+  //reused to read every CongestionAdvisory; only used under the monitor
+  private CongestionAdvisory.View advisoryView = new CongestionAdvisory.View();
+
+  //counts of the BET's steps and entries, and how long lookups take, for
+  //the MetricsRegistry's exporters.  Timing every lookup would cost more
+  //than the lookup, so one in LOOKUP_SAMPLE is timed; lookupCount is read
+  //and written without locking, as a lost count only moves the sample
+  private final static int LOOKUP_SAMPLE = 64;
+  private int lookupCount;
+  private MetricsRegistry metrics = MetricsRegistry.getDefault();
+  private Counter redirects = metrics.counter("bet.redirects");
+  private Counter reverts = metrics.counter("bet.reverts");
+  private Counter entriesReceived = metrics.counter("bet.bete.received");
+  private LatencyHistogram lookupLatency = metrics.histogram("bet.lookup.latency");
 	
 	//The BestEffortTable acts autonomously at various intervals depending
 	//on most recent information in Congeston Advisory messages for a server.  If a
@@ -58,7 +129,9 @@ public class BestEffortTable extends Hashtable implements TableResidentAgent,
 	//When the congestion clears, gradually revert to the primary route.
 	//The primary route is often more desirable AND it's best to have
 	//maximum room available on the alternate route to handles extra traffic.
+	//The SplitScheduler calls back when each step is due.
 	private int timeScale;
+	private SplitScheduler scheduler;
   private final static int REDIRECT_INTERVAL = 200;//should always be equal to AC_Cycle time
   private final static int REVERT_INTERVAL = 1800000;//30 minutes
     
@@ -72,65 +145,337 @@ public class BestEffortTable extends Hashtable implements TableResidentAgent,
 	
 	/**
    * A TrafficDestination is a data structure used by the BestEffortTable to
-	 * track information on a per-destination basis.  Notably, it holds two
-	 * key arrays.  Array currentSplit holds the split in percentage over the
-	 * number of routes being used.  Array routeInstalled tracks whether those
-	 * routes have been received from the server and installed by BestEffortTable.
-	 * It is twice as big in order to hold a full complement of spare routes.
+	 * track information on a per-destination basis.  A destination is a prefix,
+	 * so one TrafficDestination covers every interface behind an edge node when
+	 * the server can aggregate them.  Notably, it holds three
+	 * key arrays.  Array currentSplit holds the integer weight of each of the
+	 * routes being used, primary first.  Array routeInstalled tracks whether those
+	 * routes have been received from the server and installed by BestEffortTable,
+	 * and array entries holds the installed entries by serial number.
+	 * The latter two are twice as big in order to hold a full complement of spare routes.
+	 * These, and the condition and timing fields, are only touched by the table
+	 * while holding its monitor; lookups read the current RouteVersion instead.
    */
 	public static class TrafficDestination
 	{
-		public IPv6Address destination;
-    public int[] currentSplit = new int[MAX_ROUTES];//the traffic split
-  	public boolean[] routeInstalled = new boolean[2 * MAX_ROUTES];
+		public IPv6Address destination;//network address of the prefix
+		public IPv6Prefix prefix;
+		public int routes;//size of a complement of routes
+		public int buckets;//resolution of the published RouteVersion
+    public int[] currentSplit;//the traffic split
+  	public boolean[] routeInstalled;
+  	public BestEffortTableEntry[] entries;
   	public int primaryRoute;//array index pointer for primary route
   	public int nextEntry;//array index pointer for where to install next route
+  	public int complement;//counts complements of routes received
 
 		public byte trafficCondition;
 		public boolean isUsingAlternateRoute;
   	public long timeLastRedirect;
 		public long timeLastRevert;
+
+		//pending redirect/revert, if any; owned by the SplitScheduler
+		SplitScheduler.Timeout timeout;
+
+		//what lookups see; replaced, never modified
+		public volatile RouteVersion version;
   
-  	public TrafficDestination(IPv6Address address)
+  	/**
+  	 * @param   address      network address of the prefix
+  	 * @param   prefix       the destination prefix
+  	 * @param   routes       number of routes in a complement
+  	 * @param   buckets      number of buckets lookups select among
+  	 * @param   totalWeight  weight given to the primary route to start
+  	 */
+  	public TrafficDestination(IPv6Address address, IPv6Prefix prefix, int routes,
+  	                          int buckets, int totalWeight)
   	{
   		destination = address;
+  		this.prefix = prefix;
+  		this.routes = routes;
+  		this.buckets = buckets;
+  		currentSplit = new int[routes];
+  		routeInstalled = new boolean[2 * routes];
+  		entries = new BestEffortTableEntry[2 * routes];
     	primaryRoute = 0;
     	nextEntry = 0;
-    	currentSplit[primaryRoute] = 100;
+    	currentSplit[primaryRoute] = totalWeight;
     	trafficCondition = CongestionAdvisory.GREEN;
 			isUsingAlternateRoute = false;
     	timeLastRedirect = 0;
+    	publish();
+  	}
+
+  	/**
+  	 * Tests whether any installed entry maps to a path.
+  	 * @param   pathID  the path
+  	 * @return  whether one does
+  	 */
+  	boolean mapsTo(int pathID)
+  	{
+  		for (int i = 0; i < entries.length; i++)
+  		{
+  			if ((entries[i] != null) && (entries[i].getPathMap() == pathID))
+  			{
+  				return true;
+  			}
+  		}
+  		return false;
+  	}
+
+  	/**
+  	 * Finds the slot in entries holding a route of the current complement.
+  	 * @param   route  0 for the primary route, 1 and up for alternates
+  	 * @return  the slot
+  	 */
+  	int slot(int route)
+  	{
+  		return (primaryRoute + route) % entries.length;
+  	}
+
+  	/**
+  	 * Publishes the current routes and split as a new RouteVersion.  The
+  	 * entries are copied, since the table goes on changing its own.
+  	 */
+  	void publish()
+  	{
+  		BestEffortTableEntry[] current = new BestEffortTableEntry[routes];
+  		for (int i = 0; i < routes; i++)
+  		{
+  			BestEffortTableEntry entry = entries[slot(i)];
+  			if (entry != null)
+  			{
+  				current[i] = new BestEffortTableEntry(entry.getDestAddr(), entry.getPathMap(), 0, 0);
+  				current[i].split = entry.getSplit();
+  				current[i].serialNo = entry.getSerialNo();
+  			}
+  		}
+  		version = new RouteVersion(current, currentSplit, buckets, complement);
   	}
 	}
 
+	/**
+	 * A RouteVersion is an immutable snapshot of the routes in use to a
+	 * destination, primary first, and which route carries each bucket of
+	 * traffic.  Its entries are copies no one else holds.  Each route gets a run of buckets in proportion to its weight,
+	 * so a lookup is a single array index at any resolution.
+	 */
+	public static class RouteVersion
+	{
+		private final BestEffortTableEntry[] routes;
+		private final byte[] bucketRoute;//index into routes for each bucket
+		private final int complement;
+
+		/**
+		 * @param   routes      the routes, primary first
+		 * @param   weights     integer weight of each route
+		 * @param   buckets     number of buckets
+		 * @param   complement  which complement of routes this is
+		 */
+		RouteVersion(BestEffortTableEntry[] routes, int[] weights, int buckets, int complement)
+		{
+			this.routes = routes;
+			this.complement = complement;
+			bucketRoute = new byte[buckets];
+
+			long total = 0;
+			for (int i = 0; i < weights.length; i++)
+			{
+				total += weights[i];
+			}
+			//bucket b goes to the first route whose cumulative share of the
+			//weight reaches (b + 1) / buckets; with ten buckets and weights in
+			//percent this is f(0)=10%...f(9)=100%
+			int route = 0;
+			long cumulative = weights[0];
+			for (int b = 0; b < buckets; b++)
+			{
+				while ((route < routes.length - 1) && (cumulative * buckets < (b + 1) * total))
+				{
+					route++;
+					cumulative += weights[route];
+				}
+				bucketRoute[b] = (byte) route;
+			}
+		}
+
+		/**
+		 * Selects the route for a bucket of traffic.
+		 * @param   bucketMap  the bucket, 0 to getBuckets() - 1
+		 * @return  the entry for that route or null if it is not installed
+		 */
+		public BestEffortTableEntry select(int bucketMap)
+		{
+			if ((bucketMap < 0) || (bucketMap >= bucketRoute.length))
+			{
+				return routes[0];
+			}
+			return routes[bucketRoute[bucketMap]];
+		}
+
+		/**
+		 * Finds which route carries a bucket of traffic.
+		 * @param   bucketMap  the bucket, 0 to getBuckets() - 1
+		 * @return  index of the route, 0 for the primary
+		 */
+		int routeIndex(int bucketMap)
+		{
+			if ((bucketMap < 0) || (bucketMap >= bucketRoute.length))
+			{
+				return 0;
+			}
+			return bucketRoute[bucketMap];
+		}
+
+		/**
+		 * @param   index  index of the route, 0 for the primary
+		 * @return  the entry for that route or null if it is not installed
+		 */
+		public BestEffortTableEntry getRoute(int index)
+		{
+			return routes[index];
+		}
+
+		public int getBuckets()
+		{
+			return bucketRoute.length;
+		}
+
+		public int getComplement()
+		{
+			return complement;
+		}
+	}
+
   /**
    * Required install method of the ResidentAgent interface.
    *
    * @param controlExec The ControlExecutive on the router this agent
    *        is being installed on.
    * @param String instanceName
-   * @param String [] parameters - array of parameters for this agent
+   * @param String [] parameters - array of parameters for this agent;
+   *        "headless" installs the table without a TableGui, and
+   *        "routes=N", "buckets=N", "weight=N" and "step=N" override the
+   *        defaults for splitting traffic, and "flows=N" and "flowidle=N"
+   *        the defaults for keeping flows on their route
    */
   public void install(ControlExecutive controlExec,
                       String instanceName,
                       String [] parameters)
   {  
-    columnLabels.add("Dest IPv6 Address");
-    columnLabels.add("Map to Path");    
-    columnLabels.add("Traffic Split");
-    int[] columnWidths = {210, 120, 120};
-    gui = new TableGui(controlExec.mainGui.getContentPanel(), instanceName, columnLabels, columnWidths);
-    controlExec.addTableGui(gui); //-crcy    
+    boolean headless = readParameters(parameters);
+    if (!headless)
+    {
+      columnLabels.add("Dest IPv6 Prefix");
+      columnLabels.add("Map to Path");    
+      columnLabels.add("Traffic Split");
+      int[] columnWidths = {210, 120, 120};
+      gui = new TableGui(controlExec.mainGui.getContentPanel(), instanceName, columnLabels, columnWidths);
+      controlExec.addTableGui(gui); //-crcy    
+      view = new BestEffortTableView(this, gui);
+      view.start(instanceName);
+    }
     this.controlExec = controlExec;
     controlExec.registerMessageProcessor(myMessages, this);
 		timeScale = controlExec.getTimeScale();
+		scheduler = new SplitScheduler(this, REDIRECT_INTERVAL * timeScale);
+		scheduler.start(instanceName);
+  }
+
+  /**
+   * Installs the table without a router, for benchmarks and simulations.
+   * There is no ControlExecutive, TableGui or SplitScheduler: messages are
+   * given straight to processMessage(), and splits only move when
+   * splitAdjustmentDue() is called.
+   * @param   parameters  as for install(); "headless" is implied
+   * @param   timeScale   scales the redirect and revert intervals; 0 makes
+   *                      every step due at once
+   */
+  void installDetached(String [] parameters, int timeScale)
+  {
+    readParameters(parameters);
+    this.timeScale = timeScale;
+  }
+
+  /**
+   * Reads the install parameters.
+   * @param   parameters  as for install()
+   * @return  whether "headless" was given
+   */
+  private boolean readParameters(String [] parameters)
+  {
+    boolean headless = false;
+    int flowCapacity = DEFAULT_FLOWS;
+    int flowIdle = DEFAULT_FLOW_IDLE;
+    for (int i = 0; (parameters != null) && (i < parameters.length); i++)
+    {
+      if ("headless".equalsIgnoreCase(parameters[i]))
+      {
+        headless = true;
+      }
+      routes = intParameter(parameters[i], "routes=", routes);
+      buckets = intParameter(parameters[i], "buckets=", buckets);
+      totalWeight = intParameter(parameters[i], "weight=", totalWeight);
+      step = intParameter(parameters[i], "step=", step);
+      flowCapacity = intParameter(parameters[i], "flows=", flowCapacity);
+      flowIdle = intParameter(parameters[i], "flowidle=", flowIdle);
+    }
+    flows = new FlowAffinityCache(flowCapacity, flowIdle);
+    //a route index has to fit in a RouteVersion's byte per bucket
+    routes = Math.min(Math.max(routes, 1), Byte.MAX_VALUE);
+    buckets = Math.max(buckets, 1);
+    step = Math.min(Math.max(step, 1), totalWeight);
+    return headless;
   }
   
   
+  /**
+   * Reads a positive integer install parameter of the form "name=N".
+   * @param   parameter     the parameter
+   * @param   name          the name, including "="
+   * @param   defaultValue  value to keep if the parameter is something else
+   * @return  the value
+   */
+  private static int intParameter(String parameter, String name, int defaultValue)
+  {
+    if ((parameter == null) || !parameter.toLowerCase().startsWith(name))
+    {
+      return defaultValue;
+    }
+    try
+    {
+      int value = Integer.parseInt(parameter.substring(name.length()).trim());
+      return (value > 0) ? value : defaultValue;
+    }
+    catch (NumberFormatException nfe)
+    {
+      System.out.println("BestEffortTable Error: bad parameter " + parameter);
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Returns the number of buckets a bucketMap selects among.
+   * @return  the bucket resolution
+   */
+  public int getBuckets()
+  {
+    return buckets;
+  }
+  
   /**
    * Required uninstall method of the ResidentAgent interface.
    */
   public void uninstall(){
+    if (scheduler != null)
+    {
+      scheduler.stop();
+    }
+    if (view != null)
+    {
+      view.stop();
+    }
+    flows.clear();
     clear();
   }
 
@@ -150,61 +495,188 @@ public class BestEffortTable extends Hashtable implements TableResidentAgent,
   /**
    * Retrieves the BET entry for a destination address and bucket map.
    * @param   destAddr  
-   * @param   bucketMap  
+   * @param   bucketMap  0 to getBuckets() - 1
    * @return  the associated BETE     
    */
   public BestEffortTableEntry getBestEffortTableEntry(IPv6Address destAddr, int bucketMap)
   {
-    TrafficDestination trafDest = (TrafficDestination) destinationList.get(destAddr.toString());
-    //if BE traffic is congested to this destination, redirect traffic to alternate path
+    long start = ((++lookupCount % LOOKUP_SAMPLE) == 0) ? Stopwatch.nanoTime() : 0;
+    BestEffortTableEntry result = null;
+    TrafficDestination trafDest = lookup(destAddr);
     if (trafDest != null) //may be no such entry yet; see RoutingAlogrithm
 		{
-			if ((trafDest.trafficCondition == CongestionAdvisory.YELLOW) &&
-    		  ((System.currentTimeMillis() - trafDest.timeLastRedirect) > 
-					 (REDIRECT_INTERVAL * timeScale)))
-    	{
-    		redirect(trafDest);
-    	}
-			if ((trafDest.isUsingAlternateRoute) && (trafDest.trafficCondition == CongestionAdvisory.GREEN) &&
-			    ((System.currentTimeMillis() - trafDest.timeLastRevert) >
-					 (REVERT_INTERVAL * timeScale)))
-			{
-				revert(trafDest);
-			}
+      result = trafDest.version.select(bucketMap);//expect null if no entry; see RoutingAlgorithm
+		}
+    if (start != 0)
+    {
+      lookupLatency.record(Stopwatch.nanoTime() - start);
+    }
+    return result;
+  }
+  
+  /**
+   * Retrieves the BET entry for a flow.  A new flow is hashed to a bucket
+   * and takes the route for it under the current split; after that the flow
+   * keeps its route while the split is redirected or reverted, so its
+   * packets are not reordered across paths.  The flow only moves if it goes
+   * idle or the server sends a new complement of routes.  RED remapping of
+   * an entry still applies to the flows on it.
+   * @param   srcAddr    source address of the flow
+   * @param   destAddr   destination address of the flow
+   * @param   flowLabel  IPv6 flow label of the flow
+   * @return  the associated BETE
+   */
+  public BestEffortTableEntry getBestEffortTableEntry(IPv6Address srcAddr, IPv6Address destAddr,
+                                                      int flowLabel)
+  {
+    long start = ((++lookupCount % LOOKUP_SAMPLE) == 0) ? Stopwatch.nanoTime() : 0;
+    BestEffortTableEntry result = null;
+    TrafficDestination trafDest = lookup(destAddr);
+    if (trafDest != null) //may be no such entry yet; see RoutingAlogrithm
+    {
+      RouteVersion version = trafDest.version;
+      long flow = FlowAffinityCache.flowHash(srcAddr, destAddr, flowLabel);
+      result = version.getRoute(flows.route(flow, version));
+    }
+    if (start != 0)
+    {
+      lookupLatency.record(Stopwatch.nanoTime() - start);
+    }
+    return result;
+  }
+  
+  /**
+   * Called by the SplitScheduler when a destination's timeout fires.  If BE
+   * traffic is congested to this destination, one step is redirected to an
+   * alternate path; if congestion has cleared, one step is reverted.  The
+   * next step, if any, is then scheduled.
+   * @param   trafDest  the traffic destination
+   */
+  synchronized void splitAdjustmentDue(TrafficDestination trafDest)
+  {
+    if (destinationList.get(trafDest.prefix) != trafDest)
+    {
+      return;//withdrawn
+    }
+		if ((trafDest.trafficCondition == CongestionAdvisory.YELLOW) &&
+  		  ((System.currentTimeMillis() - trafDest.timeLastRedirect) >=
+				 (REDIRECT_INTERVAL * timeScale)))
+  	{
+  		redirect(trafDest);
+  	}
+		if ((trafDest.isUsingAlternateRoute) && (trafDest.trafficCondition == CongestionAdvisory.GREEN) &&
+		    ((System.currentTimeMillis() - trafDest.timeLastRevert) >=
+				 ((long) REVERT_INTERVAL * timeScale)))
+		{
+			revert(trafDest);
+		}
+		scheduleSplitAdjustment(trafDest);
+  }
 
-    	int serialNo = trafDest.primaryRoute;
-    	int split = 0;//0%
-    	int percentile = bucketMap * 10 + 10;//i.e. f(0)=10%...f(9)=100%
-    
-    	for (int counter = 0; counter < MAX_ROUTES; counter++)
-    	{
-    		split += trafDest.currentSplit[counter];
-      	if (percentile <= split)
-      	{
-      		serialNo = (serialNo + counter) % (MAX_ROUTES * 2);
-      		break;
-      	}
-    	}
-      
-      String key = destAddr.toString() + serialNo;
-      BestEffortTableEntry result = (BestEffortTableEntry) get(key);
-      return result;//expect null if no entry; see RoutingAlgorithm
+  /**
+   * Schedules a destination's next redirect or revert from its condition and
+   * the time of its last step, or cancels it if neither applies.
+   * @param   trafDest  the traffic destination
+   */
+  private void scheduleSplitAdjustment(TrafficDestination trafDest)
+  {
+    if (scheduler == null)
+    {
+      return;
+    }
+    long now = System.currentTimeMillis();
+		if (trafDest.trafficCondition == CongestionAdvisory.YELLOW)
+		{
+			scheduler.schedule(trafDest, trafDest.timeLastRedirect + (REDIRECT_INTERVAL * timeScale) - now);
+		}
+		else if ((trafDest.isUsingAlternateRoute) && (trafDest.trafficCondition == CongestionAdvisory.GREEN))
+		{
+			scheduler.schedule(trafDest, trafDest.timeLastRevert + ((long) REVERT_INTERVAL * timeScale) - now);
 		}
 		else
 		{
-			return null;
+			scheduler.cancel(trafDest);
 		}
   }
+
+  /**
+   * Finds the TrafficDestination for a destination address, as lookups do.
+   * @param   destAddr  the destination address
+   * @return  the TrafficDestination or null if no prefix matches
+   */
+  TrafficDestination getTrafficDestination(IPv6Address destAddr)
+  {
+    return lookup(destAddr);
+  }
+
+  /**
+   * Finds the TrafficDestination whose prefix is the longest match for
+   * a destination address.
+   * @param   destAddr  the destination address
+   * @return  the TrafficDestination or null if no prefix matches
+   */
+  private TrafficDestination lookup(IPv6Address destAddr)
+  {
+    byte[] address = destAddr.getAddress();
+    HashMap destinations = destinationList;
+    int[] lengths = prefixLengths;
+    for (int i = 0; i < lengths.length; i++)
+    {
+      TrafficDestination trafDest = (TrafficDestination)
+                                    destinations.get(new IPv6Prefix(address, lengths[i]));
+      if (trafDest != null)
+      {
+        return trafDest;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Records that a prefix length is in use, keeping prefixLengths sorted
+   * longest first.
+   * @param   length  the prefix length
+   */
+  private void addPrefixLength(int length)
+  {
+    int[] lengths = prefixLengths;
+    int index = 0;
+    while ((index < lengths.length) && (lengths[index] > length))
+    {
+      index++;
+    }
+    if ((index < lengths.length) && (lengths[index] == length))
+    {
+      return;
+    }
+    int[] newLengths = new int[lengths.length + 1];
+    System.arraycopy(lengths, 0, newLengths, 0, index);
+    newLengths[index] = length;
+    System.arraycopy(lengths, index, newLengths, index + 1, lengths.length - index);
+    prefixLengths = newLengths;
+  }
+
+  /**
+   * Builds the key an entry is stored under in this table.
+   * @param   destAddr      network address of the destination prefix
+   * @param   prefixLength  length of the destination prefix
+   * @param   serialNo      serial number of the entry
+   * @return  the key
+   */
+  private static String entryKey(IPv6Address destAddr, int prefixLength, int serialNo)
+  {
+    return destAddr.toString() + "/" + prefixLength + "#" + serialNo;
+  }
   
   /**
-  * Returns true if the BET contains an entry indexed by destination 
-  * address andfalse otherwise.
+  * Returns true if the BET contains an entry whose prefix matches the destination 
+  * address and false otherwise.
   * @param destAddr, a particular destination IP address
   * @return whether or not the BET contains an entry indexed by the destination address
   */  
   public boolean hasEntry(IPv6Address destAddr)
   {
-    if (destinationList.get(destAddr.toString()) != null)
+    if (lookup(destAddr) != null)
 	  {
 		  return true;
 	  }
@@ -229,13 +701,14 @@ public class BestEffortTable extends Hashtable implements TableResidentAgent,
     }
       
     Vector table = new Vector(size());      
-    Enumeration e = elements();
+    Enumeration e = keys();
     while (e.hasMoreElements())
     {
       Vector oneRow = new Vector();
-      BestEffortTableEntry betentry = (BestEffortTableEntry) e.nextElement();
+      String key = (String) e.nextElement();
+      BestEffortTableEntry betentry = (BestEffortTableEntry) get(key);
       
-      oneRow.add("" + betentry.getDestAddr());
+      oneRow.add(key.substring(0, key.lastIndexOf('#')));
       oneRow.add("" + betentry.getPathMap());
       oneRow.add("" + betentry.getSplit());
       
@@ -268,13 +741,20 @@ public class BestEffortTable extends Hashtable implements TableResidentAgent,
   }
 
 	/**
-	 * BestEffortTable process two types of messages, BEST_EFFORT_TBL_ENTRY and CONGESTION_ADVISORY.
+	 * BestEffortTable process four types of messages, BEST_EFFORT_TBL_ENTRY,
+	 * BEST_EFFORT_TBL_BATCH, CONGESTION_ADVISORY and CONGESTION_ADVISORY_BATCH.
 	 * For BEST_EFFORT_TBL_ENTRY, it adds the entry and makes a new TrafficDestination
-   * if it does not have this destination on file.  For CONGESTION_ADVISORY, it updates the
-   * congestion condition for the TrafficDestination using that pathID.
+   * if it does not have this destination on file.  A BETE names an exact /128
+   * destination address; the BET assigns splits itself, so an incoming BETE's
+   * split is ignored.  Single BETEs complete a complement of routes in pairs,
+   * so they suit the default of two routes.  A BEST_EFFORT_TBL_BATCH is handled
+   * as a complement of BETEs for each of its routes, each for the prefix
+   * length the route carries, and the whole batch is published at once.  For CONGESTION_ADVISORY, it updates the
+   * congestion condition for the TrafficDestination using that pathID.  A
+   * CONGESTION_ADVISORY_BATCH is applied in order, read in place from the message.
    * @param   message  CongestionAdvisory from BestEffortManager on server  
 	 */
-  public void processMessage (Message message)
+  public synchronized void processMessage (Message message)
   {
   	switch (message.getBytes()[0])
     {
@@ -288,86 +768,64 @@ public class BestEffortTable extends Hashtable implements TableResidentAgent,
 		    {
 		      System.out.println("BestEffortTable Error: can't create local BETE." + uhe);
 		    }
-        //check to see if this is a known destination
-		    if (destinationList.containsKey(betentry.getDestAddr().toString()))
+        receiveEntry(betentry, IPv6Prefix.MAX_PREFIX_LENGTH);
+        commitEntries();
+        //this is the server's way of granting edge router permission
+		    if (controlExec != null)
 		    {
-		    	TrafficDestination trafDest = (TrafficDestination) destinationList.get(betentry.getDestAddr().toString());
-		      betentry.serialNo = trafDest.nextEntry;
-          //check to see if a new complement of routes is being received
-          //if so, reset previous splits to 0 and mark next route as primary
-					boolean resetRoutes = (trafDest.nextEntry - trafDest.primaryRoute == MAX_ROUTES)
-				                      	|| (trafDest.primaryRoute - trafDest.nextEntry == MAX_ROUTES);
-					if (resetRoutes)
-					{
-						for (int i = 0; i < MAX_ROUTES; i++)
-						{
-							int index = (trafDest.primaryRoute + i) % (2 * MAX_ROUTES);
-							String key = betentry.getDestAddr().toString() + index;
-							BestEffortTableEntry zeroedentry = (BestEffortTableEntry) get(key);
-							zeroedentry.split = 0;
-							trafDest.currentSplit[i] = 0;
-						}
-						betentry.split = 100;
-						trafDest.currentSplit[0] = 100;
-						trafDest.primaryRoute = (trafDest.primaryRoute + MAX_ROUTES) % (2 * MAX_ROUTES);
-						trafDest.isUsingAlternateRoute = false;						
-					}
-					else //this is not a new primary route
-					{
-		      	betentry.split = 0;
-					}
-		      add(betentry);
-		      trafDest.routeInstalled[trafDest.nextEntry] = true;
-		      trafDest.nextEntry = (trafDest.nextEntry + 1) % (2 * MAX_ROUTES);
-				}
-		    else //need to start tracking this new destination
+		      controlExec.acceptEdgeTraffic();
+		    }
+	      break;
+
+	  	case Message.BEST_EFFORT_TBL_BATCH:
+		    BestEffortTableBatch batch = null;
+		    try
 		    {
-		    	TrafficDestination trafDest = new TrafficDestination(betentry.getDestAddr());
-		      destinationList.put(betentry.getDestAddr().toString(), trafDest);
-		      betentry.serialNo = trafDest.nextEntry;
-		      betentry.split = 100;
-		      add(betentry);
-		      trafDest.routeInstalled[trafDest.nextEntry] = true;
-		      trafDest.nextEntry = (trafDest.nextEntry + 1) % (2 * MAX_ROUTES);
+		      batch = new BestEffortTableBatch(message.getBytes());
+		    }
+		    catch(UnknownHostException uhe)
+		    {
+		      System.out.println("BestEffortTable Error: can't decode BET batch." + uhe);
+		      break;
+		    }
+		    BestEffortTableBatch.Route[] batchRoutes = batch.getRoutes();
+		    for (int i = 0; i < batchRoutes.length; i++)
+		    {
+		      if (batchRoutes[i].isWithdrawal())
+		      {
+		        withdrawDestination(new IPv6Prefix(batchRoutes[i].destAddr, batchRoutes[i].prefixLength));
+		        continue;
+		      }
+		      //a full complement; a route with fewer paths than this table splits
+		      //over repeats its last path, and extra paths are ignored
+		      int[] pathIDs = batchRoutes[i].pathIDs;
+		      for (int j = 0; j < routes; j++)
+		      {
+		        int pathID = pathIDs[Math.min(j, pathIDs.length - 1)];
+		        receiveEntry(new BestEffortTableEntry(batchRoutes[i].destAddr, pathID, 0, 0),
+		                     batchRoutes[i].prefixLength);
+		      }
+		    }
+		    commitEntries();
+		    if (controlExec != null)
+		    {
+		      controlExec.acceptEdgeTraffic();
 		    }
-        //this is the server's way of granting edge router permission
-		    controlExec.acceptEdgeTraffic();
 	      break;
       
   		case Message.CONGESTION_ADVISORY:
-        CongestionAdvisory pill = new CongestionAdvisory(message.getBytes());
-        //determine affected path
-        int affectedPathID = pill.getPathID();      
-		    Enumeration e = elements();
-		    while (e.hasMoreElements())
-		    {
-		      BestEffortTableEntry betentry1 = (BestEffortTableEntry) e.nextElement();
-          if (betentry1.getPathMap() == affectedPathID)
-          {
-          	TrafficDestination trafDest = (TrafficDestination)
-                                          destinationList.get(betentry1.getDestAddr().toString());
-            //update the traffic condition
-            trafDest.trafficCondition = pill.pathCondition();
-            //if RED, then route all traffic to unaffected path
-						if (pill.pathCondition() == CongestionAdvisory.RED)
-						{
-							int unaffectedSerialNo;
-							int serialNo = betentry1.getSerialNo();
-							if (serialNo == trafDest.primaryRoute)
-							{
-								unaffectedSerialNo = (serialNo + 1) % (2 * MAX_ROUTES);
-							}
-							else
-							{
-								unaffectedSerialNo = (serialNo - 1) % (2 * MAX_ROUTES);
-							}
-							String unaffectedKey = trafDest.destination.toString() + unaffectedSerialNo;
-							BestEffortTableEntry unaffectedEntry = (BestEffortTableEntry) get(unaffectedKey);
-							betentry1.setPathMap(unaffectedEntry.getPathMap());
-							gui.fillTable(getTable());
-						}
-          }  
-		    }
+        CongestionAdvisory.View pill = advisoryView.wrap(message.getBytes(), 0);
+        applyAdvisory(pill.getPathID(), pill.pathCondition());
+        break;
+
+  		case Message.CONGESTION_ADVISORY_BATCH:
+        byte[] advisories = message.getBytes();
+        int count = CongestionAdvisoryBatch.getCount(advisories);
+        for (int i = 0; i < count; i++)
+        {
+          applyAdvisory(CongestionAdvisoryBatch.getPathID(advisories, i),
+                        CongestionAdvisoryBatch.pathCondition(advisories, i));
+        }
         break;
                 
   		default:
@@ -378,32 +836,309 @@ public class BestEffortTable extends Hashtable implements TableResidentAgent,
   }//End processMessage()
  
   /**
-   * Redirects one bucket of traffic from the primary to alternate path.
+   * Installs a received entry, starting to track its destination if it is
+   * new.  The change is not visible to lookups until commitEntries().
+   * @param   betentry      the entry received from the server
+   * @param   prefixLength  length of the destination prefix
+   */
+  private void receiveEntry(BestEffortTableEntry betentry, int prefixLength)
+  {
+    entriesReceived.increment();
+    IPv6Prefix prefix = new IPv6Prefix(betentry.getDestAddr(), prefixLength);
+    //check to see if this is a known destination; pendingDestinations, if
+    //any, is the newer copy
+    HashMap destinations = (pendingDestinations != null) ? pendingDestinations : destinationList;
+    TrafficDestination trafDest = (TrafficDestination) destinations.get(prefix);
+    if (trafDest != null)
+    {
+      betentry.serialNo = trafDest.nextEntry;
+      //check to see if a new complement of routes is being received
+      //if so, reset previous splits to 0 and mark next route as primary
+      boolean resetRoutes = (trafDest.nextEntry == trafDest.slot(trafDest.routes));
+      if (resetRoutes)
+      {
+        for (int i = 0; i < trafDest.routes; i++)
+        {
+          int index = trafDest.slot(i);
+          BestEffortTableEntry zeroedentry = trafDest.entries[index];
+          zeroedentry.split = 0;
+          changed(trafDest, index);
+          trafDest.currentSplit[i] = 0;
+        }
+        betentry.split = totalWeight;
+        trafDest.currentSplit[0] = totalWeight;
+        trafDest.primaryRoute = trafDest.slot(trafDest.routes);
+        trafDest.complement++;
+        trafDest.isUsingAlternateRoute = false;
+      }
+      else //this is not a new primary route
+      {
+        betentry.split = 0;
+      }
+      add(betentry, prefixLength);
+      installEntry(trafDest, betentry);
+    }
+    else //need to start tracking this new destination
+    {
+      trafDest = new TrafficDestination(betentry.getDestAddr(), prefix, routes,
+                                        buckets, totalWeight);
+      betentry.serialNo = trafDest.nextEntry;
+      betentry.split = totalWeight;
+      add(betentry, prefixLength);
+      installEntry(trafDest, betentry);
+      if (pendingDestinations == null)
+      {
+        pendingDestinations = new HashMap(destinationList);
+      }
+      pendingDestinations.put(prefix, trafDest);
+      addPrefixLength(prefixLength);
+    }
+    pendingVersions.add(trafDest);
+  }
+
+  /**
+   * Stops tracking a destination the server has withdrawn, removing its
+   * entries from this table and pathIndex.  Lookups keep finding it until
+   * commitEntries().
+   * @param   prefix  the destination prefix
+   */
+  private void withdrawDestination(IPv6Prefix prefix)
+  {
+    HashMap destinations = (pendingDestinations != null) ? pendingDestinations : destinationList;
+    TrafficDestination trafDest = (TrafficDestination) destinations.get(prefix);
+    if (trafDest == null)
+    {
+      return;
+    }
+    if (pendingDestinations == null)
+    {
+      pendingDestinations = new HashMap(destinationList);
+    }
+    pendingDestinations.remove(prefix);
+    pendingVersions.remove(trafDest);
+    pendingWithdrawals = true;
+    for (int i = 0; i < trafDest.entries.length; i++)
+    {
+      BestEffortTableEntry betentry = trafDest.entries[i];
+      if (betentry == null)
+      {
+        continue;
+      }
+      remove(entryKey(trafDest.destination, prefix.getLength(), i));
+      changed(trafDest, i);
+      Integer key = new Integer(betentry.getPathMap());
+      HashSet dests = (HashSet) pathIndex.get(key);
+      if (dests != null)
+      {
+        dests.remove(trafDest);
+        if (dests.isEmpty())
+        {
+          pathIndex.remove(key);
+        }
+      }
+    }
+    if (scheduler != null)
+    {
+      scheduler.cancel(trafDest);
+    }
+  }
+
+  /**
+   * Publishes everything received since the last commit: added and
+   * withdrawn destinations in one new destinationList, then the new
+   * RouteVersion of each changed destination, so a reset and its new routes
+   * become visible together.
+   */
+  private void commitEntries()
+  {
+    if (pendingDestinations != null)
+    {
+      destinationList = pendingDestinations;
+      pendingDestinations = null;
+    }
+    if (pendingWithdrawals)
+    {
+      //drop the lengths no destination uses any more
+      pendingWithdrawals = false;
+      boolean[] used = new boolean[IPv6Prefix.MAX_PREFIX_LENGTH + 1];
+      int count = 0;
+      Iterator prefixes = destinationList.keySet().iterator();
+      while (prefixes.hasNext())
+      {
+        int length = ((IPv6Prefix) prefixes.next()).getLength();
+        if (!used[length])
+        {
+          used[length] = true;
+          count++;
+        }
+      }
+      int[] lengths = new int[count];
+      for (int length = IPv6Prefix.MAX_PREFIX_LENGTH, i = 0; length >= 0; length--)
+      {
+        if (used[length])
+        {
+          lengths[i++] = length;
+        }
+      }
+      prefixLengths = lengths;
+    }
+    Iterator i = pendingVersions.iterator();
+    while (i.hasNext())
+    {
+      TrafficDestination trafDest = (TrafficDestination) i.next();
+      trafDest.publish();
+      scheduleSplitAdjustment(trafDest);
+    }
+    pendingVersions.clear();
+  }
+
+  /**
+   * Installs a received entry in the next slot of a TrafficDestination and
+   * keeps pathIndex up to date for the entry it replaces.
+   * @param   trafDest  the traffic destination
+   * @param   betentry  the entry, with its serial number already assigned
+   */
+  private void installEntry(TrafficDestination trafDest, BestEffortTableEntry betentry)
+  {
+    BestEffortTableEntry replaced = trafDest.entries[trafDest.nextEntry];
+    trafDest.entries[trafDest.nextEntry] = betentry;
+    trafDest.routeInstalled[trafDest.nextEntry] = true;
+    trafDest.nextEntry = (trafDest.nextEntry + 1) % trafDest.entries.length;
+    if (replaced != null)
+    {
+      unindexPath(replaced.getPathMap(), trafDest);
+    }
+    indexPath(betentry.getPathMap(), trafDest);
+  }
+
+  /**
+   * Updates the traffic condition of every destination using a path.  If the
+   * path is RED, entries mapped to it are remapped to an unaffected path: the
+   * primary is remapped to the first alternate, and alternates to the primary.
+   * @param   affectedPathID  the path the advisory is for
+   * @param   pathCondition   GREEN, YELLOW or RED
+   * @return  whether any entry was remapped
+   */
+  private boolean applyAdvisory(int affectedPathID, byte pathCondition)
+  {
+    boolean remapped = false;
+    HashSet dests = (HashSet) pathIndex.get(new Integer(affectedPathID));
+    if (dests == null)
+    {
+      return false;
+    }
+    //copied since remapping changes the index
+    Object[] affected = dests.toArray();
+    for (int d = 0; d < affected.length; d++)
+    {
+      TrafficDestination trafDest = (TrafficDestination) affected[d];
+      boolean remappedHere = false;
+      for (int i = 0; i < trafDest.entries.length; i++)
+      {
+        BestEffortTableEntry betentry = trafDest.entries[i];
+        if ((betentry != null) && (betentry.getPathMap() == affectedPathID))
+        {
+          //update the traffic condition
+          trafDest.trafficCondition = pathCondition;
+          //if RED, then route all traffic to unaffected path
+					if (pathCondition == CongestionAdvisory.RED)
+					{
+						int unaffectedSerialNo;
+						int serialNo = betentry.getSerialNo();
+						if (serialNo == trafDest.primaryRoute)
+						{
+							unaffectedSerialNo = trafDest.slot(1);
+						}
+						else
+						{
+							unaffectedSerialNo = trafDest.primaryRoute;
+						}
+						BestEffortTableEntry unaffectedEntry = trafDest.entries[unaffectedSerialNo];
+						betentry.setPathMap(unaffectedEntry.getPathMap());
+						indexPath(unaffectedEntry.getPathMap(), trafDest);
+						changed(trafDest, i);
+						remappedHere = true;
+					}
+        }
+      }
+      if (remappedHere)
+      {
+        trafDest.publish();
+        remapped = true;
+      }
+      unindexPath(affectedPathID, trafDest);
+      scheduleSplitAdjustment(trafDest);
+    }
+    return remapped;
+  }
+
+  /**
+   * Records that a TrafficDestination has an entry mapped to a path.
+   * @param   pathID    the path
+   * @param   trafDest  the traffic destination
+   */
+  private void indexPath(int pathID, TrafficDestination trafDest)
+  {
+    Integer key = new Integer(pathID);
+    HashSet dests = (HashSet) pathIndex.get(key);
+    if (dests == null)
+    {
+      dests = new HashSet();
+      pathIndex.put(key, dests);
+    }
+    dests.add(trafDest);
+  }
+
+  /**
+   * Drops a TrafficDestination from a path's index unless another of its
+   * entries still maps to that path.
+   * @param   pathID    the path
+   * @param   trafDest  the traffic destination
+   */
+  private void unindexPath(int pathID, TrafficDestination trafDest)
+  {
+    if (trafDest.mapsTo(pathID))
+    {
+      return;
+    }
+    Integer key = new Integer(pathID);
+    HashSet dests = (HashSet) pathIndex.get(key);
+    if (dests != null)
+    {
+      dests.remove(trafDest);
+      if (dests.isEmpty())
+      {
+        pathIndex.remove(key);
+      }
+    }
+  }
+
+  /**
+   * Redirects one step of traffic from the primary path to the installed
+   * alternate carrying the least traffic.
    * @param   trafDest the traffic destination
    * @return  success of operation
    */
   private boolean redirect(TrafficDestination trafDest)
   {
-		int primaryRoute = trafDest.primaryRoute;
-		int alternateRoute = (trafDest.primaryRoute + 1) % (2 * MAX_ROUTES);
+		int alternate = 0;
+		for (int i = 1; i < trafDest.routes; i++)
+		{
+			if ((trafDest.routeInstalled[trafDest.slot(i)]) &&
+			    ((alternate == 0) || (trafDest.currentSplit[i] < trafDest.currentSplit[alternate])))
+			{
+				alternate = i;
+			}
+		}
 		
-		if ((trafDest.currentSplit[0] >= 10) && (trafDest.routeInstalled[alternateRoute]))
+		if ((trafDest.currentSplit[0] >= step) && (alternate != 0))
 		{
-			String primaryKey = trafDest.destination.toString() + primaryRoute;
-    	BestEffortTableEntry primaryEntry = (BestEffortTableEntry) get(primaryKey);
-			primaryEntry.setSplit(primaryEntry.getSplit() - 10);
-			trafDest.currentSplit[0] -= 10;
-			
-			String alternateKey = trafDest.destination.toString() + alternateRoute;
-			BestEffortTableEntry alternateEntry = (BestEffortTableEntry) get(alternateKey);
-			alternateEntry.setSplit(alternateEntry.getSplit() + 10);
-			trafDest.currentSplit[1] += 10;
-			
-			gui.fillTable(getTable());
+			moveWeight(trafDest, 0, alternate, step);
 			
 			trafDest.isUsingAlternateRoute = true;
 
 			trafDest.timeLastRedirect = System.currentTimeMillis();
+			redirects.increment();
 			
   		return true;
 		}
@@ -416,35 +1151,38 @@ public class BestEffortTable extends Hashtable implements TableResidentAgent,
   }
 	
   /**
-   * Reverts one bucket of traffic back to the primary path.
+   * Reverts one step of traffic back to the primary path from the alternate
+   * carrying the most traffic.
    * @param   trafDest  the traffic destination
    * @return  success of operation
    */
 	private boolean revert(TrafficDestination trafDest)
 	{
-		int primaryRoute = trafDest.primaryRoute;
-		int alternateRoute = (trafDest.primaryRoute + 1) % (2 * MAX_ROUTES);
+		int alternate = 0;
+		for (int i = 1; i < trafDest.routes; i++)
+		{
+			if ((trafDest.currentSplit[i] > 0) &&
+			    ((alternate == 0) || (trafDest.currentSplit[i] > trafDest.currentSplit[alternate])))
+			{
+				alternate = i;
+			}
+		}
 		
-		if (trafDest.currentSplit[0] <= 90)
+		if (alternate != 0)
 		{
-			String primaryKey = trafDest.destination.toString() + primaryRoute;
-    	BestEffortTableEntry primaryEntry = (BestEffortTableEntry) get(primaryKey);
-			primaryEntry.setSplit(primaryEntry.getSplit() + 10);
-			trafDest.currentSplit[0] += 10;
-			
-			String alternateKey = trafDest.destination.toString() + alternateRoute;
-			BestEffortTableEntry alternateEntry = (BestEffortTableEntry) get(alternateKey);
-			alternateEntry.setSplit(alternateEntry.getSplit() - 10);
-			trafDest.currentSplit[1] -= 10;
-			
-			gui.fillTable(getTable());
+			moveWeight(trafDest, alternate, 0, Math.min(step, trafDest.currentSplit[alternate]));
 			
-			if (trafDest.currentSplit[1] == 0)
+			trafDest.isUsingAlternateRoute = false;
+			for (int i = 1; i < trafDest.routes; i++)
 			{
-				trafDest.isUsingAlternateRoute = false;
+				if (trafDest.currentSplit[i] > 0)
+				{
+					trafDest.isUsingAlternateRoute = true;
+				}
 			}
 
 			trafDest.timeLastRevert = System.currentTimeMillis();
+			reverts.increment();
 			
   		return true;
 		}
@@ -455,6 +1193,28 @@ public class BestEffortTable extends Hashtable implements TableResidentAgent,
 			return false;
 		}
 	}
+
+  /**
+   * Moves weight from one route of a destination to another and publishes
+   * the new split.
+   * @param   trafDest  the traffic destination
+   * @param   from      route losing weight (0 for the primary)
+   * @param   to        route gaining weight
+   * @param   weight    how much to move
+   */
+  private void moveWeight(TrafficDestination trafDest, int from, int to, int weight)
+  {
+		BestEffortTableEntry fromEntry = trafDest.entries[trafDest.slot(from)];
+		fromEntry.setSplit(fromEntry.getSplit() - weight);
+		trafDest.currentSplit[from] -= weight;
+		
+		BestEffortTableEntry toEntry = trafDest.entries[trafDest.slot(to)];
+		toEntry.setSplit(toEntry.getSplit() + weight);
+		trafDest.currentSplit[to] += weight;
+		trafDest.publish();
+		changed(trafDest, trafDest.slot(from));
+		changed(trafDest, trafDest.slot(to));
+  }
   
   /**
    * Required method for MessageProcessors.
@@ -474,14 +1234,42 @@ public class BestEffortTable extends Hashtable implements TableResidentAgent,
 
   /**
    * If a BestEffortTableEntry has already been constructed,
-   * this method allows it to be entered into the table.
+   * this method allows it to be entered into the table as an exact
+   * (/128) destination.
    * @param entry The BestEffortTableEntry to be entered.
    */
-  public synchronized void add (BestEffortTableEntry betentry)
+  public void add (BestEffortTableEntry betentry)
   {
-  	String key = betentry.getDestAddr().toString() + betentry.getSerialNo();  
+  	add(betentry, IPv6Prefix.MAX_PREFIX_LENGTH);
+  }
+
+  /**
+   * Enters a BestEffortTableEntry whose destination address is the network
+   * address of a prefix.
+   * @param entry The BestEffortTableEntry to be entered.
+   * @param prefixLength  length of the destination prefix
+   */
+  private synchronized void add (BestEffortTableEntry betentry, int prefixLength)
+  {
+  	String key = entryKey(betentry.getDestAddr(), prefixLength, betentry.getSerialNo());  
   	put(key, betentry);
-  	gui.fillTable(getTable());     
+  	if (view != null)
+  	{
+  		view.markDirty(key);
+  	}
+  }
+
+  /**
+   * Tells the view that an entry of a TrafficDestination changed.
+   * @param   trafDest  the traffic destination
+   * @param   serialNo  serial number of the entry
+   */
+  private void changed(TrafficDestination trafDest, int serialNo)
+  {
+  	if (view != null)
+  	{
+  		view.markDirty(entryKey(trafDest.destination, trafDest.prefix.getLength(), serialNo));
+  	}
   }
   
   /**
@@ -0,0 +1,169 @@
+package org.saamnet.saam.message;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import org.saamnet.saam.net.*;
+
+/**
+ * BestEffortTableBatch is how a server installs routes for many destinations
+ * in a router's BestEffortTable at once.  Each Route carries a destination
+ * prefix with its paths, primary first; a primary and alternate path is what
+ * a pair of BestEffortTableEntry messages would otherwise carry.  A Route
+ * with no paths withdraws its prefix, as when the server starts reaching
+ * those interfaces through a different prefix.  The router applies the
+ * whole batch as one update, in order.
+ */
+public class BestEffortTableBatch extends Message{
+
+  //length (in bytes) of one route, less its path IDs: address, prefix
+  //length, path count
+  private final static int ROUTE_HEADER_LENGTH = 16 + 1 + 1;
+
+  //the most paths one route can carry; the path count field is a byte
+  public final static int MAX_PATHS = 127;
+
+  //the most primary/alternate routes one message can hold
+  public final static int MAX_ROUTES = maxRoutes(2);
+
+  /**
+   * One destination prefix and the paths to install for it.
+   */
+  public static class Route
+  {
+    public IPv6Address destAddr;//network address of the prefix
+    public int prefixLength;
+    public int[] pathIDs;//primary first
+
+    public Route(IPv6Address destAddr, int prefixLength, int primaryPathID, int alternatePathID)
+    {
+      this(destAddr, prefixLength, new int[] {primaryPathID, alternatePathID});
+    }
+
+    /**
+     * Builds a Route that withdraws a prefix.
+     * @param   destAddr      network address of the prefix
+     * @param   prefixLength  length of the prefix
+     */
+    public Route(IPv6Address destAddr, int prefixLength)
+    {
+      this(destAddr, prefixLength, new int[0]);
+    }
+
+    /**
+     * @param   destAddr      network address of the prefix
+     * @param   prefixLength  length of the prefix
+     * @param   pathIDs       up to MAX_PATHS paths, primary first; none to
+     *                        withdraw the prefix
+     */
+    public Route(IPv6Address destAddr, int prefixLength, int[] pathIDs)
+    {
+      this.destAddr = destAddr;
+      this.prefixLength = prefixLength;
+      this.pathIDs = pathIDs;
+    }
+
+    public int getPrimaryPathID()
+    {
+      return pathIDs[0];
+    }
+
+    public boolean isWithdrawal()
+    {
+      return pathIDs.length == 0;
+    }
+  }
+
+  /**
+   * Computes how many routes one message can hold; the length field is a short.
+   * @param   pathsPerRoute  number of paths in each route
+   * @return  the most routes
+   */
+  public static int maxRoutes(int pathsPerRoute)
+  {
+    return (Short.MAX_VALUE - 2) / (ROUTE_HEADER_LENGTH + 4 * pathsPerRoute);
+  }
+
+  Route[] routes;
+
+  /**
+   * @param   routes  Vector of Route, no more than maxRoutes() allows
+   */
+  public BestEffortTableBatch(Vector routes)
+  {
+    super(Message.BEST_EFFORT_TBL_BATCH);
+    this.routes = (Route[]) routes.toArray(new Route[routes.size()]);
+
+    int length = 2;
+    for (int i = 0; i < this.routes.length; i++)
+    {
+      length += ROUTE_HEADER_LENGTH + 4 * this.routes[i].pathIDs.length;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(3 + length);
+    buffer.put(Message.BEST_EFFORT_TBL_BATCH);
+    buffer.putShort((short) length);
+    buffer.putShort((short) this.routes.length);
+    for (int i = 0; i < this.routes.length; i++)
+    {
+      Route route = this.routes[i];
+      buffer.put(route.destAddr.getAddress());
+      buffer.put((byte) route.prefixLength);
+      buffer.put((byte) route.pathIDs.length);
+      for (int j = 0; j < route.pathIDs.length; j++)
+      {
+        buffer.putInt(route.pathIDs[j]);
+      }
+    }
+    bytes = buffer.array();
+  }
+
+  public BestEffortTableBatch (byte[] bytes) throws UnknownHostException
+  {
+    super(Message.BEST_EFFORT_TBL_BATCH);
+    this.bytes = bytes;
+
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    buffer.position(3);//skip type and length fields
+    routes = new Route[buffer.getShort()];
+    byte[] address = new byte[16];
+    for (int i = 0; i < routes.length; i++)
+    {
+      buffer.get(address);
+      IPv6Address destAddr = IPv6Address.getByName(InetAddress.getByAddress(address).getHostAddress());
+      int prefixLength = buffer.get() & 0xFF;
+      int[] pathIDs = new int[buffer.get()];
+      for (int j = 0; j < pathIDs.length; j++)
+      {
+        pathIDs[j] = buffer.getInt();
+      }
+      routes[i] = new Route(destAddr, prefixLength, pathIDs);
+    }
+  }//end byte array based Constructor
+
+  public Route[] getRoutes()
+  {
+    return routes;
+  }
+
+  public String toString()
+  {
+    String batch = "Best Effort Table Batch Message:";
+    for (int i = 0; i < routes.length; i++)
+    {
+      batch += "\n  " + routes[i].destAddr + "/" + routes[i].prefixLength;
+      if (routes[i].isWithdrawal())
+      {
+        batch += " withdrawn";
+        continue;
+      }
+      batch += " -> primary " + routes[i].pathIDs[0];
+      for (int j = 1; j < routes[i].pathIDs.length; j++)
+      {
+        batch += ", alternate " + routes[i].pathIDs[j];
+      }
+    }
+    return batch;
+  }
+
+}
@@ -0,0 +1,555 @@
+package org.saamnet.saam.agent.router;
+
+import java.util.*;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.saamnet.saam.net.*;
+import org.saamnet.saam.message.*;
+
+/**
+ * BestEffortTableBenchmark measures the router's best effort hot paths: BET
+ * lookups by destination and by flow, processMessage() for BETEs, BET
+ * batches, CongestionAdvisories and advisory batches, redirect() and
+ * revert(), and encoding and decoding CongestionAdvisories.  Each workload
+ * is run against tables of several sizes with several threads, and for each
+ * it reports throughput, mean latency, the median and 99th percentile of the
+ * latency of batches of operations, and the bytes allocated per operation.
+ * <p>
+ * The table is installed detached, so it needs no ControlExecutive, TableGui
+ * or SplitScheduler; redirects and reverts are driven by calling
+ * splitAdjustmentDue() with a time scale of 0.  Run it with, for example:
+ * <pre>
+ *   java org.saamnet.saam.agent.router.BestEffortTableBenchmark
+ *        dests=16,1024,16384 threads=1,2,4,8 seconds=5 warmup=2 only=lookup
+ * </pre>
+ * Operations are timed in batches of at least BATCH_MILLIS, since only a
+ * millisecond clock is available, so latencies are per-operation averages
+ * over a batch rather than single operations.  Allocation is estimated from
+ * the growth of the heap between batches, which misses whatever is
+ * allocated and collected within one batch; run with -verbose:gc for exact
+ * figures.
+ */
+public class BestEffortTableBenchmark
+{
+  //shortest time a batch of operations is timed over (ms)
+  private final static int BATCH_MILLIS = 10;
+
+  private static int[] destCounts = {16, 1024, 16384};
+  private static int[] threadCounts = {1, 2, 4, 8};
+  private static int seconds = 5;
+  private static int warmup = 2;
+  private static String only;
+
+  //every result is folded in here so no operation can be optimized away
+  private static volatile int sink;
+
+  /**
+   * A measured operation.  run() is called by each thread with its own
+   * index; threads given different indexes must not share per-thread state.
+   */
+  abstract static class Workload
+  {
+    String name;
+    boolean usesTable;//false if the table size makes no difference
+
+    Workload(String name, boolean usesTable)
+    {
+      this.name = name;
+      this.usesTable = usesTable;
+    }
+
+    /**
+     * Performs operations.
+     * @param   fixture  the table and messages
+     * @param   thread   0 to threads - 1
+     * @param   threads  number of threads running
+     * @param   ops      number of operations
+     * @return  anything derived from the results
+     */
+    abstract int run(Fixture fixture, int thread, int threads, int ops);
+  }
+
+  /**
+   * A BestEffortTable with a number of /64 destinations, each with a primary
+   * path 2d + 1 and an alternate path 2d + 2, and prebuilt messages for them.
+   * The BETEs are for one address within each prefix, since a BETE names an
+   * exact destination.
+   */
+  static class Fixture
+  {
+    BestEffortTable table;
+    int dests;
+    IPv6Address[] destAddrs;//an interface within each destination prefix
+    IPv6Address[] srcAddrs;
+    BestEffortTableEntry[] entries;//primary and alternate of each destAddr
+    CongestionAdvisory[] yellow;//on each destination's primary path
+    CongestionAdvisory[] green;
+    CongestionAdvisoryBatch[] batches;//BATCH_ADVISORIES per batch, alternating
+
+    final static int BATCH_ADVISORIES = 64;
+
+    Fixture(int dests) throws UnknownHostException
+    {
+      this.dests = dests;
+      table = new BestEffortTable();
+      table.installDetached(new String[] {"flows=65536"}, 0);
+      destAddrs = new IPv6Address[dests];
+      srcAddrs = new IPv6Address[dests];
+      entries = new BestEffortTableEntry[2 * dests];
+      yellow = new CongestionAdvisory[dests];
+      green = new CongestionAdvisory[dests];
+      Vector routes = new Vector();
+      for (int d = 0; d < dests; d++)
+      {
+        IPv6Address prefix = address(0x20, d, 0);
+        destAddrs[d] = address(0x20, d, 1);
+        srcAddrs[d] = address(0x30, d, 1);
+        entries[2 * d] = new BestEffortTableEntry(destAddrs[d], primaryPath(d), 0, 0);
+        entries[(2 * d) + 1] = new BestEffortTableEntry(destAddrs[d], primaryPath(d) + 1, 0, 0);
+        yellow[d] = new CongestionAdvisory(primaryPath(d), CongestionAdvisory.YELLOW);
+        green[d] = new CongestionAdvisory(primaryPath(d), CongestionAdvisory.GREEN);
+        routes.add(new BestEffortTableBatch.Route(prefix, 64, primaryPath(d), primaryPath(d) + 1));
+        if (routes.size() == BestEffortTableBatch.MAX_ROUTES)
+        {
+          table.processMessage(new BestEffortTableBatch(routes));
+          routes.clear();
+        }
+      }
+      if (!routes.isEmpty())
+      {
+        table.processMessage(new BestEffortTableBatch(routes));
+      }
+      int batchCount = Math.max(1, dests / BATCH_ADVISORIES);
+      batches = new CongestionAdvisoryBatch[batchCount];
+      int[] pathIDs = new int[BATCH_ADVISORIES];
+      byte[] conditions = new byte[BATCH_ADVISORIES];
+      for (int b = 0; b < batchCount; b++)
+      {
+        for (int i = 0; i < BATCH_ADVISORIES; i++)
+        {
+          pathIDs[i] = primaryPath(((b * BATCH_ADVISORIES) + i) % dests);
+          conditions[i] = ((b + i) % 2 == 0) ? CongestionAdvisory.YELLOW : CongestionAdvisory.GREEN;
+        }
+        batches[b] = new CongestionAdvisoryBatch(pathIDs, conditions, BATCH_ADVISORIES);
+      }
+    }
+
+    static int primaryPath(int dest)
+    {
+      return (2 * dest) + 1;
+    }
+
+    /**
+     * @return  2001:db8:SSDD:DDDD::H for site S, destination D and host H
+     */
+    private static IPv6Address address(int site, int dest, int host) throws UnknownHostException
+    {
+      byte[] address = new byte[16];
+      address[0] = 0x20;
+      address[1] = 0x01;
+      address[2] = 0x0d;
+      address[3] = (byte) 0xb8;
+      address[4] = (byte) site;
+      address[5] = (byte) (dest >>> 16);
+      address[6] = (byte) (dest >>> 8);
+      address[7] = (byte) dest;
+      address[15] = (byte) host;
+      return IPv6Address.getByName(InetAddress.getByAddress(address).getHostAddress());
+    }
+  }
+
+  private static Workload[] workloads =
+  {
+    new Workload("lookup", true)
+    {
+      int run(Fixture fixture, int thread, int threads, int ops)
+      {
+        BestEffortTable table = fixture.table;
+        int buckets = table.getBuckets();
+        int found = 0;
+        for (int i = 0; i < ops; i++)
+        {
+          int d = (int) ((((long) i * 7919) + thread) % fixture.dests);
+          if (table.getBestEffortTableEntry(fixture.destAddrs[d], i % buckets) != null)
+          {
+            found++;
+          }
+        }
+        return found;
+      }
+    },
+
+    new Workload("flowLookup", true)
+    {
+      int run(Fixture fixture, int thread, int threads, int ops)
+      {
+        BestEffortTable table = fixture.table;
+        int found = 0;
+        for (int i = 0; i < ops; i++)
+        {
+          int d = (int) ((((long) i * 7919) + thread) % fixture.dests);
+          //a few thousand flows per thread, so the flow cache stays warm
+          int flowLabel = (thread << 12) | (i & 0xFFF);
+          if (table.getBestEffortTableEntry(fixture.srcAddrs[d], fixture.destAddrs[d], flowLabel) != null)
+          {
+            found++;
+          }
+        }
+        return found;
+      }
+    },
+
+    new Workload("processBETE", true)
+    {
+      int run(Fixture fixture, int thread, int threads, int ops)
+      {
+        //a complement of two BETEs replaces a destination's routes
+        for (int i = 0; i < ops; i++)
+        {
+          int d = (int) ((((long) (i / 2) * 7919) + thread) % fixture.dests);
+          fixture.table.processMessage(fixture.entries[(2 * d) + (i % 2)]);
+        }
+        return ops;
+      }
+    },
+
+    new Workload("processAdvisory", true)
+    {
+      int run(Fixture fixture, int thread, int threads, int ops)
+      {
+        for (int i = 0; i < ops; i++)
+        {
+          int d = (int) ((((long) (i / 2) * 7919) + thread) % fixture.dests);
+          fixture.table.processMessage(((i % 2) == 0) ? fixture.yellow[d] : fixture.green[d]);
+        }
+        return ops;
+      }
+    },
+
+    new Workload("processAdvisoryBatch64", true)
+    {
+      int run(Fixture fixture, int thread, int threads, int ops)
+      {
+        for (int i = 0; i < ops; i++)
+        {
+          fixture.table.processMessage(fixture.batches[(i + thread) % fixture.batches.length]);
+        }
+        return ops;
+      }
+    },
+
+    new Workload("redirectRevert", true)
+    {
+      int run(Fixture fixture, int thread, int threads, int ops)
+      {
+        //each thread steps its own destinations: YELLOW then a redirect,
+        //GREEN then a revert, which leaves the split where it started
+        BestEffortTable table = fixture.table;
+        int own = Math.max(1, (fixture.dests - thread + threads - 1) / threads);
+        for (int i = 0; i < ops; i++)
+        {
+          int d = (thread + ((i % own) * threads)) % fixture.dests;
+          BestEffortTable.TrafficDestination trafDest = table.getTrafficDestination(fixture.destAddrs[d]);
+          table.processMessage(fixture.yellow[d]);
+          table.splitAdjustmentDue(trafDest);
+          table.processMessage(fixture.green[d]);
+          table.splitAdjustmentDue(trafDest);
+        }
+        return ops;
+      }
+    },
+
+    new Workload("advisoryEncode", false)
+    {
+      int run(Fixture fixture, int thread, int threads, int ops)
+      {
+        byte[] buffer = new byte[CongestionAdvisory.MESSAGE_LENGTH];
+        int check = 0;
+        for (int i = 0; i < ops; i++)
+        {
+          CongestionAdvisory.encode(buffer, 0, i, (byte) (i % 3));
+          check += buffer[CongestionAdvisory.MESSAGE_LENGTH - 1];
+        }
+        return check;
+      }
+    },
+
+    new Workload("advisoryDecode", false)
+    {
+      int run(Fixture fixture, int thread, int threads, int ops)
+      {
+        byte[] bytes = fixture.yellow[thread % fixture.dests].getBytes();
+        int check = 0;
+        for (int i = 0; i < ops; i++)
+        {
+          CongestionAdvisory pill = new CongestionAdvisory(bytes);
+          check += pill.getPathID() + pill.pathCondition();
+        }
+        return check;
+      }
+    },
+
+    new Workload("advisoryView", false)
+    {
+      int run(Fixture fixture, int thread, int threads, int ops)
+      {
+        byte[] bytes = fixture.yellow[thread % fixture.dests].getBytes();
+        CongestionAdvisory.View view = new CongestionAdvisory.View();
+        int check = 0;
+        for (int i = 0; i < ops; i++)
+        {
+          view.wrap(bytes, 0);
+          check += view.getPathID() + view.pathCondition();
+        }
+        return check;
+      }
+    }
+  };
+
+  /**
+   * One thread's share of a run: batches of operations until a deadline.
+   */
+  static class Runner extends Thread
+  {
+    Workload workload;
+    Fixture fixture;
+    int index;
+    int threads;
+    int batch;
+    long deadline;
+    boolean sampleHeap;//only one runner samples the heap
+
+    long ops;
+    long elapsed;//ms
+    long allocated;//bytes, estimated
+    long[] batchNanos = new long[64];//ns per operation of each batch
+    int batches;
+
+    Runner(Workload workload, Fixture fixture, int index, int threads, int batch, long deadline)
+    {
+      this.workload = workload;
+      this.fixture = fixture;
+      this.index = index;
+      this.threads = threads;
+      this.batch = batch;
+      this.deadline = deadline;
+      sampleHeap = (index == 0);
+    }
+
+    public void run()
+    {
+      Runtime runtime = Runtime.getRuntime();
+      long used = runtime.totalMemory() - runtime.freeMemory();
+      long start = System.currentTimeMillis();
+      long now = start;
+      int check = 0;
+      while (now < deadline)
+      {
+        long batchStart = now;
+        check += workload.run(fixture, index, threads, batch);
+        now = System.currentTimeMillis();
+        ops += batch;
+        if (batches == batchNanos.length)
+        {
+          long[] grown = new long[2 * batchNanos.length];
+          System.arraycopy(batchNanos, 0, grown, 0, batches);
+          batchNanos = grown;
+        }
+        batchNanos[batches++] = ((now - batchStart) * 1000000L) / batch;
+        if (sampleHeap)
+        {
+          long nowUsed = runtime.totalMemory() - runtime.freeMemory();
+          if (nowUsed > used)
+          {
+            allocated += nowUsed - used;
+          }
+          used = nowUsed;
+        }
+      }
+      elapsed = now - start;
+      sink += check;
+    }
+  }
+
+  /**
+   * Runs the workloads.
+   * @param   args  "dests=N,N,...", "threads=N,N,...", "seconds=N",
+   *                "warmup=N" and "only=name" override the defaults
+   */
+  public static void main(String[] args) throws UnknownHostException
+  {
+    for (int i = 0; i < args.length; i++)
+    {
+      if (args[i].startsWith("dests="))
+      {
+        destCounts = intList(args[i].substring(6));
+      }
+      else if (args[i].startsWith("threads="))
+      {
+        threadCounts = intList(args[i].substring(8));
+      }
+      else if (args[i].startsWith("seconds="))
+      {
+        seconds = Integer.parseInt(args[i].substring(8));
+      }
+      else if (args[i].startsWith("warmup="))
+      {
+        warmup = Integer.parseInt(args[i].substring(7));
+      }
+      else if (args[i].startsWith("only="))
+      {
+        only = args[i].substring(5);
+      }
+      else
+      {
+        System.out.println("BestEffortTableBenchmark Error: bad argument " + args[i]);
+        return;
+      }
+    }
+
+    System.out.println("workload" + pad("dests", 14 + 7) + pad("threads", 8) + pad("ops/s", 13) +
+                       pad("ns/op", 11) + pad("p50 ns", 9) + pad("p99 ns", 9) + pad("B/op", 7));
+    for (int w = 0; w < workloads.length; w++)
+    {
+      Workload workload = workloads[w];
+      if ((only != null) && !only.equals(workload.name))
+      {
+        continue;
+      }
+      for (int d = 0; d < destCounts.length; d++)
+      {
+        if (!workload.usesTable && (d > 0))
+        {
+          break;
+        }
+        Fixture fixture = new Fixture(destCounts[d]);
+        for (int t = 0; t < threadCounts.length; t++)
+        {
+          measure(workload, fixture, threadCounts[t]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Warms up, then measures, one workload on one table with some threads,
+   * and prints the result.
+   */
+  private static void measure(Workload workload, Fixture fixture, int threads)
+  {
+    int batch = calibrate(workload, fixture);
+    run(workload, fixture, threads, batch, warmup);
+    System.gc();
+    Runner[] runners = run(workload, fixture, threads, batch, seconds);
+
+    double opsPerSecond = 0;
+    long ops = 0;
+    int batches = 0;
+    for (int i = 0; i < runners.length; i++)
+    {
+      ops += runners[i].ops;
+      batches += runners[i].batches;
+      if (runners[i].elapsed > 0)
+      {
+        opsPerSecond += (runners[i].ops * 1000.0) / runners[i].elapsed;
+      }
+    }
+    long[] nanos = new long[batches];
+    int n = 0;
+    for (int i = 0; i < runners.length; i++)
+    {
+      System.arraycopy(runners[i].batchNanos, 0, nanos, n, runners[i].batches);
+      n += runners[i].batches;
+    }
+    Arrays.sort(nanos);
+    //runner 0 saw every thread's allocation, over its share of the operations
+    double bytesPerOp = (runners[0].ops == 0) ? 0 :
+                        (double) runners[0].allocated / (runners[0].ops * threads);
+
+    System.out.println(workload.name + pad("", 22 - workload.name.length()) +
+                       pad(workload.usesTable ? Integer.toString(fixture.dests) : "-", 7) +
+                       pad(Integer.toString(threads), 8) +
+                       pad(Long.toString((long) opsPerSecond), 13) +
+                       pad(Long.toString((opsPerSecond == 0) ? 0 : (long) ((threads * 1e9) / opsPerSecond)), 11) +
+                       pad(Long.toString(percentile(nanos, 0.50)), 9) +
+                       pad(Long.toString(percentile(nanos, 0.99)), 9) +
+                       pad(Long.toString(Math.round(bytesPerOp)), 7));
+  }
+
+  /**
+   * Finds how many operations take at least BATCH_MILLIS on one thread.
+   */
+  private static int calibrate(Workload workload, Fixture fixture)
+  {
+    int batch = 1;
+    while (batch < (Integer.MAX_VALUE / 2))
+    {
+      long start = System.currentTimeMillis();
+      sink += workload.run(fixture, 0, 1, batch);
+      if ((System.currentTimeMillis() - start) >= BATCH_MILLIS)
+      {
+        break;
+      }
+      batch *= 2;
+    }
+    return batch;
+  }
+
+  /**
+   * Runs a workload on some threads for a time and waits for them.
+   */
+  private static Runner[] run(Workload workload, Fixture fixture, int threads, int batch, int seconds)
+  {
+    long deadline = System.currentTimeMillis() + (seconds * 1000L);
+    Runner[] runners = new Runner[threads];
+    for (int i = 0; i < threads; i++)
+    {
+      runners[i] = new Runner(workload, fixture, i, threads, batch, deadline);
+      runners[i].start();
+    }
+    for (int i = 0; i < threads; i++)
+    {
+      try
+      {
+        runners[i].join();
+      }
+      catch (InterruptedException ie)
+      {
+        i--;//wait for it again
+      }
+    }
+    return runners;
+  }
+
+  private static long percentile(long[] sorted, double fraction)
+  {
+    if (sorted.length == 0)
+    {
+      return 0;
+    }
+    int index = (int) Math.ceil(fraction * sorted.length) - 1;
+    return sorted[Math.min(Math.max(index, 0), sorted.length - 1)];
+  }
+
+  private static int[] intList(String list)
+  {
+    StringTokenizer tokens = new StringTokenizer(list, ",");
+    int[] values = new int[tokens.countTokens()];
+    for (int i = 0; i < values.length; i++)
+    {
+      values[i] = Integer.parseInt(tokens.nextToken().trim());
+    }
+    return values;
+  }
+
+  private static String pad(String value, int width)
+  {
+    StringBuffer padded = new StringBuffer();
+    for (int i = value.length(); i < width; i++)
+    {
+      padded.append(' ');
+    }
+    return padded.append(value).toString();
+  }
+}
@@ -0,0 +1,205 @@
+package org.saamnet.saam.agent.router;
+
+import java.util.*;
+
+import org.saamnet.saam.message.BestEffortTableEntry;
+
+/**
+ * BestEffortTableCheck checks the parts of a BestEffortTable that can go
+ * wrong without any traffic showing it: the SplitScheduler's timer wheel,
+ * turned by hand so no clock is involved, and how a RouteVersion maps
+ * buckets to routes.  It prints each failure and exits with status 1 if
+ * there were any:
+ * <pre>
+ *   java org.saamnet.saam.agent.router.BestEffortTableCheck
+ * </pre>
+ */
+public class BestEffortTableCheck
+{
+  private static int failures;
+
+  public static void main(String[] args)
+  {
+    checkScheduler();
+    checkRouteVersions();
+
+    if (failures > 0)
+    {
+      System.out.println(failures + " failed");
+      System.exit(1);
+    }
+    System.out.println("BestEffortTable ok");
+  }
+
+  /**
+   * Checks that timeouts fire on exactly the tick they were scheduled for,
+   * however many times they go around the wheel and wherever the wheel is
+   * when they are scheduled.
+   */
+  private static void checkScheduler()
+  {
+    int wheel = SplitScheduler.WHEEL_SIZE;
+    long[] delays = {1, 2, wheel - 1, wheel, wheel + 1, 2 * wheel, 2 * wheel + 5, 5 * wheel + 3};
+    //from a new wheel, from just before its last slot, and from a few turns on
+    long[] starts = {0, wheel - 3, 3 * wheel + 7};
+    for (int s = 0; s < starts.length; s++)
+    {
+      for (int d = 0; d < delays.length; d++)
+      {
+        SplitScheduler scheduler = new SplitScheduler(null, 1);
+        turn(scheduler, starts[s]);
+        BestEffortTable.TrafficDestination trafDest = newDestination();
+        scheduler.scheduleTicks(trafDest, delays[d]);
+        Hashtable fired = turn(scheduler, delays[d] + 2 * wheel);
+        String what = delays[d] + " ticks from tick " + starts[s];
+        check(fired(fired, trafDest) == delays[d], what + " fired on tick " + fired(fired, trafDest));
+        check(trafDest.timeout == null, what + " left its timeout");
+      }
+    }
+
+    //timeouts sharing a slot but going around a different number of times
+    SplitScheduler scheduler = new SplitScheduler(null, 1);
+    turn(scheduler, wheel - 2);
+    BestEffortTable.TrafficDestination[] shared = new BestEffortTable.TrafficDestination[4];
+    for (int i = 0; i < shared.length; i++)
+    {
+      shared[i] = newDestination();
+      scheduler.scheduleTicks(shared[i], 5 + i * wheel);
+    }
+    scheduler.cancel(shared[1]);//unlinks from the middle of the slot
+    Hashtable fired = turn(scheduler, 5 + shared.length * wheel);
+    check(fired(fired, shared[0]) == 5, "shared slot, same turn");
+    check(fired(fired, shared[1]) == -1, "cancelled timeout fired");
+    check(fired(fired, shared[2]) == 5 + 2 * wheel, "shared slot, two turns on");
+    check(fired(fired, shared[3]) == 5 + 3 * wheel, "shared slot, three turns on");
+
+    //scheduling again replaces the first timeout, sooner or later
+    scheduler = new SplitScheduler(null, 1);
+    BestEffortTable.TrafficDestination later = newDestination();
+    scheduler.scheduleTicks(later, 5);
+    scheduler.scheduleTicks(later, wheel + 20);
+    BestEffortTable.TrafficDestination sooner = newDestination();
+    scheduler.scheduleTicks(sooner, wheel + 20);
+    scheduler.scheduleTicks(sooner, 5);
+    fired = turn(scheduler, 3 * wheel);
+    check(fired(fired, later) == wheel + 20, "rescheduled later fired on tick " + fired(fired, later));
+    check(fired(fired, sooner) == 5, "rescheduled sooner fired on tick " + fired(fired, sooner));
+  }
+
+  /**
+   * Checks that each route gets one run of buckets, in route order, whose
+   * length is its share of the weight to within a bucket.
+   */
+  private static void checkRouteVersions()
+  {
+    checkBuckets(new int[] {70, 30}, 10, new int[] {0, 0, 0, 0, 0, 0, 0, 1, 1, 1});
+    checkBuckets(new int[] {50, 25, 25}, 4, new int[] {0, 0, 1, 2});
+    checkBuckets(new int[] {1, 1, 1}, 3, new int[] {0, 1, 2});
+    checkBuckets(new int[] {100, 0}, 10, new int[] {0, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+    checkBuckets(new int[] {0, 100}, 10, new int[] {1, 1, 1, 1, 1, 1, 1, 1, 1, 1});
+    checkBuckets(new int[] {0, 0}, 4, new int[] {0, 0, 0, 0});//no weight goes to the primary
+    checkBuckets(new int[] {40, 0, 60}, 5, new int[] {0, 0, 2, 2, 2});
+    checkBuckets(new int[] {1}, 1, new int[] {0});
+
+    int[][] weights = {{1, 2}, {99, 1}, {1, 99}, {3, 3, 3, 1}, {10, 20, 30, 40, 50, 60, 70}};
+    int[] buckets = {1, 2, 7, 10, 100, 1000, 4096};
+    for (int w = 0; w < weights.length; w++)
+    {
+      for (int b = 0; b < buckets.length; b++)
+      {
+        checkShares(weights[w], buckets[b]);
+      }
+    }
+  }
+
+  private static void checkBuckets(int[] weights, int buckets, int[] expected)
+  {
+    BestEffortTable.RouteVersion version = newVersion(weights, buckets);
+    check(version.getBuckets() == buckets, "bucket count");
+    for (int b = 0; b < buckets; b++)
+    {
+      check(version.routeIndex(b) == expected[b], weightsOf(weights) + " bucket " + b + " on route " + version.routeIndex(b));
+    }
+    check(version.routeIndex(-1) == 0, "bucket -1 not on the primary");
+    check(version.routeIndex(buckets) == 0, "bucket " + buckets + " not on the primary");
+  }
+
+  private static void checkShares(int[] weights, int buckets)
+  {
+    BestEffortTable.RouteVersion version = newVersion(weights, buckets);
+    String what = weightsOf(weights) + " over " + buckets + " buckets";
+    long total = 0;
+    for (int i = 0; i < weights.length; i++)
+    {
+      total += weights[i];
+    }
+    int[] runs = new int[weights.length];
+    int last = 0;
+    for (int b = 0; b < buckets; b++)
+    {
+      int route = version.routeIndex(b);
+      check(route >= last, what + ": route " + route + " after route " + last);
+      last = route;
+      runs[route]++;
+    }
+    for (int i = 0; i < weights.length; i++)
+    {
+      double share = (double) weights[i] * buckets / total;
+      check(Math.abs(runs[i] - share) < 1 + 1e-9, what + ": route " + i + " has " + runs[i] + " buckets for a share of " + share);
+    }
+  }
+
+  private static BestEffortTable.RouteVersion newVersion(int[] weights, int buckets)
+  {
+    return new BestEffortTable.RouteVersion(new BestEffortTableEntry[weights.length], weights, buckets, 0);
+  }
+
+  private static String weightsOf(int[] weights)
+  {
+    String s = "weights";
+    for (int i = 0; i < weights.length; i++)
+    {
+      s += (i == 0 ? " " : "/") + weights[i];
+    }
+    return s;
+  }
+
+  /**
+   * Turns a wheel, noting when each timeout fires.
+   * @param   scheduler  a wheel that was never started
+   * @param   ticks      how many ticks to turn it
+   * @return  Integer tick each destination fired on, counting from 1
+   */
+  private static Hashtable turn(SplitScheduler scheduler, long ticks)
+  {
+    Hashtable fired = new Hashtable();
+    for (int tick = 1; tick <= ticks; tick++)
+    {
+      for (SplitScheduler.Timeout timeout = scheduler.advance(); timeout != null; timeout = timeout.next)
+      {
+        check(fired.put(timeout.trafDest, new Integer(tick)) == null, "timeout fired twice");
+      }
+    }
+    return fired;
+  }
+
+  private static long fired(Hashtable fired, BestEffortTable.TrafficDestination trafDest)
+  {
+    Integer tick = (Integer) fired.get(trafDest);
+    return (tick == null) ? -1 : tick.intValue();
+  }
+
+  private static BestEffortTable.TrafficDestination newDestination()
+  {
+    return new BestEffortTable.TrafficDestination(null, null, 2, 10, 100);
+  }
+
+  private static void check(boolean passed, String what)
+  {
+    if (!passed)
+    {
+      System.out.println("FAILED: " + what);
+      failures++;
+    }
+  }
+}
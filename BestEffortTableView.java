@@ -0,0 +1,145 @@
+package org.saamnet.saam.agent.router;
+
+import java.util.*;
+
+import org.saamnet.saam.gui.*;
+import org.saamnet.saam.message.*;
+
+/**
+ * BestEffortTableView keeps the TableGui of a BestEffortTable current without
+ * making the table do the rendering.  The table only marks the entries it
+ * changes as dirty.  A background thread wakes at most once per
+ * REFRESH_INTERVAL, rebuilds the rows of the dirty entries only, and hands a
+ * copy of the cached rows to the TableGui, which may still be painting the
+ * last copy when the next refresh changes the cache.  Any number of changes
+ * between refreshes costs one repaint.
+ */
+class BestEffortTableView implements Runnable
+{
+  //minimum time between repaints of the TableGui (ms)
+  final static int REFRESH_INTERVAL = 1000;
+
+  private BestEffortTable table;
+  private TableGui gui;
+
+  //rows shown in the gui, and each row's Vector keyed by table key
+  private Vector tableRows = new Vector();
+  private HashMap rowsByKey = new HashMap();
+
+  //table keys of entries changed since the last refresh
+  private HashSet dirtyKeys = new HashSet();
+
+  private Thread refresher;
+  private volatile boolean running;
+
+  BestEffortTableView(BestEffortTable table, TableGui gui)
+  {
+    this.table = table;
+    this.gui = gui;
+  }
+
+  /**
+   * Starts the refresh thread.
+   * @param   name  name of the table instance
+   */
+  void start(String name)
+  {
+    running = true;
+    refresher = new Thread(this, name + " view");
+    refresher.setDaemon(true);
+    refresher.start();
+  }
+
+  /**
+   * Stops the refresh thread.
+   */
+  void stop()
+  {
+    running = false;
+    if (refresher != null)
+    {
+      refresher.interrupt();
+    }
+  }
+
+  /**
+   * Notes that the entry stored under a key was added, changed or removed.
+   * @param   key  the table key of the entry
+   */
+  synchronized void markDirty(String key)
+  {
+    dirtyKeys.add(key);
+  }
+
+  public void run()
+  {
+    while (running)
+    {
+      try
+      {
+        Thread.sleep(REFRESH_INTERVAL);
+      }
+      catch (InterruptedException ie)
+      {
+        continue;//running is rechecked
+      }
+      refresh();
+    }
+  }
+
+  /**
+   * Rebuilds the rows of the dirty entries and repaints if any changed.
+   */
+  private void refresh()
+  {
+    Object[] keys;
+    synchronized (this)
+    {
+      if (dirtyKeys.isEmpty())
+      {
+        return;
+      }
+      keys = dirtyKeys.toArray();
+      dirtyKeys.clear();
+    }
+
+    for (int i = 0; i < keys.length; i++)
+    {
+      String key = (String) keys[i];
+      BestEffortTableEntry betentry = (BestEffortTableEntry) table.get(key);
+      Vector oneRow = (Vector) rowsByKey.get(key);
+      if (betentry == null)
+      {
+        if (oneRow != null)
+        {
+          rowsByKey.remove(key);
+          tableRows.remove(oneRow);
+        }
+        continue;
+      }
+      if (oneRow == null)
+      {
+        oneRow = new Vector(3);
+        oneRow.add(key.substring(0, key.lastIndexOf('#')));
+        oneRow.add(null);
+        oneRow.add(null);
+        rowsByKey.put(key, oneRow);
+        tableRows.add(oneRow);
+      }
+      oneRow.set(1, "" + betentry.getPathMap());
+      oneRow.set(2, "" + betentry.getSplit());
+    }
+
+    if (tableRows.isEmpty())
+    {
+      gui.fillTable(null);
+      return;
+    }
+    Vector rows = new Vector(tableRows.size());
+    for (int i = 0; i < tableRows.size(); i++)
+    {
+      rows.add(new Vector((Vector) tableRows.elementAt(i)));
+    }
+    gui.fillTable(rows);
+  }
+}
@@ -0,0 +1,21 @@
+package org.saamnet.saam.server;
+
+/**
+ * Clock is where the BestEffortManager reads the time.  SYSTEM reads the
+ * system clock.  A VirtualClock is moved on by whatever drives it, such as
+ * the BestEffortSimulator, so the timers BEM scales by BasePIB.timeScale
+ * (local resolution, path expiration, switchback) run as fast as the
+ * simulation does.
+ */
+class Clock
+{
+  final static Clock SYSTEM = new Clock();
+
+  /**
+   * @return  the current time in milliseconds
+   */
+  long currentTimeMillis()
+  {
+    return System.currentTimeMillis();
+  }
+}
@@ -6,6 +6,7 @@
 package org.saamnet.saam.message;
 
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.*;
 import org.saamnet.saam.net.*;
 import org.saamnet.saam.util.*;
@@ -23,6 +24,13 @@ public class CongestionAdvisory extends Message{
   
   //total length (in bytes) of fields below
   private final static short CADV_LENGTH = (short) (4 + 1);
+
+  //total length (in bytes) of the message, including type and length fields
+  public final static int MESSAGE_LENGTH = 3 + CADV_LENGTH;
+
+  //offsets of the fields within the message
+  private final static int PATH_ID_OFFSET = 3;
+  private final static int CONDITION_OFFSET = 7;
   
   int pathID;
   byte pathCondition;
@@ -32,10 +40,9 @@ public class CongestionAdvisory extends Message{
     super(Message.CONGESTION_ADVISORY);
     this.pathID = pathID;
     this.pathCondition = pathCondition;
-		
-    bytes = Array.concat(type, PrimitiveConversions.getBytes(CADV_LENGTH));
-		bytes = Array.concat(bytes, PrimitiveConversions.getBytes(pathID));
-		bytes = Array.concat(bytes, pathCondition);
+
+    bytes = new byte[MESSAGE_LENGTH];
+    encode(bytes, 0, pathID, pathCondition);
   }
 
   public CongestionAdvisory (byte[] bytes)
@@ -43,15 +50,110 @@ public class CongestionAdvisory extends Message{
     super(Message.CONGESTION_ADVISORY);
     this.bytes = bytes;
 
-		int index = 3;//skip type and length fields
-		  
-    pathID = PrimitiveConversions.getInt(Array.getSubArray(bytes, index, index +4));
-    index += 4;
-		
-    pathCondition = bytes[index];
+    pathID = readPathID(bytes, 0);
+    pathCondition = bytes[CONDITION_OFFSET];
 
   }//end byte array based Constructor
 
+  /**
+   * Writes an advisory into an array without creating a CongestionAdvisory.
+   * @param   dst            the array written to
+   * @param   offset         where the message starts in dst
+   * @param   pathID         the path
+   * @param   pathCondition  GREEN, YELLOW or RED
+   */
+  public static void encode(byte[] dst, int offset, int pathID, byte pathCondition)
+  {
+    dst[offset] = Message.CONGESTION_ADVISORY;
+    dst[offset + 1] = (byte) (CADV_LENGTH >> 8);
+    dst[offset + 2] = (byte) CADV_LENGTH;
+    dst[offset + PATH_ID_OFFSET] = (byte) (pathID >> 24);
+    dst[offset + PATH_ID_OFFSET + 1] = (byte) (pathID >> 16);
+    dst[offset + PATH_ID_OFFSET + 2] = (byte) (pathID >> 8);
+    dst[offset + PATH_ID_OFFSET + 3] = (byte) pathID;
+    dst[offset + CONDITION_OFFSET] = pathCondition;
+  }
+
+  /**
+   * Writes an advisory at the buffer's position and advances it.
+   * @param   dst            the buffer written to
+   * @param   pathID         the path
+   * @param   pathCondition  GREEN, YELLOW or RED
+   */
+  public static void encode(ByteBuffer dst, int pathID, byte pathCondition)
+  {
+    dst.put(Message.CONGESTION_ADVISORY);
+    dst.putShort(CADV_LENGTH);
+    dst.putInt(pathID);
+    dst.put(pathCondition);
+  }
+
+  private static int readPathID(byte[] src, int offset)
+  {
+    return ((src[offset + PATH_ID_OFFSET] & 0xFF) << 24)
+           | ((src[offset + PATH_ID_OFFSET + 1] & 0xFF) << 16)
+           | ((src[offset + PATH_ID_OFFSET + 2] & 0xFF) << 8)
+           | (src[offset + PATH_ID_OFFSET + 3] & 0xFF);
+  }
+
+  /**
+   * A View reads the fields of an encoded advisory in place.  One View can
+   * be pointed at message after message, so decoding creates no objects.
+   * It is not thread safe.
+   */
+  public static class View
+  {
+    private byte[] array;
+    private ByteBuffer buffer;
+    private int offset;
+
+    /**
+     * Points this View at an advisory in an array.
+     * @param   src     the array
+     * @param   offset  where the message starts in src
+     * @return  this View
+     */
+    public View wrap(byte[] src, int offset)
+    {
+      array = src;
+      buffer = null;
+      this.offset = offset;
+      return this;
+    }
+
+    /**
+     * Points this View at the advisory at a buffer's position.  The buffer's
+     * position is not changed.
+     * @param   src  the buffer
+     * @return  this View
+     */
+    public View wrap(ByteBuffer src)
+    {
+      array = null;
+      buffer = src;
+      offset = src.position();
+      return this;
+    }
+
+    public int getPathID()
+    {
+      if (buffer != null)
+      {
+        return buffer.getInt(offset + PATH_ID_OFFSET);
+      }
+      return readPathID(array, offset);
+    }
+
+    public byte pathCondition()
+    {
+      if (buffer != null)
+      {
+        return buffer.get(offset + CONDITION_OFFSET);
+      }
+      return array[offset + CONDITION_OFFSET];
+    }
+  }
+
   public int getPathID()
   {
     return pathID;
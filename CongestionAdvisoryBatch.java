@@ -0,0 +1,142 @@
+package org.saamnet.saam.message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CongestionAdvisoryBatch carries the advisories for many paths from a server
+ * to one router.  Each advisory is a (pathID, condition) pair with the same
+ * meaning as a CongestionAdvisory, and the router applies them in order.
+ * The static accessors read an encoded batch in place, so a router can
+ * process one without creating any objects.
+ */
+public class CongestionAdvisoryBatch extends Message{
+
+  //length (in bytes) of one advisory: path ID and condition
+  private final static int ADVISORY_LENGTH = 4 + 1;
+
+  //the most advisories one message can hold; the length field is a short
+  public final static int MAX_ADVISORIES = (Short.MAX_VALUE - 2) / ADVISORY_LENGTH;
+
+  //offset of the first advisory: type, length and count fields
+  private final static int FIRST_ADVISORY_OFFSET = 3 + 2;
+
+  int[] pathIDs;
+  byte[] pathConditions;
+
+  /**
+   * @param   pathIDs         the paths, at least count of them
+   * @param   pathConditions  GREEN, YELLOW or RED for each path
+   * @param   count           how many advisories to send, at most MAX_ADVISORIES
+   */
+  public CongestionAdvisoryBatch(int[] pathIDs, byte[] pathConditions, int count)
+  {
+    super(Message.CONGESTION_ADVISORY_BATCH);
+    this.pathIDs = new int[count];
+    this.pathConditions = new byte[count];
+    System.arraycopy(pathIDs, 0, this.pathIDs, 0, count);
+    System.arraycopy(pathConditions, 0, this.pathConditions, 0, count);
+
+    short length = (short) (2 + count * ADVISORY_LENGTH);
+    ByteBuffer buffer = ByteBuffer.allocate(3 + length);
+    buffer.put(Message.CONGESTION_ADVISORY_BATCH);
+    buffer.putShort(length);
+    buffer.putShort((short) count);
+    for (int i = 0; i < count; i++)
+    {
+      buffer.putInt(pathIDs[i]);
+      buffer.put(pathConditions[i]);
+    }
+    bytes = buffer.array();
+  }
+
+  public CongestionAdvisoryBatch (byte[] bytes)
+  {
+    super(Message.CONGESTION_ADVISORY_BATCH);
+    this.bytes = bytes;
+
+    int count = getCount(bytes);
+    pathIDs = new int[count];
+    pathConditions = new byte[count];
+    for (int i = 0; i < count; i++)
+    {
+      pathIDs[i] = getPathID(bytes, i);
+      pathConditions[i] = pathCondition(bytes, i);
+    }
+  }//end byte array based Constructor
+
+  /**
+   * Reads the number of advisories in an encoded batch.
+   * @param   bytes  the message
+   * @return  the count
+   */
+  public static int getCount(byte[] bytes)
+  {
+    return ((bytes[3] & 0xFF) << 8) | (bytes[4] & 0xFF);
+  }
+
+  /**
+   * Reads the path ID of one advisory in an encoded batch.
+   * @param   bytes  the message
+   * @param   index  which advisory
+   * @return  the path ID
+   */
+  public static int getPathID(byte[] bytes, int index)
+  {
+    int offset = FIRST_ADVISORY_OFFSET + index * ADVISORY_LENGTH;
+    return ((bytes[offset] & 0xFF) << 24)
+           | ((bytes[offset + 1] & 0xFF) << 16)
+           | ((bytes[offset + 2] & 0xFF) << 8)
+           | (bytes[offset + 3] & 0xFF);
+  }
+
+  /**
+   * Reads the condition of one advisory in an encoded batch.
+   * @param   bytes  the message
+   * @param   index  which advisory
+   * @return  GREEN, YELLOW or RED
+   */
+  public static byte pathCondition(byte[] bytes, int index)
+  {
+    return bytes[FIRST_ADVISORY_OFFSET + index * ADVISORY_LENGTH + 4];
+  }
+
+  public int getCount()
+  {
+    return pathIDs.length;
+  }
+
+  public int getPathID(int index)
+  {
+    return pathIDs[index];
+  }
+
+  public byte pathCondition(int index)
+  {
+    return pathConditions[index];
+  }
+
+  public String toString()
+  {
+    String advisory = "Congestion Advisory Batch Message:";
+    for (int i = 0; i < pathIDs.length; i++)
+    {
+      advisory += "\n  Path ID = " + pathIDs[i] + "; Traffic condition = ";
+      switch (pathConditions[i])
+      {
+      case CongestionAdvisory.GREEN:
+        advisory += "GREEN";
+        break;
+      case CongestionAdvisory.YELLOW:
+        advisory += "YELLOW";
+        break;
+      case CongestionAdvisory.RED:
+        advisory += "RED";
+        break;
+      default:
+        break;
+      }
+    }
+    return advisory;
+  }
+
+}
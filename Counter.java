@@ -0,0 +1,30 @@
+package org.saamnet.saam.util;
+
+/**
+ * A Counter counts events, such as advisories sent, for a MetricsRegistry.
+ */
+public class Counter
+{
+  private long count;
+
+  public synchronized void increment()
+  {
+    count++;
+  }
+
+  /**
+   * @param   events  number of events to count
+   */
+  public synchronized void add(long events)
+  {
+    count += events;
+  }
+
+  /**
+   * @return  events counted so far
+   */
+  public synchronized long get()
+  {
+    return count;
+  }
+}
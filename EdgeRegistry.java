@@ -0,0 +1,147 @@
+package org.saamnet.saam.server;
+
+import java.util.*;
+
+import org.saamnet.saam.net.*;
+
+/**
+ * EdgeRegistry records the edge routers and destination interfaces that are
+ * registered for best effort traffic.  Each is stored once as an
+ * IPv6Address together with its node ID, so the BestEffortManager never
+ * parses an address or looks up a node while iterating over them.  Routers
+ * are kept in the order they were discovered, which is the order node pairs
+ * are deployed in.  It is synchronized; the router list can be iterated
+ * without locking since it is replaced rather than changed.
+ */
+class EdgeRegistry
+{
+  /**
+   * An edge router and its node.
+   */
+  static class EdgeRouter
+  {
+    IPv6Address routerID;
+    Integer nodeID;
+
+    EdgeRouter(IPv6Address routerID, Integer nodeID)
+    {
+      this.routerID = routerID;
+      this.nodeID = nodeID;
+    }
+  }
+
+  /**
+   * A destination interface and the node it is on.
+   */
+  static class EdgeInterface
+  {
+    IPv6Address address;
+    byte[] addressBytes;
+    int nodeID;
+
+    EdgeInterface(IPv6Address address, int nodeID)
+    {
+      this.address = address;
+      this.nodeID = nodeID;
+      addressBytes = address.getAddress();
+    }
+  }
+
+  //EdgeRouters in discovery order; replaced, never modified, when a router
+  //is added so callers can iterate it freely
+  private volatile EdgeRouter[] routers = new EdgeRouter[0];
+
+  //EdgeRouters keyed by node ID (Integer)
+  private HashMap routersByNode = new HashMap();
+
+  //EdgeInterfaces in discovery order, and keyed by address string
+  private Vector interfaces = new Vector();
+  private HashMap interfacesByAddress = new HashMap();
+
+  //Vectors of EdgeInterface keyed by node ID (Integer)
+  private HashMap interfacesByNode = new HashMap();
+
+  /**
+   * Registers an edge router.
+   * @param   routerID  the router
+   * @param   nodeID    its node
+   * @return  the EdgeRouter if it is new, otherwise null
+   */
+  synchronized EdgeRouter addRouter(IPv6Address routerID, int nodeID)
+  {
+    Integer key = new Integer(nodeID);
+    if (routersByNode.containsKey(key))
+    {
+      return null;
+    }
+    EdgeRouter router = new EdgeRouter(routerID, key);
+    routersByNode.put(key, router);
+    EdgeRouter[] newRouters = new EdgeRouter[routers.length + 1];
+    System.arraycopy(routers, 0, newRouters, 0, routers.length);
+    newRouters[routers.length] = router;
+    routers = newRouters;
+    return router;
+  }
+
+  /**
+   * Registers a destination interface.
+   * @param   address  the interface address
+   * @param   nodeID   the node it is on
+   * @return  whether it is new
+   */
+  synchronized boolean addInterface(IPv6Address address, int nodeID)
+  {
+    String key = address.toString();
+    if (interfacesByAddress.containsKey(key))
+    {
+      return false;
+    }
+    EdgeInterface edgeInterface = new EdgeInterface(address, nodeID);
+    interfacesByAddress.put(key, edgeInterface);
+    interfaces.add(edgeInterface);
+    Integer node = new Integer(nodeID);
+    Vector nodeInterfaces = (Vector) interfacesByNode.get(node);
+    if (nodeInterfaces == null)
+    {
+      nodeInterfaces = new Vector();
+      interfacesByNode.put(node, nodeInterfaces);
+    }
+    nodeInterfaces.add(edgeInterface);
+    return true;
+  }
+
+  /**
+   * @return  the edge routers in discovery order; must not be modified
+   */
+  EdgeRouter[] getRouters()
+  {
+    return routers;
+  }
+
+  /**
+   * @param   nodeID  the node
+   * @return  its edge router, or null if it is not registered
+   */
+  synchronized EdgeRouter getRouter(int nodeID)
+  {
+    return (EdgeRouter) routersByNode.get(new Integer(nodeID));
+  }
+
+  /**
+   * @return  copy of the Vector of every EdgeInterface, in discovery order
+   */
+  synchronized Vector getInterfaces()
+  {
+    return (Vector) interfaces.clone();
+  }
+
+  /**
+   * @param   nodeID  the node
+   * @return  copy of the Vector of the node's EdgeInterfaces, possibly empty
+   */
+  synchronized Vector getInterfaces(int nodeID)
+  {
+    Vector nodeInterfaces = (Vector) interfacesByNode.get(new Integer(nodeID));
+    return (nodeInterfaces == null) ? new Vector(0) : (Vector) nodeInterfaces.clone();
+  }
+}
@@ -0,0 +1,508 @@
+package org.saamnet.saam.server;
+
+import java.util.*;
+import java.io.*;
+
+import org.saamnet.saam.gui.MAGMAAdminGui;
+import org.saamnet.saam.message.CongestionAdvisory;
+
+/**
+ * EventJournal takes the BestEffortManager's running commentary off its
+ * decision threads.  BEM records each decision as a typed event of a few
+ * ints in a ring buffer allocated up front; a thread of the journal's own
+ * formats the events into text and hands it to its Sinks, the BEM's
+ * MAGMAAdminGui and a log file.  Recording an event copies its fields and
+ * builds no strings.  Each event type has a level, and only events at or
+ * below the journal's verbosity are recorded; with no sinks, none are, so
+ * a headless BEM pays one comparison per event.
+ * <p>
+ * If BEM records faster than the sinks take text the newest events are
+ * dropped, not the oldest, and the number dropped is reported once the
+ * journal catches up.
+ */
+public class EventJournal implements Runnable
+{
+  //verbosity, and the level of each event type
+  public final static int OFF = 0;
+  public final static int SUMMARY = 1;//startup, global congestion, path failures
+  public final static int DECISIONS = 2;//congestion, bypasses, fairness actions
+  public final static int DETAIL = 3;//per node pair deployment and topology updates
+
+  private final static String[] VERBOSITY_NAMES = {"off", "summary", "decisions", "detail"};
+
+  //event types; the fields a, b, c and d are as noted
+  final static int INITIALIZING = 0;
+  final static int MANAGING_PARTITION = 1;//partition, partitions
+  final static int INITIALIZED = 2;
+  final static int PAIR_DEPLOYED = 3;//primary path, src node, dest node, alternate path
+  final static int LOCAL_RESOLUTION_TIMEOUT = 4;//ms
+  final static int EDGE_NOTIFICATION = 5;
+  final static int PIB_NOT_READY = 6;
+  final static int EDGE_ROUTER_ADDED = 7;//address in the event's object
+  final static int EDGE_INTERFACE_ADDED = 8;//address in the event's object
+  final static int TOPOLOGY_UPDATING = 9;
+  final static int TOPOLOGY_UPDATED = 10;
+  final static int TOPOLOGY_UNCHANGED = 11;
+  final static int ALTERNATE_CONGESTED = 12;//primary still lossless
+  final static int PRIMARY_CONGESTED = 13;//path
+  final static int ADVISORY_SENT = 14;//condition, node
+  final static int BYPASS = 15;//src node, dest node, new primary path
+  final static int BYPASS_ALTERNATE = 16;//new alternate path
+  final static int GLOBAL_CONGESTION = 17;
+  final static int CONGESTION_CLEARED = 18;//path, src node, dest node
+  final static int PRIMARY_CLEARED = 19;//path; alternate still lossy
+  final static int GLOBAL_CONGESTION_RESOLVED = 20;
+  final static int FAIRNESS_ATTEMPT = 21;
+  final static int NO_ACTION = 22;
+  final static int RESETTING_PATHS = 23;
+  final static int PATHS_RESET = 24;
+  final static int FAILURE_PAIR = 25;//src node, dest node
+  final static int NO_SURVIVING_PATH = 26;
+  final static int SURVIVING_PATH_RESENT = 27;//path
+  final static int REDUNDANCY_RESTORED = 28;//new alternate path
+  final static int NO_REDUNDANT_PATH = 29;
+  final static int PATH_UNEXPIRED = 30;//path
+  final static int FAIRNESS_CALCULATING = 31;
+  final static int FAIRNESS_VARIABLES = 32;//mean, SD, rich, poor loss rates (hundredths of a percent)
+  final static int SWITCHBACK = 33;//src node, dest node
+  final static int PATH_FAILED = 34;//path
+  final static int RESTORING_REDUNDANCY = 35;
+  final static int ROBBED = 36;//path, src node, dest node
+  final static int GAVE = 37;
+  final static int FATTER_PATH = 38;//path, src node, dest node
+  final static int NEW_ALTERNATE = 39;//path, src node, dest node
+
+  private final static int[] LEVELS = {
+    SUMMARY, SUMMARY, SUMMARY, DETAIL, SUMMARY, DETAIL, SUMMARY, DETAIL, DETAIL, DETAIL,
+    DETAIL, DETAIL, DECISIONS, DECISIONS, DECISIONS, DECISIONS, DECISIONS, SUMMARY, DECISIONS, DECISIONS,
+    SUMMARY, DECISIONS, DECISIONS, DETAIL, DETAIL, SUMMARY, SUMMARY, SUMMARY, SUMMARY, SUMMARY,
+    DECISIONS, DECISIONS, DECISIONS, DECISIONS, SUMMARY, SUMMARY, DECISIONS, DECISIONS, DECISIONS, DECISIONS};
+
+  public final static int DEFAULT_CAPACITY = 4096;
+
+  //formats are drained this often if no event wakes the thread sooner (ms)
+  private final static long DRAIN_INTERVAL = 100;
+
+  /**
+   * Somewhere the journal's text goes.  Called only on the journal's thread.
+   */
+  public interface Sink
+  {
+    /**
+     * @param   time  when the event was recorded (ms)
+     * @param   line  a line of text, which may begin with a blank line
+     */
+    void write(long time, String line);
+  }
+
+  /**
+   * Writes to a MAGMAAdminGui, which shows the time itself.
+   */
+  static class GuiSink implements Sink
+  {
+    private MAGMAAdminGui gui;
+
+    GuiSink(MAGMAAdminGui gui)
+    {
+      this.gui = gui;
+    }
+
+    public void write(long time, String line)
+    {
+      gui.sendText(line);
+    }
+  }
+
+  /**
+   * Writes time stamped lines to a stream, such as a log file.
+   */
+  public static class PrintStreamSink implements Sink
+  {
+    private PrintStream out;
+
+    public PrintStreamSink(PrintStream out)
+    {
+      this.out = out;
+    }
+
+    public void write(long time, String line)
+    {
+      if (line.startsWith("\n"))
+      {
+        line = line.substring(1);
+      }
+      out.println(time + " " + line);
+    }
+  }
+
+  //the ring: event i is in slot i % capacity
+  private int capacity;
+  private int[] types;
+  private int[] as;
+  private int[] bs;
+  private int[] cs;
+  private int[] ds;
+  private Object[] objects;
+  private long[] times;
+  private long head;//next event the thread formats
+  private long tail;//next event recorded
+  private int dropped;
+
+  private Vector sinks = new Vector();
+  private volatile int verbosity = DETAIL;
+  private volatile int recordBelow = OFF;//verbosity, or OFF with no sinks
+  private Clock clock = Clock.SYSTEM;
+  private Thread worker;
+
+  /**
+   * @param   capacity  events held before new ones are dropped
+   */
+  public EventJournal(int capacity)
+  {
+    this.capacity = capacity;
+    types = new int[capacity];
+    as = new int[capacity];
+    bs = new int[capacity];
+    cs = new int[capacity];
+    ds = new int[capacity];
+    objects = new Object[capacity];
+    times = new long[capacity];
+  }
+
+  /**
+   * @param   verbosity  OFF, SUMMARY, DECISIONS or DETAIL
+   */
+  public void setVerbosity(int verbosity)
+  {
+    this.verbosity = Math.max(OFF, Math.min(verbosity, DETAIL));
+    updateRecordBelow();
+  }
+
+  public int getVerbosity()
+  {
+    return verbosity;
+  }
+
+  /**
+   * @param   name  "off", "summary", "decisions" or "detail"
+   * @return  its verbosity, or -1 if there is no such
+   */
+  public static int parseVerbosity(String name)
+  {
+    for (int i = 0; i < VERBOSITY_NAMES.length; i++)
+    {
+      if (VERBOSITY_NAMES[i].equalsIgnoreCase(name.trim()))
+      {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Starts the thread that formats events for the sinks.  Events recorded
+   * before it starts wait in the ring.
+   */
+  synchronized void start()
+  {
+    if (worker == null)
+    {
+      worker = new Thread(this, "BEM journal");
+      worker.setDaemon(true);
+      worker.start();
+    }
+  }
+
+  /**
+   * Adds somewhere for the journal's text to go.
+   * @param   sink  the sink
+   */
+  public synchronized void addSink(Sink sink)
+  {
+    sinks.add(sink);
+    updateRecordBelow();
+  }
+
+  public synchronized void removeSink(Sink sink)
+  {
+    sinks.remove(sink);
+    updateRecordBelow();
+  }
+
+  private void updateRecordBelow()
+  {
+    recordBelow = sinks.isEmpty() ? OFF : verbosity;
+  }
+
+  /**
+   * @param   clock  where event times are read
+   */
+  void setClock(Clock clock)
+  {
+    this.clock = clock;
+  }
+
+  /**
+   * @param   type  the event type
+   * @return  whether events of the type are being recorded; a caller can
+   *          check this before working out an event's fields
+   */
+  boolean isRecording(int type)
+  {
+    return LEVELS[type] <= recordBelow;
+  }
+
+  void record(int type)
+  {
+    record(type, 0, 0, 0, 0, null);
+  }
+
+  void record(int type, int a)
+  {
+    record(type, a, 0, 0, 0, null);
+  }
+
+  void record(int type, int a, int b)
+  {
+    record(type, a, b, 0, 0, null);
+  }
+
+  void record(int type, int a, int b, int c)
+  {
+    record(type, a, b, c, 0, null);
+  }
+
+  void record(int type, Object object)
+  {
+    record(type, 0, 0, 0, 0, object);
+  }
+
+  /**
+   * Records an event if its level is within the verbosity.  Returns at once.
+   * @param   type    the event type
+   * @param   a       first field, as the type notes
+   * @param   b       second field
+   * @param   c       third field
+   * @param   d       fourth field
+   * @param   object  an object the type formats, held until formatted
+   */
+  void record(int type, int a, int b, int c, int d, Object object)
+  {
+    if (LEVELS[type] > recordBelow)
+    {
+      return;
+    }
+    long time = clock.currentTimeMillis();
+    synchronized (this)
+    {
+      if ((tail - head) == capacity)
+      {
+        dropped++;
+        return;
+      }
+      int slot = (int) (tail % capacity);
+      types[slot] = type;
+      as[slot] = a;
+      bs[slot] = b;
+      cs[slot] = c;
+      ds[slot] = d;
+      objects[slot] = object;
+      times[slot] = time;
+      if (tail++ == head)
+      {
+        notify();//the thread may be waiting on an empty ring
+      }
+    }
+  }
+
+  public void run()
+  {
+    //events are copied out a ring's worth at a time and formatted unlocked
+    int[] type = new int[capacity];
+    int[] a = new int[capacity];
+    int[] b = new int[capacity];
+    int[] c = new int[capacity];
+    int[] d = new int[capacity];
+    Object[] object = new Object[capacity];
+    long[] time = new long[capacity];
+    while (true)
+    {
+      int count;
+      int lost;
+      Sink[] targets;
+      synchronized (this)
+      {
+        while ((head == tail) && (dropped == 0))
+        {
+          try
+          {
+            wait(DRAIN_INTERVAL);
+          }
+          catch (InterruptedException ie)
+          {
+            //drain what there is
+          }
+        }
+        count = (int) (tail - head);
+        for (int i = 0; i < count; i++)
+        {
+          int slot = (int) ((head + i) % capacity);
+          type[i] = types[slot];
+          a[i] = as[slot];
+          b[i] = bs[slot];
+          c[i] = cs[slot];
+          d[i] = ds[slot];
+          object[i] = objects[slot];
+          time[i] = times[slot];
+          objects[slot] = null;
+        }
+        head = tail;
+        lost = dropped;
+        dropped = 0;
+        targets = (Sink[]) sinks.toArray(new Sink[sinks.size()]);
+      }
+
+      for (int i = 0; i < count; i++)
+      {
+        String[] lines = format(type[i], a[i], b[i], c[i], d[i], object[i]);
+        object[i] = null;
+        write(targets, time[i], lines);
+      }
+      if (lost > 0)
+      {
+        write(targets, clock.currentTimeMillis(), new String[] {lost + " journal events dropped."});
+      }
+    }
+  }
+
+  private static void write(Sink[] targets, long time, String[] lines)
+  {
+    for (int t = 0; t < targets.length; t++)
+    {
+      for (int l = 0; l < lines.length; l++)
+      {
+        try
+        {
+          targets[t].write(time, lines[l]);
+        }
+        catch (RuntimeException re)
+        {
+          //a broken sink must not stop the others
+          System.out.println(re + " thrown by a Sink of EventJournal in BestEffortManager.");
+        }
+      }
+    }
+  }
+
+  /**
+   * @return  an event's text, as BEM has always shown it
+   */
+  static String[] format(int type, int a, int b, int c, int d, Object object)
+  {
+    switch (type)
+    {
+      case INITIALIZING:
+        return new String[] {"Initializing..."};
+      case MANAGING_PARTITION:
+        return new String[] {"Managing partition " + a + " of " + b + "."};
+      case INITIALIZED:
+        return new String[] {"initialized."};
+      case PAIR_DEPLOYED:
+        return new String[] {"Path " + a + " deployed as primary for (" + b + "," + c + ").",
+                             (d == a) ? "No alternate path available." : "Path " + d + " deployed as alternate."};
+      case LOCAL_RESOLUTION_TIMEOUT:
+        return new String[] {"\nLocal resolution timeout is " + a + "ms."};
+      case EDGE_NOTIFICATION:
+        return new String[] {"\nProcessing edge notification."};
+      case PIB_NOT_READY:
+        return new String[] {"\n  PIB is not ready; quit processing the edge notification message."};
+      case EDGE_ROUTER_ADDED:
+        return new String[] {"Adding " + object + " to edge routers."};
+      case EDGE_INTERFACE_ADDED:
+        return new String[] {"Adding " + object + " to edge interfaces."};
+      case TOPOLOGY_UPDATING:
+        return new String[] {"Updating best effort topology..."};
+      case TOPOLOGY_UPDATED:
+        return new String[] {"Completed updating best effort topology."};
+      case TOPOLOGY_UNCHANGED:
+        return new String[] {"No new information; best effort topology still accurate."};
+      case ALTERNATE_CONGESTED:
+        return new String[] {"\nNew congestion on an alternate path while primary path lossless."};
+      case PRIMARY_CONGESTED:
+        return new String[] {"\nNew congestion on primary path " + a + "."};
+      case ADVISORY_SENT:
+        return new String[] {"Congestion Advisory " + conditionName(a) + " sent to node " + b + "."};
+      case BYPASS:
+        return new String[] {"\nCongestion bypass initiated for nodes " + a + " to " + b + ".",
+                             "Deploying path " + c + " as the new primary path."};
+      case BYPASS_ALTERNATE:
+        return new String[] {"Deploying path " + a + " as the new alternate path."};
+      case GLOBAL_CONGESTION:
+        return new String[] {"\nWARNING!\nWARNING!\nWARNING!", "G L O B A L   C O N G E S T I O N",
+                             "Initiating global congestion resolution procedures."};
+      case CONGESTION_CLEARED:
+        return new String[] {"\nCongestion cleared on path " + a + ".",
+                             "No more congestion for node pair (" + b + "," + c + ")."};
+      case PRIMARY_CLEARED:
+        return new String[] {"Congestion has cleared on a primary path " + a + " while alternate path lossy."};
+      case GLOBAL_CONGESTION_RESOLVED:
+        return new String[] {"\nGlobal congestion resolved!", "Terminating global coneston resolution procedures."};
+      case FAIRNESS_ATTEMPT:
+        return new String[] {"\nAttempting to rob from the rich and give to the poor."};
+      case NO_ACTION:
+        return new String[] {"No action taken."};
+      case RESETTING_PATHS:
+        return new String[] {"Resetting old paths..."};
+      case PATHS_RESET:
+        return new String[] {"reset."};
+      case FAILURE_PAIR:
+        return new String[] {"Affected node pair is (" + a + "," + b + ")."};
+      case NO_SURVIVING_PATH:
+        return new String[] {"NO SURVIVING PATH!!!"};
+      case SURVIVING_PATH_RESENT:
+        return new String[] {"Resent surviving path " + a + " to reset the destination."};
+      case REDUNDANCY_RESTORED:
+        return new String[] {"Sending path " + a + " as the new alternate path.", "Redundancy restored!"};
+      case NO_REDUNDANT_PATH:
+        return new String[] {"Unable to find a redundant path.  Resending the primary path as alternate."};
+      case PATH_UNEXPIRED:
+        return new String[] {"\nPath " + a + " has been unexpired."};
+      case FAIRNESS_CALCULATING:
+        return new String[] {"Calculating fairness variables..."};
+      case FAIRNESS_VARIABLES:
+        return new String[] {"Mean loss rate is " + (a / 100.0) + "%.", "Loss rate SD is " + (b / 100.0) + "%.",
+                             "Rich below " + (c / 100.0) + "%, poor above " + (d / 100.0) + "%."};
+      case SWITCHBACK:
+        return new String[] {"Reset traffic split to 100/0 for node pair (" + a + "," + b + ")."};
+      case PATH_FAILED:
+        return new String[] {"\nHandling failure of path " + a + "."};
+      case RESTORING_REDUNDANCY:
+        return new String[] {"Attempting to restore redundancy..."};
+      case ROBBED:
+        return new String[] {"Deactivated path " + a + " for node pair (" + b + "," + c + ").", "Robbed from the rich."};
+      case GAVE:
+        return new String[] {"Gave to the poor."};
+      case FATTER_PATH:
+        return new String[] {"Deployed fatter path " + a + " for node pair (" + b + "," + c + ")."};
+      case NEW_ALTERNATE:
+        return new String[] {"Deployed new alternate path " + a + " for node pair (" + b + "," + c + ")."};
+      default:
+        return new String[] {"Unknown journal event " + type + "."};
+    }
+  }
+
+  private static String conditionName(int condition)
+  {
+    switch (condition)
+    {
+      case CongestionAdvisory.GREEN:
+        return "GREEN";
+      case CongestionAdvisory.YELLOW:
+        return "YELLOW";
+      case CongestionAdvisory.RED:
+        return "RED";
+      default:
+        return Integer.toString(condition);
+    }
+  }
+}
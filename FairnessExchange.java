@@ -0,0 +1,28 @@
+package org.saamnet.saam.server;
+
+/**
+ * A FairnessExchange carries FairnessSummaries between the
+ * BestEffortManagers that each manage one partition of the node pairs.
+ * Every summary published by one is delivered to the others through
+ * BestEffortManager.receiveFairnessSummary(), possibly on another thread.
+ * Delivery is best effort: a lost summary is replaced by the next cycle's.
+ */
+interface FairnessExchange
+{
+  /**
+   * Starts delivering summaries to a manager.
+   * @param   bem  the manager
+   */
+  void start(BestEffortManager bem);
+
+  /**
+   * Sends a summary to every other partition.
+   * @param   summary  the summary
+   */
+  void publish(FairnessSummary summary);
+
+  /**
+   * Stops delivering summaries.
+   */
+  void stop();
+}
@@ -0,0 +1,202 @@
+package org.saamnet.saam.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * FairnessSummary is what one BestEffortManager partition tells the others
+ * about its node pairs' loss rates each AC cycle: the count, sum and sum of
+ * squares, which merge exactly into a global mean and deviation, and the
+ * LossRateStatistics histogram, which merges exactly into the global
+ * histogram, so every partition ranks a pair as a single BEM would.  Only
+ * buckets with pairs in them are encoded.  It also carries whether the
+ * partition is resolving global congestion.
+ */
+class FairnessSummary
+{
+  //partition, flags, sequence, count, sum, sum of squares, bucket count
+  private final static int HEADER_LENGTH = 2 + 1 + 4 + 8 + 8 + 8 + 2;
+
+  //bucket index and count
+  private final static int BUCKET_LENGTH = 2 + 4;
+
+  //longest encoded summary: every bucket used
+  final static int MAX_LENGTH = HEADER_LENGTH + (LossRateStatistics.BUCKETS * BUCKET_LENGTH);
+
+  private final static byte GLOBAL_CONGESTION = 0x01;
+
+  int partition;
+  int sequence;
+  boolean globalCongestion;
+  long count;
+  long sum;
+  long sumOfSquares;
+  int[] buckets;//pairs in each LossRateStatistics bucket
+
+  long timeReceived;//set by the receiver; not encoded
+
+  /**
+   * Summarizes a partition's loss rates.
+   * @param   partition         the partition
+   * @param   sequence          increases with each summary it sends
+   * @param   globalCongestion  whether it is resolving global congestion
+   * @param   stats             its node pairs' loss rates
+   */
+  FairnessSummary(int partition, int sequence, boolean globalCongestion, LossRateStatistics stats)
+  {
+    this.partition = partition;
+    this.sequence = sequence;
+    this.globalCongestion = globalCongestion;
+    count = stats.getCount();
+    sum = stats.getSum();
+    sumOfSquares = stats.getSumOfSquares();
+    buckets = stats.getBuckets();
+  }
+
+  /**
+   * Decodes a summary.
+   * @param   bytes   the encoded summary
+   * @param   length  its length
+   * @throws  IllegalArgumentException  if it is malformed
+   */
+  FairnessSummary(byte[] bytes, int length)
+  {
+    if (length < HEADER_LENGTH)
+    {
+      throw new IllegalArgumentException("FairnessSummary too short: " + length);
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+    partition = buffer.getShort() & 0xFFFF;
+    globalCongestion = (buffer.get() & GLOBAL_CONGESTION) != 0;
+    sequence = buffer.getInt();
+    count = buffer.getLong();
+    sum = buffer.getLong();
+    sumOfSquares = buffer.getLong();
+    int used = buffer.getShort() & 0xFFFF;
+    if (length != HEADER_LENGTH + (used * BUCKET_LENGTH))
+    {
+      throw new IllegalArgumentException("FairnessSummary length " + length + " for " + used + " buckets");
+    }
+    buckets = new int[LossRateStatistics.BUCKETS];
+    for (int i = 0; i < used; i++)
+    {
+      int bucket = buffer.getShort() & 0xFFFF;
+      if (bucket >= buckets.length)
+      {
+        throw new IllegalArgumentException("FairnessSummary bucket " + bucket);
+      }
+      buckets[bucket] = buffer.getInt();
+    }
+  }
+
+  /**
+   * @return  the encoded summary
+   */
+  byte[] getBytes()
+  {
+    int used = 0;
+    for (int i = 0; i < buckets.length; i++)
+    {
+      if (buckets[i] != 0)
+      {
+        used++;
+      }
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + (used * BUCKET_LENGTH));
+    buffer.putShort((short) partition);
+    buffer.put(globalCongestion ? GLOBAL_CONGESTION : 0);
+    buffer.putInt(sequence);
+    buffer.putLong(count);
+    buffer.putLong(sum);
+    buffer.putLong(sumOfSquares);
+    buffer.putShort((short) used);
+    for (int i = 0; i < buckets.length; i++)
+    {
+      if (buckets[i] != 0)
+      {
+        buffer.putShort((short) i);
+        buffer.putInt(buckets[i]);
+      }
+    }
+    return buffer.array();
+  }
+
+  /**
+   * @param   summaries  summaries of every partition heard from; nulls skipped
+   * @return  mean loss rate over all their pairs, 0 if there are none
+   */
+  static double mean(FairnessSummary[] summaries)
+  {
+    long count = 0;
+    long sum = 0;
+    for (int i = 0; i < summaries.length; i++)
+    {
+      if (summaries[i] != null)
+      {
+        count += summaries[i].count;
+        sum += summaries[i].sum;
+      }
+    }
+    return (count == 0) ? 0 : (double) sum / count;
+  }
+
+  /**
+   * @param   summaries  summaries of every partition heard from; nulls skipped
+   * @return  population standard deviation over all their pairs
+   */
+  static double stdDev(FairnessSummary[] summaries)
+  {
+    long count = 0;
+    double sumOfSquares = 0;
+    for (int i = 0; i < summaries.length; i++)
+    {
+      if (summaries[i] != null)
+      {
+        count += summaries[i].count;
+        sumOfSquares += summaries[i].sumOfSquares;
+      }
+    }
+    if (count == 0)
+    {
+      return 0;
+    }
+    double mean = mean(summaries);
+    return Math.sqrt(Math.max(0, (sumOfSquares / count) - (mean * mean)));
+  }
+
+  /**
+   * @param   summaries  summaries of every partition heard from; nulls skipped
+   * @return  pairs in all their buckets
+   */
+  static long count(FairnessSummary[] summaries)
+  {
+    long count = 0;
+    for (int i = 0; i < summaries.length; i++)
+    {
+      if (summaries[i] != null)
+      {
+        count += summaries[i].count;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @param   summaries  summaries of every partition heard from; nulls skipped
+   * @return  their histograms added together
+   */
+  static int[] buckets(FairnessSummary[] summaries)
+  {
+    int[] merged = new int[LossRateStatistics.BUCKETS];
+    for (int i = 0; i < summaries.length; i++)
+    {
+      if (summaries[i] != null)
+      {
+        for (int b = 0; b < merged.length; b++)
+        {
+          merged[b] += summaries[i].buckets[b];
+        }
+      }
+    }
+    return merged;
+  }
+}
@@ -0,0 +1,164 @@
+package org.saamnet.saam.agent.router;
+
+import java.util.*;
+
+import org.saamnet.saam.net.*;
+
+/**
+ * FlowAffinityCache keeps each BE flow on the route it started on while a
+ * BestEffortTable moves its split.  A flow is identified by its source,
+ * destination and IPv6 flow label, hashed to 64 bits.  A new flow takes the
+ * route of the bucket its hash falls in, so flows spread over the routes by
+ * the current split.  The flow then keeps that route until it goes idle, is
+ * pushed out by newer flows, or the server installs a new complement of
+ * routes to its destination.
+ * <p>
+ * The cache is split into segments by flow hash so that lookups on different
+ * flows rarely wait on each other.  Each segment is kept in least recently
+ * used order, which puts idle flows at its head where they are evicted.
+ */
+class FlowAffinityCache
+{
+  //number of segments; a power of two
+  private final static int SEGMENTS = 16;
+
+  /**
+   * The route a flow is pinned to.
+   */
+  private static class Affinity
+  {
+    int complement;//complement of routes the route belongs to
+    int route;//index into the complement, 0 for the primary
+    long lastUsed;
+  }
+
+  private LinkedHashMap[] segments = new LinkedHashMap[SEGMENTS];
+  private int segmentCapacity;
+  private long idleTimeout;//ms
+
+  /**
+   * @param   capacity     the most flows to remember
+   * @param   idleTimeout  time after which an unused flow is forgotten (ms)
+   */
+  FlowAffinityCache(int capacity, long idleTimeout)
+  {
+    segmentCapacity = Math.max(1, capacity / SEGMENTS);
+    this.idleTimeout = idleTimeout;
+    for (int i = 0; i < SEGMENTS; i++)
+    {
+      segments[i] = new LinkedHashMap(16, 0.75f, true);//access order
+    }
+  }
+
+  /**
+   * Hashes the identity of a flow.
+   * @param   srcAddr    source address
+   * @param   destAddr   destination address
+   * @param   flowLabel  IPv6 flow label
+   * @return  the flow hash
+   */
+  static long flowHash(IPv6Address srcAddr, IPv6Address destAddr, int flowLabel)
+  {
+    long hash = 0xcbf29ce484222325L;//FNV-1a
+    byte[] address = srcAddr.getAddress();
+    for (int i = 0; i < address.length; i++)
+    {
+      hash = (hash ^ (address[i] & 0xFF)) * 0x100000001b3L;
+    }
+    address = destAddr.getAddress();
+    for (int i = 0; i < address.length; i++)
+    {
+      hash = (hash ^ (address[i] & 0xFF)) * 0x100000001b3L;
+    }
+    for (int shift = 0; shift < 32; shift += 8)
+    {
+      hash = (hash ^ ((flowLabel >>> shift) & 0xFF)) * 0x100000001b3L;
+    }
+    //final mix so every bit of the identity reaches the high bits
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  /**
+   * Maps a flow hash onto one of a number of buckets.  A flow always lands in
+   * the same bucket at a given resolution.
+   * @param   flow     the flow hash
+   * @param   buckets  the number of buckets
+   * @return  the bucket
+   */
+  static int bucket(long flow, int buckets)
+  {
+    return (int) (((flow >>> 32) * buckets) >>> 32);
+  }
+
+  /**
+   * Finds the route a flow is pinned to, pinning it to the route for its
+   * bucket in the current version if it is new, idle or its complement has
+   * been replaced.
+   * @param   flow     the flow hash
+   * @param   version  the destination's current RouteVersion
+   * @return  index of the route in that version
+   */
+  int route(long flow, BestEffortTable.RouteVersion version)
+  {
+    LinkedHashMap segment = segments[(int) flow & (SEGMENTS - 1)];
+    Long key = new Long(flow);
+    long now = System.currentTimeMillis();
+    synchronized (segment)
+    {
+      Affinity affinity = (Affinity) segment.get(key);
+      if ((affinity != null) && (affinity.complement == version.getComplement()) &&
+          (now - affinity.lastUsed < idleTimeout))
+      {
+        affinity.lastUsed = now;
+        return affinity.route;
+      }
+      if (affinity == null)
+      {
+        affinity = new Affinity();
+        segment.put(key, affinity);
+      }
+      affinity.complement = version.getComplement();
+      affinity.route = version.routeIndex(bucket(flow, version.getBuckets()));
+      affinity.lastUsed = now;
+      evict(segment, now);
+      return affinity.route;
+    }
+  }
+
+  /**
+   * Evicts idle flows, and the least recently used flows while a segment is
+   * over capacity.  Called holding the segment.
+   * @param   segment  the segment
+   * @param   now      the current time (ms)
+   */
+  private void evict(LinkedHashMap segment, long now)
+  {
+    Iterator i = segment.values().iterator();
+    while (i.hasNext())
+    {
+      Affinity affinity = (Affinity) i.next();
+      if ((segment.size() <= segmentCapacity) && (now - affinity.lastUsed < idleTimeout))
+      {
+        break;
+      }
+      i.remove();
+    }
+  }
+
+  /**
+   * Forgets every flow.
+   */
+  void clear()
+  {
+    for (int i = 0; i < SEGMENTS; i++)
+    {
+      synchronized (segments[i])
+      {
+        segments[i].clear();
+      }
+    }
+  }
+}
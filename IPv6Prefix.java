@@ -0,0 +1,143 @@
+package org.saamnet.saam.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * An IPv6Prefix is an IPv6 network address together with a prefix length.
+ * The address bytes are masked to the prefix length on construction, so two
+ * prefixes covering the same network are equal and hash alike.  This makes
+ * IPv6Prefix usable as a Hashtable key for longest-prefix-match lookups.
+ */
+public class IPv6Prefix
+{
+  public final static int ADDRESS_LENGTH = 16;//bytes
+  public final static int MAX_PREFIX_LENGTH = 128;//bits
+
+  private byte[] network = new byte[ADDRESS_LENGTH];
+  private int length;
+  private int hash;
+
+  /**
+   * Constructs the prefix of the given length containing an address.
+   * @param   address  16 address bytes
+   * @param   length   prefix length in bits (0 to 128)
+   */
+  public IPv6Prefix(byte[] address, int length)
+  {
+    this.length = length;
+    int fullBytes = length / 8;
+    int remainingBits = length % 8;
+    for (int i = 0; i < fullBytes; i++)
+    {
+      network[i] = address[i];
+    }
+    if (remainingBits > 0)
+    {
+      network[fullBytes] = (byte) (address[fullBytes] & (0xFF << (8 - remainingBits)));
+    }
+
+    hash = length;
+    for (int i = 0; i < ADDRESS_LENGTH; i++)
+    {
+      hash = 31 * hash + network[i];
+    }
+  }
+
+  /**
+   * Constructs the prefix of the given length containing an address.
+   * @param   address  the address
+   * @param   length   prefix length in bits (0 to 128)
+   */
+  public IPv6Prefix(IPv6Address address, int length)
+  {
+    this(address.getAddress(), length);
+  }
+
+  public int getLength()
+  {
+    return length;
+  }
+
+  /**
+   * Returns the network address of this prefix (host bits zeroed).
+   * @return  the network address
+   */
+  public IPv6Address getNetworkAddress() throws UnknownHostException
+  {
+    return IPv6Address.getByName(InetAddress.getByAddress(network).getHostAddress());
+  }
+
+  /**
+   * Tests whether an address falls within this prefix.
+   * @param   address  16 address bytes
+   * @return  whether it does
+   */
+  public boolean contains(byte[] address)
+  {
+    return commonPrefixLength(network, address) >= length;
+  }
+
+  /**
+   * Computes the number of leading bits two addresses share.
+   * @param   a  16 address bytes
+   * @param   b  16 address bytes
+   * @return  the common prefix length in bits
+   */
+  public static int commonPrefixLength(byte[] a, byte[] b)
+  {
+    for (int i = 0; i < ADDRESS_LENGTH; i++)
+    {
+      int diff = (a[i] ^ b[i]) & 0xFF;
+      if (diff != 0)
+      {
+        int bits = 0;
+        while ((diff & 0x80) == 0)
+        {
+          diff <<= 1;
+          bits++;
+        }
+        return i * 8 + bits;
+      }
+    }
+    return MAX_PREFIX_LENGTH;
+  }
+
+  public boolean equals(Object o)
+  {
+    if (!(o instanceof IPv6Prefix))
+    {
+      return false;
+    }
+    IPv6Prefix other = (IPv6Prefix) o;
+    if ((other.length != length) || (other.hash != hash))
+    {
+      return false;
+    }
+    for (int i = 0; i < ADDRESS_LENGTH; i++)
+    {
+      if (other.network[i] != network[i])
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public int hashCode()
+  {
+    return hash;
+  }
+
+  public String toString()
+  {
+    try
+    {
+      return getNetworkAddress() + "/" + length;
+    }
+    catch (UnknownHostException uhe)
+    {
+      return "?/" + length;
+    }
+  }
+}
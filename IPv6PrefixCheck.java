@@ -0,0 +1,86 @@
+package org.saamnet.saam.net;
+
+/**
+ * IPv6PrefixCheck checks IPv6Prefix at the ends of its range, /0 and /128,
+ * and at lengths that end inside a byte.  It prints each failure and exits
+ * with status 1 if there were any:
+ * <pre>
+ *   java org.saamnet.saam.net.IPv6PrefixCheck
+ * </pre>
+ */
+public class IPv6PrefixCheck
+{
+  private static int failures;
+
+  public static void main(String[] args)
+  {
+    byte[] zero = new byte[IPv6Prefix.ADDRESS_LENGTH];
+    byte[] ones = new byte[IPv6Prefix.ADDRESS_LENGTH];
+    byte[] address = new byte[IPv6Prefix.ADDRESS_LENGTH];
+    for (int i = 0; i < IPv6Prefix.ADDRESS_LENGTH; i++)
+    {
+      ones[i] = (byte) 0xFF;
+      address[i] = (byte) (0x20 + 17 * i);
+    }
+    byte[] lastBitFlipped = (byte[]) address.clone();
+    lastBitFlipped[IPv6Prefix.ADDRESS_LENGTH - 1] ^= 1;
+    byte[] firstBitFlipped = (byte[]) address.clone();
+    firstBitFlipped[0] ^= (byte) 0x80;
+
+    //a /0 holds every address and ignores the address it was made from
+    IPv6Prefix all = new IPv6Prefix(address, 0);
+    check(all.getLength() == 0, "/0 length");
+    check(all.contains(zero) && all.contains(ones) && all.contains(firstBitFlipped), "/0 contains everything");
+    check(all.equals(new IPv6Prefix(ones, 0)), "/0 equal whatever the address");
+    check(all.hashCode() == new IPv6Prefix(ones, 0).hashCode(), "/0 hash whatever the address");
+
+    //a /128 holds just its own address
+    IPv6Prefix host = new IPv6Prefix(address, IPv6Prefix.MAX_PREFIX_LENGTH);
+    check(host.getLength() == IPv6Prefix.MAX_PREFIX_LENGTH, "/128 length");
+    check(host.contains(address), "/128 contains its address");
+    check(!host.contains(lastBitFlipped), "/128 excludes last bit flipped");
+    check(!host.contains(firstBitFlipped), "/128 excludes first bit flipped");
+    check(!host.equals(new IPv6Prefix(lastBitFlipped, IPv6Prefix.MAX_PREFIX_LENGTH)), "/128 differs by last bit");
+    check(host.equals(new IPv6Prefix((byte[]) address.clone(), IPv6Prefix.MAX_PREFIX_LENGTH)), "/128 equal to a copy");
+    check(!host.equals(new IPv6Prefix(address, IPv6Prefix.MAX_PREFIX_LENGTH - 1)), "/128 differs from /127");
+
+    //a /127 masks off the last bit
+    IPv6Prefix pair = new IPv6Prefix(address, IPv6Prefix.MAX_PREFIX_LENGTH - 1);
+    check(pair.contains(lastBitFlipped), "/127 contains last bit flipped");
+    check(pair.equals(new IPv6Prefix(lastBitFlipped, IPv6Prefix.MAX_PREFIX_LENGTH - 1)), "/127 equal across last bit");
+
+    //lengths ending inside a byte mask the rest of it
+    for (int length = 1; length < IPv6Prefix.MAX_PREFIX_LENGTH; length++)
+    {
+      IPv6Prefix fromOnes = new IPv6Prefix(ones, length);
+      byte[] inside = (byte[]) ones.clone();
+      inside[length / 8] ^= (byte) (0x80 >> (length % 8));//first bit past the prefix
+      byte[] outside = (byte[]) ones.clone();
+      outside[(length - 1) / 8] ^= (byte) (0x80 >> ((length - 1) % 8));//last bit of the prefix
+      check(fromOnes.contains(inside), "/" + length + " contains first host bit flipped");
+      check(!fromOnes.contains(outside), "/" + length + " excludes last network bit flipped");
+      check(fromOnes.equals(new IPv6Prefix(inside, length)), "/" + length + " masks host bits");
+    }
+
+    check(IPv6Prefix.commonPrefixLength(address, address) == IPv6Prefix.MAX_PREFIX_LENGTH, "common length of equal addresses");
+    check(IPv6Prefix.commonPrefixLength(address, firstBitFlipped) == 0, "common length differing at bit 0");
+    check(IPv6Prefix.commonPrefixLength(address, lastBitFlipped) == IPv6Prefix.MAX_PREFIX_LENGTH - 1, "common length differing at bit 127");
+    check(IPv6Prefix.commonPrefixLength(zero, ones) == 0, "common length of :: and all ones");
+
+    if (failures > 0)
+    {
+      System.out.println(failures + " failed");
+      System.exit(1);
+    }
+    System.out.println("IPv6Prefix ok");
+  }
+
+  private static void check(boolean passed, String what)
+  {
+    if (!passed)
+    {
+      System.out.println("FAILED: " + what);
+      failures++;
+    }
+  }
+}
@@ -0,0 +1,176 @@
+package org.saamnet.saam.util;
+
+import java.lang.reflect.Method;
+import java.util.*;
+import javax.management.*;
+
+/**
+ * JmxMetricsExporter publishes a MetricsRegistry as one JMX MBean, named
+ * OBJECT_NAME.  Each Counter is an attribute of its own name; each
+ * LatencyHistogram is five: name.count, name.meanNanos, name.p50Nanos,
+ * name.p99Nanos and name.maxNanos.  The MBean's attributes are read from
+ * the registry whenever they are asked for, so metrics registered later
+ * appear too.  The "reset" operation is not offered: counts only grow.
+ * <p>
+ * The MBean is registered with the platform MBeanServer where there is one
+ * (Java 5 and later), so jconsole sees it; otherwise with the first
+ * MBeanServer found, or a new one (the JMX reference implementation on
+ * Java 1.4).
+ */
+public class JmxMetricsExporter implements MetricsExporter, DynamicMBean
+{
+  public final static String OBJECT_NAME = "org.saamnet.saam:type=Metrics";
+
+  private final static String[] HISTOGRAM_ATTRIBUTES = {".count", ".meanNanos", ".p50Nanos", ".p99Nanos", ".maxNanos"};
+
+  private MetricsRegistry registry;
+  private MBeanServer server;
+  private ObjectName name;
+
+  public void start(MetricsRegistry registry)
+  {
+    this.registry = registry;
+    try
+    {
+      server = findMBeanServer();
+      name = new ObjectName(OBJECT_NAME);
+      server.registerMBean(this, name);
+    }
+    catch (JMException jme)
+    {
+      System.out.println("JmxMetricsExporter Error: can't register " + OBJECT_NAME + ". " + jme);
+      server = null;
+    }
+  }
+
+  public void stop()
+  {
+    if (server != null)
+    {
+      try
+      {
+        server.unregisterMBean(name);
+      }
+      catch (JMException jme)
+      {
+        System.out.println("JmxMetricsExporter Error: can't unregister " + OBJECT_NAME + ". " + jme);
+      }
+      server = null;
+    }
+  }
+
+  private static MBeanServer findMBeanServer()
+  {
+    try
+    {
+      Class factory = Class.forName("java.lang.management.ManagementFactory");
+      Method platform = factory.getMethod("getPlatformMBeanServer", null);
+      return (MBeanServer) platform.invoke(null, null);
+    }
+    catch (Exception e)
+    {
+      //before Java 5
+    }
+    ArrayList servers = MBeanServerFactory.findMBeanServer(null);
+    return servers.isEmpty() ? MBeanServerFactory.createMBeanServer() : (MBeanServer) servers.get(0);
+  }
+
+  public Object getAttribute(String attribute) throws AttributeNotFoundException
+  {
+    Object metric = registry.get(attribute);
+    if (metric instanceof Counter)
+    {
+      return new Long(((Counter) metric).get());
+    }
+    int dot = attribute.lastIndexOf('.');
+    if (dot > 0)
+    {
+      metric = registry.get(attribute.substring(0, dot));
+      if (metric instanceof LatencyHistogram)
+      {
+        LatencyHistogram histogram = (LatencyHistogram) metric;
+        String part = attribute.substring(dot);
+        if (part.equals(".count"))
+        {
+          return new Long(histogram.getCount());
+        }
+        else if (part.equals(".meanNanos"))
+        {
+          return new Long(histogram.getMean());
+        }
+        else if (part.equals(".p50Nanos"))
+        {
+          return new Long(histogram.percentile(0.50));
+        }
+        else if (part.equals(".p99Nanos"))
+        {
+          return new Long(histogram.percentile(0.99));
+        }
+        else if (part.equals(".maxNanos"))
+        {
+          return new Long(histogram.getMax());
+        }
+      }
+    }
+    throw new AttributeNotFoundException(attribute);
+  }
+
+  public AttributeList getAttributes(String[] attributes)
+  {
+    AttributeList list = new AttributeList();
+    for (int i = 0; i < attributes.length; i++)
+    {
+      try
+      {
+        list.add(new Attribute(attributes[i], getAttribute(attributes[i])));
+      }
+      catch (AttributeNotFoundException anfe)
+      {
+        //left out, as JMX expects
+      }
+    }
+    return list;
+  }
+
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+  {
+    throw new AttributeNotFoundException(attribute.getName() + " is read only");
+  }
+
+  public AttributeList setAttributes(AttributeList attributes)
+  {
+    return new AttributeList();
+  }
+
+  public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+  {
+    throw new ReflectionException(new NoSuchMethodException(actionName));
+  }
+
+  public MBeanInfo getMBeanInfo()
+  {
+    Vector attributes = new Vector();
+    String[] names = registry.getNames();
+    for (int i = 0; i < names.length; i++)
+    {
+      Object metric = registry.get(names[i]);
+      if (metric instanceof Counter)
+      {
+        attributes.add(new MBeanAttributeInfo(names[i], "java.lang.Long", "count of " + names[i],
+                                              true, false, false));
+      }
+      else if (metric instanceof LatencyHistogram)
+      {
+        for (int j = 0; j < HISTOGRAM_ATTRIBUTES.length; j++)
+        {
+          attributes.add(new MBeanAttributeInfo(names[i] + HISTOGRAM_ATTRIBUTES[j], "java.lang.Long",
+                                                names[i] + " latency" + HISTOGRAM_ATTRIBUTES[j],
+                                                true, false, false));
+        }
+      }
+    }
+    return new MBeanInfo(getClass().getName(), "SAAM counters and latency histograms",
+                         (MBeanAttributeInfo[]) attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+                         new MBeanConstructorInfo[0], new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+  }
+}
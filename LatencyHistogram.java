@@ -0,0 +1,81 @@
+package org.saamnet.saam.util;
+
+/**
+ * A LatencyHistogram records durations, in nanoseconds, for a
+ * MetricsRegistry.  Durations are counted in power of two ranges, so it
+ * takes the same small space however many it records, and a percentile is
+ * known to within a factor of two (the top of the range it falls in).  The
+ * count, mean and maximum are exact.
+ */
+public class LatencyHistogram
+{
+  //range i counts durations from 2^(i-1) up to 2^i - 1 ns; range 0 counts 0
+  private long[] ranges = new long[64];
+  private long count;
+  private long sum;
+  private long max;
+
+  /**
+   * @param   nanos  a duration; negative ones are recorded as 0
+   */
+  public synchronized void record(long nanos)
+  {
+    if (nanos < 0)
+    {
+      nanos = 0;
+    }
+    int range = 0;
+    for (long n = nanos; n != 0; n >>>= 1)
+    {
+      range++;
+    }
+    ranges[Math.min(range, ranges.length - 1)]++;
+    count++;
+    sum += nanos;
+    if (nanos > max)
+    {
+      max = nanos;
+    }
+  }
+
+  public synchronized long getCount()
+  {
+    return count;
+  }
+
+  /**
+   * @return  mean duration (ns), 0 if none recorded
+   */
+  public synchronized long getMean()
+  {
+    return (count == 0) ? 0 : sum / count;
+  }
+
+  /**
+   * @return  longest duration (ns)
+   */
+  public synchronized long getMax()
+  {
+    return max;
+  }
+
+  /**
+   * @param   fraction  0 to 1
+   * @return  the top of the range the duration at that fraction falls in,
+   *          but no more than the maximum (ns); 0 if none recorded
+   */
+  public synchronized long percentile(double fraction)
+  {
+    long wanted = (long) Math.ceil(fraction * count);
+    long atOrBelow = 0;
+    for (int range = 0; range < ranges.length; range++)
+    {
+      atOrBelow += ranges[range];
+      if ((atOrBelow >= wanted) && (atOrBelow > 0))
+      {
+        return (range == 0) ? 0 : Math.min((1L << range) - 1, max);
+      }
+    }
+    return max;
+  }
+}
@@ -0,0 +1,38 @@
+package org.saamnet.saam.server;
+
+/**
+ * LocalFairnessExchange connects BestEffortManagers running in the same
+ * JVM.  One instance is shared by all of them; a summary is handed straight
+ * to every other manager started on it, on the publisher's thread.
+ */
+class LocalFairnessExchange implements FairnessExchange
+{
+  //managers started on this exchange; replaced, never modified, so
+  //publish() can iterate it without locking
+  private volatile BestEffortManager[] managers = new BestEffortManager[0];
+
+  public synchronized void start(BestEffortManager bem)
+  {
+    BestEffortManager[] newManagers = new BestEffortManager[managers.length + 1];
+    System.arraycopy(managers, 0, newManagers, 0, managers.length);
+    newManagers[managers.length] = bem;
+    managers = newManagers;
+  }
+
+  public void publish(FairnessSummary summary)
+  {
+    BestEffortManager[] current = managers;
+    for (int i = 0; i < current.length; i++)
+    {
+      if (current[i].getPartition() != summary.partition)
+      {
+        current[i].receiveFairnessSummary(summary);
+      }
+    }
+  }
+
+  public synchronized void stop()
+  {
+    managers = new BestEffortManager[0];
+  }
+}
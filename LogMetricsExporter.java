@@ -0,0 +1,90 @@
+package org.saamnet.saam.util;
+
+/**
+ * LogMetricsExporter prints every metric of a MetricsRegistry to
+ * System.out at an interval, set in ms by the saam.metrics.interval system
+ * property (a minute by default).  It suits a router or server with no JMX.
+ */
+public class LogMetricsExporter implements MetricsExporter, Runnable
+{
+  public final static String INTERVAL_PROPERTY = "saam.metrics.interval";
+  public final static long DEFAULT_INTERVAL = 60000;
+
+  private MetricsRegistry registry;
+  private long interval;
+  private Thread worker;
+  private volatile boolean running;
+
+  public void start(MetricsRegistry registry)
+  {
+    this.registry = registry;
+    interval = DEFAULT_INTERVAL;
+    try
+    {
+      interval = Long.parseLong(System.getProperty(INTERVAL_PROPERTY, Long.toString(DEFAULT_INTERVAL)));
+    }
+    catch (NumberFormatException nfe)
+    {
+      System.out.println("LogMetricsExporter Error: bad " + INTERVAL_PROPERTY);
+    }
+    running = true;
+    worker = new Thread(this, "Metrics log");
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  public void stop()
+  {
+    running = false;
+    if (worker != null)
+    {
+      worker.interrupt();
+    }
+  }
+
+  public void run()
+  {
+    while (running)
+    {
+      try
+      {
+        Thread.sleep(Math.max(interval, 1));
+      }
+      catch (InterruptedException ie)
+      {
+        continue;//running is rechecked
+      }
+      System.out.print(format(registry));
+    }
+  }
+
+  /**
+   * @param   registry  the metrics
+   * @return  one line per metric
+   */
+  public static String format(MetricsRegistry registry)
+  {
+    StringBuffer text = new StringBuffer();
+    String[] names = registry.getNames();
+    for (int i = 0; i < names.length; i++)
+    {
+      Object metric = registry.get(names[i]);
+      text.append(names[i]);
+      if (metric instanceof Counter)
+      {
+        text.append(' ').append(((Counter) metric).get());
+      }
+      else if (metric instanceof LatencyHistogram)
+      {
+        LatencyHistogram histogram = (LatencyHistogram) metric;
+        text.append(" count=").append(histogram.getCount());
+        text.append(" mean=").append(histogram.getMean());
+        text.append(" p50=").append(histogram.percentile(0.50));
+        text.append(" p99=").append(histogram.percentile(0.99));
+        text.append(" max=").append(histogram.getMax()).append("ns");
+      }
+      text.append('\n');
+    }
+    return text.toString();
+  }
+}
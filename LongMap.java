@@ -0,0 +1,173 @@
+package org.saamnet.saam.server;
+
+/**
+ * LongMap is a hash map from primitive long keys (node IDs, path IDs and
+ * node pair keys all fit) to objects.  Lookups never allocate, unlike a
+ * Hashtable keyed by Integer or Long.  Keys are kept by open addressing with
+ * linear probing.  It is not synchronized.
+ * <p>
+ * Values can be visited without an iterator:
+ * <pre>
+ *   for (int slot = 0; slot < map.capacity(); slot++)
+ *   {
+ *     Object value = map.valueAt(slot);
+ *     if (value != null) ...
+ *   }
+ * </pre>
+ */
+class LongMap
+{
+  private long[] keys;
+  private Object[] values;//null marks an empty slot
+  private int size;
+
+  LongMap()
+  {
+    this(16);
+  }
+
+  /**
+   * @param   expected  number of entries expected
+   */
+  LongMap(int expected)
+  {
+    int capacity = 16;
+    while (capacity < 2 * expected)
+    {
+      capacity *= 2;
+    }
+    keys = new long[capacity];
+    values = new Object[capacity];
+  }
+
+  /**
+   * @param   key  the key
+   * @return  its value, or null if it has none
+   */
+  Object get(long key)
+  {
+    int mask = keys.length - 1;
+    for (int slot = hash(key) & mask; values[slot] != null; slot = (slot + 1) & mask)
+    {
+      if (keys[slot] == key)
+      {
+        return values[slot];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @param   key    the key
+   * @param   value  its value, not null
+   * @return  the value it replaced, or null
+   */
+  Object put(long key, Object value)
+  {
+    int mask = keys.length - 1;
+    int slot = hash(key) & mask;
+    for (; values[slot] != null; slot = (slot + 1) & mask)
+    {
+      if (keys[slot] == key)
+      {
+        Object old = values[slot];
+        values[slot] = value;
+        return old;
+      }
+    }
+    keys[slot] = key;
+    values[slot] = value;
+    size++;
+    if (2 * size > keys.length)
+    {
+      resize(2 * keys.length);
+    }
+    return null;
+  }
+
+  /**
+   * @param   key  the key
+   * @return  the value removed, or null
+   */
+  Object remove(long key)
+  {
+    int mask = keys.length - 1;
+    int slot = hash(key) & mask;
+    for (; values[slot] != null; slot = (slot + 1) & mask)
+    {
+      if (keys[slot] == key)
+      {
+        Object old = values[slot];
+        values[slot] = null;
+        size--;
+        //move up any entry that probed past the freed slot
+        for (int next = (slot + 1) & mask; values[next] != null; next = (next + 1) & mask)
+        {
+          int home = hash(keys[next]) & mask;
+          if (((next - home) & mask) >= ((next - slot) & mask))
+          {
+            keys[slot] = keys[next];
+            values[slot] = values[next];
+            values[next] = null;
+            slot = next;
+          }
+        }
+        return old;
+      }
+    }
+    return null;
+  }
+
+  void clear()
+  {
+    for (int slot = 0; slot < values.length; slot++)
+    {
+      values[slot] = null;
+    }
+    size = 0;
+  }
+
+  int size()
+  {
+    return size;
+  }
+
+  /**
+   * @return  number of slots, for visiting values with valueAt()
+   */
+  int capacity()
+  {
+    return values.length;
+  }
+
+  /**
+   * @param   slot  0 to capacity() - 1
+   * @return  the value in that slot, or null if it is empty
+   */
+  Object valueAt(int slot)
+  {
+    return values[slot];
+  }
+
+  private void resize(int capacity)
+  {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    keys = new long[capacity];
+    values = new Object[capacity];
+    size = 0;
+    for (int slot = 0; slot < oldValues.length; slot++)
+    {
+      if (oldValues[slot] != null)
+      {
+        put(oldKeys[slot], oldValues[slot]);
+      }
+    }
+  }
+
+  private static int hash(long key)
+  {
+    key *= 0x9E3779B97F4A7C15L;
+    return (int) (key ^ (key >>> 32));
+  }
+}
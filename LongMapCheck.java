@@ -0,0 +1,242 @@
+package org.saamnet.saam.server;
+
+import java.util.*;
+
+/**
+ * LongMapCheck checks LongMap, chiefly remove(): taking an entry out of a
+ * probe chain has to shift back the entries that probed past it, wrapping
+ * around the end of the table, and leave alone the ones at or before their
+ * home slot.  It checks hand-built chains slot by slot, then a long run of
+ * random operations against a Hashtable.  It prints each failure and exits
+ * with status 1 if there were any:
+ * <pre>
+ *   java org.saamnet.saam.server.LongMapCheck
+ * </pre>
+ */
+public class LongMapCheck
+{
+  //slots in a new LongMap
+  private final static int CAPACITY = new LongMap().capacity();
+
+  private static int failures;
+
+  public static void main(String[] args)
+  {
+    checkChains();
+    checkExtremes();
+    checkRandom(new Random(1), 64, 100000);
+    checkRandom(new Random(2), 4096, 100000);
+
+    if (failures > 0)
+    {
+      System.out.println(failures + " failed");
+      System.exit(1);
+    }
+    System.out.println("LongMap ok");
+  }
+
+  /**
+   * Builds probe chains that wrap around the end of the table and checks
+   * where each entry is left after removals.
+   */
+  private static void checkChains()
+  {
+    long[] last = keysHomedAt(CAPACITY - 1, 3);
+    long[] first = keysHomedAt(0, 2);
+    long[] second = keysHomedAt(1, 1);
+
+    //a, b and c all home in the last slot, so b and c wrap to slots 0 and 1
+    //and d, homed in slot 0, is pushed to slot 2
+    LongMap map = new LongMap();
+    String a = "a", b = "b", c = "c", d = "d";
+    map.put(last[0], a);
+    map.put(last[1], b);
+    map.put(last[2], c);
+    map.put(first[0], d);
+    checkSlots(map, new Object[] {b, c, d}, "chain built");
+    check(slotOf(map, a) == CAPACITY - 1, "chain built: a not in last slot");
+
+    //taking out a moves each of the others back one, across the wrap
+    check(map.remove(last[0]) == a, "remove a");
+    check(slotOf(map, b) == CAPACITY - 1, "remove a: b not moved into last slot");
+    checkSlots(map, new Object[] {c, d, null}, "remove a");
+
+    //taking out c moves d back to its home slot
+    check(map.remove(last[2]) == c, "remove c");
+    checkSlots(map, new Object[] {d, null}, "remove c");
+    check(map.size() == 2, "size after removes");
+    checkGets(map, new long[] {last[1], first[0]}, new Object[] {b, d}, "after removes");
+
+    //e sits in its home slot 1 behind f, which wrapped to slot 0; taking
+    //out b moves f back but must leave e where it is
+    map = new LongMap();
+    String e = "e", f = "f";
+    map.put(last[0], b);
+    map.put(last[1], f);
+    map.put(second[0], e);
+    checkSlots(map, new Object[] {f, e}, "second chain built");
+    map.remove(last[0]);
+    check(slotOf(map, f) == CAPACITY - 1, "remove b: f not moved into last slot");
+    checkSlots(map, new Object[] {null, e}, "remove b");
+    checkGets(map, new long[] {last[1], second[0]}, new Object[] {f, e}, "after remove b");
+
+    //removing a key that isn't there, or twice, changes nothing
+    check(map.remove(first[1]) == null, "remove missing key");
+    check(map.remove(last[0]) == null, "remove twice");
+    check(map.size() == 2, "size after missing removes");
+  }
+
+  /**
+   * Checks keys at the ends of the range of long, and growing the table.
+   */
+  private static void checkExtremes()
+  {
+    long[] keys = {0, -1, 1, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, 1L << 32};
+    LongMap map = new LongMap();
+    for (int i = 0; i < keys.length; i++)
+    {
+      check(map.put(keys[i], new Integer(i)) == null, "put " + keys[i]);
+    }
+    for (int i = 0; i < keys.length; i++)
+    {
+      check(new Integer(i).equals(map.get(keys[i])), "get " + keys[i]);
+    }
+    check(map.put(Long.MIN_VALUE, "replaced").equals(new Integer(3)), "put returns old value");
+    check(map.size() == keys.length, "replacing changes size");
+
+    map = new LongMap(0);
+    for (int i = 0; i < 10000; i++)
+    {
+      map.put(i * 7919L, new Integer(i));
+    }
+    check(map.size() == 10000, "size after growing");
+    check(2 * map.size() <= map.capacity(), "more than half full");
+    for (int i = 0; i < 10000; i++)
+    {
+      Integer value = (Integer) map.get(i * 7919L);
+      check((value != null) && (value.intValue() == i), "get " + (i * 7919L) + " after growing");
+    }
+    map.clear();
+    check((map.size() == 0) && (map.get(0) == null) && (count(map) == 0), "clear");
+  }
+
+  /**
+   * Puts and removes random keys from a small range, so chains form,
+   * wrap and break often, checking every key after each change.
+   * @param   random  source of keys
+   * @param   range   keys are 0 to range - 1
+   * @param   ops     number of puts and removes
+   */
+  private static void checkRandom(Random random, int range, int ops)
+  {
+    LongMap map = new LongMap();
+    Hashtable model = new Hashtable();
+    for (int op = 0; (op < ops) && (failures == 0); op++)
+    {
+      long key = random.nextInt(range);
+      Long boxed = new Long(key);
+      if (random.nextInt(3) == 0)
+      {
+        check(map.remove(key) == model.remove(boxed), "remove " + key + " at op " + op);
+      }
+      else
+      {
+        Integer value = new Integer(op);
+        check(map.put(key, value) == model.put(boxed, value), "put " + key + " at op " + op);
+      }
+      if ((op % 50000) == 49999)
+      {
+        map.clear();
+        model.clear();
+      }
+      check(map.size() == model.size(), "size at op " + op);
+      if ((model.size() < 200) || ((op % 97) == 0))
+      {
+        for (Enumeration keys = model.keys(); keys.hasMoreElements();)
+        {
+          Long k = (Long) keys.nextElement();
+          check(map.get(k.longValue()) == model.get(k), "get " + k + " at op " + op);
+        }
+        check(count(map) == model.size(), "values visited at op " + op);
+      }
+    }
+  }
+
+  /**
+   * Finds keys whose home slot in a new LongMap is the given one.
+   * @param   slot   0 to CAPACITY - 1
+   * @param   count  how many keys
+   * @return  the keys, all positive and distinct
+   */
+  private static long[] keysHomedAt(int slot, int count)
+  {
+    long[] keys = new long[count];
+    int found = 0;
+    for (long key = 1; found < count; key++)
+    {
+      LongMap map = new LongMap();
+      Object value = "home";
+      map.put(key, value);
+      if (slotOf(map, value) == slot)
+      {
+        keys[found++] = key;
+      }
+    }
+    return keys;
+  }
+
+  private static int slotOf(LongMap map, Object value)
+  {
+    for (int slot = 0; slot < map.capacity(); slot++)
+    {
+      if (map.valueAt(slot) == value)
+      {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  private static int count(LongMap map)
+  {
+    int count = 0;
+    for (int slot = 0; slot < map.capacity(); slot++)
+    {
+      if (map.valueAt(slot) != null)
+      {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @param   expected  the value expected in each slot from slot 0, null for
+   *                    an empty slot
+   */
+  private static void checkSlots(LongMap map, Object[] expected, String what)
+  {
+    check(map.capacity() == CAPACITY, what + ": table grew");
+    for (int i = 0; i < expected.length; i++)
+    {
+      check(map.valueAt(i) == expected[i], what + ": slot " + i + " holds " + map.valueAt(i));
+    }
+  }
+
+  private static void checkGets(LongMap map, long[] keys, Object[] values, String what)
+  {
+    for (int i = 0; i < keys.length; i++)
+    {
+      check(map.get(keys[i]) == values[i], what + ": get " + keys[i]);
+    }
+  }
+
+  private static void check(boolean passed, String what)
+  {
+    if (!passed)
+    {
+      System.out.println("FAILED: " + what);
+      failures++;
+    }
+  }
+}
@@ -0,0 +1,186 @@
+package org.saamnet.saam.server;
+
+/**
+ * LossRateStatistics summarizes the best effort loss rates of all node pairs
+ * as they change, so fairness measures never have to walk the pairs to get
+ * them.  Each pair contributes one sample, which is replaced whenever the
+ * pair's loss rate changes.  Loss rates are integers, so the mean and
+ * variance are kept exactly as sums, which also merge exactly across
+ * partitions (see FairnessSummary).
+ * <p>
+ * Percentiles come from a histogram of the same samples in BUCKET_WIDTH
+ * ranges.  A loss rate of 0, which most pairs have, gets a bucket of its
+ * own, so pairs without loss are never lumped in with pairs that have a
+ * little.  A single BEM and a partitioned one rank pairs by the same
+ * histogram, so they classify a pair the same way.
+ */
+class LossRateStatistics
+{
+  //largest loss rate summed; anything above is summed as this, anything
+  //below 0 as 0
+  private final static int MAX_LOSS_RATE = Short.MAX_VALUE;
+
+  //width of each histogram range, in the units of a loss rate; bucket 0
+  //holds loss rate 0 and bucket b the loss rates from (b - 1) * BUCKET_WIDTH
+  //+ 1 to b * BUCKET_WIDTH
+  final static int BUCKET_WIDTH = 16;
+  final static int BUCKETS = bucketOf((short) MAX_LOSS_RATE) + 1;
+
+  private long count;
+  private long sum;
+  private long sumOfSquares;
+  private int[] buckets = new int[BUCKETS];
+
+  /**
+   * Adds a pair's loss rate.
+   * @param   lossRate  the loss rate
+   */
+  void add(short lossRate)
+  {
+    int value = clamp(lossRate);
+    count++;
+    sum += value;
+    sumOfSquares += (long) value * value;
+    buckets[bucketOf(lossRate)]++;
+  }
+
+  /**
+   * Removes a loss rate previously added.
+   * @param   lossRate  the loss rate
+   */
+  void remove(short lossRate)
+  {
+    int value = clamp(lossRate);
+    count--;
+    sum -= value;
+    sumOfSquares -= (long) value * value;
+    buckets[bucketOf(lossRate)]--;
+  }
+
+  /**
+   * Replaces a pair's loss rate.
+   * @param   oldLossRate  the loss rate previously added
+   * @param   newLossRate  the loss rate now
+   */
+  void update(short oldLossRate, short newLossRate)
+  {
+    if (clamp(oldLossRate) != clamp(newLossRate))
+    {
+      remove(oldLossRate);
+      add(newLossRate);
+    }
+  }
+
+  long getCount()
+  {
+    return count;
+  }
+
+  long getSum()
+  {
+    return sum;
+  }
+
+  long getSumOfSquares()
+  {
+    return sumOfSquares;
+  }
+
+  /**
+   * @return  a copy of the histogram: pairs in each bucket
+   */
+  int[] getBuckets()
+  {
+    int[] copy = new int[BUCKETS];
+    System.arraycopy(buckets, 0, copy, 0, BUCKETS);
+    return copy;
+  }
+
+  /**
+   * @return  mean of the loss rates, 0 if there are none
+   */
+  double getMean()
+  {
+    if (count == 0)
+    {
+      return 0;
+    }
+    return (double) sum / count;
+  }
+
+  /**
+   * @return  population variance of the loss rates, 0 if there are none
+   */
+  double getVariance()
+  {
+    if (count == 0)
+    {
+      return 0;
+    }
+    double mean = getMean();
+    return Math.max(0, ((double) sumOfSquares / count) - (mean * mean));
+  }
+
+  double getStdDev()
+  {
+    return Math.sqrt(getVariance());
+  }
+
+  /**
+   * @see     #percentileBucket(int[], long, double)
+   */
+  int percentileBucket(double fraction)
+  {
+    return percentileBucket(buckets, count, fraction);
+  }
+
+  /**
+   * Finds the first bucket of a histogram whose pairs rank above a
+   * fraction of all the pairs.  Pairs that share a bucket are ranked at its
+   * middle, (pairs below + half the bucket's pairs) / count, so a loss rate
+   * many pairs share, such as 0, puts them all on the same side of the
+   * fraction instead of splitting them by the order they were counted in.
+   * Ranks never fall from one bucket to the next, so a pair ranks above the
+   * fraction exactly when its bucket is at or after the one returned.
+   * @param   buckets   pairs in each bucket
+   * @param   count     pairs in all the buckets
+   * @param   fraction  0 to 1
+   * @return  the bucket, or BUCKETS if no pair ranks above the fraction
+   */
+  static int percentileBucket(int[] buckets, long count, double fraction)
+  {
+    double wanted = 2 * fraction * count;
+    long below = 0;
+    for (int b = 0; b < buckets.length; b++)
+    {
+      if ((2 * below) + buckets[b] > wanted)
+      {
+        return b;
+      }
+      below += buckets[b];
+    }
+    return buckets.length;
+  }
+
+  /**
+   * @return  the histogram bucket a loss rate is counted in
+   */
+  static int bucketOf(short lossRate)
+  {
+    return (clamp(lossRate) + BUCKET_WIDTH - 1) / BUCKET_WIDTH;
+  }
+
+  /**
+   * @return  the least loss rate counted in a bucket; above MAX_LOSS_RATE
+   *          for BUCKETS
+   */
+  static int lowestLossRate(int bucket)
+  {
+    return (bucket == 0) ? 0 : ((bucket - 1) * BUCKET_WIDTH) + 1;
+  }
+
+  private static int clamp(short lossRate)
+  {
+    return Math.max(0, Math.min(lossRate, MAX_LOSS_RATE));
+  }
+}
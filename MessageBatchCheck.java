@@ -0,0 +1,168 @@
+package org.saamnet.saam.message;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+import org.saamnet.saam.net.*;
+
+/**
+ * MessageBatchCheck checks that a BestEffortTableBatch and a
+ * CongestionAdvisoryBatch decode to what was encoded, up to the most routes,
+ * paths and advisories a message can hold, and that those limits are as
+ * high as the short length field allows.  It prints each failure and exits
+ * with status 1 if there were any:
+ * <pre>
+ *   java org.saamnet.saam.message.MessageBatchCheck
+ * </pre>
+ */
+public class MessageBatchCheck
+{
+  //wire layout: type and length fields, then a count, then the entries
+  private final static int HEADER_LENGTH = 1 + 2 + 2;
+  private final static int ROUTE_HEADER_LENGTH = IPv6Prefix.ADDRESS_LENGTH + 1 + 1;//address, prefix length, path count
+  private final static int ADVISORY_LENGTH = 4 + 1;//path ID, condition
+
+  private static int failures;
+
+  public static void main(String[] args) throws UnknownHostException
+  {
+    checkTableBatch(BestEffortTableBatch.MAX_ROUTES, 2);
+    checkTableBatch(BestEffortTableBatch.maxRoutes(BestEffortTableBatch.MAX_PATHS), BestEffortTableBatch.MAX_PATHS);
+    checkTableBatch(1, BestEffortTableBatch.MAX_PATHS);
+    checkTableBatch(3, 0);//withdrawals only
+    checkTableBatch(0, 2);
+    checkAdvisoryBatch(CongestionAdvisoryBatch.MAX_ADVISORIES);
+    checkAdvisoryBatch(1);
+    checkAdvisoryBatch(0);
+
+    if (failures > 0)
+    {
+      System.out.println(failures + " failed");
+      System.exit(1);
+    }
+    System.out.println("message batches ok");
+  }
+
+  /**
+   * Round trips a batch of routes that all have the same number of paths.
+   * A batch holding as many routes as maxRoutes() allows must fit the
+   * length field, and one more route must not.
+   * @param   count  number of routes
+   * @param   paths  number of paths in each
+   */
+  private static void checkTableBatch(int count, int paths) throws UnknownHostException
+  {
+    String what = count + " routes of " + paths + " paths";
+    Vector routes = new Vector();
+    for (int i = 0; i < count; i++)
+    {
+      byte[] address = new byte[IPv6Prefix.ADDRESS_LENGTH];
+      address[0] = 0x20;
+      address[1] = 0x01;
+      address[14] = (byte) (i >> 8);
+      address[15] = (byte) i;
+      int[] pathIDs = new int[paths];
+      for (int j = 0; j < paths; j++)
+      {
+        pathIDs[j] = pathID(i * paths + j);
+      }
+      IPv6Address destAddr = IPv6Address.getByName(InetAddress.getByAddress(address).getHostAddress());
+      routes.add(new BestEffortTableBatch.Route(destAddr, i % (IPv6Prefix.MAX_PREFIX_LENGTH + 1), pathIDs));
+    }
+    byte[] bytes = new BestEffortTableBatch(routes).getBytes();
+    int length = readShort(bytes, 1);
+    check(bytes[0] == Message.BEST_EFFORT_TBL_BATCH, what + ": type");
+    int routeLength = ROUTE_HEADER_LENGTH + 4 * paths;
+    check(bytes.length == HEADER_LENGTH + count * routeLength, what + ": " + bytes.length + " bytes");
+    check(length == bytes.length - 3, what + ": length field " + length + " for " + bytes.length + " bytes");
+    check(bytes.length - 3 <= Short.MAX_VALUE, what + ": " + bytes.length + " bytes overflows the length field");
+    if (count == BestEffortTableBatch.maxRoutes(paths))
+    {
+      check(bytes.length - 3 + routeLength > Short.MAX_VALUE, what + ": room for another route");
+    }
+
+    BestEffortTableBatch.Route[] decoded = new BestEffortTableBatch(bytes).getRoutes();
+    check(decoded.length == count, what + ": decoded " + decoded.length + " routes");
+    for (int i = 0; (i < count) && (i < decoded.length); i++)
+    {
+      BestEffortTableBatch.Route sent = (BestEffortTableBatch.Route) routes.get(i);
+      BestEffortTableBatch.Route got = decoded[i];
+      check(Arrays.equals(got.destAddr.getAddress(), sent.destAddr.getAddress()), what + ": route " + i + " address");
+      check(got.prefixLength == sent.prefixLength, what + ": route " + i + " prefix length " + got.prefixLength);
+      check(Arrays.equals(got.pathIDs, sent.pathIDs), what + ": route " + i + " paths");
+      check(got.isWithdrawal() == (paths == 0), what + ": route " + i + " withdrawal");
+    }
+  }
+
+  /**
+   * Round trips a batch of advisories, reading it back both through the
+   * constructor and in place through the static accessors.
+   * @param   count  number of advisories
+   */
+  private static void checkAdvisoryBatch(int count)
+  {
+    String what = count + " advisories";
+    byte[] conditions = {CongestionAdvisory.GREEN, CongestionAdvisory.YELLOW, CongestionAdvisory.RED};
+    //longer than count, as a server's reused arrays are
+    int[] pathIDs = new int[count + 5];
+    byte[] pathConditions = new byte[count + 5];
+    for (int i = 0; i < pathIDs.length; i++)
+    {
+      pathIDs[i] = pathID(i);
+      pathConditions[i] = conditions[i % conditions.length];
+    }
+    byte[] bytes = new CongestionAdvisoryBatch(pathIDs, pathConditions, count).getBytes();
+    int length = readShort(bytes, 1);
+    check(bytes[0] == Message.CONGESTION_ADVISORY_BATCH, what + ": type");
+    check(bytes.length == HEADER_LENGTH + count * ADVISORY_LENGTH, what + ": " + bytes.length + " bytes");
+    check(length == bytes.length - 3, what + ": length field " + length + " for " + bytes.length + " bytes");
+    check(bytes.length - 3 <= Short.MAX_VALUE, what + ": " + bytes.length + " bytes overflows the length field");
+    if (count == CongestionAdvisoryBatch.MAX_ADVISORIES)
+    {
+      check(bytes.length - 3 + ADVISORY_LENGTH > Short.MAX_VALUE, what + ": room for another advisory");
+    }
+
+    check(CongestionAdvisoryBatch.getCount(bytes) == count, what + ": count read in place");
+    CongestionAdvisoryBatch decoded = new CongestionAdvisoryBatch(bytes);
+    check(decoded.getCount() == count, what + ": decoded count " + decoded.getCount());
+    for (int i = 0; (i < count) && (i < decoded.getCount()); i++)
+    {
+      check(CongestionAdvisoryBatch.getPathID(bytes, i) == pathIDs[i], what + ": path " + i + " read in place");
+      check(CongestionAdvisoryBatch.pathCondition(bytes, i) == pathConditions[i], what + ": condition " + i + " read in place");
+      check(decoded.getPathID(i) == pathIDs[i], what + ": path " + i);
+      check(decoded.pathCondition(i) == pathConditions[i], what + ": condition " + i);
+    }
+  }
+
+  /**
+   * @return  a path ID for index i, using every byte and the sign bit
+   */
+  private static int pathID(int i)
+  {
+    switch (i % 4)
+    {
+    case 0:
+      return i;
+    case 1:
+      return Integer.MAX_VALUE - i;
+    case 2:
+      return Integer.MIN_VALUE + i;
+    default:
+      return -i;
+    }
+  }
+
+  private static int readShort(byte[] bytes, int offset)
+  {
+    return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+  }
+
+  private static void check(boolean passed, String what)
+  {
+    if (!passed)
+    {
+      System.out.println("FAILED: " + what);
+      failures++;
+    }
+  }
+}
@@ -0,0 +1,23 @@
+package org.saamnet.saam.util;
+
+/**
+ * A MetricsExporter publishes the metrics of a MetricsRegistry somewhere
+ * they can be watched: JMX, a log, a monitoring system.  Exporters are
+ * named by the saam.metrics.exporters system property and made with their
+ * no-argument constructor, so any class implementing this can be plugged
+ * in without changing SAAM.
+ */
+public interface MetricsExporter
+{
+  /**
+   * Starts publishing.  Metrics may be added to the registry afterwards;
+   * the exporter reads the registry's names each time it publishes.
+   * @param   registry  the metrics to publish
+   */
+  void start(MetricsRegistry registry);
+
+  /**
+   * Stops publishing.
+   */
+  void stop();
+}
@@ -0,0 +1,152 @@
+package org.saamnet.saam.util;
+
+import java.util.*;
+
+/**
+ * MetricsRegistry holds the named Counters and LatencyHistograms SAAM
+ * components keep about themselves, and hands them to the MetricsExporters
+ * that publish them.  Names are dotted, starting with the component, as in
+ * "bem.advisories.yellow".  Asking for a metric by a name that is already
+ * registered returns the one registered, so a component can be made more
+ * than once in a JVM without losing counts.
+ * <p>
+ * The default registry, used by the BestEffortManager and BestEffortTable,
+ * installs the exporters named (by class, comma separated) in the
+ * saam.metrics.exporters system property when it is first used, JMX by
+ * default; "none" installs none.
+ */
+public class MetricsRegistry
+{
+  public final static String EXPORTERS_PROPERTY = "saam.metrics.exporters";
+  public final static String DEFAULT_EXPORTERS = "org.saamnet.saam.util.JmxMetricsExporter";
+
+  private static MetricsRegistry defaultRegistry;
+
+  //Counters and LatencyHistograms by name, in name order
+  private TreeMap metrics = new TreeMap();
+
+  private Vector exporters = new Vector();
+
+  /**
+   * @return  the registry shared by this JVM's components
+   */
+  public static synchronized MetricsRegistry getDefault()
+  {
+    if (defaultRegistry == null)
+    {
+      defaultRegistry = new MetricsRegistry();
+      defaultRegistry.installExporters(System.getProperty(EXPORTERS_PROPERTY, DEFAULT_EXPORTERS));
+    }
+    return defaultRegistry;
+  }
+
+  /**
+   * @param   name  the counter's name
+   * @return  the counter, registered if it is new
+   * @throws  IllegalArgumentException  if name is a histogram's
+   */
+  public synchronized Counter counter(String name)
+  {
+    Object metric = metrics.get(name);
+    if (metric == null)
+    {
+      metric = new Counter();
+      metrics.put(name, metric);
+    }
+    if (!(metric instanceof Counter))
+    {
+      throw new IllegalArgumentException(name + " is not a Counter");
+    }
+    return (Counter) metric;
+  }
+
+  /**
+   * @param   name  the histogram's name
+   * @return  the histogram, registered if it is new
+   * @throws  IllegalArgumentException  if name is a counter's
+   */
+  public synchronized LatencyHistogram histogram(String name)
+  {
+    Object metric = metrics.get(name);
+    if (metric == null)
+    {
+      metric = new LatencyHistogram();
+      metrics.put(name, metric);
+    }
+    if (!(metric instanceof LatencyHistogram))
+    {
+      throw new IllegalArgumentException(name + " is not a LatencyHistogram");
+    }
+    return (LatencyHistogram) metric;
+  }
+
+  /**
+   * @return  the names of every metric, in order
+   */
+  public synchronized String[] getNames()
+  {
+    return (String[]) metrics.keySet().toArray(new String[metrics.size()]);
+  }
+
+  /**
+   * @param   name  a metric's name
+   * @return  its Counter or LatencyHistogram, or null if there is none
+   */
+  public synchronized Object get(String name)
+  {
+    return metrics.get(name);
+  }
+
+  /**
+   * Starts an exporter publishing this registry.
+   * @param   exporter  the exporter
+   */
+  public void addExporter(MetricsExporter exporter)
+  {
+    exporter.start(this);
+    exporters.add(exporter);
+  }
+
+  /**
+   * Stops every exporter.
+   */
+  public void stopExporters()
+  {
+    MetricsExporter[] stopping = (MetricsExporter[]) exporters.toArray(new MetricsExporter[0]);
+    exporters.clear();
+    for (int i = 0; i < stopping.length; i++)
+    {
+      stopping[i].stop();
+    }
+  }
+
+  /**
+   * Makes and starts the exporters named in a list.  One that can't be
+   * made, such as the JMX exporter where there is no JMX, is skipped.
+   * @param   classNames  comma separated class names, or "none"
+   */
+  private void installExporters(String classNames)
+  {
+    StringTokenizer tokens = new StringTokenizer(classNames, ",");
+    while (tokens.hasMoreTokens())
+    {
+      String className = tokens.nextToken().trim();
+      if ((className.length() == 0) || className.equalsIgnoreCase("none"))
+      {
+        continue;
+      }
+      try
+      {
+        addExporter((MetricsExporter) Class.forName(className).newInstance());
+      }
+      catch (Exception e)
+      {
+        System.out.println("MetricsRegistry Error: can't install exporter " + className + ". " + e);
+      }
+      catch (LinkageError le)
+      {
+        System.out.println("MetricsRegistry Error: can't install exporter " + className + ". " + le);
+      }
+    }
+  }
+}
@@ -0,0 +1,158 @@
+package org.saamnet.saam.server;
+
+import java.util.*;
+
+/**
+ * MonitoringPipeline takes best effort loss samples off the thread that
+ * processes LSAs and hands them to the BestEffortManager once per AC cycle,
+ * on a thread of its own.  Samples for the same path within a cycle are
+ * merged, keeping the latest, so each path is evaluated at most once per
+ * cycle however many LSAs reported it.  Paths are evaluated in the order
+ * they were first reported during the cycle.
+ */
+class MonitoringPipeline implements Runnable
+{
+  /**
+   * The latest loss sample for a path.
+   */
+  static class LossSample
+  {
+    BasePIB.Path path;
+    short lossRate;
+
+    LossSample(BasePIB.Path path, short lossRate)
+    {
+      this.path = path;
+      this.lossRate = lossRate;
+    }
+  }
+
+  private BestEffortManager bem;
+  private Server server;
+
+  //LossSamples of the current cycle keyed by path ID (Integer)
+  private LinkedHashMap pending = new LinkedHashMap();
+
+  private long samplesReceived;
+  private long samplesMerged;
+
+  private Thread worker;
+  private volatile boolean running;
+
+  /**
+   * @param   bem     the manager to hand samples to
+   * @param   server  gives the AC cycle period
+   */
+  MonitoringPipeline(BestEffortManager bem, Server server)
+  {
+    this.bem = bem;
+    this.server = server;
+  }
+
+  /**
+   * Starts the pipeline's thread.
+   */
+  void start()
+  {
+    running = true;
+    worker = new Thread(this, "BEM monitor");
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * Stops the pipeline; samples not yet processed are dropped.
+   */
+  void stop()
+  {
+    running = false;
+    if (worker != null)
+    {
+      worker.interrupt();
+    }
+  }
+
+  /**
+   * Queues a loss sample for the current cycle.  Returns at once.
+   * @param   path      the path observed
+   * @param   lossRate  its best effort loss rate
+   */
+  synchronized void submit(BasePIB.Path path, short lossRate)
+  {
+    samplesReceived++;
+    LossSample sample = (LossSample) pending.get(path.getPathID());
+    if (sample != null)
+    {
+      sample.lossRate = lossRate;
+      samplesMerged++;
+    }
+    else
+    {
+      pending.put(path.getPathID(), new LossSample(path, lossRate));
+    }
+  }
+
+  /**
+   * Takes the samples of the cycle just ended.
+   * @return  the samples, possibly none
+   */
+  private synchronized LossSample[] drain()
+  {
+    LossSample[] samples = (LossSample[]) pending.values().toArray(new LossSample[pending.size()]);
+    pending.clear();
+    return samples;
+  }
+
+  public void run()
+  {
+    long next = System.currentTimeMillis();
+    while (running)
+    {
+      next += Math.max(1, server.getAC_cyclePeriod());
+      long wait = next - System.currentTimeMillis();
+      if (wait > 0)
+      {
+        try
+        {
+          Thread.sleep(wait);
+        }
+        catch (InterruptedException ie)
+        {
+          continue;//running is rechecked
+        }
+      }
+
+      runCycle();
+    }
+  }
+
+  /**
+   * Ends the current cycle, handing its samples to the BestEffortManager.
+   * The pipeline's thread calls this once per AC cycle; a simulation that
+   * has stopped the thread calls it at each cycle of its own clock.
+   */
+  void runCycle()
+  {
+    //called even for an empty cycle, which still ends with a fairness summary
+    LossSample[] samples = drain();
+    try
+    {
+      bem.processLossSamples(samples);
+    }
+    catch (RuntimeException re)
+    {
+      //one bad cycle must not stop monitoring
+      System.out.println(re + " thrown by MonitoringPipeline in BestEffortManager.");
+    }
+  }
+
+  synchronized long getSamplesReceived()
+  {
+    return samplesReceived;
+  }
+
+  synchronized long getSamplesMerged()
+  {
+    return samplesMerged;
+  }
+}
@@ -0,0 +1,253 @@
+package org.saamnet.saam.server;
+
+import java.util.*;
+
+/**
+ * PathCache remembers the results of routingAlgorithm.findPath() for the
+ * BestEffortManager, keyed by source router, destination router, excluded
+ * path and metric.  Results, including finding no path, are good for one
+ * topology epoch; a change to the topology starts a new epoch, which
+ * invalidates every result at once.  Changes to link state only invalidate
+ * the results that depend on them: those whose path (found or excluded)
+ * passes through a node whose links changed.  A cached path is therefore
+ * kept until something on it changes, even if a link elsewhere improves.
+ * The least recently used results are evicted beyond capacity.
+ * <p>
+ * The BasePIB learns of topology and link state changes from LSAs, which
+ * BEM doesn't see, so every lookup also checks the result against the PIB:
+ * a change in the number of nodes starts a new epoch, and a found path that
+ * has left the PIB, or whose available bandwidth has changed since it was
+ * found, is searched for again.
+ */
+class PathCache
+{
+  //results kept by default
+  final static int DEFAULT_CAPACITY = 4096;
+
+  /**
+   * The arguments of one findPath() call.
+   */
+  static class PathQuery
+  {
+    String srcRouterID;
+    String destRouterID;
+    int excludedPathID;//-1 if none
+    int metric;
+    private int hash;
+
+    PathQuery(String srcRouterID, String destRouterID, int excludedPathID, int metric)
+    {
+      this.srcRouterID = srcRouterID;
+      this.destRouterID = destRouterID;
+      this.excludedPathID = excludedPathID;
+      this.metric = metric;
+      hash = ((srcRouterID.hashCode() * 31 + destRouterID.hashCode()) * 31 + excludedPathID) * 31 + metric;
+    }
+
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof PathQuery))
+      {
+        return false;
+      }
+      PathQuery other = (PathQuery) o;
+      return (other.hash == hash) && (other.excludedPathID == excludedPathID) &&
+             (other.metric == metric) && other.srcRouterID.equals(srcRouterID) &&
+             other.destRouterID.equals(destRouterID);
+    }
+
+    public int hashCode()
+    {
+      return hash;
+    }
+  }
+
+  /**
+   * A cached result and what it depends on.
+   */
+  static class CachedPath
+  {
+    BasePIB.Path path;//null if no path was found
+    int bandwidth;//path's available bandwidth when it was found
+    long epoch;
+    int[] nodes;//node IDs of the found and excluded paths
+  }
+
+  /**
+   * Results in access order, dropping the least recently used once there
+   * are more than capacity.
+   */
+  static class LruMap extends LinkedHashMap
+  {
+    private static final long serialVersionUID = 1L;
+
+    private int capacity;
+
+    LruMap(int capacity)
+    {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    protected boolean removeEldestEntry(Map.Entry eldest)
+    {
+      return size() > capacity;
+    }
+  }
+
+  private BasePIB pib;
+  private LruMap results;
+  private long epoch;
+  private int nodeCount = -1;//the PIB's nodes when the epoch began
+  private long hits;
+  private long misses;
+
+  /**
+   * @param   capacity  the most results to keep
+   * @param   pib       the PIB the paths are found in
+   */
+  PathCache(int capacity, BasePIB pib)
+  {
+    this.pib = pib;
+    results = new LruMap(capacity);
+  }
+
+  /**
+   * Looks up a result from the current epoch that the PIB still agrees with.
+   * @param   query  the findPath() arguments
+   * @return  the result, or null if there is none
+   */
+  synchronized CachedPath get(PathQuery query)
+  {
+    if (pib.htNodeIDtoRouterID.size() != nodeCount)
+    {
+      topologyChanged();
+    }
+    CachedPath cached = (CachedPath) results.get(query);
+    if ((cached == null) || (cached.epoch != epoch) || !isCurrent(cached))
+    {
+      misses++;
+      return null;
+    }
+    hits++;
+    return cached;
+  }
+
+  /**
+   * @return  whether a result's path is still in the PIB, with the
+   *          bandwidth it was found with
+   */
+  private boolean isCurrent(CachedPath cached)
+  {
+    if (cached.path == null)
+    {
+      return true;
+    }
+    return (pib.htPaths.get(cached.path.getPathID()) == cached.path) &&
+           (bandwidthOf(cached.path) == cached.bandwidth);
+  }
+
+  private static int bandwidthOf(BasePIB.Path path)
+  {
+    return path.getPathQoSArray()[BasePIB.BEST_EFFORT].getAvailableBandwidth();
+  }
+
+  /**
+   * Remembers a result for the current epoch.
+   * @param   query     the findPath() arguments
+   * @param   path      the path found, or null
+   * @param   excluded  the excluded path, or null
+   */
+  synchronized void put(PathQuery query, BasePIB.Path path, BasePIB.Path excluded)
+  {
+    CachedPath cached = new CachedPath();
+    cached.path = path;
+    cached.bandwidth = (path == null) ? 0 : bandwidthOf(path);
+    cached.epoch = epoch;
+    int[] pathNodes = nodeIDs(path);
+    int[] excludedNodes = nodeIDs(excluded);
+    cached.nodes = new int[pathNodes.length + excludedNodes.length];
+    System.arraycopy(pathNodes, 0, cached.nodes, 0, pathNodes.length);
+    System.arraycopy(excludedNodes, 0, cached.nodes, pathNodes.length, excludedNodes.length);
+    results.put(query, cached);
+  }
+
+  /**
+   * @return  the IDs of a path's source node and the nodes along it, or an
+   *          empty array if path is null
+   */
+  private static int[] nodeIDs(BasePIB.Path path)
+  {
+    if (path == null)
+    {
+      return new int[0];
+    }
+    Vector sequence = path.getNodeSequence();
+    int[] nodes = new int[sequence.size() + 1];
+    nodes[0] = path.getSrcNodeID();
+    for (int i = 0; i < sequence.size(); i++)
+    {
+      nodes[i + 1] = ((Integer) sequence.elementAt(i)).intValue();
+    }
+    return nodes;
+  }
+
+  /**
+   * Starts a new topology epoch; every result cached so far is invalid.
+   */
+  synchronized void topologyChanged()
+  {
+    epoch++;
+    nodeCount = pib.htNodeIDtoRouterID.size();
+  }
+
+  /**
+   * Drops the results that depend on a node's links.
+   * @param   nodeID  the node whose link state changed
+   */
+  void invalidateNode(int nodeID)
+  {
+    invalidateNodes(new int[] {nodeID});
+  }
+
+  /**
+   * Drops the results that depend on the links of any node along a path.
+   * @param   path  the path whose link state changed
+   */
+  void invalidatePath(BasePIB.Path path)
+  {
+    int[] nodes = nodeIDs(path);
+    Arrays.sort(nodes);
+    invalidateNodes(nodes);
+  }
+
+  /**
+   * @param   nodes  IDs of the nodes whose link state changed, sorted
+   */
+  private synchronized void invalidateNodes(int[] nodes)
+  {
+    Iterator i = results.values().iterator();
+    while (i.hasNext())
+    {
+      CachedPath cached = (CachedPath) i.next();
+      for (int n = 0; n < cached.nodes.length; n++)
+      {
+        if (Arrays.binarySearch(nodes, cached.nodes[n]) >= 0)
+        {
+          i.remove();
+          break;
+        }
+      }
+    }
+  }
+
+  synchronized long getHits()
+  {
+    return hits;
+  }
+
+  synchronized long getMisses()
+  {
+    return misses;
+  }
+}
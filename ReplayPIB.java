@@ -0,0 +1,242 @@
+package org.saamnet.saam.server;
+
+import java.util.*;
+import java.net.UnknownHostException;
+
+import org.saamnet.saam.net.*;
+
+/**
+ * ReplayPIB stands in for the BasePIB when TraceReplay feeds a trace back
+ * through a BestEffortManager.  It holds only what the trace recorded: the
+ * paths BEM saw, the edge nodes and interfaces EdgeNotifications reported,
+ * and each path's latest best effort loss rate and available bandwidth.
+ * Paths are loaded from the whole trace up front but join htPaths only as
+ * the replay reaches them, or the ReplayRoutingAlgorithm finds them, so
+ * BEM sees the PIB grow as it did.  Path timers are read from the replay's
+ * Clock.
+ */
+class ReplayPIB extends BasePIB
+{
+  private Clock clock;
+
+  //every ReplayPath in the trace, keyed by path ID
+  private LongMap tracedPaths = new LongMap();
+
+  private int pathsSetUp;
+
+  /**
+   * A path as the trace recorded it.
+   */
+  class ReplayPath extends Path
+  {
+    Integer pathID;
+    int srcNodeID;
+    int destNodeID;
+    int availableBandwidth;
+    private Vector nodeSequence;
+    private PathQoS[] qos = {new ReplayQoS(this)};
+
+    ReplayPath(int pathID, int srcNodeID, int destNodeID, int[] nodes, int availableBandwidth)
+    {
+      this.pathID = new Integer(pathID);
+      this.srcNodeID = srcNodeID;
+      this.destNodeID = destNodeID;
+      this.availableBandwidth = availableBandwidth;
+      nodeSequence = new Vector(nodes.length);
+      for (int i = 0; i < nodes.length; i++)
+      {
+        nodeSequence.add(new Integer(nodes[i]));
+      }
+      bestEffortTrafficCondition = GRAY;
+    }
+
+    public Integer getPathID()
+    {
+      return pathID;
+    }
+
+    public int getSrcNodeID()
+    {
+      return srcNodeID;
+    }
+
+    public int getDestNodeID()
+    {
+      return destNodeID;
+    }
+
+    public Vector getNodeSequence()
+    {
+      return nodeSequence;
+    }
+
+    public PathQoS[] getPathQoSArray()
+    {
+      return qos;
+    }
+
+    public void newCongestion()
+    {
+      bestEffortTrafficCondition = YELLOW;
+      timeLastAdvisorySent = clock.currentTimeMillis();
+    }
+
+    public void congestionCleared()
+    {
+      bestEffortTrafficCondition = GREEN;
+    }
+
+    public void expireBEpath()
+    {
+      bestEffortTrafficCondition = RED;
+      timeConditionRed = clock.currentTimeMillis();
+    }
+
+    public boolean unexpireBEpath()
+    {
+      bestEffortTrafficCondition = GREEN;
+      return true;
+    }
+
+    public void initiateBestEffortTraffic()
+    {
+      bBestEffortTraffic = true;
+      if (bestEffortTrafficCondition == GRAY)
+      {
+        bestEffortTrafficCondition = GREEN;
+      }
+    }
+
+    public void terminateBestEffortTraffic()
+    {
+      bBestEffortTraffic = false;
+      bestEffortTrafficCondition = GRAY;
+    }
+  }
+
+  /**
+   * A path's best effort QoS, as last sampled.
+   */
+  class ReplayQoS extends PathQoS
+  {
+    private ReplayPath path;
+
+    ReplayQoS(ReplayPath path)
+    {
+      this.path = path;
+    }
+
+    public short getPacketLossRate()
+    {
+      return path.bestEffortLossRate;
+    }
+
+    public int getAvailableBandwidth()
+    {
+      return path.availableBandwidth;
+    }
+  }
+
+  /**
+   * An edge node's interface.
+   */
+  class ReplayInterface extends InterfaceInfo
+  {
+    private Integer nodeID;
+
+    ReplayInterface(int nodeID)
+    {
+      this.nodeID = new Integer(nodeID);
+    }
+
+    public Integer getNodeID()
+    {
+      return nodeID;
+    }
+  }
+
+  /**
+   * @param   header  a reader that has read the trace's HEADER
+   * @param   clock   the clock path timers read
+   */
+  ReplayPIB(TraceReader header, Clock clock)
+  {
+    this.clock = clock;
+    thresholdLossRate = header.thresholdLossRate;
+    timeScale = header.timeScale;
+    htPaths = new Hashtable();
+    htNodeIDtoRouterID = new Hashtable();
+    htRouterIDtoNodeID = new Hashtable();
+    htInterfaces = new Hashtable();
+    routingAlgorithm = new ReplayRoutingAlgorithm(this);
+  }
+
+  /**
+   * Loads a path from the trace without adding it to htPaths.
+   * @param   record  a reader that has read a PATH record
+   */
+  void loadPath(TraceReader record)
+  {
+    tracedPaths.put(record.pathID, new ReplayPath(record.pathID, record.srcNodeID, record.destNodeID,
+                                                  record.nodeSequence, record.availableBandwidth));
+  }
+
+  /**
+   * Adds a loaded path to htPaths, if it isn't already.
+   * @param   pathID  the path
+   * @return  the path, or null if the trace has no such path
+   */
+  synchronized ReplayPath addPath(int pathID)
+  {
+    ReplayPath path = (ReplayPath) tracedPaths.get(pathID);
+    if ((path != null) && !htPaths.containsKey(path.pathID))
+    {
+      htPaths.put(path.pathID, path);
+    }
+    return path;
+  }
+
+  /**
+   * Adds an edge node and its interface as an EdgeNotification found them.
+   * @param   interfaceAddress  the interface
+   * @param   nodeID            its node
+   * @param   routerID          the node's router
+   * @throws  UnknownHostException  if an address can't be read
+   */
+  synchronized void addEdge(String interfaceAddress, int nodeID, String routerID) throws UnknownHostException
+  {
+    Integer node = new Integer(nodeID);
+    IPv6Address router = IPv6Address.getByName(routerID);
+    htNodeIDtoRouterID.put(node, router);
+    htRouterIDtoNodeID.put(router.toString(), node);
+    htInterfaces.put(IPv6Address.getByName(interfaceAddress).toString(), new ReplayInterface(nodeID));
+  }
+
+  /**
+   * Sets a path's loss rate and bandwidth from a loss sample.
+   * @return  the path, or null if the trace has no such path
+   */
+  ReplayPath sample(int pathID, short lossRate, int availableBandwidth)
+  {
+    ReplayPath path = addPath(pathID);
+    if (path != null)
+    {
+      path.bestEffortLossRate = lossRate;
+      path.availableBandwidth = availableBandwidth;
+    }
+    return path;
+  }
+
+  public void setupPath(Path path, int pathID, byte installedFor)
+  {
+    synchronized (this)
+    {
+      pathsSetUp++;
+    }
+  }
+
+  synchronized int getPathsSetUp()
+  {
+    return pathsSetUp;
+  }
+}
@@ -0,0 +1,90 @@
+package org.saamnet.saam.server;
+
+import java.util.*;
+
+import org.saamnet.saam.net.*;
+
+/**
+ * ReplayRoutingAlgorithm stands in for the RoutingAlgorithm when a trace is
+ * replayed, answering each query with the path the real routing algorithm
+ * gave to the same query (source, destination, excluded path and metric)
+ * in the trace.  A query asked more often than it was recorded gets the
+ * last answer again.  A query the trace never saw, as when BEM's policy
+ * has changed since, finds no path; getUnanswered() counts them.
+ */
+class ReplayRoutingAlgorithm extends RoutingAlgorithm
+{
+  /**
+   * One query's recorded answers, and how many have been given.
+   */
+  static class Answers
+  {
+    Vector pathIDs = new Vector(1);
+    int given;
+  }
+
+  private ReplayPIB pib;
+
+  //answers (path IDs as Integers, -1 for none) by query, in recorded order
+  private Hashtable answers = new Hashtable();
+
+  private int calls;
+  private int unanswered;
+
+  ReplayRoutingAlgorithm(ReplayPIB pib)
+  {
+    this.pib = pib;
+  }
+
+  /**
+   * @param   record  a reader that has read a FIND_PATH record
+   */
+  synchronized void loadAnswer(TraceReader record)
+  {
+    String query = query(record.address, record.routerID, record.excludedPathID, record.metric);
+    Answers recorded = (Answers) answers.get(query);
+    if (recorded == null)
+    {
+      recorded = new Answers();
+      answers.put(query, recorded);
+    }
+    recorded.pathIDs.add(new Integer(record.pathID));
+  }
+
+  public BasePIB.Path findPath(IPv6Address srcRouterID, IPv6Address destRouterID,
+                               BasePIB.Path excludedPath, int metric)
+  {
+    int pathID;
+    synchronized (this)
+    {
+      calls++;
+      String query = query(srcRouterID.toString(), destRouterID.toString(),
+                           (excludedPath == null) ? -1 : excludedPath.getPathID().intValue(), metric);
+      Answers recorded = (Answers) answers.get(query);
+      if (recorded == null)
+      {
+        unanswered++;
+        return null;
+      }
+      int answer = Math.min(recorded.given, recorded.pathIDs.size() - 1);
+      recorded.given++;
+      pathID = ((Integer) recorded.pathIDs.elementAt(answer)).intValue();
+    }
+    return (pathID < 0) ? null : pib.addPath(pathID);
+  }
+
+  private static String query(String srcRouterID, String destRouterID, int excludedPathID, int metric)
+  {
+    return srcRouterID + " " + destRouterID + " " + excludedPathID + " " + metric;
+  }
+
+  synchronized int getCalls()
+  {
+    return calls;
+  }
+
+  synchronized int getUnanswered()
+  {
+    return unanswered;
+  }
+}
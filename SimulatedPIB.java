@@ -0,0 +1,403 @@
+package org.saamnet.saam.server;
+
+import java.util.*;
+import java.net.UnknownHostException;
+
+import org.saamnet.saam.net.*;
+
+/**
+ * SimulatedPIB stands in for the BasePIB in the BestEffortSimulator.  It
+ * generates a synthetic topology of edge routers, each with one interface,
+ * joined through a number of core nodes: every edge node has a link to and
+ * from every core node, so a path from one edge node to another goes through
+ * one core node and there are as many disjoint paths between two edge nodes
+ * as there are core nodes.  Paths are made as the SimulatedRoutingAlgorithm
+ * finds them.
+ * <p>
+ * The simulator offers traffic to paths each cycle with addLoad(), and
+ * updateLossRates() then works out each path's best effort loss rate from
+ * how far its links are overloaded.  Loss rates are in hundredths of a
+ * percent.  Path timers are read from the simulator's Clock.
+ */
+class SimulatedPIB extends BasePIB
+{
+  //loss rate of a path all of whose traffic is lost
+  final static short TOTAL_LOSS = 10000;
+
+  private int edgeNodes;
+  private int coreNodes;
+  private Clock clock;
+
+  //capacity and offered load of each link, by edge node index and core
+  //node index: up from an edge node to a core node, down the other way
+  private double[][] upCapacity;
+  private double[][] downCapacity;
+  private double[][] upLoad;
+  private double[][] downLoad;
+
+  //SimulatedPaths keyed by source, destination and core, and in the order
+  //they were made
+  private LongMap pathsByRoute = new LongMap();
+  private Vector allPaths = new Vector();
+  private int nextPathID = 1;
+
+  private int pathsSetUp;
+
+  /**
+   * A path from one edge node to another through a core node.
+   */
+  class SimulatedPath extends Path
+  {
+    Integer pathID;
+    int src;//edge node index
+    int dest;//edge node index
+    int core;//core node index
+    double load;//offered this cycle
+    private Vector nodeSequence = new Vector(3);
+    private PathQoS[] qos = {new SimulatedQoS(this)};
+
+    SimulatedPath(int pathID, int src, int dest, int core)
+    {
+      this.pathID = new Integer(pathID);
+      this.src = src;
+      this.dest = dest;
+      this.core = core;
+      //destination first, as BEM reads it
+      nodeSequence.add(new Integer(edgeNodeID(dest)));
+      nodeSequence.add(new Integer(coreNodeID(core)));
+      nodeSequence.add(new Integer(edgeNodeID(src)));
+      bestEffortTrafficCondition = GRAY;
+    }
+
+    public Integer getPathID()
+    {
+      return pathID;
+    }
+
+    public int getSrcNodeID()
+    {
+      return edgeNodeID(src);
+    }
+
+    public int getDestNodeID()
+    {
+      return edgeNodeID(dest);
+    }
+
+    public Vector getNodeSequence()
+    {
+      return nodeSequence;
+    }
+
+    public PathQoS[] getPathQoSArray()
+    {
+      return qos;
+    }
+
+    public void newCongestion()
+    {
+      bestEffortTrafficCondition = YELLOW;
+      timeLastAdvisorySent = clock.currentTimeMillis();
+    }
+
+    public void congestionCleared()
+    {
+      bestEffortTrafficCondition = GREEN;
+    }
+
+    public void expireBEpath()
+    {
+      bestEffortTrafficCondition = RED;
+      timeConditionRed = clock.currentTimeMillis();
+    }
+
+    public boolean unexpireBEpath()
+    {
+      bestEffortTrafficCondition = GREEN;
+      return true;
+    }
+
+    public void initiateBestEffortTraffic()
+    {
+      bBestEffortTraffic = true;
+      if (bestEffortTrafficCondition == GRAY)
+      {
+        bestEffortTrafficCondition = GREEN;
+      }
+    }
+
+    public void terminateBestEffortTraffic()
+    {
+      bBestEffortTraffic = false;
+      bestEffortTrafficCondition = GRAY;
+    }
+
+    double availableBandwidth()
+    {
+      return SimulatedPIB.this.availableBandwidth(src, dest, core);
+    }
+
+    double lossFraction()
+    {
+      return SimulatedPIB.this.lossFraction(src, dest, core);
+    }
+  }
+
+  /**
+   * A path's best effort QoS, read from its links.
+   */
+  class SimulatedQoS extends PathQoS
+  {
+    private SimulatedPath path;
+
+    SimulatedQoS(SimulatedPath path)
+    {
+      this.path = path;
+    }
+
+    public short getPacketLossRate()
+    {
+      return path.bestEffortLossRate;
+    }
+
+    public int getAvailableBandwidth()
+    {
+      return (int) Math.max(0, path.availableBandwidth());
+    }
+  }
+
+  /**
+   * An edge node's interface.
+   */
+  class SimulatedInterface extends InterfaceInfo
+  {
+    private Integer nodeID;
+
+    SimulatedInterface(int nodeID)
+    {
+      this.nodeID = new Integer(nodeID);
+    }
+
+    public Integer getNodeID()
+    {
+      return nodeID;
+    }
+  }
+
+  /**
+   * Generates the topology.
+   * @param   edgeNodes  number of edge routers
+   * @param   coreNodes  number of core nodes, at least 1
+   * @param   capacity   capacity of every link
+   * @param   clock      the clock path timers read
+   * @throws  UnknownHostException  if an address can't be made
+   */
+  SimulatedPIB(int edgeNodes, int coreNodes, double capacity, Clock clock) throws UnknownHostException
+  {
+    this.edgeNodes = edgeNodes;
+    this.coreNodes = coreNodes;
+    this.clock = clock;
+    htPaths = new Hashtable();
+    htNodeIDtoRouterID = new Hashtable();
+    htRouterIDtoNodeID = new Hashtable();
+    htInterfaces = new Hashtable();
+    routingAlgorithm = new SimulatedRoutingAlgorithm(this);
+
+    upCapacity = new double[edgeNodes][coreNodes];
+    downCapacity = new double[coreNodes][edgeNodes];
+    upLoad = new double[edgeNodes][coreNodes];
+    downLoad = new double[coreNodes][edgeNodes];
+    for (int e = 0; e < edgeNodes; e++)
+    {
+      for (int c = 0; c < coreNodes; c++)
+      {
+        upCapacity[e][c] = capacity;
+        downCapacity[c][e] = capacity;
+      }
+      addNode(edgeNodeID(e));
+      IPv6Address interfaceAddress = getInterfaceAddress(e);
+      htInterfaces.put(interfaceAddress.toString(), new SimulatedInterface(edgeNodeID(e)));
+    }
+    for (int c = 0; c < coreNodes; c++)
+    {
+      addNode(coreNodeID(c));
+    }
+  }
+
+  private void addNode(int nodeID) throws UnknownHostException
+  {
+    IPv6Address routerID = IPv6Address.getByName("2001:db8:0:" + Integer.toHexString(nodeID) + "::1");
+    Integer node = new Integer(nodeID);
+    htNodeIDtoRouterID.put(node, routerID);
+    htRouterIDtoNodeID.put(routerID.toString(), node);
+  }
+
+  /**
+   * @param   edge  edge node index, 0 to getEdgeNodes() - 1
+   * @return  the address of its interface, which an EdgeNotification reports
+   */
+  IPv6Address getInterfaceAddress(int edge) throws UnknownHostException
+  {
+    return IPv6Address.getByName("2001:db8:1:" + Integer.toHexString(edgeNodeID(edge)) + "::1");
+  }
+
+  int getEdgeNodes()
+  {
+    return edgeNodes;
+  }
+
+  int getCoreNodes()
+  {
+    return coreNodes;
+  }
+
+  int edgeNodeID(int edge)
+  {
+    return edge + 1;
+  }
+
+  int coreNodeID(int core)
+  {
+    return edgeNodes + core + 1;
+  }
+
+  /**
+   * @param   nodeID  a node ID
+   * @return  its edge node index, or -1 if it is not an edge node
+   */
+  int edgeIndex(int nodeID)
+  {
+    return ((nodeID >= 1) && (nodeID <= edgeNodes)) ? nodeID - 1 : -1;
+  }
+
+  /**
+   * Finds or makes the path from one edge node to another through a core node.
+   * @param   src   source edge node index
+   * @param   dest  destination edge node index
+   * @param   core  core node index
+   * @return  the path
+   */
+  synchronized SimulatedPath getPath(int src, int dest, int core)
+  {
+    long key = (((long) src * edgeNodes) + dest) * coreNodes + core;
+    SimulatedPath path = (SimulatedPath) pathsByRoute.get(key);
+    if (path == null)
+    {
+      path = new SimulatedPath(nextPathID++, src, dest, core);
+      pathsByRoute.put(key, path);
+      allPaths.add(path);
+      htPaths.put(path.getPathID(), path);
+    }
+    return path;
+  }
+
+  /**
+   * @return  copy of every path made so far, in the order made
+   */
+  synchronized SimulatedPath[] getPaths()
+  {
+    return (SimulatedPath[]) allPaths.toArray(new SimulatedPath[allPaths.size()]);
+  }
+
+  public void setupPath(Path path, int pathID, byte installedFor)
+  {
+    synchronized (this)
+    {
+      pathsSetUp++;
+    }
+  }
+
+  synchronized int getPathsSetUp()
+  {
+    return pathsSetUp;
+  }
+
+  /**
+   * Scales the capacity of every link to and from a core node.
+   * @param   core    core node index
+   * @param   factor  multiplies the capacity
+   */
+  void scaleCoreCapacity(int core, double factor)
+  {
+    for (int e = 0; e < edgeNodes; e++)
+    {
+      upCapacity[e][core] *= factor;
+      downCapacity[core][e] *= factor;
+    }
+  }
+
+  /**
+   * Starts a cycle with no traffic offered.
+   */
+  void clearLoad()
+  {
+    SimulatedPath[] paths = getPaths();
+    for (int i = 0; i < paths.length; i++)
+    {
+      paths[i].load = 0;
+    }
+    for (int e = 0; e < edgeNodes; e++)
+    {
+      Arrays.fill(upLoad[e], 0);
+    }
+    for (int c = 0; c < coreNodes; c++)
+    {
+      Arrays.fill(downLoad[c], 0);
+    }
+  }
+
+  /**
+   * Offers traffic to a path's links.
+   * @param   path  the path
+   * @param   load  amount offered
+   */
+  void addLoad(SimulatedPath path, double load)
+  {
+    path.load += load;
+    upLoad[path.src][path.core] += load;
+    downLoad[path.core][path.dest] += load;
+  }
+
+  /**
+   * Sets the best effort loss rate of every path carrying best effort
+   * traffic from the load offered this cycle.
+   */
+  void updateLossRates()
+  {
+    SimulatedPath[] paths = getPaths();
+    for (int i = 0; i < paths.length; i++)
+    {
+      if (paths[i].bBestEffortTraffic)
+      {
+        paths[i].bestEffortLossRate = (short) Math.round(paths[i].lossFraction() * TOTAL_LOSS);
+      }
+    }
+  }
+
+  /**
+   * @return  bandwidth left on the fuller of the two links through a core node
+   */
+  double availableBandwidth(int src, int dest, int core)
+  {
+    return Math.min(upCapacity[src][core] - upLoad[src][core],
+                    downCapacity[core][dest] - downLoad[core][dest]);
+  }
+
+  /**
+   * @return  fraction of the traffic through a core node lost to overloaded links
+   */
+  double lossFraction(int src, int dest, int core)
+  {
+    double delivered = (1 - overload(upLoad[src][core], upCapacity[src][core])) *
+                       (1 - overload(downLoad[core][dest], downCapacity[core][dest]));
+    return 1 - delivered;
+  }
+
+  /**
+   * @return  fraction of a link's load it can't carry
+   */
+  private static double overload(double load, double capacity)
+  {
+    return (load <= capacity) ? 0 : (load - capacity) / load;
+  }
+}
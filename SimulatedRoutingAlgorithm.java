@@ -0,0 +1,79 @@
+package org.saamnet.saam.server;
+
+import org.saamnet.saam.net.*;
+
+/**
+ * SimulatedRoutingAlgorithm stands in for the RoutingAlgorithm in the
+ * BestEffortSimulator, finding paths in a SimulatedPIB.  Every path between
+ * two edge nodes is two hops, so "shortest widest" comes down to the core
+ * node whose links have the most bandwidth left; "least congested" prefers
+ * the core node whose links lose the least, then the widest; and "most
+ * disjoint" avoids the core node of the excluded path.  Any metric avoids
+ * the excluded path.  Ties go to the first core node counting from one that
+ * depends on the node pair, so pairs spread over the core.
+ */
+class SimulatedRoutingAlgorithm extends RoutingAlgorithm
+{
+  private SimulatedPIB pib;
+  private int calls;
+
+  SimulatedRoutingAlgorithm(SimulatedPIB pib)
+  {
+    this.pib = pib;
+  }
+
+  public BasePIB.Path findPath(IPv6Address srcRouterID, IPv6Address destRouterID,
+                               BasePIB.Path excludedPath, int metric)
+  {
+    synchronized (this)
+    {
+      calls++;
+    }
+    int src = edgeIndex(srcRouterID);
+    int dest = edgeIndex(destRouterID);
+    if ((src < 0) || (dest < 0) || (src == dest))
+    {
+      return null;
+    }
+    int excludedCore = -1;
+    if (excludedPath instanceof SimulatedPIB.SimulatedPath)
+    {
+      excludedCore = ((SimulatedPIB.SimulatedPath) excludedPath).core;
+    }
+
+    int cores = pib.getCoreNodes();
+    int first = (int) ((((long) src * 31) + dest) % cores);
+    int best = -1;
+    double bestLoss = 0;
+    double bestBandwidth = 0;
+    for (int i = 0; i < cores; i++)
+    {
+      int core = (first + i) % cores;
+      if (core == excludedCore)
+      {
+        continue;
+      }
+      double loss = (metric == SHORTEST_WIDEST_LEAST_CONGESTED_PATH) ? pib.lossFraction(src, dest, core) : 0;
+      double bandwidth = pib.availableBandwidth(src, dest, core);
+      if ((best < 0) || (loss < bestLoss) || ((loss == bestLoss) && (bandwidth > bestBandwidth)))
+      {
+        best = core;
+        bestLoss = loss;
+        bestBandwidth = bandwidth;
+      }
+    }
+    //only the path chosen is made, so the PIB holds paths BEM has seen
+    return (best < 0) ? null : pib.getPath(src, dest, best);
+  }
+
+  private int edgeIndex(IPv6Address routerID)
+  {
+    Integer nodeID = (Integer) pib.htRouterIDtoNodeID.get(routerID.toString());
+    return (nodeID == null) ? -1 : pib.edgeIndex(nodeID.intValue());
+  }
+
+  synchronized int getCalls()
+  {
+    return calls;
+  }
+}
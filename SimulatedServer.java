@@ -0,0 +1,272 @@
+package org.saamnet.saam.server;
+
+import java.util.*;
+
+import org.saamnet.saam.gui.MAGMAAdminGui;
+import org.saamnet.saam.net.*;
+import org.saamnet.saam.message.CongestionAdvisory;
+import org.saamnet.saam.message.CongestionAdvisoryBatch;
+import org.saamnet.saam.message.BestEffortTableBatch;
+
+/**
+ * SimulatedServer stands in for the Server in the BestEffortSimulator.
+ * Instead of sending table entries and advisories to routers, it counts
+ * them and plays the part of each edge router's BestEffortTable: it keeps
+ * a primary and alternate path per node pair, and the share of the pair's
+ * traffic on the alternate, and moves that share as a BET would.  While a
+ * pair is YELLOW a step is redirected to the alternate every
+ * REDIRECT_INTERVAL; once it is GREEN a step is reverted every
+ * REVERT_INTERVAL; both are scaled by the PIB's timeScale.  A RED path
+ * loses all its traffic to the pair's other path.  Each node pair has one
+ * destination prefix in a SimulatedPIB, so routes are kept per node pair.
+ */
+class SimulatedServer extends Server
+{
+  //as in the BestEffortTable
+  final static int REDIRECT_INTERVAL = 200;
+  final static int REVERT_INTERVAL = 1800000;
+  final static int TOTAL_WEIGHT = 100;
+  final static int STEP = 10;
+
+  /**
+   * Takes the BEM's gui without showing it.
+   */
+  static class Executive extends ControlExecutive
+  {
+    public void addMagmaGui(MAGMAAdminGui gui)
+    {
+    }
+  }
+
+  /**
+   * A node pair's routes, as its source router's BET holds them.
+   */
+  static class Route
+  {
+    SimulatedPIB.SimulatedPath primary;
+    SimulatedPIB.SimulatedPath alternate;
+    int alternateWeight;//share of TOTAL_WEIGHT on the alternate
+    byte trafficCondition = CongestionAdvisory.GREEN;
+    long timeLastRedirect;
+    long timeLastRevert;
+  }
+
+  private SimulatedPIB pib;
+  private Clock clock;
+  private long cyclePeriod;
+  private ControlExecutive controlExec = new Executive();
+
+  //Routes keyed by source * edge nodes + destination edge node index
+  private LongMap routes = new LongMap();
+
+  //Vectors of the Routes using a path, keyed by path ID
+  private LongMap pathRoutes = new LongMap();
+
+  //Routes that are YELLOW or have traffic on the alternate
+  private HashSet adjusting = new HashSet();
+
+  private int messagesSent;
+  private int routesSent;
+  private int[] advisoriesSent = new int[3];//by condition
+
+  /**
+   * @param   pib          the PIB the paths are in
+   * @param   clock        the simulation's clock
+   * @param   cyclePeriod  the AC cycle period (ms)
+   */
+  SimulatedServer(SimulatedPIB pib, Clock clock, long cyclePeriod)
+  {
+    this.pib = pib;
+    this.clock = clock;
+    this.cyclePeriod = cyclePeriod;
+  }
+
+  public long getAC_cyclePeriod()
+  {
+    return cyclePeriod;
+  }
+
+  public ControlExecutive getControlExec()
+  {
+    return controlExec;
+  }
+
+  public synchronized void sendBETBatch(IPv6Address routerID, BestEffortTableBatch batch)
+  {
+    messagesSent++;
+    BestEffortTableBatch.Route[] batchRoutes = batch.getRoutes();
+    for (int i = 0; i < batchRoutes.length; i++)
+    {
+      routesSent++;
+      int[] pathIDs = batchRoutes[i].pathIDs;
+      Route route = new Route();
+      route.primary = (SimulatedPIB.SimulatedPath) pib.htPaths.get(new Integer(pathIDs[0]));
+      route.alternate = (SimulatedPIB.SimulatedPath) pib.htPaths.get(new Integer(pathIDs[pathIDs.length - 1]));
+      if ((route.primary == null) || (route.alternate == null))
+      {
+        continue;
+      }
+      Route old = (Route) routes.put(pairKey(route.primary.src, route.primary.dest), route);
+      if (old != null)
+      {
+        unindex(old.primary, old);
+        unindex(old.alternate, old);
+        adjusting.remove(old);
+      }
+      index(route.primary, route);
+      index(route.alternate, route);
+    }
+  }
+
+  public synchronized void sendCongestionAdvisory(IPv6Address routerID, int pathID, byte pathCondition)
+  {
+    messagesSent++;
+    applyAdvisory(pathID, pathCondition);
+  }
+
+  public synchronized void sendCongestionAdvisoryBatch(IPv6Address routerID, CongestionAdvisoryBatch batch)
+  {
+    messagesSent++;
+    for (int i = 0; i < batch.getCount(); i++)
+    {
+      applyAdvisory(batch.getPathID(i), batch.pathCondition(i));
+    }
+  }
+
+  /**
+   * Updates the routes using a path as their BETs would.
+   */
+  private void applyAdvisory(int pathID, byte pathCondition)
+  {
+    advisoriesSent[pathCondition]++;
+    Vector using = (Vector) pathRoutes.get(pathID);
+    if (using == null)
+    {
+      return;
+    }
+    //copied since a RED path is dropped from its routes
+    Object[] affected = using.toArray();
+    for (int i = 0; i < affected.length; i++)
+    {
+      Route route = (Route) affected[i];
+      route.trafficCondition = pathCondition;
+      if (pathCondition == CongestionAdvisory.RED)
+      {
+        if (route.primary.getPathID().intValue() == pathID)
+        {
+          route.primary = route.alternate;
+        }
+        else
+        {
+          route.alternate = route.primary;
+        }
+        route.alternateWeight = 0;
+        using.remove(route);
+      }
+      if ((pathCondition == CongestionAdvisory.YELLOW) || (route.alternateWeight > 0))
+      {
+        adjusting.add(route);
+      }
+    }
+  }
+
+  /**
+   * Redirects or reverts a step of every route that is due one.
+   */
+  synchronized void adjustSplits()
+  {
+    long now = clock.currentTimeMillis();
+    Iterator i = adjusting.iterator();
+    while (i.hasNext())
+    {
+      Route route = (Route) i.next();
+      if ((route.trafficCondition == CongestionAdvisory.YELLOW) &&
+          ((now - route.timeLastRedirect) >= (REDIRECT_INTERVAL * pib.timeScale)))
+      {
+        route.alternateWeight = Math.min(route.alternateWeight + STEP, TOTAL_WEIGHT);
+        route.timeLastRedirect = now;
+      }
+      else if ((route.trafficCondition == CongestionAdvisory.GREEN) && (route.alternateWeight > 0) &&
+               ((now - route.timeLastRevert) >= (REVERT_INTERVAL * pib.timeScale)))
+      {
+        route.alternateWeight = Math.max(route.alternateWeight - STEP, 0);
+        route.timeLastRevert = now;
+      }
+      if ((route.trafficCondition != CongestionAdvisory.YELLOW) && (route.alternateWeight == 0))
+      {
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * Offers a node pair's traffic to its paths, split as its BET splits it.
+   * @param   src     source edge node index
+   * @param   dest    destination edge node index
+   * @param   amount  traffic offered
+   * @return  false if the pair has no routes yet, so its traffic is not sent
+   */
+  synchronized boolean offer(int src, int dest, double amount)
+  {
+    Route route = (Route) routes.get(pairKey(src, dest));
+    if (route == null)
+    {
+      return false;
+    }
+    double alternateShare = (double) route.alternateWeight / TOTAL_WEIGHT;
+    pib.addLoad(route.primary, amount * (1 - alternateShare));
+    if (alternateShare > 0)
+    {
+      pib.addLoad(route.alternate, amount * alternateShare);
+    }
+    return true;
+  }
+
+  private long pairKey(int src, int dest)
+  {
+    return ((long) src * pib.getEdgeNodes()) + dest;
+  }
+
+  private void index(SimulatedPIB.SimulatedPath path, Route route)
+  {
+    int pathID = path.getPathID().intValue();
+    Vector using = (Vector) pathRoutes.get(pathID);
+    if (using == null)
+    {
+      using = new Vector(2);
+      pathRoutes.put(pathID, using);
+    }
+    if (!using.contains(route))
+    {
+      using.add(route);
+    }
+  }
+
+  private void unindex(SimulatedPIB.SimulatedPath path, Route route)
+  {
+    Vector using = (Vector) pathRoutes.get(path.getPathID().intValue());
+    if (using != null)
+    {
+      using.remove(route);
+    }
+  }
+
+  synchronized int getMessagesSent()
+  {
+    return messagesSent;
+  }
+
+  synchronized int getRoutesSent()
+  {
+    return routesSent;
+  }
+
+  /**
+   * @param   pathCondition  GREEN, YELLOW or RED
+   * @return  advisories sent for paths in that condition
+   */
+  synchronized int getAdvisoriesSent(byte pathCondition)
+  {
+    return advisoriesSent[pathCondition];
+  }
+}
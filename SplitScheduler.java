@@ -0,0 +1,206 @@
+package org.saamnet.saam.agent.router;
+
+/**
+ * SplitScheduler is a hashed timer wheel that tells a BestEffortTable when a
+ * TrafficDestination is due to have its split redirected or reverted.  Each
+ * destination has at most one pending timeout; scheduling it again replaces
+ * the old one.  The wheel turns once per tick on its own thread, so splits
+ * move on time whether or not traffic is being looked up.
+ */
+class SplitScheduler implements Runnable
+{
+  //number of slots in the wheel; timeouts further out than this many ticks
+  //go around the wheel more than once
+  final static int WHEEL_SIZE = 512;
+
+  /**
+   * A Timeout is one scheduled callback, linked into its wheel slot.
+   */
+  static class Timeout
+  {
+    BestEffortTable.TrafficDestination trafDest;
+    long rounds;//times around the wheel before it fires
+    int slot;
+    Timeout prev;
+    Timeout next;
+  }
+
+  private BestEffortTable table;
+  private long tickDuration;//ms
+
+  private Timeout[] wheel = new Timeout[WHEEL_SIZE];
+  private long tick;//the last tick processed
+  private long startTime;//when tick 0 ended; tick n ends tickDuration * n later
+
+  private Thread ticker;
+  private volatile boolean running;
+
+  /**
+   * @param   table         the table to call back
+   * @param   tickDuration  length of one tick (ms)
+   */
+  SplitScheduler(BestEffortTable table, long tickDuration)
+  {
+    this.table = table;
+    this.tickDuration = Math.max(1, tickDuration);
+  }
+
+  /**
+   * Starts the wheel turning.
+   * @param   name  name of the table instance
+   */
+  void start(String name)
+  {
+    startTime = System.currentTimeMillis();
+    running = true;
+    ticker = new Thread(this, name + " scheduler");
+    ticker.setDaemon(true);
+    ticker.start();
+  }
+
+  /**
+   * Stops the wheel; pending timeouts never fire.
+   */
+  void stop()
+  {
+    running = false;
+    if (ticker != null)
+    {
+      ticker.interrupt();
+    }
+  }
+
+  /**
+   * Schedules a destination, replacing any timeout it already has.  It
+   * fires on the first tick that ends once the delay has passed; counting
+   * whole ticks from the current one, which is partly over, could fire it
+   * up to a tick early.
+   * @param   trafDest  the traffic destination
+   * @param   delay     how long from now (ms)
+   */
+  synchronized void schedule(BestEffortTable.TrafficDestination trafDest, long delay)
+  {
+    long due = System.currentTimeMillis() + Math.max(0, delay) - startTime;
+    scheduleTicks(trafDest, Math.max(1, ((due + tickDuration - 1) / tickDuration) - tick));
+  }
+
+  /**
+   * Schedules a destination to fire on the given tick after the last one
+   * processed, replacing any timeout it already has.
+   * @param   trafDest  the traffic destination
+   * @param   ticks     how many ticks on, at least 1
+   */
+  synchronized void scheduleTicks(BestEffortTable.TrafficDestination trafDest, long ticks)
+  {
+    cancel(trafDest);
+
+    Timeout timeout = new Timeout();
+    timeout.trafDest = trafDest;
+    timeout.rounds = (ticks - 1) / WHEEL_SIZE;
+    timeout.slot = (int) ((tick + ticks) % WHEEL_SIZE);
+    timeout.next = wheel[timeout.slot];
+    if (timeout.next != null)
+    {
+      timeout.next.prev = timeout;
+    }
+    wheel[timeout.slot] = timeout;
+    trafDest.timeout = timeout;
+  }
+
+  /**
+   * Cancels a destination's timeout if it has one.
+   * @param   trafDest  the traffic destination
+   */
+  synchronized void cancel(BestEffortTable.TrafficDestination trafDest)
+  {
+    Timeout timeout = trafDest.timeout;
+    if (timeout == null)
+    {
+      return;
+    }
+    unlink(timeout);
+    trafDest.timeout = null;
+  }
+
+  private void unlink(Timeout timeout)
+  {
+    if (timeout.prev != null)
+    {
+      timeout.prev.next = timeout.next;
+    }
+    else
+    {
+      wheel[timeout.slot] = timeout.next;
+    }
+    if (timeout.next != null)
+    {
+      timeout.next.prev = timeout.prev;
+    }
+    timeout.prev = null;
+    timeout.next = null;
+  }
+
+  public void run()
+  {
+    long ticksDone = 0;
+    while (running)
+    {
+      long wait = startTime + (ticksDone + 1) * tickDuration - System.currentTimeMillis();
+      if (wait > 0)
+      {
+        try
+        {
+          Thread.sleep(wait);
+        }
+        catch (InterruptedException ie)
+        {
+          continue;//running is rechecked
+        }
+      }
+      ticksDone++;
+
+      Timeout expired = advance();
+      //called back without holding the wheel, since the table schedules
+      //again while holding its own monitor
+      while (expired != null)
+      {
+        Timeout next = expired.next;
+        table.splitAdjustmentDue(expired.trafDest);
+        expired = next;
+      }
+    }
+  }
+
+  /**
+   * Moves the wheel on one tick.  The ticker thread calls this; so can a
+   * check, to turn a wheel that was never started.
+   * @return  list of the timeouts that expired, linked through next
+   */
+  synchronized Timeout advance()
+  {
+    tick++;
+    int slot = (int) (tick % WHEEL_SIZE);
+    Timeout expired = null;
+    Timeout timeout = wheel[slot];
+    while (timeout != null)
+    {
+      Timeout next = timeout.next;
+      if (timeout.rounds == 0)
+      {
+        unlink(timeout);
+        if (timeout.trafDest.timeout == timeout)
+        {
+          timeout.trafDest.timeout = null;
+        }
+        timeout.next = expired;
+        expired = timeout;
+      }
+      else
+      {
+        timeout.rounds--;
+      }
+      timeout = next;
+    }
+    return expired;
+  }
+}
@@ -0,0 +1,50 @@
+package org.saamnet.saam.util;
+
+import java.lang.reflect.Method;
+
+/**
+ * Stopwatch reads the finest clock the JVM has for timing latencies.
+ * Where System.nanoTime() is available it is used; otherwise the
+ * millisecond clock is, so latencies shorter than a millisecond read 0.
+ * Being read through reflection, it costs more than a plain call and boxes
+ * a Long each time, so hot paths should time only a sample of their calls,
+ * as BestEffortTable does with its lookups.
+ */
+public class Stopwatch
+{
+  private final static Class[] NO_PARAMETERS = new Class[0];
+  private final static Object[] NO_ARGUMENTS = new Object[0];
+
+  private static Method nanoTime;
+
+  static
+  {
+    try
+    {
+      nanoTime = System.class.getMethod("nanoTime", NO_PARAMETERS);
+    }
+    catch (NoSuchMethodException nsme)
+    {
+      nanoTime = null;//before Java 5
+    }
+  }
+
+  /**
+   * @return  a time in nanoseconds, only meaningful compared with another
+   */
+  public static long nanoTime()
+  {
+    if (nanoTime != null)
+    {
+      try
+      {
+        return ((Long) nanoTime.invoke(null, NO_ARGUMENTS)).longValue();
+      }
+      catch (Exception e)
+      {
+        nanoTime = null;
+      }
+    }
+    return System.currentTimeMillis() * 1000000L;
+  }
+}
@@ -0,0 +1,111 @@
+package org.saamnet.saam.server;
+
+import java.util.*;
+
+import org.saamnet.saam.net.*;
+
+/**
+ * TopologySnapshot is the BestEffortManager's copy of the parts of the
+ * BasePIB it reads most: the router ID of each node and each path by ID.
+ * They are held in LongMaps, so looking one up neither boxes the ID nor
+ * takes the Hashtable's lock.  The paths' own fields (condition, loss rate)
+ * are read straight from the BasePIB.Path objects, so they are never stale.
+ * <p>
+ * The snapshot is rebuilt whenever the topology changes.  A rebuild fills
+ * new maps and then replaces the old ones, which are never changed once
+ * published, so any number of threads can look things up without locking.
+ * Between rebuilds, a node or path missing from the snapshot is looked up
+ * in the BasePIB once and kept in a small map of patches, which is locked.
+ */
+class TopologySnapshot
+{
+  private BasePIB pib;
+  private volatile LongMap routers = new LongMap();//IPv6Address by node ID
+  private volatile LongMap paths = new LongMap();//BasePIB.Path by path ID
+
+  //lookups missing from routers and paths since the last rebuild
+  private LongMap routerPatches = new LongMap();
+  private LongMap pathPatches = new LongMap();
+
+  TopologySnapshot(BasePIB pib)
+  {
+    this.pib = pib;
+  }
+
+  /**
+   * Copies the current nodes and paths from the BasePIB.
+   */
+  synchronized void rebuild()
+  {
+    LongMap newRouters = new LongMap(pib.htNodeIDtoRouterID.size());
+    LongMap newPaths = new LongMap(pib.htPaths.size());
+    Enumeration nodes = pib.htNodeIDtoRouterID.keys();
+    while (nodes.hasMoreElements())
+    {
+      Integer nodeID = (Integer) nodes.nextElement();
+      Object routerID = pib.htNodeIDtoRouterID.get(nodeID);
+      if (routerID != null)
+      {
+        newRouters.put(nodeID.intValue(), routerID);
+      }
+    }
+    Enumeration allPaths = pib.htPaths.elements();
+    while (allPaths.hasMoreElements())
+    {
+      BasePIB.Path path = (BasePIB.Path) allPaths.nextElement();
+      newPaths.put(path.getPathID().intValue(), path);
+    }
+    routers = newRouters;
+    paths = newPaths;
+    routerPatches.clear();
+    pathPatches.clear();
+  }
+
+  /**
+   * @param   nodeID  the node
+   * @return  its router ID, or null if the BasePIB has none
+   */
+  IPv6Address routerOf(int nodeID)
+  {
+    IPv6Address routerID = (IPv6Address) routers.get(nodeID);
+    return (routerID != null) ? routerID : patchRouter(nodeID);
+  }
+
+  private synchronized IPv6Address patchRouter(int nodeID)
+  {
+    IPv6Address routerID = (IPv6Address) routerPatches.get(nodeID);
+    if (routerID == null)
+    {
+      routerID = (IPv6Address) pib.htNodeIDtoRouterID.get(new Integer(nodeID));
+      if (routerID != null)
+      {
+        routerPatches.put(nodeID, routerID);
+      }
+    }
+    return routerID;
+  }
+
+  /**
+   * @param   pathID  the path ID
+   * @return  the path, or null if the BasePIB has none
+   */
+  BasePIB.Path pathOf(int pathID)
+  {
+    BasePIB.Path path = (BasePIB.Path) paths.get(pathID);
+    return (path != null) ? path : patchPath(pathID);
+  }
+
+  private synchronized BasePIB.Path patchPath(int pathID)
+  {
+    BasePIB.Path path = (BasePIB.Path) pathPatches.get(pathID);
+    if (path == null)
+    {
+      path = (BasePIB.Path) pib.htPaths.get(new Integer(pathID));
+      if (path != null)
+      {
+        pathPatches.put(pathID, path);
+      }
+    }
+    return path;
+  }
+}
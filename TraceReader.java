@@ -0,0 +1,173 @@
+package org.saamnet.saam.server;
+
+import java.io.*;
+
+/**
+ * TraceReader reads a trace written by a TraceRecorder one record at a
+ * time.  After next() returns true, type and time, and whichever of the
+ * other fields the record type has (see TraceRecorder), hold the record;
+ * they are reused for the next.  HEADER fields are kept until another
+ * HEADER is read.
+ */
+class TraceReader
+{
+  private DataInputStream in;
+
+  //HEADER
+  long start;
+  long acCyclePeriod;
+  long timeScale;
+  short thresholdLossRate;
+
+  byte type;
+  long time;//0 for a PATH record
+  int pathID;//PATH, PATH_FAILURE, FIND_PATH (found), ADVISORY, EXPIRATION
+  int nodeID;//EDGE_NOTIFICATION, LINK_STATE_CHANGED
+  int srcNodeID;//PATH, ROUTE
+  int destNodeID;//PATH, ROUTE
+  int[] nodeSequence;//PATH
+  int availableBandwidth;//PATH
+  int alternatePathID;//ROUTE; pathID holds the primary
+  int excludedPathID;//FIND_PATH
+  int metric;//FIND_PATH
+  byte pathCondition;//ADVISORY
+  String address;//EDGE_NOTIFICATION interface, ADVISORY router, FIND_PATH src router
+  String routerID;//EDGE_NOTIFICATION router, FIND_PATH dest router
+
+  //CYCLE: count samples, in arrays grown as needed
+  int count;
+  int[] pathIDs = new int[64];
+  short[] lossRates = new short[64];
+  int[] bandwidths = new int[64];
+
+  /**
+   * @param   stream  the trace; buffered here
+   * @throws  IOException  if it is not a trace of this version
+   */
+  TraceReader(InputStream stream) throws IOException
+  {
+    in = new DataInputStream(new BufferedInputStream(stream));
+    if (in.readInt() != TraceRecorder.MAGIC)
+    {
+      throw new IOException("not a BEM trace");
+    }
+    short version = in.readShort();
+    if (version != TraceRecorder.VERSION)
+    {
+      throw new IOException("BEM trace version " + version + " is not " + TraceRecorder.VERSION);
+    }
+  }
+
+  /**
+   * Reads the next record.
+   * @return  false at the end of the trace
+   * @throws  IOException  if the trace is damaged; a record cut short at
+   *                       the end, as when BEM stopped mid-write, ends it
+   */
+  boolean next() throws IOException
+  {
+    int read = in.read();
+    if (read < 0)
+    {
+      return false;
+    }
+    type = (byte) read;
+    try
+    {
+      readRecord();
+    }
+    catch (EOFException eofe)
+    {
+      return false;
+    }
+    return true;
+  }
+
+  private void readRecord() throws IOException
+  {
+    time = 0;
+    switch (type)
+    {
+      case TraceRecorder.HEADER:
+        start = in.readLong();
+        acCyclePeriod = in.readLong();
+        timeScale = in.readLong();
+        thresholdLossRate = in.readShort();
+        time = start;
+        break;
+      case TraceRecorder.PATH:
+        pathID = in.readInt();
+        srcNodeID = in.readInt();
+        destNodeID = in.readInt();
+        nodeSequence = new int[in.readShort()];
+        for (int i = 0; i < nodeSequence.length; i++)
+        {
+          nodeSequence[i] = in.readInt();
+        }
+        availableBandwidth = in.readInt();
+        break;
+      case TraceRecorder.CYCLE:
+        time = in.readLong();
+        count = in.readInt();
+        if (count > pathIDs.length)
+        {
+          pathIDs = new int[count];
+          lossRates = new short[count];
+          bandwidths = new int[count];
+        }
+        for (int i = 0; i < count; i++)
+        {
+          pathIDs[i] = in.readInt();
+          lossRates[i] = in.readShort();
+          bandwidths[i] = in.readInt();
+        }
+        break;
+      case TraceRecorder.EDGE_NOTIFICATION:
+        time = in.readLong();
+        address = in.readUTF();
+        nodeID = in.readInt();
+        routerID = in.readUTF();
+        break;
+      case TraceRecorder.PATH_FAILURE:
+      case TraceRecorder.EXPIRATION:
+        time = in.readLong();
+        pathID = in.readInt();
+        break;
+      case TraceRecorder.TOPOLOGY_CHANGED:
+        time = in.readLong();
+        break;
+      case TraceRecorder.LINK_STATE_CHANGED:
+        time = in.readLong();
+        nodeID = in.readInt();
+        break;
+      case TraceRecorder.FIND_PATH:
+        time = in.readLong();
+        address = in.readUTF();
+        routerID = in.readUTF();
+        excludedPathID = in.readInt();
+        metric = in.readInt();
+        pathID = in.readInt();
+        break;
+      case TraceRecorder.ADVISORY:
+        time = in.readLong();
+        address = in.readUTF();
+        pathID = in.readInt();
+        pathCondition = in.readByte();
+        break;
+      case TraceRecorder.ROUTE:
+        time = in.readLong();
+        srcNodeID = in.readInt();
+        destNodeID = in.readInt();
+        pathID = in.readInt();
+        alternatePathID = in.readInt();
+        break;
+      default:
+        throw new IOException("unknown BEM trace record " + type);
+    }
+  }
+
+  void close() throws IOException
+  {
+    in.close();
+  }
+}
@@ -0,0 +1,364 @@
+package org.saamnet.saam.server;
+
+import java.io.*;
+import java.util.*;
+
+import org.saamnet.saam.net.*;
+
+/**
+ * TraceRecorder writes a BestEffortManager's inputs and outputs to an
+ * append-only binary trace, so a congestion episode can be replayed through
+ * BEM afterwards (see TraceReplay).  The inputs are each AC cycle's loss
+ * samples, EdgeNotifications, path failures and topology changes; since a
+ * replay has no network to route over, the answer to every findPath() BEM
+ * puts to the routing algorithm is an input too, as is each path the first
+ * time the trace refers to it.  The outputs are advisories, table entries
+ * and path expirations.
+ * <p>
+ * The trace starts with MAGIC and VERSION, then a HEADER record.  Every
+ * record is a type byte followed by its fields, written by DataOutputStream:
+ * <pre>
+ *   HEADER              long start, long AC cycle period, long timeScale,
+ *                       short thresholdLossRate
+ *   PATH                int path, int src node, int dest node, short n,
+ *                       n ints of node sequence, int available bandwidth
+ *   CYCLE               long time, int n, n x (int path, short loss rate,
+ *                       int available bandwidth)
+ *   EDGE_NOTIFICATION   long time, UTF interface, int node (-1 if the PIB
+ *                       had no such interface), UTF router ID ("" if none)
+ *   PATH_FAILURE        long time, int path
+ *   TOPOLOGY_CHANGED    long time
+ *   LINK_STATE_CHANGED  long time, int node
+ *   FIND_PATH           long time, UTF src router, UTF dest router,
+ *                       int excluded path (-1 if none), int metric,
+ *                       int path found (-1 if none)
+ *   ADVISORY            long time, UTF router, int path, byte condition
+ *   ROUTE               long time, int src node, int dest node,
+ *                       int primary path, int alternate path
+ *   EXPIRATION          long time, int path
+ * </pre>
+ * Records are written in the order BEM's threads reach the recorder, and
+ * the trace is flushed at the end of each AC cycle.  If the trace can't be
+ * written, recording stops and BEM carries on.
+ */
+class TraceRecorder
+{
+  final static int MAGIC = 0x42454D54;//"BEMT"
+  final static short VERSION = 1;
+
+  //record types; inputs, then outputs
+  final static byte HEADER = 0;
+  final static byte PATH = 1;
+  final static byte CYCLE = 2;
+  final static byte EDGE_NOTIFICATION = 3;
+  final static byte PATH_FAILURE = 4;
+  final static byte TOPOLOGY_CHANGED = 5;
+  final static byte LINK_STATE_CHANGED = 6;
+  final static byte FIND_PATH = 7;
+  final static byte ADVISORY = 16;
+  final static byte ROUTE = 17;
+  final static byte EXPIRATION = 18;
+
+  private DataOutputStream out;
+  private boolean failed;
+
+  //IDs of the paths whose PATH record has been written
+  private LongMap pathsWritten = new LongMap();
+
+  /**
+   * @param   stream  where the trace goes; buffered here
+   * @throws  IOException  if MAGIC and VERSION can't be written
+   */
+  TraceRecorder(OutputStream stream) throws IOException
+  {
+    out = new DataOutputStream(new BufferedOutputStream(stream));
+    out.writeInt(MAGIC);
+    out.writeShort(VERSION);
+  }
+
+  synchronized void header(long start, long acCyclePeriod, long timeScale, short thresholdLossRate)
+  {
+    try
+    {
+      out.writeByte(HEADER);
+      out.writeLong(start);
+      out.writeLong(acCyclePeriod);
+      out.writeLong(timeScale);
+      out.writeShort(thresholdLossRate);
+    }
+    catch (IOException ioe)
+    {
+      fail(ioe);
+    }
+  }
+
+  /**
+   * Records an AC cycle's loss samples.
+   */
+  synchronized void cycle(long time, MonitoringPipeline.LossSample[] samples)
+  {
+    if (failed)
+    {
+      return;
+    }
+    try
+    {
+      for (int i = 0; i < samples.length; i++)
+      {
+        writePath(samples[i].path);
+      }
+      out.writeByte(CYCLE);
+      out.writeLong(time);
+      out.writeInt(samples.length);
+      for (int i = 0; i < samples.length; i++)
+      {
+        out.writeInt(samples[i].path.getPathID().intValue());
+        out.writeShort(samples[i].lossRate);
+        out.writeInt(availableBandwidth(samples[i].path));
+      }
+    }
+    catch (IOException ioe)
+    {
+      fail(ioe);
+    }
+  }
+
+  /**
+   * @param   nodeID    the interface's node, -1 if the PIB has no such interface
+   * @param   routerID  the node's router, null if none
+   */
+  synchronized void edgeNotification(long time, IPv6Address interfaceAddress, int nodeID, IPv6Address routerID)
+  {
+    if (failed)
+    {
+      return;
+    }
+    try
+    {
+      out.writeByte(EDGE_NOTIFICATION);
+      out.writeLong(time);
+      out.writeUTF(interfaceAddress.toString());
+      out.writeInt(nodeID);
+      out.writeUTF((routerID == null) ? "" : routerID.toString());
+    }
+    catch (IOException ioe)
+    {
+      fail(ioe);
+    }
+  }
+
+  synchronized void pathFailure(long time, BasePIB.Path path)
+  {
+    if (failed)
+    {
+      return;
+    }
+    try
+    {
+      writePath(path);
+      out.writeByte(PATH_FAILURE);
+      out.writeLong(time);
+      out.writeInt(path.getPathID().intValue());
+    }
+    catch (IOException ioe)
+    {
+      fail(ioe);
+    }
+  }
+
+  synchronized void topologyChanged(long time)
+  {
+    if (failed)
+    {
+      return;
+    }
+    try
+    {
+      out.writeByte(TOPOLOGY_CHANGED);
+      out.writeLong(time);
+    }
+    catch (IOException ioe)
+    {
+      fail(ioe);
+    }
+  }
+
+  synchronized void linkStateChanged(long time, int nodeID)
+  {
+    if (failed)
+    {
+      return;
+    }
+    try
+    {
+      out.writeByte(LINK_STATE_CHANGED);
+      out.writeLong(time);
+      out.writeInt(nodeID);
+    }
+    catch (IOException ioe)
+    {
+      fail(ioe);
+    }
+  }
+
+  /**
+   * Records the routing algorithm's answer to a query.
+   * @param   excludedPath  as given to findPath(), or null
+   * @param   path          the path found, or null
+   */
+  synchronized void findPath(long time, IPv6Address srcRouterID, IPv6Address destRouterID,
+                             BasePIB.Path excludedPath, int metric, BasePIB.Path path)
+  {
+    if (failed)
+    {
+      return;
+    }
+    try
+    {
+      if (path != null)
+      {
+        writePath(path);
+      }
+      out.writeByte(FIND_PATH);
+      out.writeLong(time);
+      out.writeUTF(srcRouterID.toString());
+      out.writeUTF(destRouterID.toString());
+      out.writeInt((excludedPath == null) ? -1 : excludedPath.getPathID().intValue());
+      out.writeInt(metric);
+      out.writeInt((path == null) ? -1 : path.getPathID().intValue());
+    }
+    catch (IOException ioe)
+    {
+      fail(ioe);
+    }
+  }
+
+  synchronized void advisory(long time, IPv6Address routerID, int pathID, byte pathCondition)
+  {
+    if (failed)
+    {
+      return;
+    }
+    try
+    {
+      out.writeByte(ADVISORY);
+      out.writeLong(time);
+      out.writeUTF(routerID.toString());
+      out.writeInt(pathID);
+      out.writeByte(pathCondition);
+    }
+    catch (IOException ioe)
+    {
+      fail(ioe);
+    }
+  }
+
+  synchronized void route(long time, int srcNodeID, int destNodeID, int primaryPathID, int alternatePathID)
+  {
+    if (failed)
+    {
+      return;
+    }
+    try
+    {
+      out.writeByte(ROUTE);
+      out.writeLong(time);
+      out.writeInt(srcNodeID);
+      out.writeInt(destNodeID);
+      out.writeInt(primaryPathID);
+      out.writeInt(alternatePathID);
+    }
+    catch (IOException ioe)
+    {
+      fail(ioe);
+    }
+  }
+
+  synchronized void expiration(long time, int pathID)
+  {
+    if (failed)
+    {
+      return;
+    }
+    try
+    {
+      out.writeByte(EXPIRATION);
+      out.writeLong(time);
+      out.writeInt(pathID);
+    }
+    catch (IOException ioe)
+    {
+      fail(ioe);
+    }
+  }
+
+  /**
+   * Pushes what has been recorded to the stream.
+   */
+  synchronized void flush()
+  {
+    if (failed)
+    {
+      return;
+    }
+    try
+    {
+      out.flush();
+    }
+    catch (IOException ioe)
+    {
+      fail(ioe);
+    }
+  }
+
+  synchronized void close()
+  {
+    try
+    {
+      out.close();
+    }
+    catch (IOException ioe)
+    {
+      fail(ioe);
+    }
+    failed = true;
+  }
+
+  /**
+   * Writes a path's PATH record unless it has been written.
+   */
+  private void writePath(BasePIB.Path path) throws IOException
+  {
+    int pathID = path.getPathID().intValue();
+    if (pathsWritten.get(pathID) != null)
+    {
+      return;
+    }
+    pathsWritten.put(pathID, Boolean.TRUE);
+    Vector nodeSequence = path.getNodeSequence();
+    out.writeByte(PATH);
+    out.writeInt(pathID);
+    out.writeInt(path.getSrcNodeID());
+    out.writeInt(path.getDestNodeID());
+    out.writeShort(nodeSequence.size());
+    for (int i = 0; i < nodeSequence.size(); i++)
+    {
+      out.writeInt(((Integer) nodeSequence.elementAt(i)).intValue());
+    }
+    out.writeInt(availableBandwidth(path));
+  }
+
+  private static int availableBandwidth(BasePIB.Path path)
+  {
+    return path.getPathQoSArray()[BasePIB.BEST_EFFORT].getAvailableBandwidth();
+  }
+
+  private void fail(IOException ioe)
+  {
+    if (!failed)
+    {
+      System.out.println("IOE thrown by TraceRecorder in BestEffortManager; trace stopped. " + ioe);
+    }
+    failed = true;
+  }
+}
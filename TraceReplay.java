@@ -0,0 +1,356 @@
+package org.saamnet.saam.server;
+
+import java.io.*;
+import java.util.*;
+
+import org.saamnet.saam.net.*;
+import org.saamnet.saam.message.CongestionAdvisory;
+import org.saamnet.saam.message.CongestionAdvisoryBatch;
+import org.saamnet.saam.message.BestEffortTableBatch;
+import org.saamnet.saam.message.EdgeNotification;
+
+/**
+ * TraceReplay feeds a trace recorded by a BestEffortManager (see
+ * TraceRecorder, and BEM's saam.bem.trace property) back through a new
+ * BEM, so a congestion episode can be studied after the fact and a change
+ * to BEM's policy can be tried against it.  The new BEM is given a
+ * ReplayPIB built from the trace and a VirtualClock set to each input's
+ * recorded time, so the replay runs as fast as BEM can go and gives the
+ * same decisions every time.  Its own outputs are recorded to a second
+ * trace, and the two traces are summarized side by side:
+ * <pre>
+ *   advisories     GREEN, YELLOW and RED advisories sent
+ *   routes         table entry complements sent
+ *   expirations    paths expired
+ *   findPath       queries put to the routing algorithm
+ *   reactions      congestion episodes BEM reacted to: a path's loss rate
+ *                  going over the threshold, then an advisory for it
+ *   reaction ms    mean and max virtual time from the first lossy sample
+ *                  to the advisory
+ * </pre>
+ * Run it with, for example:
+ * <pre>
+ *   java org.saamnet.saam.server.TraceReplay bem.trace out=replay.trace
+ * </pre>
+ * A replay can only follow the trace: a query its policy makes that the
+ * recorded BEM never made finds no path, and is counted as unanswered.
+ */
+public class TraceReplay
+{
+  /**
+   * Stands in for the Server, counting the messages BEM sends.
+   */
+  static class ReplayServer extends Server
+  {
+    private long cyclePeriod;
+    private ControlExecutive controlExec = new SimulatedServer.Executive();
+    private int messagesSent;
+
+    ReplayServer(long cyclePeriod)
+    {
+      this.cyclePeriod = cyclePeriod;
+    }
+
+    public long getAC_cyclePeriod()
+    {
+      return cyclePeriod;
+    }
+
+    public ControlExecutive getControlExec()
+    {
+      return controlExec;
+    }
+
+    public synchronized void sendBETBatch(IPv6Address routerID, BestEffortTableBatch batch)
+    {
+      messagesSent++;
+    }
+
+    public synchronized void sendCongestionAdvisory(IPv6Address routerID, int pathID, byte pathCondition)
+    {
+      messagesSent++;
+    }
+
+    public synchronized void sendCongestionAdvisoryBatch(IPv6Address routerID, CongestionAdvisoryBatch batch)
+    {
+      messagesSent++;
+    }
+
+    synchronized int getMessagesSent()
+    {
+      return messagesSent;
+    }
+  }
+
+  /**
+   * Counts a trace's inputs and outputs and measures BEM's reactions.
+   */
+  static class TraceSummary
+  {
+    short thresholdLossRate;
+    long start;
+    long end;
+    int cycles;
+    int samples;
+    int edgeNotifications;
+    int pathFailures;
+    int findPaths;
+    int[] advisories = new int[3];//by condition
+    int routes;
+    int expirations;
+    int reactions;
+    long reactionMillis;
+    long maxReactionMillis;
+
+    //time (Long) each lossy path went over the threshold, by path ID
+    //(Integer), until BEM reacts to it or it comes back under
+    private Hashtable lossySince = new Hashtable();
+
+    //paths BEM has reacted to that are still over the threshold
+    private HashSet reactedTo = new HashSet();
+
+    /**
+     * @param   record  a reader that has read a record
+     */
+    void add(TraceReader record)
+    {
+      if (record.time != 0)
+      {
+        end = Math.max(end, record.time);
+      }
+      switch (record.type)
+      {
+        case TraceRecorder.HEADER:
+          thresholdLossRate = record.thresholdLossRate;
+          start = record.start;
+          break;
+        case TraceRecorder.CYCLE:
+          cycles++;
+          samples += record.count;
+          for (int i = 0; i < record.count; i++)
+          {
+            Integer pathID = new Integer(record.pathIDs[i]);
+            if (record.lossRates[i] <= thresholdLossRate)
+            {
+              lossySince.remove(pathID);
+              reactedTo.remove(pathID);
+            }
+            else if (!lossySince.containsKey(pathID) && !reactedTo.contains(pathID))
+            {
+              lossySince.put(pathID, new Long(record.time));
+            }
+          }
+          break;
+        case TraceRecorder.EDGE_NOTIFICATION:
+          edgeNotifications++;
+          break;
+        case TraceRecorder.PATH_FAILURE:
+          pathFailures++;
+          break;
+        case TraceRecorder.FIND_PATH:
+          findPaths++;
+          break;
+        case TraceRecorder.ADVISORY:
+          advisories[record.pathCondition]++;
+          Integer pathID = new Integer(record.pathID);
+          Long since = (Long) lossySince.remove(pathID);
+          if (since != null)
+          {
+            long millis = record.time - since.longValue();
+            reactions++;
+            reactionMillis += millis;
+            maxReactionMillis = Math.max(maxReactionMillis, millis);
+            reactedTo.add(pathID);
+          }
+          break;
+        case TraceRecorder.ROUTE:
+          routes++;
+          break;
+        case TraceRecorder.EXPIRATION:
+          expirations++;
+          break;
+        default:
+          break;
+      }
+    }
+
+    long meanReactionMillis()
+    {
+      return (reactions == 0) ? 0 : reactionMillis / reactions;
+    }
+  }
+
+  /**
+   * Replays a trace and prints the recorded and replayed summaries.
+   * @param   args  the trace file, and optionally "out=FILE" to keep the
+   *                replay's own trace
+   */
+  public static void main(String[] args) throws IOException
+  {
+    String traceFile = null;
+    String outFile = null;
+    for (int i = 0; i < args.length; i++)
+    {
+      if (args[i].startsWith("out="))
+      {
+        outFile = args[i].substring(4);
+      }
+      else if (traceFile == null)
+      {
+        traceFile = args[i];
+      }
+      else
+      {
+        System.out.println("TraceReplay Error: bad argument " + args[i]);
+        return;
+      }
+    }
+    if (traceFile == null)
+    {
+      System.out.println("usage: TraceReplay TRACE [out=FILE]");
+      return;
+    }
+
+    //the replaying BEM must neither overwrite the trace nor open a gui
+    System.getProperties().remove(BestEffortManager.TRACE_PROPERTY);
+    if (System.getProperty(BestEffortManager.HEADLESS_PROPERTY) == null)
+    {
+      System.setProperty(BestEffortManager.HEADLESS_PROPERTY, "true");
+    }
+
+    //first pass: the paths and routing answers, and the recorded summary
+    TraceReader reader = new TraceReader(new FileInputStream(traceFile));
+    if (!reader.next() || (reader.type != TraceRecorder.HEADER))
+    {
+      System.out.println("TraceReplay Error: " + traceFile + " has no header.");
+      return;
+    }
+    TraceSummary recorded = new TraceSummary();
+    recorded.add(reader);
+    VirtualClock clock = new VirtualClock(reader.start);
+    ReplayPIB pib = new ReplayPIB(reader, clock);
+    ReplayRoutingAlgorithm routing = (ReplayRoutingAlgorithm) pib.routingAlgorithm;
+    ReplayServer server = new ReplayServer(reader.acCyclePeriod);
+    while (reader.next())
+    {
+      recorded.add(reader);
+      if (reader.type == TraceRecorder.PATH)
+      {
+        pib.loadPath(reader);
+      }
+      else if (reader.type == TraceRecorder.FIND_PATH)
+      {
+        routing.loadAnswer(reader);
+      }
+    }
+    reader.close();
+
+    OutputStream replayStream = (outFile == null) ? (OutputStream) new ByteArrayOutputStream()
+                                                  : new FileOutputStream(outFile);
+    BestEffortManager bem = new BestEffortManager(pib, server);
+    bem.setClock(clock);
+    bem.start(false);//cycles are replayed below
+    TraceRecorder recorder = new TraceRecorder(replayStream);
+    bem.startTrace(recorder);
+
+    //second pass: the inputs, in order
+    long wallStart = System.currentTimeMillis();
+    reader = new TraceReader(new FileInputStream(traceFile));
+    while (reader.next())
+    {
+      clock.setTime(reader.time);
+      replay(reader, bem, pib);
+    }
+    reader.close();
+    long wallMillis = System.currentTimeMillis() - wallStart;
+    recorder.close();
+
+    TraceSummary replayed = new TraceSummary();
+    InputStream replayedInput = (outFile == null) ? (InputStream) new ByteArrayInputStream(((ByteArrayOutputStream) replayStream).toByteArray())
+                                                  : new FileInputStream(outFile);
+    reader = new TraceReader(replayedInput);
+    while (reader.next())
+    {
+      replayed.add(reader);
+    }
+    reader.close();
+
+    long traceMillis = recorded.end - recorded.start;
+    System.out.println("trace " + traceFile + ": " + traceMillis + " ms, " + recorded.cycles + " cycles, " +
+                       recorded.samples + " samples, " + recorded.edgeNotifications + " edge notifications, " +
+                       recorded.pathFailures + " path failures");
+    System.out.println("replayed in " + wallMillis + " ms" +
+                       ((wallMillis > 0) ? " (" + (traceMillis / wallMillis) + "x real time)" : "") +
+                       "; " + routing.getUnanswered() + " of " + routing.getCalls() +
+                       " findPath queries not in the trace; " + server.getMessagesSent() + " messages sent");
+    System.out.println(pad("", 14) + pad("recorded", 10) + pad("replayed", 10));
+    print("GREEN", recorded.advisories[CongestionAdvisory.GREEN], replayed.advisories[CongestionAdvisory.GREEN]);
+    print("YELLOW", recorded.advisories[CongestionAdvisory.YELLOW], replayed.advisories[CongestionAdvisory.YELLOW]);
+    print("RED", recorded.advisories[CongestionAdvisory.RED], replayed.advisories[CongestionAdvisory.RED]);
+    print("routes", recorded.routes, replayed.routes);
+    print("expirations", recorded.expirations, replayed.expirations);
+    print("findPath", recorded.findPaths, replayed.findPaths);
+    print("reactions", recorded.reactions, replayed.reactions);
+    print("reaction ms", recorded.meanReactionMillis(), replayed.meanReactionMillis());
+    print("max ms", recorded.maxReactionMillis, replayed.maxReactionMillis);
+  }
+
+  /**
+   * Gives one input record to BEM.  Outputs and routing answers are skipped.
+   */
+  private static void replay(TraceReader record, BestEffortManager bem, ReplayPIB pib) throws IOException
+  {
+    switch (record.type)
+    {
+      case TraceRecorder.PATH:
+        pib.addPath(record.pathID);
+        break;
+      case TraceRecorder.CYCLE:
+        Vector samples = new Vector(record.count);
+        for (int i = 0; i < record.count; i++)
+        {
+          ReplayPIB.ReplayPath path = pib.sample(record.pathIDs[i], record.lossRates[i], record.bandwidths[i]);
+          if (path != null)
+          {
+            samples.add(new MonitoringPipeline.LossSample(path, record.lossRates[i]));
+          }
+        }
+        bem.processLossSamples((MonitoringPipeline.LossSample[])
+                               samples.toArray(new MonitoringPipeline.LossSample[samples.size()]));
+        break;
+      case TraceRecorder.EDGE_NOTIFICATION:
+        if (record.nodeID >= 0)
+        {
+          pib.addEdge(record.address, record.nodeID, record.routerID);
+        }
+        bem.processEdgeNotification(new EdgeNotification(IPv6Address.getByName(record.address)));
+        break;
+      case TraceRecorder.PATH_FAILURE:
+        bem.handleBEpathFailure(record.pathID);
+        break;
+      case TraceRecorder.TOPOLOGY_CHANGED:
+        bem.topologyChanged();
+        break;
+      case TraceRecorder.LINK_STATE_CHANGED:
+        bem.linkStateChanged(record.nodeID);
+        break;
+      default:
+        break;
+    }
+  }
+
+  private static void print(String name, long recorded, long replayed)
+  {
+    System.out.println(pad(name, 14) + pad(Long.toString(recorded), 10) + pad(Long.toString(replayed), 10));
+  }
+
+  private static String pad(String value, int width)
+  {
+    StringBuffer padded = new StringBuffer();
+    for (int i = value.length(); i < width; i++)
+    {
+      padded.append(' ');
+    }
+    return padded.append(value).toString();
+  }
+}
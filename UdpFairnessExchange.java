@@ -0,0 +1,124 @@
+package org.saamnet.saam.server;
+
+import java.io.IOException;
+import java.net.*;
+
+/**
+ * UdpFairnessExchange connects BestEffortManagers in separate processes,
+ * or on separate hosts, with one datagram per summary.  Each manager has
+ * its own exchange, bound to a local port and given the addresses of the
+ * others; for processes on one host these are ports on the loopback
+ * address.  Datagrams that do not come from a peer's address, or do not
+ * decode, are dropped; a peer sends from the port it receives on.
+ */
+class UdpFairnessExchange implements FairnessExchange, Runnable
+{
+  //largest datagram accepted; anything longer than a summary is malformed
+  private final static int MAX_DATAGRAM = FairnessSummary.MAX_LENGTH + 1;
+
+  private int localPort;
+  private InetSocketAddress[] peers;
+  private DatagramSocket socket;
+  private BestEffortManager bem;
+  private Thread receiver;
+  private volatile boolean running;
+
+  /**
+   * @param   localPort  port summaries are received on
+   * @param   peers      where the other partitions receive summaries
+   */
+  UdpFairnessExchange(int localPort, InetSocketAddress[] peers)
+  {
+    this.localPort = localPort;
+    this.peers = peers;
+  }
+
+  public void start(BestEffortManager bem)
+  {
+    this.bem = bem;
+    try
+    {
+      socket = new DatagramSocket(localPort);
+    }
+    catch (SocketException se)
+    {
+      System.out.println("SE thrown by start() in UdpFairnessExchange: " + se.getMessage());
+      return;
+    }
+    running = true;
+    receiver = new Thread(this, "BEM fairness exchange");
+    receiver.setDaemon(true);
+    receiver.start();
+  }
+
+  public void publish(FairnessSummary summary)
+  {
+    if (socket == null)
+    {
+      return;
+    }
+    byte[] bytes = summary.getBytes();
+    for (int i = 0; i < peers.length; i++)
+    {
+      try
+      {
+        socket.send(new DatagramPacket(bytes, bytes.length, peers[i]));
+      }
+      catch (IOException ioe)
+      {
+        System.out.println("IOE thrown by publish() in UdpFairnessExchange: " + ioe.getMessage());
+      }
+    }
+  }
+
+  public void run()
+  {
+    byte[] bytes = new byte[MAX_DATAGRAM];
+    while (running)
+    {
+      DatagramPacket packet = new DatagramPacket(bytes, bytes.length);
+      try
+      {
+        socket.receive(packet);
+        if (!isPeer(packet.getSocketAddress()))
+        {
+          System.out.println("Summary from " + packet.getSocketAddress() + " dropped by UdpFairnessExchange.");
+          continue;
+        }
+        bem.receiveFairnessSummary(new FairnessSummary(packet.getData(), packet.getLength()));
+      }
+      catch (IllegalArgumentException iae)
+      {
+        System.out.println("Malformed summary dropped by UdpFairnessExchange: " + iae.getMessage());
+      }
+      catch (IOException ioe)
+      {
+        if (running)
+        {
+          System.out.println("IOE thrown by run() in UdpFairnessExchange: " + ioe.getMessage());
+        }
+      }
+    }
+  }
+
+  private boolean isPeer(SocketAddress source)
+  {
+    for (int i = 0; i < peers.length; i++)
+    {
+      if (peers[i].equals(source))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public void stop()
+  {
+    running = false;
+    if (socket != null)
+    {
+      socket.close();
+    }
+  }
+}
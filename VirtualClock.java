@@ -0,0 +1,44 @@
+package org.saamnet.saam.server;
+
+/**
+ * VirtualClock is a Clock that only moves when it is told to.  It can be
+ * read from any thread.
+ */
+class VirtualClock extends Clock
+{
+  private volatile long now;
+
+  /**
+   * @param   start  the time to start at (ms)
+   */
+  VirtualClock(long start)
+  {
+    now = start;
+  }
+
+  long currentTimeMillis()
+  {
+    return now;
+  }
+
+  /**
+   * Moves the clock on.
+   * @param   millis  how far (ms); not negative
+   */
+  synchronized void advance(long millis)
+  {
+    now += millis;
+  }
+
+  /**
+   * Sets the clock, which may not go backwards.
+   * @param   time  the new time (ms)
+   */
+  synchronized void setTime(long time)
+  {
+    if (time > now)
+    {
+      now = time;
+    }
+  }
+}
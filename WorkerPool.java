@@ -0,0 +1,152 @@
+package org.saamnet.saam.server;
+
+/**
+ * WorkerPool runs a task on several threads at once and waits for all of
+ * them to finish it.  The calling thread runs the task too.  The pool's own
+ * threads are started the first time they are needed and then kept, waiting
+ * for the next task, so work spread over threads every AC cycle doesn't
+ * start new ones every cycle.  One task runs at a time.
+ */
+class WorkerPool implements Runnable
+{
+  private String name;
+  private Thread[] workers = new Thread[0];
+
+  private Runnable task;//the task being run, null when idle
+  private int wanted;//workers yet to take the task
+  private int running;//workers yet to finish the task
+  private boolean stopped;
+
+  /**
+   * @param   name  prefix of the workers' thread names
+   */
+  WorkerPool(String name)
+  {
+    this.name = name;
+  }
+
+  /**
+   * Runs a task on the calling thread and threads - 1 workers, returning
+   * when every one of them has finished it.  An interrupt while waiting for
+   * the workers doesn't cut the wait short, since they may still be using
+   * the task's state; the thread's interrupt status is set again afterwards.
+   * @param   task     the task; each thread calls its run()
+   * @param   threads  number of threads to run it on, the caller included
+   */
+  void execute(Runnable task, int threads)
+  {
+    synchronized (this)
+    {
+      if (stopped)
+      {
+        threads = 1;
+      }
+      startWorkers(threads - 1);
+      this.task = task;
+      wanted = threads - 1;
+      running = threads - 1;
+      notifyAll();
+    }
+    try
+    {
+      task.run();
+    }
+    finally
+    {
+      awaitWorkers();
+    }
+  }
+
+  /**
+   * Stops the workers once they finish the task they are running.
+   */
+  synchronized void stop()
+  {
+    stopped = true;
+    running -= wanted;//not taken; awaitWorkers() needn't wait for them
+    wanted = 0;
+    notifyAll();
+  }
+
+  private void startWorkers(int count)
+  {
+    if (workers.length >= count)
+    {
+      return;
+    }
+    Thread[] grown = new Thread[count];
+    System.arraycopy(workers, 0, grown, 0, workers.length);
+    for (int i = workers.length; i < count; i++)
+    {
+      grown[i] = new Thread(this, name + " " + i);
+      grown[i].setDaemon(true);
+      grown[i].start();
+    }
+    workers = grown;
+  }
+
+  private synchronized void awaitWorkers()
+  {
+    boolean interrupted = false;
+    while (running > 0)
+    {
+      try
+      {
+        wait();
+      }
+      catch (InterruptedException ie)
+      {
+        interrupted = true;
+      }
+    }
+    task = null;
+    if (interrupted)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public void run()
+  {
+    while (true)
+    {
+      Runnable next;
+      synchronized (this)
+      {
+        while (!stopped && (wanted == 0))
+        {
+          try
+          {
+            wait();
+          }
+          catch (InterruptedException ie)
+          {
+            //stopped is rechecked
+          }
+        }
+        if (stopped)
+        {
+          return;
+        }
+        wanted--;
+        next = task;
+      }
+      try
+      {
+        next.run();
+      }
+      catch (RuntimeException re)
+      {
+        System.out.println(re + " thrown by " + Thread.currentThread().getName() + " in BestEffortManager.");
+      }
+      finally
+      {
+        synchronized (this)
+        {
+          running--;
+          notifyAll();
+        }
+      }
+    }
+  }
+}